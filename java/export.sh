@@ -0,0 +1,10 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+OUTDIR=$4
+
+# Example: ./export.sh flightDB 5432 user /data/extract/2018-06-01
+# Only Booking rows departing in a range: ./export.sh flightDB 5432 user out 2018-05-01 2018-06-01
+# Writes <table>.csv.gz per table; -Dairbooking.exportThreads in JAVA_OPTS sets the parallelism (default 4)
+java $JAVA_OPTS -cp lib/*:bin/ TableExporter $DBNAME $PORT $USER $OUTDIR $5 $6
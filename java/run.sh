@@ -4,4 +4,6 @@ PORT=$2
 USER=$3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ AirBooking $DBNAME $PORT $USER
+# Optional settings go in JAVA_OPTS, e.g.
+# JAVA_OPTS="-Dairbooking.replicas=localhost:5433 -Dairbooking.maxStalenessMs=500 -Dairbooking.cacheTtlMs=60000 -Dairbooking.cacheSize=256 -Dairbooking.changeFeed=true -Dairbooking.changeRetentionHours=24 -Dairbooking.snapshot=airbooking.snap -Dairbooking.readTimeoutMs=5000 -Dairbooking.writeTimeoutMs=10000 -Dairbooking.poolSize=4 -Dairbooking.journal=bookings.journal -Dairbooking.archive=archive -Dairbooking.recommendIntervalMs=600000 -Dairbooking.trendingRefreshMs=60000 -Dairbooking.importBatch=1000"
+java $JAVA_OPTS -cp lib/*:bin/ AirBooking $DBNAME $PORT $USER
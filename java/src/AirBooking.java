@@ -19,6 +19,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
@@ -26,7 +27,17 @@ import java.util.ArrayList;
 import java.util.Random;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Comparator;
 import java.text.DecimalFormat;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,7 +47,39 @@ import java.text.DecimalFormat;
 
 public class AirBooking{
 	//reference to physical database connection
-	private Connection _connection = null;
+	private volatile Connection _connection = null;
+	private String _url;
+	private String _user;
+	private String _passwd;
+	//statement timeouts and retries of transient failures
+	private ExecutionPolicy _policy = null;
+	//extra primary connections for the ...Async helpers, -Dairbooking.poolSize=4
+	private ConnectionPool _pool = null;
+	//sends reads to the replicas listed in -Dairbooking.replicas=host:port,...
+	private ReplicaRouter _router = null;
+	//Booking and Ratings spread by airId over -Dairbooking.shards=host:port,..., null when not sharded
+	private ShardRouter _shards = null;
+	//results of the listing queries, dropped when their tables are written
+	private ResultCache _cache = null;
+	//typo tolerant lookup of the cities Flight serves
+	private CityIndex _cities = new CityIndex();
+	//change events from every app instance sharing the database, null unless -Dairbooking.changeFeed=true
+	private ChangeFeed _feed = null;
+	//bookings per flight and date for the available seats lookup
+	private SeatCountView _seats = null;
+	//warm start file for the in-memory views, null unless -Dairbooking.snapshot=<file>
+	private Snapshot _snapshot = null;
+	private ScheduledExecutorService _snapshotTimer = null;
+	//write-behind bookings, null unless -Dairbooking.journal=<file>
+	private BookingJournal _journal = null;
+	//bookings and ratings moved out by BookingArchiver, null unless -Dairbooking.archive=<dir>
+	private BookingArchive _archive = null;
+	//"also flew" routes per flight, null unless -Dairbooking.recommendIntervalMs=<ms>
+	private RouteRecommender _recommender = null;
+	//bookings per destination over the last hours and per departure date
+	private TrendingDestinations _trending = null;
+	//the menu's options 1 to 9, see AirBookingRepository
+	private AirBookingRepository _repository = new PostgresRepository(this);
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
 	public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -48,6 +91,114 @@ public class AirBooking{
 
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+			this._url = url;
+			this._user = user;
+			this._passwd = passwd;
+
+			// e.g. -Dairbooking.readTimeoutMs=5000 -Dairbooking.writeTimeoutMs=10000 -Dairbooking.maxAttempts=4
+			this._policy = new ExecutionPolicy(
+				Integer.parseInt(System.getProperty("airbooking.readTimeoutMs", "5000")),
+				Integer.parseInt(System.getProperty("airbooking.writeTimeoutMs", "10000")),
+				Integer.parseInt(System.getProperty("airbooking.maxAttempts", "4")),
+				50, 2000, this::reconnect);
+			this._policy.configure(this._connection);
+			this._pool = new ConnectionPool(url, user, passwd,
+				Integer.parseInt(System.getProperty("airbooking.poolSize", "4")),
+				Integer.parseInt(System.getProperty("airbooking.poolQueue", "16")), this._policy);
+
+			// optional read replicas, e.g. -Dairbooking.replicas=localhost:5433,localhost:5434
+			List<Connection> replicas = new ArrayList<Connection>();
+			String replicaList = System.getProperty("airbooking.replicas", "");
+			for (String endpoint : replicaList.split(",")) {
+				if (endpoint.trim().isEmpty()) continue;
+				Connection replica = DriverManager.getConnection("jdbc:postgresql://" + endpoint.trim() + "/" + dbname, user, passwd);
+				replica.setReadOnly(true);
+				this._policy.configure(replica);
+				replicas.add(replica);
+			}
+			long maxStalenessMs = Long.parseLong(System.getProperty("airbooking.maxStalenessMs", "1000"));
+			this._router = new ReplicaRouter(this._connection, replicas, maxStalenessMs);
+
+			// optional shards besides this database, e.g. -Dairbooking.shards=localhost:7442,localhost:7452
+			List<Connection> shards = new ArrayList<Connection>();
+			List<String> shardUrls = new ArrayList<String>();
+			shardUrls.add(url);
+			String shardList = System.getProperty("airbooking.shards", "");
+			for (String endpoint : shardList.split(",")) {
+				if (endpoint.trim().isEmpty()) continue;
+				shardUrls.add("jdbc:postgresql://" + endpoint.trim() + "/" + dbname);
+				Connection shard = DriverManager.getConnection(shardUrls.get(shardUrls.size() - 1), user, passwd);
+				this._policy.configure(shard);
+				shards.add(shard);
+			}
+			if (!shards.isEmpty()) this._shards = new ShardRouter(this._connection, shards, this._policy);
+
+			long cacheTtlMs = Long.parseLong(System.getProperty("airbooking.cacheTtlMs", "60000"));
+			int cacheSize = Integer.parseInt(System.getProperty("airbooking.cacheSize", "256"));
+			this._cache = new ResultCache(cacheTtlMs, cacheSize);
+
+			if (Boolean.getBoolean("airbooking.changeFeed")) {
+				this._feed = new ChangeFeed(dbname, dbport, user, passwd, Long.parseLong(System.getProperty("airbooking.changeRetentionHours", "24")));
+				// writes made by the other instances drop what they touched here too
+				this._feed.register(new ChangeView(){
+					public void apply(ChangeEvent event) {
+						AirBooking.this._cache.invalidate(event.table);
+						if (event.table.equals("flight")) AirBooking.this._cities.invalidate();
+					}
+
+					public void resync() {
+						AirBooking.this._cache.clear();
+						AirBooking.this._cities.invalidate();
+					}
+				});
+			}
+			// the feed only hears the bookings written to this database, not the other shards'
+			this._seats = new SeatCountView(this._shards == null ? this._feed : null);
+			// e.g. -Dairbooking.trendingThreads=4 -Dairbooking.trendingRefreshMs=60000, the latter used when the feed does not keep it fresh
+			this._trending = new TrendingDestinations(shardUrls, user, passwd,
+				Integer.parseInt(System.getProperty("airbooking.trendingThreads", "4")),
+				Long.parseLong(System.getProperty("airbooking.trendingRefreshMs", "60000")),
+				this._shards == null ? this._feed : null);
+			if (this._feed != null) {
+				this._feed.register(this._seats);
+				if (this._shards == null) this._feed.register(this._trending);
+				// restored views need the feed to catch up from the snapshot's watermark
+				long watermark = -1;
+				String snapshotFile = System.getProperty("airbooking.snapshot", "");
+				if (!snapshotFile.isEmpty()) {
+					this._snapshot = new Snapshot(new File(snapshotFile));
+					this._snapshot.register(this._cities);
+					this._snapshot.register(this._seats);
+					watermark = this._snapshot.load(Runtime.getRuntime().availableProcessors());
+					long snapshotIntervalMs = Long.parseLong(System.getProperty("airbooking.snapshotIntervalMs", "300000"));
+					this._snapshotTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+						Thread thread = new Thread(task, "snapshot");
+						thread.setDaemon(true);
+						return thread;
+					});
+					this._snapshotTimer.scheduleAtFixedRate(this::saveSnapshot, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+				}
+				this._feed.startFrom(watermark);
+			}
+			this._trending.start();
+
+			String archiveDir = System.getProperty("airbooking.archive", "");
+			if (!archiveDir.isEmpty()) this._archive = new BookingArchive(new File(archiveDir));
+
+			// e.g. -Dairbooking.journal=bookings.journal, Book Flight then returns once the booking is on local disk
+			String journalFile = System.getProperty("airbooking.journal", "");
+			if (!journalFile.isEmpty()) {
+				this._journal = new BookingJournal(new File(journalFile), this, shardUrls, user, passwd);
+				this._journal.start();
+			}
+
+			// e.g. -Dairbooking.recommendIntervalMs=600000, Book Flight then shows routes its passengers also booked
+			long recommendIntervalMs = Long.parseLong(System.getProperty("airbooking.recommendIntervalMs", "0"));
+			if (recommendIntervalMs > 0) {
+				this._recommender = new RouteRecommender(shardUrls, user, passwd,
+					Integer.parseInt(System.getProperty("airbooking.recommendThreads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+				this._recommender.start(recommendIntervalMs);
+			}
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -64,16 +215,121 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		executeUpdate(sql, null);
+	}
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	/**
+	 * Method to execute an update SQL statement that is retried after a lost
+	 * connection. The check tells whether the statement was committed anyway
+	 * before the connection broke, so it is never applied twice.
+	 *
+	 * @param sql the input SQL string
+	 * @param appliedCheck a query returning a row once the statement is applied, or null
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public void executeUpdate (String sql, String appliedCheck) throws SQLException {
+		String table = ResultCache.writtenTable(sql);
+		if (this._shards != null && table != null) {
+			if (table.equals("booking") || table.equals("ratings")) {
+				throw new SQLException("Writes to " + table + " must name their flight when sharded, use executeUpdateForFlight");
+			}
+			// reference data, every shard keeps a copy
+			this._shards.broadcast(sql);
+			if (table.equals("flight")) this._shards.invalidate();
+			wrote(table);
+			return;
+		}
+
+		this._policy.write(() -> {
+			// creates a statement object
+			Statement stmt = this._policy.statement(this._router.forWrite(), true);
+
+			// issues the update instruction
+			stmt.executeUpdate (sql);
 
-		// close the instruction
-	    stmt.close ();
+			// close the instruction
+		    stmt.close ();
+			return null;
+		}, appliedCheck == null ? null : () -> !executeQueryOnPrimaryAndReturnResult(appliedCheck).isEmpty());
+
+		// later reads must see this write
+		if (table != null) wrote(table);
+		else this._router.wrote();
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an update SQL statement on the rows of one flight,
+	 * which must be used for Booking and Ratings: when sharded it goes to the
+	 * shard of the flight's airline.
+	 *
+	 * @param flightNum the flight the written rows belong to
+	 * @param sql the input SQL string
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public void executeUpdateForFlight (String flightNum, String sql) throws SQLException {
+		executeUpdateForFlight(flightNum, sql, null);
+	}
+
+	/**
+	 * Method to execute an update SQL statement on the rows of one flight
+	 * that is retried after a lost connection, see executeUpdate.
+	 *
+	 * @param flightNum the flight the written rows belong to
+	 * @param sql the input SQL string
+	 * @param appliedCheck a query returning a row once the statement is applied, or null
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public void executeUpdateForFlight (String flightNum, String sql, String appliedCheck) throws SQLException {
+		if (this._shards == null) {
+			executeUpdate(sql, appliedCheck);
+			return;
+		}
+		this._policy.write(() -> {
+			Statement stmt = this._policy.statement(this._shards.forFlight(flightNum), true);
+			stmt.executeUpdate (sql);
+			stmt.close ();
+			return null;
+		}, appliedCheck == null ? null : () -> !executeQueryOnPrimaryAndReturnResult(flightNum, appliedCheck).isEmpty());
+		String table = ResultCache.writtenTable(sql);
+		if (table != null) wrote(table);
+	}
+
+	/**
+	 * Method to reopen the primary connection after it broke, called by the
+	 * execution policy before a retry. Replicas are re-checked on their next use.
+	 * Threads that lost the same connection reconnect one after the other; the
+	 * later ones find the new connection valid and keep it.
+	 *
+	 * @throws java.sql.SQLException when the primary can not be reached
+	 */
+	private synchronized void reconnect() throws SQLException {
+		this._router.recheck();
+		if (this._connection.isValid(2)) return;
+		Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		this._policy.configure(connection);
+		try{
+			this._connection.close ();
+		}catch (SQLException e){
+			// ignored.
+		}
+		this._connection = connection;
+		this._router.setPrimary(connection);
+		if (this._shards != null) this._shards.setPrimary(connection);
+	}
+
+	/**
+	 * Method to record a write made on the primary connection by the caller
+	 * instead of through executeUpdate, so later reads see it.
+	 *
+	 * @param table the table written
+	 * @throws java.sql.SQLException when the primary position could not be read
+	 */
+	void wrote(String table) throws SQLException {
+		this._cache.invalidate(table);
+		if (table.equalsIgnoreCase("flight")) this._cities.invalidate();
+		this._router.wrote();
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -84,37 +340,39 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		return this._policy.read(() -> {
+			//creates a statement object
+			Statement stmt = this._policy.statement(this._router.forRead(), false);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+
+			//iterates through the result set and output them to standard out.
+			boolean outputHeader = true;
+			while (rs.next()){
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						System.out.print(rsmd.getColumnName(i) + "\t");
+				    }
+				    System.out.println();
+				    outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i)
+					System.out.print (rs.getString (i) + "\t");
+				System.out.println ();
+				++rowCount;
+			}//end while
+			stmt.close ();
+			return rowCount;
+		});
 	}
 
 	/**
@@ -127,31 +385,115 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return executeQueryAndReturnResult(() -> this._router.forRead(), query);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) on the
+	 * primary. Used when the result feeds a write, such as the next free key,
+	 * and must not come from a lagging replica.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryOnPrimaryAndReturnResult (String query) throws SQLException {
+		return executeQueryAndReturnResult(() -> this._router.forWrite(), query);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) on the
+	 * primary of the shard holding a flight's Booking and Ratings rows.
+	 *
+	 * @param flightNum the flight the query reads
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryOnPrimaryAndReturnResult (String flightNum, String query) throws SQLException {
+		if (this._shards == null) return executeQueryOnPrimaryAndReturnResult(query);
+		return executeQueryAndReturnResult(() -> this._shards.forFlight(flightNum), query);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) on the
+	 * primary of every shard, in parallel when sharded. Used for Booking and
+	 * Ratings queries that are not about one flight.
+	 *
+	 * @param query the input query string
+	 * @return the records of all shards
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryOnAllShardsAndReturnResult (String query) throws SQLException {
+		if (this._shards == null) return executeQueryOnPrimaryAndReturnResult(query);
+		return this._shards.gather(query);
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata
-		 * contains row and column info.
-		*/
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-
-		//iterates through the result set and saves the data returned by the query.
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>();
-		while (rs.next()){
-			List<String> record = new ArrayList<String>();
-			for (int i=1; i<=numCol; ++i)
-				record.add(rs.getString (i));
-			result.add(record);
-		}//end while
-		stmt.close ();
+	/**
+	 * Method to execute a listing query over Booking or Ratings through the
+	 * result cache. When sharded every shard answers it and the records are
+	 * concatenated.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeCachedQueryOnAllShardsAndReturnResult (String query) throws SQLException {
+		return executeCachedQueryOnAllShardsAndReturnResult(query, null, 0);
+	}
+
+	/**
+	 * Method to execute a top-K listing query over Booking or Ratings through
+	 * the result cache. When sharded every shard answers its own top-K and
+	 * the lists are merged, so the query must rank groups that each live on
+	 * one shard, e.g. per flight.
+	 *
+	 * @param query the input query string, ending in ORDER BY ... LIMIT k
+	 * @param order the order of the query's ORDER BY, null to only concatenate
+	 * @param k the query's LIMIT
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeCachedQueryOnAllShardsAndReturnResult (String query, Comparator<List<String>> order, int k) throws SQLException {
+		if (this._shards == null) return executeCachedQueryAndReturnResult(query);
+		List<List<String>> result = this._cache.get(query);
+		if (result == null) {
+			long generation = this._cache.generation(query);
+			result = order == null ? this._shards.gather(query) : this._shards.gatherTopK(query, order, k);
+			this._cache.put(query, null, result, generation);
+		}
 		return result;
+	}
+
+	private List<List<String>> executeQueryAndReturnResult (ExecutionPolicy.Operation<Connection> connection, String query) throws SQLException {
+		return this._policy.read(() -> {
+			//creates a statement object
+			// asked again on every attempt, a retry may run on a reopened connection
+			Statement stmt = this._policy.statement(connection.run(), false);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata
+			 * contains row and column info.
+			*/
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+
+			//iterates through the result set and saves the data returned by the query.
+			boolean outputHeader = false;
+			List<List<String>> result  = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>();
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			stmt.close ();
+			return result;
+		});
 	}//end executeQueryAndReturnResult
 
 	/**
@@ -163,20 +505,317 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return this._policy.read(() -> {
+			//creates a statement object
+			Statement stmt = this._policy.statement(this._router.forRead(), false);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			stmt.close ();
+			return rowCount;
+		});
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and maps every record straight
+	 * from the result set to a typed row.
+	 *
+	 * @param query the input query string
+	 * @param mapper builds one typed row from the current record
+	 * @return the query result as a list of typed rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper) throws SQLException {
+		return this._policy.read(() -> {
+			Statement stmt = this._policy.statement(this._router.forRead(), false);
+			ResultSet rs = stmt.executeQuery (query);
+			List<T> result = new ArrayList<T>();
+			while (rs.next()){
+				result.add(mapper.map(rs));
+			}//end while
+			stmt.close ();
+			return result;
+		});
+	}
 
-		int rowCount = 0;
+	/**
+	 * Method to execute a listing query through the result cache and map
+	 * the records to typed rows. The DBMS is only queried when the typed
+	 * result is not cached or has expired.
+	 *
+	 * @param query the input query string
+	 * @param type the typed row class, part of the cache key
+	 * @param mapper builds one typed row from the current record
+	 * @return the query result as a list of typed rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeCachedQueryAndMap (String query, Class<T> type, RowMapper<T> mapper) throws SQLException {
+		List<T> result = this._cache.getMapped(query, type);
+		if (result == null) {
+			long generation = this._cache.generation(query);
+			result = executeQueryAndMap(query, mapper);
+			this._cache.putMapped(query, type, result, generation);
+		}
+		return result;
+	}
+
+	/**
+	 * Method to execute a listing query through the result cache. The
+	 * DBMS is only queried when the result is not cached or has expired.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeCachedQueryAndReturnResult (String query) throws SQLException {
+		List<List<String>> result = this._cache.get(query);
+		if (result != null) return result;
+
+		// a write between the query and the put would leave its old result cached
+		long generation = this._cache.generation(query);
+		// held in the cache, so kept column by column
+		ColumnarResult columns = executeQueryAndReturnColumns(query);
+		this._cache.put(query, columns.getColumnNames(), columns, generation);
+		return columns;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * keep the result column by column, for results that are large or held
+	 * on to. It can be read as a list of records too.
+	 *
+	 * @param query the input query string
+	 * @return the query result in typed columns
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query) throws SQLException {
+		return this._policy.read(() -> {
+			Statement stmt = this._policy.statement(this._router.forRead(), false);
+			ResultSet rs = stmt.executeQuery (query);
+			ColumnarResult result = ColumnarResult.from(rs);
+			stmt.close ();
+			return result;
+		});
+	}
+
+	/**
+	 * Method to execute a listing query through the result cache and
+	 * output the results to standard out.
+	 *
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeCachedQueryAndPrintResult (String query) throws SQLException {
+		List<List<String>> result = executeCachedQueryAndReturnResult(query);
+		if (result.isEmpty()) return 0;
+		// results merged from several shards are cached without one
+		List<String> header = this._cache.getHeader(query);
+		if (header != null) {
+			for (String column : header)
+				System.out.print(column + "\t");
+			System.out.println();
+		}
+		for (List<String> record : result){
+			for (String value : record)
+				System.out.print (value + "\t");
+			System.out.println ();
+		}//end for
+		return result.size();
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) in the
+	 * background on a pooled primary connection, so independent lookups can
+	 * run at the same time. Collect the result with await().
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records, once it is there
+	 */
+	public CompletableFuture<List<List<String>>> executeQueryAsync (String query) {
+		return this._pool.submit(connection -> {
+			Statement stmt = this._policy.statement(connection, false);
+			ResultSet rs = stmt.executeQuery (query);
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			List<List<String>> result = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>();
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			stmt.close ();
+			return result;
+		});
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) in the
+	 * background and map every record to a typed row.
+	 *
+	 * @param query the input query string
+	 * @param mapper builds one typed row from the current record
+	 * @return the query result as a list of typed rows, once it is there
+	 */
+	public <T> CompletableFuture<List<T>> executeQueryAndMapAsync (String query, RowMapper<T> mapper) {
+		return this._pool.submit(connection -> {
+			Statement stmt = this._policy.statement(connection, false);
+			ResultSet rs = stmt.executeQuery (query);
+			List<T> result = new ArrayList<T>();
+			while (rs.next()){
+				result.add(mapper.map(rs));
+			}//end while
+			stmt.close ();
+			return result;
+		});
+	}
+
+	/**
+	 * Method to execute a listing query through the result cache in the
+	 * background. A cached result is returned completed.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records, once it is there
+	 */
+	public CompletableFuture<List<List<String>>> executeCachedQueryAsync (String query) {
+		List<List<String>> result = this._cache.get(query);
+		if (result != null) return CompletableFuture.completedFuture(result);
+		long generation = this._cache.generation(query);
+		CompletableFuture<ColumnarResult> columns = this._pool.submit(connection -> {
+			Statement stmt = this._policy.statement(connection, false);
+			ColumnarResult records = ColumnarResult.from(stmt.executeQuery (query));
+			stmt.close ();
+			return records;
+		});
+		return columns.thenApply(records -> {
+			this._cache.put(query, records.getColumnNames(), records, generation);
+			return records;
+		});
+	}
+
+	/**
+	 * Method to execute a listing query through the result cache in the
+	 * background and map the records to typed rows.
+	 *
+	 * @param query the input query string
+	 * @param type the typed row class, part of the cache key
+	 * @param mapper builds one typed row from the current record
+	 * @return the query result as a list of typed rows, once it is there
+	 */
+	public <T> CompletableFuture<List<T>> executeCachedQueryAndMapAsync (String query, Class<T> type, RowMapper<T> mapper) {
+		List<T> result = this._cache.getMapped(query, type);
+		if (result != null) return CompletableFuture.completedFuture(result);
+		long generation = this._cache.generation(query);
+		return executeQueryAndMapAsync(query, mapper).thenApply(rows -> {
+			this._cache.putMapped(query, type, rows, generation);
+			return rows;
+		});
+	}
+
+	/**
+	 * Method to wait for the result of one of the ...Async helpers.
+	 *
+	 * @param result the pending result
+	 * @return the result
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public static <T> T await (CompletableFuture<T> result) throws SQLException {
+		try{
+			return result.join();
+		}catch(CompletionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to get a connection for read only statements that are prepared
+	 * by the caller instead of going through the helpers above.
+	 *
+	 * @return a replica connection, or the primary
+	 */
+	Connection getReadConnection() {
+		return this._router.forRead();
+	}
+
+	/**
+	 * Method to get the primary connection for statements and transactions
+	 * that are prepared by the caller. Call wrote() after writing on it.
+	 *
+	 * @return the primary connection
+	 */
+	Connection getWriteConnection() {
+		return this._router.forWrite();
+	}
+
+	/**
+	 * Method to get the primary connection holding a flight's Booking and
+	 * Ratings rows, which is the shard of its airline when sharded.
+	 *
+	 * @param flightNum the flight
+	 * @return the primary connection of the flight's shard
+	 * @throws java.sql.SQLException when the flight does not exist
+	 */
+	Connection getWriteConnection(String flightNum) throws SQLException {
+		return this._shards == null ? this._router.forWrite() : this._shards.forFlight(flightNum);
+	}
+
+	ShardRouter getShards() {
+		return this._shards;
+	}
+
+	ExecutionPolicy getPolicy() {
+		return this._policy;
+	}
+
+	public CityIndex getCityIndex() {
+		return this._cities;
+	}
+
+	public SeatCountView getSeatCounts() {
+		return this._seats;
+	}
+
+	public TrendingDestinations getTrending() {
+		return this._trending;
+	}
+
+	public BookingJournal getJournal() {
+		return this._journal;
+	}
+
+	public RouteRecommender getRecommender() {
+		return this._recommender;
+	}
+
+	public BookingArchive getArchive() {
+		return this._archive;
+	}
+
+	public AirBookingRepository getRepository() {
+		return this._repository;
+	}
+
+	/**
+	 * Method to save the in-memory views to the snapshot file, if there is one.
+	 * Only done while the change feed is live, otherwise they may be missing changes.
+	 */
+	public void saveSnapshot() {
+		if (this._snapshot == null || !this._feed.isLive()) return;
+		try{
+			this._snapshot.save(this._feed.getWatermark());
+		}catch(Exception e){
+			System.err.println("Could not save snapshot: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -202,6 +841,41 @@ public class AirBooking{
 	 */
 	public void cleanup(){
 		try{
+			if (this._snapshotTimer != null){
+				this._snapshotTimer.shutdownNow ();
+				saveSnapshot ();
+			}//end if
+			if (this._recommender != null){
+				this._recommender.stop ();
+				System.out.println(this._recommender.getStats());
+			}//end if
+			if (this._trending != null){
+				this._trending.stop ();
+				System.out.println(this._trending.getStats());
+			}//end if
+			if (this._journal != null){
+				this._journal.stop (10000);
+				System.out.println(this._journal.getStats());
+			}//end if
+			if (this._feed != null){
+				this._feed.stop ();
+				System.out.println(this._feed.getStats());
+			}//end if
+			if (this._cache != null){
+				System.out.println(this._cache.getStats());
+			}//end if
+			if (this._policy != null){
+				System.out.println(this._policy.getStats());
+			}//end if
+			if (this._pool != null){
+				this._pool.cleanup ();
+			}//end if
+			if (this._shards != null){
+				this._shards.cleanup ();
+			}//end if
+			if (this._router != null){
+				this._router.cleanup ();
+			}//end if
 			if (this._connection != null){
 				this._connection.close ();
 			}//end if
@@ -255,7 +929,13 @@ public class AirBooking{
 				System.out.println("7. List Highest Rated Destinations");
 				System.out.println("8. List Flights to Destination in order of Duration");
 				System.out.println("9. Find Number of Available Seats on a given Flight");
-				System.out.println("10. < EXIT");
+				System.out.println("10. Search Reviews");
+				System.out.println("11. Book Group");
+				System.out.println("12. Load Factor Report");
+				System.out.println("13. Booking Report");
+				System.out.println("14. Trip History");
+				System.out.println("15. Trending Destinations");
+				System.out.println("16. < EXIT");
 
 				switch (readChoice()){
 					case 1: AddPassenger(esql); break;
@@ -267,7 +947,13 @@ public class AirBooking{
 					case 7: ListHighestRatedRoutes(esql); break;
 					case 8: ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
 					case 9: FindNumberOfAvailableSeatsForFlight(esql); break;
-					case 10: keepon = false; break;
+					case 10: SearchReviews(esql); break;
+					case 11: BookGroup(esql); break;
+					case 12: LoadFactorReport(esql); break;
+					case 13: BookingReport(esql); break;
+					case 14: ListTripHistory(esql); break;
+					case 15: ListTrendingDestinations(esql); break;
+					case 16: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -301,17 +987,52 @@ public class AirBooking{
 		return input;
 	}//end readChoice
 
+	public static String readCity(AirBooking esql) throws Exception {
+		// returns only a city Flight actually serves, spelled as stored; the caller's option ends at end of input
+		do {
+			String input = in.readLine();
+			if (input == null) throw new IOException("No more input, leaving the option");
+			if (input.trim().isEmpty()) {
+				System.out.println("Please enter a location");
+				continue;
+			}
+			String city = esql.getCityIndex().resolve(esql, input);
+			if (city != null) {
+				return city;
+			}
+			List<String> suggestions = esql.getCityIndex().suggest(esql, input, 5);
+			if (suggestions.isEmpty()) {
+				System.out.println("There are no flights to or from " + input + ". Please try again.");
+				continue;
+			}
+			System.out.println("Did you mean:");
+			for (int i = 0; i < suggestions.size(); i++) {
+				System.out.println((i + 1) + ". " + suggestions.get(i));
+			}
+			System.out.println("Enter a number to choose, or type the city again");
+			input = in.readLine();
+			if (input == null) throw new IOException("No more input, leaving the option");
+			try {
+				int choice = Integer.parseInt(input.trim());
+				if (choice >= 1 && choice <= suggestions.size()) {
+					return suggestions.get(choice - 1);
+				}
+			}
+			catch (NumberFormatException e) {
+				city = esql.getCityIndex().resolve(esql, input);
+				if (city != null) {
+					return city;
+				}
+			}
+			System.out.println("Please enter the city you are looking for");
+		} while (true);
+	}//end readCity
+
 	public static void AddPassenger(AirBooking esql){//1
 		//Add a new passenger to the database
 		try{
-			String query = "INSERT INTO Passenger (pID ,passNum, fullName, bdate, country) VALUES(";
 			String input = "";
 			Integer repeatFlag = 1;
-			List<List<String>> maxID;
-
-			String testquery = "SELECT MAX(pID) from Passenger";
-			maxID = esql.executeQueryAndReturnResult(testquery);
-			query += (Integer.parseInt(maxID.get(0).get(0)) + 1) + ",'";
 
 			// Insert Passport
 			System.out.print("Enter your Passport Number: "); // make sure it's unique
@@ -331,15 +1052,13 @@ public class AirBooking{
 					System.out.println("Please enter only characters");
 					repeatFlag = 0;
 				}
-				String uniqueChecker = "SELECT * FROM Passenger WHERE passNum = '";
-				uniqueChecker += input + "' LIMIT 1;";
-				if (esql.executeQuery(uniqueChecker) == 1) {
+				if (esql.getRepository().findPassenger(input.toUpperCase()) != null) {
 					System.out.println("This Passport Number already exists");
 					repeatFlag = 0;
 				}
 			} while(repeatFlag == 0);
 			input = input.toUpperCase();
-			query += input + "','";
+			String passport = input;
 
 			//Input Name
 			String name = "";
@@ -375,8 +1094,7 @@ public class AirBooking{
 				}
 			} while(repeatFlag == 0);
 			input = input.substring(0, 1).toUpperCase() + input.substring(1);
-			name += " " + input + "'";
-			query += name + ",'";
+			name += " " + input;
 
 			if (input.length() >= 24) {
 				System.out.println("Please enter a name under 24 characters\n");
@@ -415,8 +1133,7 @@ public class AirBooking{
 					repeatFlag = 0;
 				}
 			} while(repeatFlag == 0);
-			input = inputMonth + "/" + inputDay + "/" + inputYear;
-			query += input + "','";
+			LocalDate birthday = LocalDate.of(inputYear, inputMonth, inputDay);
 
 			//Insert Country
 			System.out.println("Enter Country: ");
@@ -437,11 +1154,9 @@ public class AirBooking{
 					repeatFlag = 0;
 				}
 			} while(repeatFlag == 0);
-			query += input;
 
-			query += "');";
+			esql.getRepository().addPassenger(passport, name, birthday, input);
 			System.out.println("You have successfully been added " + name + "! Welcome!");
-			esql.executeUpdate(query);
 		}catch(Exception e){
 			 System.err.println (e.getMessage());
 		}
@@ -473,6 +1188,41 @@ public class AirBooking{
         return masterString;
     }
 
+	// runs a repository lookup in the background, await() gives back its SQLException
+	private static <T> CompletableFuture<T> lookup(ExecutionPolicy.Operation<T> operation) {
+		return CompletableFuture.supplyAsync(() -> {
+			try{
+				return operation.run();
+			}catch(SQLException e){
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	public static Flight chooseFlight(List<Flight> flights) throws Exception {
+		// returns the only flight of a route, or the one the user picks by flightNum
+		if (flights.size() == 1) {
+			return flights.get(0);
+		}
+		System.out.println("There seems to be multiple flights from these two cities.");
+		System.out.println("Please choose which one would you prefer to take by Flight Number.");
+		do {
+			for (Flight flight : flights) {
+				System.out.println(flight.getFlightNum() + "\t" + flight.plane + "\t" + flight.seats + " seats\t" + flight.duration + " hours");
+			}
+			String input = in.readLine();
+			// the route's flights are already loaded, compare packed numbers
+			if (input != null && FlightNum.isValid(input)) {
+				long wanted = FlightNum.pack(input);
+				for (Flight flight : flights) {
+					if (flight.flightNum == wanted) return flight;
+				}
+			}
+			System.out.println("There is no existing Flight Number from those two cities.");
+			System.out.println("Try entering it again.");
+		} while (true);
+	}//end chooseFlight
+
 	public static void BookFlight(AirBooking esql){//2
 		//Book Flight for an existing customer
 		try{
@@ -482,64 +1232,46 @@ public class AirBooking{
 			String originInput = "";
 			String destInput = "";
 			String input = "";
-			List<List<String>> flightNum;
-			List<List<String>> passNum;
-			String query = "";
-			String multipleCityQuery = "";
-			do {
-				query = "SELECT flightNum FROM Flight WHERE origin = '";
-				repeatFlag = 1;
+			List<Flight> flights;
+			Flight chosenFlight = null;
+			Integer pID;
+			// the route's flights are looked up while the passport is typed, and the passport
+			// while the flights are chosen from, so neither lookup is waited for on its own
+			System.out.println("Where are you traveling from?");
+			originInput = readCity(esql);
+			System.out.println("Where would you like to travel to?");
+			destInput = readCity(esql);
+			String origin = originInput, destination = destInput;
+			CompletableFuture<List<Flight>> routeLookup = lookup(() -> esql.getRepository().flightsBetween(origin, destination));
+
+			//Select the passenger ID
+			System.out.println("Please enter your Passport Number");
+			input = in.readLine();
+			String passNum = input.toUpperCase();
+			CompletableFuture<Integer> passportLookup = lookup(() -> esql.getRepository().findPassenger(passNum));
+
+			flights = await(routeLookup);
+			while (flights.isEmpty()) {
+				System.out.println("There is no flight from " +
+				originInput + " to " + destInput);
+				System.out.println("Please enter a valid flight path.");
 				System.out.println("Where are you traveling from?");
-				originInput = in.readLine();
-				query += originInput + "' AND destination = '";
+				originInput = readCity(esql);
 				System.out.println("Where would you like to travel to?");
-				destInput = in.readLine();
-				query += destInput + "';";
-				flightNum = esql.executeQueryAndReturnResult(query);
-				if (flightNum.isEmpty()) {
-					System.out.println("There is no flight from " +
-					originInput + " to " + destInput);
-					System.out.println("Please enter a valid flight path.");
-					repeatFlag = 0;
-				}
-				if (flightNum.size() > 1) { // in case there are multiple flights
-					System.out.println("There seems to be multiple flights from these two cities.");
-					System.out.println("Please choose which one would you prefer to take by Flight Number.");
-					multipleCityQuery = "SELECT * FROM Flight WHERE origin = '" + originInput
-					+ "' AND destination = '" + destInput + "';";
-					do {
-						repeatFlag = 1;
-						esql.executeQueryAndPrintResult(multipleCityQuery);
-						input = in.readLine();
-						String uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-						uniqueChecker += input + "' AND Origin = '" + originInput + "' AND destination = '" + destInput + "' LIMIT 1;";
-						if (esql.executeQuery(uniqueChecker) == 0) {
-							System.out.println("There is no existing Flight Number from those two cities.");
-							System.out.println("Try entering it again.");
-							repeatFlag = 0;
-						}
-				 } while (repeatFlag == 0);
-				 for (int i = 0; i < flightNum.size(); i++) {
-				 	flightNum.get(i).clear();
-				 }
-				 flightNum.get(0).add(input);
-				 break;
-				}
-			} while (repeatFlag == 0);
+				destInput = readCity(esql);
+				flights = esql.getRepository().flightsBetween(originInput, destInput);
+			}
+			chosenFlight = chooseFlight(flights);
 
-			//Select the passenger ID
-			do {
-				repeatFlag = 1;
-				query = "SELECT pID FROM Passenger WHERE passNum = '";
+			pID = await(passportLookup);
+			String passport = passNum;
+			while (pID == null) {
+				System.out.println("There is no matching Passport Number.");
 				System.out.println("Please enter your Passport Number");
 				input = in.readLine();
-				query += input.toUpperCase() + "';";
-				passNum = esql.executeQueryAndReturnResult(query);
-				if (passNum.isEmpty()) {
-					System.out.println("There is no matching Passport Number.");
-					repeatFlag = 0;
-				}
-			} while (repeatFlag == 0);
+				passport = input.toUpperCase();
+				pID = esql.getRepository().findPassenger(passport);
+			}
 
 			//Choose the departure date
 			System.out.println("Please enter the date you wish to leave");
@@ -575,130 +1307,136 @@ public class AirBooking{
 				}
 			} while(repeatFlag == 0);
 			String departureDate = inputMonth + "/" + inputDay + "/" + inputYear;
+			LocalDate departure = LocalDate.of(inputYear, inputMonth, inputDay);
+
+			if (esql.getJournal() != null) {
+				// the seat is held in the database before the booking is journaled, it reaches Booking shortly after
+				String bookingID = esql.getRepository().bookFlight(chosenFlight.getFlightNum(), departure, passport, null);
+				System.out.println("You're all good to go! Your booking ID is: " + bookingID);
+				System.out.println("Your flight from " + originInput + " to " + destInput + " on " + departureDate + " has been booked.");
+				showRecommendations(esql, chosenFlight.getFlightNum());
+				return;
+			}
 
-			//Insert into bookings table
-			//Make sure pID, departure date and flight Num are all unique
-			query = "INSERT INTO Booking VALUES(";
-			// making sure this bookingID isn't used if the booking ID has been already
-			// created it'll silently loop until it finds one that hasn't been used
-			String bookingID = "";
-			do {
-				bookingID = getBookingID();
-				String uniqueChecker = "SELECT * FROM Booking WHERE bookRef = '";
-				uniqueChecker += input + "' LIMIT 1;";
-				if (esql.executeQuery(uniqueChecker) == 1) {
-					repeatFlag = 0;
+			//Choose a seat, again when someone took it before the booking got in
+			Integer seat = 0;
+			String bookingID = null;
+			while (bookingID == null) {
+				SeatMap seatMap = SeatMap.load(esql, chosenFlight.getFlightNum(), departure);
+				if (seatMap.getFree() == 0) {
+					System.out.println("Flight " + chosenFlight.getFlightNum() + " is full on " + departureDate);
+					return;
+				}
+				System.out.println(seatMap);
+				System.out.println(seatMap.getFree() + " of " + seatMap.getCapacity() + " seats are free. "
+					+ "Enter the seat you would like, or nothing for the first free one");
+				do {
+					repeatFlag = 1;
+					input = in.readLine();
+					if (input == null) return; //end of input
+					try {
+						seat = input.trim().isEmpty() ? seatMap.firstFree() : Integer.parseInt(input.trim());
+						if (seat < 1 || seat > seatMap.getCapacity()) {
+							System.out.println("Please enter a seat from 1 to " + seatMap.getCapacity());
+							repeatFlag = 0;
+						}
+						else if (seatMap.isTaken(seat)) {
+							System.out.println("Seat " + seat + " is taken, please choose another one");
+							repeatFlag = 0;
+						}
+					}
+					catch (NumberFormatException e) {
+						System.out.println("Please enter only numbers");
+						repeatFlag = 0;
+					}
+				} while(repeatFlag == 0);
+
+				//Insert into bookings table with a bookRef not used on that departure
+				try {
+					bookingID = esql.getRepository().bookFlight(chosenFlight.getFlightNum(), departure, passport, seat);
 				}
-			} while(repeatFlag == 0);
-			query += "'" + bookingID + "','";
-			query += departureDate + "','";
-			query += flightNum.get(0).get(0).replaceAll("\\s+","") + "',"; // accessing index in list of list
-			query += passNum.get(0).get(0) + ");";
-		//	System.out.println(query);
+				catch (SQLException e) {
+					// the Booking trigger refuses a seat someone took since the map was read, any other refusal stands
+					if (!"23505".equals(e.getSQLState()) || !SeatMap.load(esql, chosenFlight.getFlightNum(), departure).isTaken(seat)) throw e;
+					System.out.println("Seat " + seat + " was just taken by someone else, please choose another one");
+				}
+			}
 
-			System.out.println("You're all good to go! Your booking ID is: " + bookingID);
+			System.out.println("You're all good to go! Your booking ID is: " + bookingID + ", your seat is " + seat);
 			System.out.println("Your flight from " + originInput + " to " + destInput + " on " + departureDate + " has been booked.");
-
-			// all avaliable flights from origin to destination
-			esql.executeUpdate(query);
+			showRecommendations(esql, chosenFlight.getFlightNum());
 
 		}catch(Exception e){
 			 System.err.println (e.getMessage());
 		}
 	}
 
+	// precomputed, so nothing is queried after the booking
+	private static void showRecommendations(AirBooking esql, String flightNum) {
+		if (esql.getRecommender() == null) return;
+		List<List<String>> routes = esql.getRecommender().recommend(flightNum);
+		if (routes.isEmpty()) return;
+		System.out.println("Passengers who flew " + flightNum.trim() + " also flew:");
+		for (List<String> route : routes) {
+			System.out.println("  " + route.get(0) + " to " + route.get(1) + " (" + route.get(2) + " passengers)");
+		}
+	}
+
 	public static void TakeCustomerReview(AirBooking esql){//3
 		//Insert customer review into the ratings table
 		try{
-			String query = "INSERT INTO Ratings VALUES(";
 			String input = "";
 			String originInput = "";
 			String destInput = "";
-			List<List<String>> flightNum;
-			List<List<String>> passNum;
+			List<Flight> flights;
+			String passport = "";
 			Integer repeatFlag = 1;
-			Integer skipFlag = 0;
-			String multipleCityQuery = "";
-			List<List<String>> maxID;
 
-			String testquery = "SELECT MAX(rID) from Ratings";
-			maxID = esql.executeQueryAndReturnResult(testquery);
-			query += (Integer.parseInt(maxID.get(0).get(0)) + 1) + ",";
-
-			String passportString = "";
 			System.out.println("Please enter your Passport Number: ");
 			// Insert pID
 			do {
 				repeatFlag = 1;
-				passportString = "SELECT pID FROM Passenger WHERE passNum = '";
 				input = in.readLine();
-				passportString += input.toUpperCase() + "';";
-				passNum = esql.executeQueryAndReturnResult(passportString);
-				if (passNum.isEmpty()) {
+				passport = input.toUpperCase();
+				if (esql.getRepository().findPassenger(passport) == null) {
 					System.out.println("There is no matching Passport Number.");
 					repeatFlag = 0;
 				}
 			} while (repeatFlag == 0);
-			query += passNum.get(0).get(0) + ",'";
 
 			//Insert Flight Number
 			//Either ask for flight number or ask for origin destination
-			String flightFinder = "";
 			System.out.println("Enter your flight number. If you only know the origin and destination, please type 'origin'.");
 			do {
 				input = in.readLine();
+				repeatFlag = 1;
 				if (input.equals("origin")) {
 					do { // helps find the corresponding flight number
-						flightFinder = "SELECT flightNum FROM Flight WHERE origin = '";
 						repeatFlag = 1;
 						System.out.println("Where are you traveling from?");
-						originInput = in.readLine();
-						flightFinder += originInput + "' AND destination = '";
+						originInput = readCity(esql);
 						System.out.println("Where would you like to travel to?");
-						destInput = in.readLine();
-						flightFinder += destInput + "'";
-						flightNum = esql.executeQueryAndReturnResult(flightFinder);
-						if (flightNum.isEmpty()) {
+						destInput = readCity(esql);
+						flights = esql.getRepository().flightsBetween(originInput, destInput);
+						if (flights.isEmpty()) {
 							System.out.println("There is no flight from " +
 							originInput + " to " + destInput);
 							System.out.println("Please enter a valid flight path.");
 							repeatFlag = 0;
 						}
-						if (flightNum.size() > 1) { // in case there are multiple flights
-							System.out.println("There seems to be multiple flights from these two cities.");
-							System.out.println("Please choose which one would you prefer to take by Flight Number.");
-							multipleCityQuery = "SELECT * FROM Flight WHERE origin = '" + originInput
-							+ "' AND destination = '" + destInput + "';";
-							do {
-								repeatFlag = 1;
-								skipFlag = 1;
-								esql.executeQueryAndPrintResult(multipleCityQuery);
-								input = in.readLine();
-								String uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-								uniqueChecker += input + "' AND Origin = '" + originInput + "' AND destination = '" + destInput + "' LIMIT 1;";
-								if (esql.executeQuery(uniqueChecker) == 0) {
-									System.out.println("There is no existing Flight Number from those two cities.");
-									System.out.println("Try entering it again.");
-									repeatFlag = 0;
-								}
-						 } while (repeatFlag == 0);
-					 }
 					} while (repeatFlag == 0);
-					if (skipFlag == 0) {
-						System.out.println("The corresponding flightNum is: " + flightNum.get(0).get(0));
-						input = flightNum.get(0).get(0).replaceAll("\\s+","");
-					}
+					Flight flight = chooseFlight(flights);
+					System.out.println("The corresponding flightNum is: " + flight.getFlightNum());
+					input = flight.getFlightNum();
 					break;
 				}
-				String uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-				uniqueChecker += input + "' LIMIT 1;";
-				if (esql.executeQuery(uniqueChecker) == 0) {
+				if (esql.getRepository().findFlight(input) == null) {
 					System.out.println("This flightNum does not exist, try again");
 					System.out.println("Type origin if you want to search for your flightNum");
 					repeatFlag = 0;
 				}
 			} while (repeatFlag == 0);
-			query += input + "',";
+			String ratedFlight = input;
 
 
 			System.out.println("What would you rate this flight? (1 - 5 with a 1 being the lowest): ");
@@ -715,7 +1453,6 @@ public class AirBooking{
 				}
 			} while(repeatFlag == 0);
 			String ReviewRating = input;
-			query += input;
 
 			String Comments = "";
 			System.out.println("Would you like to leave a comment? Y/N");
@@ -731,10 +1468,8 @@ public class AirBooking{
 						}
 					} while (repeatFlag == 0);
 					Comments = input;
-					query += ",'" + input + "')";
 				}
-				else if (input.equals("N")) { // end query
-					query += ")";
+				else if (input.equals("N")) { // no comment
 					break;
 				}
 				else {
@@ -743,10 +1478,10 @@ public class AirBooking{
 				}
 			} while (repeatFlag == 0);
 
+			esql.getRepository().addRating(passport, ratedFlight, Integer.parseInt(ReviewRating), Comments.isEmpty() ? null : Comments);
 			System.out.println("Thanks for your comments!");
 			System.out.println("You have given this flight a " + ReviewRating + " rating.");
 			System.out.println("You said this about this flight (blank if no comment submitted): " + Comments);
-			esql.executeUpdate(query);
 
 		}catch(Exception e){
 			 System.err.println (e.getMessage());
@@ -758,12 +1493,13 @@ public class AirBooking{
 		try{
 			String input = "";
 			String input2 = "";
-			String typeHandler = "";
 			Integer repeatFlag;
 			boolean allLetters;
-			String query = "";
-			String uniqueChecker;
-			System.out.println("Would you like to insert a new route? Or update one?");
+			Flight route = null;
+			Flight existing = null;
+			String newFlightNum = null;
+			String outcome = null;
+			System.out.println("Would you like to insert a new route? Or update one? Or import an airline's schedule?");
 			do { //performs check to make sure user entered something
 				input = in.readLine();
 				repeatFlag = 1;
@@ -776,15 +1512,26 @@ public class AirBooking{
 					System.out.println("Please enter only characters\n");
 					repeatFlag = 0;
 				}
+				if (input.equals("Import") || input.equals("import")) {
+					System.out.println("Please enter the path of the schedule, formatted like data/flights.csv");
+					input = in.readLine();
+					if (input == null || input.trim().isEmpty()) {
+						System.out.println("You didn't enter a path.");
+						return;
+					}
+					ScheduleImport schedule = new ScheduleImport(new File(input.trim()),
+						Integer.parseInt(System.getProperty("airbooking.importBatch", "1000")));
+					schedule.run(esql);
+					for (String line : schedule.report()) System.out.println(line);
+					return;
+				}
 				if (input.equals("Update") || input.equals("update")) {
-					query = "UPDATE Flights SET ";
 					System.out.println("Please provide the flightNum of the flight you would like to edit");
 					do {
 						input2 = in.readLine(); // have to save for later
 						repeatFlag = 1;
-						uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-						uniqueChecker += input2 + "' LIMIT 1;";
-						if (esql.executeQuery(uniqueChecker) == 0) {
+						existing = esql.getRepository().findFlight(input2);
+						if (existing == null) {
 							System.out.println("This flightNum does not exists, try again");
 							repeatFlag = 0;
 						}
@@ -807,24 +1554,27 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while (repeatFlag == 0);
-							typeHandler = "airID = '" + input + "'";
+							route = new Flight(Integer.parseInt(input), existing.flightNum, existing.origin, existing.destination,
+								existing.plane, existing.seats, existing.duration);
 						}
 						else if (input.equals("flightNum")) { // unique
 							do {
 								input = in.readLine();
 								repeatFlag = 1;
-								uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-								uniqueChecker += input + "' LIMIT 1;";
 								if (input == null || input.isEmpty()) {
 									System.out.println("Please enter a flightNum\n");
 									repeatFlag = 0;
 								}
-								if (esql.executeQuery(uniqueChecker) == 1) {
+								else if (!FlightNum.isValid(input)) {
+									System.out.println("That is not a valid flightNum. Please try again.");
+									repeatFlag = 0;
+								}
+								else if (esql.getRepository().findFlight(input) != null) {
 									System.out.println("This flightNum already exists, try again");
 									repeatFlag = 0;
 								}
 							} while (repeatFlag == 0);
-							typeHandler = "flightNum = '" + input + "'";
+							newFlightNum = input;
 						}
 						else if (input.equals("origin")) {
 							do { //performs check to make sure user entered something
@@ -840,7 +1590,8 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while(repeatFlag == 0);
-							typeHandler = "origin = '" + input + "'";
+							route = new Flight(existing.airId, existing.flightNum, input, existing.destination,
+								existing.plane, existing.seats, existing.duration);
 						}
 						else if (input.equals("destination")) {
 							do { //performs check to make sure user entered something
@@ -856,7 +1607,8 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while(repeatFlag == 0);
-							typeHandler = "destination = '" + input + "'";
+							route = new Flight(existing.airId, existing.flightNum, existing.origin, input,
+								existing.plane, existing.seats, existing.duration);
 						}
 						else if (input.equals("plane")) {
 							do {
@@ -867,7 +1619,8 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while (repeatFlag == 0);
-							typeHandler = "plane = '" + input + "'";
+							route = new Flight(existing.airId, existing.flightNum, existing.origin, existing.destination,
+								input, existing.seats, existing.duration);
 						}
 						else if (input.equals("seats")) {
 							do {
@@ -882,7 +1635,8 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while (repeatFlag == 0);
-							typeHandler = "seats = " + input;
+							route = new Flight(existing.airId, existing.flightNum, existing.origin, existing.destination,
+								existing.plane, Integer.parseInt(input), existing.duration);
 						}
 						else if (input.equals("duration")) {
 							do {
@@ -897,20 +1651,19 @@ public class AirBooking{
 									repeatFlag = 0;
 								}
 							} while (repeatFlag == 0);
-							typeHandler = "duration = " + input;
+							route = new Flight(existing.airId, existing.flightNum, existing.origin, existing.destination,
+								existing.plane, existing.seats, Integer.parseInt(input));
 						}
 						else {
 							repeatFlag = 0;
 							System.out.println("You didn't enter a correct option. Try again.");
 						}
-						query += typeHandler + " WHERE flightNum = '" + input2 + "';";
 					} while (repeatFlag == 0);
-					System.out.println("You have successfully updated this flight");
+					outcome = "You have successfully updated this flight";
 					break;
 				}
 
 				else if (input.equals("Insert") || input.equals("insert")) {
-					query = "INSERT INTO Flight VALUES(";
 
 					System.out.println("Please enter the AirID"); // Has to be less than 53
 					do {
@@ -925,24 +1678,26 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while (repeatFlag == 0);
-					query += input + ",'";
+					int airId = Integer.parseInt(input);
 
 					System.out.println("Please enter the flightNum"); // unique
 					do {
 						input = in.readLine();
 						repeatFlag = 1;
-						uniqueChecker = "SELECT * FROM Flight WHERE flightNum = '";
-						uniqueChecker += input + "' LIMIT 1;";
-						if (esql.executeQuery(uniqueChecker) == 1) {
-							System.out.println("This flightNum already exists, try again");
-							repeatFlag = 0;
-						}
 						if (input == null || input.isEmpty()) {
 							System.out.println("You didn't enter a flightNum. Please enter a flightNum.\n");
 							repeatFlag = 0;
 						}
+						else if (!FlightNum.isValid(input)) {
+							System.out.println("That is not a valid flightNum. Please try again.");
+							repeatFlag = 0;
+						}
+						else if (esql.getRepository().findFlight(input) != null) {
+							System.out.println("This flightNum already exists, try again");
+							repeatFlag = 0;
+						}
 					} while (repeatFlag == 0);
-					query += input + "','";
+					String flightNum = input;
 
 					System.out.println("Please enter the origin of the flight");
 					do { //performs check to make sure user entered something
@@ -958,7 +1713,7 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while(repeatFlag == 0);
-					query += input + "','";
+					String origin = input;
 
 					System.out.println("Please enter the destination of the flight");
 					do { //performs check to make sure user entered something
@@ -974,7 +1729,7 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while(repeatFlag == 0);
-					query += input + "','";
+					String destination = input;
 
 					System.out.println("Please enter the type of plane"); // Not sure how to set up checks
 					do {
@@ -985,7 +1740,7 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while (repeatFlag == 0);
-					query += input + "',";
+					String plane = input;
 
 					System.out.println("Please enter the number of seats");
 					do {
@@ -1000,7 +1755,7 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while (repeatFlag == 0);
-					query += input + ",";
+					int seats = Integer.parseInt(input);
 
 					System.out.println("Please enter the duration");
 					do {
@@ -1015,14 +1770,20 @@ public class AirBooking{
 							repeatFlag = 0;
 						}
 					} while (repeatFlag == 0);
-					query += input + ");";
-					System.out.println("You have successfully inserted this flight");
+					route = new Flight(airId, FlightNum.pack(flightNum), origin, destination, plane, seats, Integer.parseInt(input));
+					outcome = "You have successfully inserted this flight";
 					break;
 				}
 			} while(repeatFlag == 0);
+			if (outcome == null) return;
 
-
-			esql.executeUpdate(query);
+			if (newFlightNum != null) {
+				esql.getRepository().renameFlight(input2, newFlightNum);
+			}
+			else {
+				esql.getRepository().saveFlight(route);
+			}
+			System.out.println(outcome);
 		}catch(Exception e){
 			 System.err.println (e.getMessage());
 		}
@@ -1035,43 +1796,16 @@ public class AirBooking{
 		Integer repeatFlag = 1;
 		Integer restartFlag = 1;
 		do {
-			String query = "SELECT * FROM Flight WHERE origin = '";
 			restartFlag = 1;
 			System.out.print("Enter the origin for all flights you want to see: ");
-			do { //performs check to make sure user entered something
-				input = in.readLine();
-				repeatFlag = 1;
-				if (input == null || input.isEmpty()) {
-					System.out.println("Please enter a origin location\n");
-					repeatFlag = 0;
-				}
-				boolean allLetters = input.chars().allMatch(Character::isLetter);
-				if (allLetters == false) {
-					System.out.println("Please enter only characters\n");
-					repeatFlag = 0;
-				}
-			} while(repeatFlag == 0);
+			input = readCity(esql);
 			String origin = input;
-			query += input + "' AND destination = '";
 
 			System.out.print("Enter the destination for all flights you want to see: ");
-			do { //performs check to make sure user entered something
-				input = in.readLine();
-				repeatFlag = 1;
-				if (input == null || input.isEmpty()) {
-					System.out.println("Please enter a destination location\n");
-					repeatFlag = 0;
-				}
-				boolean allLetters = input.chars().allMatch(Character::isLetter);
-				if (allLetters == false) {
-					System.out.println("Please enter only characters\n");
-					repeatFlag = 0;
-				}
-			} while(repeatFlag == 0);
+			input = readCity(esql);
 			String dest = input;
-			query += input + "';";
 
-			Integer stringChecker = esql.executeQueryAndPrintResult(query);
+			Integer stringChecker = printFlights(esql.getRepository().flightsBetween(origin, dest));
 			if (stringChecker == 0) {
 				System.out.println("Sorry there were no flights from " + origin + " to " + dest);
 				System.out.println("Would you like to try again? (Y/N)");
@@ -1096,12 +1830,8 @@ public class AirBooking{
 		try {
 			String input = "";
 			String input2 = "";
-			String query = "SELECT destination,COUNT(*) as count FROM Flight GROUP BY destination ORDER BY count DESC LIMIT ";
 			Integer repeatFlag = 1;
-			List<List<String>> popularDestinations;
-			List<List<String>> totalNumberOfFlights;
-			String totalFlights = "SELECT COUNT(*) FROM Flight GROUP BY destination";
-			totalNumberOfFlights = esql.executeQueryAndReturnResult(totalFlights);
+			List<List<String>> popularDestinations = new ArrayList<List<String>>();
 
 			System.out.println("How many popular destinations would you like to see?");
 			do { //performs check to make sure user entered something
@@ -1110,14 +1840,16 @@ public class AirBooking{
 				if (Integer.parseInt(input) < 1) {
 					System.out.println("Can not have less than one popular destination");
 					repeatFlag = 0;
+					continue;
 				}
-				// Can add functionality to let user know there isn't that many flights
-				if (Integer.parseInt(input) > totalNumberOfFlights.size()) {
+				// fewer come back when there aren't that many destinations
+				popularDestinations = esql.getRepository().mostPopularDestinations(Integer.parseInt(input));
+				if (Integer.parseInt(input) > popularDestinations.size()) {
 					System.out.println("There are less destinations than the number you provided.");
 					System.out.println("Would you like to see all avaliable destinations? Y/N");
 					input2 = in.readLine();
 					if (input2.equals("Y")) {
-						System.out.println("Now outputting the total number of destinations: " + totalNumberOfFlights.size());
+						System.out.println("Now outputting the total number of destinations: " + popularDestinations.size());
 						break;
 					}
 					else if (input2.equals("N")) {
@@ -1131,8 +1863,6 @@ public class AirBooking{
 					}
 				}
 			} while(repeatFlag == 0);
-			query += input + ";";
-			popularDestinations = esql.executeQueryAndReturnResult(query);
 			for (int i = 0; i < popularDestinations.size(); i++) {
 			System.out.println("Ranking: " + (i + 1));
 			System.out.println("Destination: " + popularDestinations.get(i).get(0));
@@ -1151,15 +1881,8 @@ public class AirBooking{
 		try{
 			String input = "";
 			String input2 = "";
-			String query = "SELECT flightNum,AVG(score) as ratingScore FROM Ratings GROUP BY flightNum ORDER BY ratingScore DESC LIMIT ";
 			Integer repeatFlag = 1;
-			List<List<String>> flightNumAndScore;
-			List<List<String>> airList;
-			List<List<String>> airlineNameandID;
-			List<List<String>> totalNumberofReviews;
-
-			String totalReviews = "SELECT COUNT(*) FROM Ratings GROUP BY flightNum";
-			totalNumberofReviews = esql.executeQueryAndReturnResult(totalReviews);
+			List<List<String>> topRoutes = new ArrayList<List<String>>();
 
 			System.out.println("How many of the highest rated flights would you like to see?");
 			do { //performs check to make sure user entered something
@@ -1168,14 +1891,16 @@ public class AirBooking{
 				if (Integer.parseInt(input) < 1) {
 					System.out.println("Can not have less than one number of highest rated flights");
 					repeatFlag = 0;
+					continue;
 				}
-				// TODO: Can add functionality to let user know there isn't that many flights
-				if (Integer.parseInt(input) > totalNumberofReviews.size()) {
+				// fewer come back when fewer flights have reviews
+				topRoutes = esql.getRepository().highestRatedRoutes(Integer.parseInt(input));
+				if (Integer.parseInt(input) > topRoutes.size()) {
 					System.out.println("There are less number of reviews than the number you provided.");
 					System.out.println("Would you like to see all avaliable reviews? Y/N");
 					input2 = in.readLine();
 					if (input2.equals("Y")) {
-						System.out.println("Now outputting the total number of flight: " + totalNumberofReviews.size());
+						System.out.println("Now outputting the total number of flight: " + topRoutes.size());
 						break;
 					}
 					else if (input2.equals("N")) {
@@ -1189,53 +1914,18 @@ public class AirBooking{
 					}
 				}
 			} while(repeatFlag == 0);
-			query += input + ";";
-
-			flightNumAndScore = esql.executeQueryAndReturnResult(query);
-			// finding all airIDs, origin, destination,plane,flightNum
-			query = "SELECT airID,origin,destination,plane,flightNum FROM Flight WHERE flightNum in (";
-			for (int i = 0; i < flightNumAndScore.size(); i++) {
-					if (i == (flightNumAndScore.size() - 1)) {
-						query += "'" + flightNumAndScore.get(i).get(0).replaceAll("\\s+","") + "');";
-					}
-					else {
-						query += "'" + flightNumAndScore.get(i).get(0).replaceAll("\\s+","") + "', ";
-					}
-			}
-			airList = esql.executeQueryAndReturnResult(query);
-			// finding the name of the airline
-			query = "SELECT name,airID FROM Airline WHERE airID in (";
-			for (int i = 0; i < airList.size(); i++) {
-					if (i == (airList.size() - 1)) {
-						query += "'" + airList.get(i).get(0) + "');";
-					}
-					else {
-						query += "'" + airList.get(i).get(0) + "', ";
-					}
+
+			if (topRoutes.isEmpty()) {
+				System.out.println("There are no reviews yet.");
+				return;
 			}
-			airlineNameandID = esql.executeQueryAndReturnResult(query);
-			List<String> printOut = new ArrayList<String>();
-
-			//Need to combine all three lists now
-			DecimalFormat df = new DecimalFormat("0.#####");
-
-			for (int i = 0; i < flightNumAndScore.size(); i++) {
-				System.out.println("Flight Number: " + flightNumAndScore.get(i).get(0));
-				// TODO: Need to fix output of integer
-				System.out.println("Score: " + flightNumAndScore.get(i).get(1));
-				// Using flight number extract everything else
-				for (int j = 0; j < airList.size(); j++) {
-					if (flightNumAndScore.get(i).get(0).equals(airList.get(j).get(4))) {
-						System.out.println("Origin: " + airList.get(j).get(1));
-						System.out.println("Destination: " + airList.get(j).get(2));
-						System.out.println("Plane type: " + airList.get(j).get(3));
-					}
-				}
-				for (int j = 0; j < airlineNameandID.size(); j++) {
-					if (airList.get(i).get(0).equals(airlineNameandID.get(j).get(1))) {
-						System.out.println("Airline Name: " + airlineNameandID.get(j).get(0));
-					}
-				}
+			for (List<String> route : topRoutes) {
+				System.out.println("Flight Number: " + route.get(0));
+				System.out.println("Score: " + route.get(5));
+				System.out.println("Origin: " + route.get(2));
+				System.out.println("Destination: " + route.get(3));
+				System.out.println("Plane type: " + route.get(4));
+				System.out.println("Airline Name: " + route.get(1));
 				System.out.println("---------");
 
 			}
@@ -1248,47 +1938,21 @@ public class AirBooking{
 	public static void ListFlightFromOriginToDestinationInOrderOfDuration(AirBooking esql) throws Exception{//8
 		//List flight to destination in order of duration (i.e. Airline name, flightNum, origin, destination, duration, plane)
 		String input = "";
-		String query = "SELECT * FROM Flight WHERE origin = '";
 		String origin = "";
 		String destination = "";
+		List<Flight> flights;
 		Integer repeatFlag = 1;
 		Integer repeatFlag2 = 1;
 
 		do{
 			repeatFlag2 = 1;
 			System.out.print("Enter the origin for all flights you want to see: ");
-			do { //performs check to make sure user entered something
-				input = in.readLine();
-				repeatFlag = 1;
-				if (input == null || input.isEmpty()) {
-					System.out.println("Please enter a origin location\n");
-					repeatFlag = 0;
-				}
-				boolean allLetters = input.chars().allMatch(Character::isLetter);
-				if (allLetters == false) {
-					System.out.println("Please enter only characters\n");
-					repeatFlag = 0;
-				}
-			} while(repeatFlag == 0);
+			input = readCity(esql);
 			origin = input;
-			query += input + "' AND destination = '";
 
 			System.out.print("Enter the destination for all flights you want to see: ");
-			do { //performs check to make sure user entered something
-				input = in.readLine();
-				repeatFlag = 1;
-				if (input == null || input.isEmpty()) {
-					System.out.println("Please enter a destination location\n");
-					repeatFlag = 0;
-				}
-				boolean allLetters = input.chars().allMatch(Character::isLetter);
-				if (allLetters == false) {
-					System.out.println("Please enter only characters\n");
-					repeatFlag = 0;
-				}
-			} while(repeatFlag == 0);
+			input = readCity(esql);
 			destination = input;
-			query += input + "'";
 
 			System.out.print("Enter the number of flights you want to see: ");
 			do { //performs check to make sure user entered something
@@ -1316,15 +1980,14 @@ public class AirBooking{
 				}
 			} while(repeatFlag == 0);
 
-			query += " ORDER BY duration ASC LIMIT " + input + ";";
+			flights = esql.getRepository().flightsByDuration(origin, destination, Integer.parseInt(input));
 
-			Integer stringChecker = esql.executeQuery(query);
+			Integer stringChecker = flights.size();
 			if (stringChecker == 0) {
 				System.out.println("Sorry there were no flights from " + origin + " to " + destination);
 				System.out.println("Would you like to try again? (Y/N)");
 				input = in.readLine();
 				if (input.equals("Y")) {
-					query = "SELECT * FROM Flight WHERE origin = '";
 					repeatFlag2 = 0;
 				}
 				else if (input.equals("N")) {
@@ -1338,19 +2001,29 @@ public class AirBooking{
 			}
 		} while(repeatFlag2 == 0);
 
-		esql.executeQueryAndPrintResult(query);
+		printFlights(flights);
+	}
+
+	// prints flights the way executeQueryAndPrintResult prints Flight rows
+	private static int printFlights(List<Flight> flights) {
+		if (!flights.isEmpty()) {
+			System.out.println("airid\tflightnum\torigin\tdestination\tplane\tseats\tduration\t");
+		}
+		for (Flight flight : flights) {
+			System.out.println(flight.airId + "\t" + flight.getFlightNum() + "\t" + flight.origin + "\t" + flight.destination + "\t"
+				+ flight.plane + "\t" + flight.seats + "\t" + flight.duration + "\t");
+		}
+		return flights.size();
 	}
 
 	public static void FindNumberOfAvailableSeatsForFlight(AirBooking esql) throws Exception{//9
 		//
 		String input = "";
-		String query = "SELECT * FROM Flight WHERE origin = '";
-		String testQuery = "";
-		String flightNum = "";
+		Flight flight = null;
 		String departureDate = "";
+		LocalDate departure = null;
 		Integer repeatFlag = 1;
 		Integer repeatFlag2 = 1;
-		Integer x = 0;
 
 		//System.out.println("Please enter the flightNum");
 		do {
@@ -1363,23 +2036,20 @@ public class AirBooking{
 			}
 			else // testing if flight number is valid/exists
 			{
-				testQuery = "SELECT * FROM Flight WHERE flightNum =" + "\'" + input + "\'" + ";";
 				try
 				{
-					x = esql.executeQuery(testQuery); //checking how many rows this flightNum returns when selected
+					flight = esql.getRepository().findFlight(input);
 				}
 				catch (Exception e) 
 				{
 					System.out.println("Your query is invalid!");
 					repeatFlag = 0;
 				} 
-				if(x == 0)
+				if(flight == null)
 				{
 					System.out.println("Invalid flight number. Try again.");
 					repeatFlag = 0;
 				}
-				else
-					flightNum = input;
 			}
 
 		} while (repeatFlag == 0);
@@ -1461,64 +2131,415 @@ public class AirBooking{
 
 			departureDate = inputMonth + "/" + inputDay + "/" + inputYear;
 
-			// testing if date is valid/exists
-			testQuery = "SELECT * FROM Booking WHERE departure = '" + departureDate + "';";
+			// testing if date is valid/exists, a flight can be asked about before anyone booked it
 			try
 			{
-				x = esql.executeQuery(testQuery); //checking how many rows this flightNum returns when selected
+				departure = LocalDate.of(inputYear, inputMonth, inputDay);
 			}
-			catch (Exception e) 
+			catch (DateTimeException e) 
 			{
-				System.out.println("Your query is invalid!");
+				System.out.println("There is no such date. Please select a valid date.");
 				repeatFlag2 = 0;
 			} 
-			if(x == 0)
-			{
-				System.out.println("There are no flights on this date. Please select a valid date.");
-				repeatFlag2 = 0;
-			}
 
 		} while(repeatFlag2 == 0);
 
 		// at this point, a valid flightNum and departureDate is confirmed
-		// count how many flights are booked under that flight/date
+		// seats minus bookings, the bookings served from memory while the change feed is live
+		int remainingSeats = esql.getRepository().availableSeats(flight.getFlightNum(), departure);
+
+		System.out.println("Flight Number: " + flight.getFlightNum());
+		System.out.println("Origin: " + flight.origin);
+		System.out.println("Destination: " + flight.destination);
+		System.out.println("Departure Date: " + departureDate);
+		System.out.println("Total Number of Seats: " + flight.seats);
+		System.out.println("Number of Avaiable Seats: " + remainingSeats);
+
+	}
+
+	public static void SearchReviews(AirBooking esql){//10
+		//Full text search over review comments (i.e. rID, flightNum, airline, score, comment)
+		try{
+			String input = "";
+			Integer repeatFlag = 1;
+
+			System.out.println("What are you looking for in the reviews? (ex. lost luggage)");
+			do { //performs check to make sure user entered something
+				input = in.readLine();
+				if (input == null) return; //end of input
+				repeatFlag = 1;
+				if (input.trim().isEmpty()) {
+					System.out.println("Please enter a word to search for");
+					repeatFlag = 0;
+				}
+			} while(repeatFlag == 0);
+			ReviewSearch search = new ReviewSearch(input);
+
+			System.out.println("Only reviews of one flightNum? Enter it or leave blank for all flights");
+			input = in.readLine();
+			if (input != null && !input.trim().isEmpty()) {
+				search.flightNum = input.trim();
+			}
+
+			System.out.println("Only reviews of one airline? Enter its AirID or leave blank for all airlines");
+			do {
+				input = in.readLine();
+				repeatFlag = 1;
+				if (input != null && !input.trim().isEmpty()) {
+					try {
+						search.airId = Integer.parseInt(input.trim());
+					}
+					catch (NumberFormatException e) {
+						System.out.println("Please enter only numbers");
+						repeatFlag = 0;
+					}
+				}
+			} while(repeatFlag == 0);
+
+			System.out.println("Lowest score to include (0 - 5) or leave blank for all scores");
+			do {
+				input = in.readLine();
+				repeatFlag = 1;
+				if (input != null && !input.trim().isEmpty()) {
+					try {
+						search.minScore = Integer.parseInt(input.trim());
+						if (search.minScore < 0 || search.minScore > 5) {
+							System.out.println("That is not a valid rating. Please try again.");
+							repeatFlag = 0;
+						}
+					}
+					catch (NumberFormatException e) {
+						System.out.println("Please enter only numbers");
+						repeatFlag = 0;
+					}
+				}
+			} while(repeatFlag == 0);
+
+			int shown = 0;
+			do {
+				List<List<String>> reviews = search.nextPage(esql, 10);
+				for (int i = 0; i < reviews.size(); i++) {
+					System.out.println("Result: " + (shown + i + 1));
+					System.out.println("Flight Number: " + reviews.get(i).get(1));
+					System.out.println("Airline Name: " + reviews.get(i).get(2));
+					System.out.println("Score: " + reviews.get(i).get(3));
+					System.out.println("Comment: " + reviews.get(i).get(5));
+					System.out.println("---------");
+				}
+				shown += reviews.size();
+				if (reviews.size() < 10) {
+					System.out.println(shown == 0 ? "No reviews matched your search." : "No more reviews.");
+					break;
+				}
+				System.out.println("Would you like to see more reviews? Y/N");
+				input = in.readLine();
+			} while (input != null && input.equals("Y"));
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
+		}
+	}
+
+	public static void BookGroup(AirBooking esql){//11
+		//Book one flight and date for several existing customers, all of them or none
+		try{
+			Integer repeatFlag = 1;
+			List<Flight> flights;
+			String originInput = "";
+			String destInput = "";
+			do {
+				repeatFlag = 1;
+				System.out.println("Where is the group traveling from?");
+				originInput = readCity(esql);
+				System.out.println("Where would the group like to travel to?");
+				destInput = readCity(esql);
+				flights = esql.executeQueryAndMap("SELECT * FROM Flight WHERE origin = '" + originInput
+					+ "' AND destination = '" + destInput + "';", Flight::from);
+				if (flights.isEmpty()) {
+					System.out.println("There is no flight from " + originInput + " to " + destInput);
+					System.out.println("Please enter a valid flight path.");
+					repeatFlag = 0;
+				}
+			} while (repeatFlag == 0);
+			Flight chosenFlight = chooseFlight(flights);
 
-		testQuery = "SELECT COUNT(pID) FROM Booking WHERE flightNum = '" + flightNum + "' AND departure = '" + departureDate + "';";
-			
-		// how many rows returned = number of flights booked
-		List<List<String>> numBooked = esql.executeQueryAndReturnResult(testQuery);
+			LocalDate departure = null;
+			System.out.println("Please enter the date the group wishes to leave (ex. 2018-03-15)");
+			do {
+				String input = in.readLine();
+				if (input == null) return; //end of input
+				try {
+					departure = LocalDate.parse(input.trim());
+				}
+				catch (Exception e) {
+					System.out.println("Please enter the date as year-month-day");
+				}
+			} while (departure == null);
 
-		Integer numBookedInt = 0;
-		try
-		{
-			numBookedInt = Integer.parseInt(numBooked.get(0).get(0));
+			List<String> passNums = new ArrayList<String>();
+			System.out.println("Enter one Passport Number per line, and an empty line when done");
+			do {
+				String input = in.readLine();
+				if (input == null) return; //end of input, nobody is booked
+				if (input.trim().isEmpty()) {
+					if (!passNums.isEmpty()) break;
+					System.out.println("Please enter at least one Passport Number");
+					continue;
+				}
+				passNums.add(input.trim());
+			} while (true);
+
+			GroupBooking group = new GroupBooking(chosenFlight.getFlightNum(), departure);
+			if (passNums.size() > 1) {
+				System.out.println("Should the group sit together? (y/n)");
+				String input = in.readLine();
+				group.together = input != null && input.trim().toLowerCase().startsWith("y");
+			}
+			if (group.book(esql, passNums)) {
+				System.out.println("You're all good to go! The group's flight from " + originInput + " to " + destInput
+					+ " on " + departure + " has been booked.");
+				for (Map.Entry<String, String> booking : group.booked.entrySet()) {
+					System.out.println("Passport " + booking.getKey() + ": booking ID " + booking.getValue()
+						+ ", seat " + group.seats.get(booking.getKey()));
+				}
+			}
+			else {
+				System.out.println("Nobody in the group was booked:");
+				for (String conflict : group.conflicts) {
+					System.out.println("  " + conflict);
+				}
+			}
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
 		}
-		catch (NumberFormatException e) 
-		{
-    		System.out.println("Not a number");
+	}
+
+	public static void LoadFactorReport(AirBooking esql){//12
+		//List the k fullest flights and departure dates (i.e. flightNum, departure, booked, seats, load factor)
+		try{
+			String input = "";
+			Integer repeatFlag = 1;
+			Integer k = 0;
+			System.out.println("How many of the fullest flights would you like to see?");
+			do { //performs check to make sure user entered a number
+				input = in.readLine();
+				repeatFlag = 1;
+				try {
+					k = Integer.parseInt(input.trim());
+					if (k < 1) {
+						System.out.println("Can not have less than one flight");
+						repeatFlag = 0;
+					}
+				}
+				catch (NumberFormatException e) {
+					System.out.println("Please enter only numbers");
+					repeatFlag = 0;
+				}
+			} while(repeatFlag == 0);
+
+			// a flight's bookings all live on one shard, so every shard ranks its own flights
+			String query = "SELECT b.flightNum, b.departure, COUNT(*) AS booked, f.seats, COUNT(*)::float / f.seats AS loadFactor "
+				+ "FROM Booking b JOIN Flight f ON f.flightNum = b.flightNum "
+				+ "GROUP BY b.flightNum, b.departure, f.seats ORDER BY loadFactor DESC, b.flightNum, b.departure LIMIT " + k + ";";
+			List<List<String>> fullest = esql.executeCachedQueryOnAllShardsAndReturnResult(query,
+				Comparator.comparing((List<String> record) -> Double.parseDouble(record.get(4))).reversed()
+					.thenComparing(record -> record.get(0)).thenComparing(record -> record.get(1)), k);
+			if (fullest.isEmpty()) {
+				System.out.println("There are no bookings yet.");
+				return;
+			}
+			DecimalFormat df = new DecimalFormat("0.#");
+			for (int i = 0; i < fullest.size(); i++) {
+				List<String> flight = fullest.get(i);
+				System.out.println("Ranking: " + (i + 1));
+				System.out.println("Flight Number: " + flight.get(0).trim());
+				System.out.println("Departure Date: " + flight.get(1));
+				System.out.println("Booked Seats: " + flight.get(2) + " of " + flight.get(3));
+				System.out.println("Load Factor: " + df.format(Double.parseDouble(flight.get(4)) * 100) + "%");
+				System.out.println("---------");
+			}
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
 		}
+	}
 
-		testQuery = "SELECT origin, destination, seats FROM Flight WHERE flightNum = '" + flightNum + "';";
-		List<List<String>> airList = esql.executeQueryAndReturnResult(testQuery);
-		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Origin: " + airList.get(0).get(0));
-		System.out.println("Destination: " + airList.get(0).get(1));
-		System.out.println("Departure Date: " + departureDate);
+	public static void BookingReport(AirBooking esql){//13
+		//Count bookings by any of departure month, destination, passenger country and airline, optionally filtered
+		try{
+			BookingCube report = new BookingCube();
+			String input = "";
+			Integer repeatFlag = 1;
+			do {
+				repeatFlag = 1;
+				report.dimensions.clear();
+				System.out.println("Break the bookings down by which of month, destination, country, airline? (comma separated, empty for the total)");
+				input = in.readLine().trim().toLowerCase();
+				if (input.isEmpty()) break;
+				for (String dimension : input.split("\\s*,\\s*")) {
+					if (!BookingCube.DIMENSIONS.contains(dimension)) {
+						System.out.println(dimension + " is not one of month, destination, country, airline");
+						repeatFlag = 0;
+						break;
+					}
+					if (!report.dimensions.contains(dimension)) report.dimensions.add(dimension);
+				}
+			} while(repeatFlag == 0);
 
-		String numSeats = airList.get(0).get(2);
-		System.out.println("Total Number of Seats: " + numSeats);
-		Integer numSeatsInt = 0;
-		try
-		{
-			numSeatsInt = Integer.parseInt(numSeats);
+			report.fromMonth = readMonth("First departure month (yyyy-mm), empty for the earliest");
+			report.toMonth = readMonth("Last departure month (yyyy-mm), empty for the latest");
+			System.out.println("Only which destination? (empty for all)");
+			input = in.readLine().trim();
+			if (!input.isEmpty()) report.destination = input;
+			System.out.println("Only passengers from which country? (empty for all)");
+			input = in.readLine().trim();
+			if (!input.isEmpty()) report.country = input;
+			System.out.println("Only which airline? (empty for all)");
+			input = in.readLine().trim();
+			if (!input.isEmpty()) report.airline = input;
+
+			List<List<String>> cells = report.query(esql);
+			if (cells.isEmpty()) {
+				System.out.println("There are no matching bookings.");
+				return;
+			}
+			long total = 0;
+			for (List<String> cell : cells) {
+				String line = "";
+				for (int i = 0; i < report.dimensions.size(); i++) line += cell.get(i) + "\t";
+				if (!report.dimensions.isEmpty()) System.out.println(line + cell.get(cell.size() - 1));
+				total += Long.parseLong(cell.get(cell.size() - 1));
+			}
+			System.out.println("Total Bookings: " + total);
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
 		}
-		catch (NumberFormatException e) 
-		{
-    		System.out.println("Not a number");
+	}
+
+	public static void ListTripHistory(AirBooking esql){//14
+		//List a passenger's trips (i.e. departure, bookRef, flightNum, route, airline, seat, reviewed)
+		try{
+			String input = "";
+			System.out.println("Please enter your Passport Number");
+			do { //performs check to make sure user entered something
+				input = in.readLine();
+				if (input == null) return; //end of input
+				if (input.trim().isEmpty()) {
+					System.out.println("Please enter a Passport Number");
+				}
+			} while(input.trim().isEmpty());
+			TripHistory history = new TripHistory(input);
+
+			int shown = 0;
+			do {
+				List<List<String>> trips = history.nextPage(esql, 10);
+				for (List<String> trip : trips) {
+					System.out.println("Departure: " + trip.get(0) + "  Booking ID: " + trip.get(1));
+					System.out.println("Flight: " + trip.get(2) + " from " + trip.get(3) + " to " + trip.get(4) + " with " + trip.get(5));
+					System.out.println("Seat: " + (trip.get(6) == null ? "not assigned" : trip.get(6)) + "  Reviewed: " + trip.get(7));
+					System.out.println("---------");
+				}
+				shown += trips.size();
+				if (trips.size() < 10) {
+					System.out.println(shown == 0 ? "This passenger has no trips." : "No more trips.");
+					break;
+				}
+				System.out.println("Would you like to see more trips? Y/N");
+				input = in.readLine();
+			} while (input != null && input.equals("Y"));
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
 		}
-		Integer remainingSeats = numSeatsInt - numBookedInt;
-		System.out.println("Number of Avaiable Seats: " + remainingSeats);
+	}
+
+	public static void ListTrendingDestinations(AirBooking esql){//15
+		//List the destinations most booked lately or for a range of departures (i.e. destination, bookings)
+		try{
+			String input = "";
+			Integer repeatFlag = 1;
+			List<List<String>> destinations;
+
+			System.out.println("Count the bookings made in the last day, week or month, or the bookings for a range of departures? (day/week/month/departure)");
+			do { //performs check to make sure user entered something
+				input = in.readLine().trim().toLowerCase();
+				repeatFlag = 1;
+				if (!input.equals("day") && !input.equals("week") && !input.equals("month") && !input.equals("departure")) {
+					System.out.println("Please enter day, week, month or departure");
+					repeatFlag = 0;
+				}
+			} while(repeatFlag == 0);
+			String window = input;
 
+			LocalDate from = null;
+			LocalDate to = null;
+			if (window.equals("departure")) {
+				do {
+					repeatFlag = 1;
+					from = readDate("First departure date (yyyy-mm-dd)");
+					to = readDate("Last departure date (yyyy-mm-dd)");
+					if (to.isBefore(from)) {
+						System.out.println("The last departure date is before the first one");
+						repeatFlag = 0;
+					}
+				} while(repeatFlag == 0);
+			}
+
+			System.out.println("How many destinations do you want to see?");
+			int k = 0;
+			do { //performs check to make sure user entered something
+				repeatFlag = 1;
+				try {
+					k = Integer.parseInt(in.readLine().trim());
+				}
+				catch (NumberFormatException e) {
+					k = 0;
+				}
+				if (k < 1) {
+					System.out.println("Please enter a number greater than 0");
+					repeatFlag = 0;
+				}
+			} while(repeatFlag == 0);
+
+			if (window.equals("departure")) {
+				destinations = esql.getTrending().trendingByDeparture(from, to, k);
+			}else{
+				destinations = esql.getTrending().trending(window.equals("day") ? 24 : window.equals("week") ? 7 * 24 : 30 * 24, k);
+			}
+			if (destinations.isEmpty()) {
+				System.out.println("There are no bookings in that time.");
+				return;
+			}
+			for (int i = 0; i < destinations.size(); i++) {
+				System.out.println((i + 1) + ". " + destinations.get(i).get(0) + ": " + destinations.get(i).get(1) + " bookings");
+			}
+		}catch(Exception e){
+			 System.err.println (e.getMessage());
+		}
+	}
+
+	private static LocalDate readDate(String prompt) throws Exception {
+		while (true) {
+			System.out.println(prompt);
+			String input = in.readLine().trim();
+			try {
+				return LocalDate.parse(input);
+			}
+			catch (Exception e) {
+				System.out.println("Please enter the date as year-month-day");
+			}
+		}
+	}
+
+	private static YearMonth readMonth(String prompt) throws Exception {
+		while (true) {
+			System.out.println(prompt);
+			String input = in.readLine().trim();
+			if (input.isEmpty()) return null;
+			try {
+				return YearMonth.parse(input);
+			}
+			catch (Exception e) {
+				System.out.println("Please enter the month as year-month");
+			}
+		}
 	}
 
 }
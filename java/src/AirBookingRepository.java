@@ -0,0 +1,157 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * The nine operations of the AirBooking menu, without the prompts, over a
+ * storage backend: PostgresRepository runs them on the database of an
+ * AirBooking session, and is what menu options 1 to 9 call, MemoryRepository
+ * on indexes in the JVM that enforce the same keys and domains as the
+ * schema. The lookups the prompts check their input with are here too. Both report a refused write as
+ * an SQLException with the SQLState Postgres would give it (23505 for a
+ * taken key, 23503 for a missing reference, 23514 for a failed domain or
+ * check, 22001 for a value longer than its column), so callers handle
+ * both backends the same way.
+ *
+ * Implementations must be safe to use from several threads at once.
+ *
+ */
+
+public interface AirBookingRepository{
+	/**
+	 * Method to add a passenger with the next free pID (menu option 1).
+	 *
+	 * @param passNum the passport number, 10 characters and not used by anyone else
+	 * @param fullName the first and last name
+	 * @param bdate the birth date
+	 * @param country the country
+	 * @return the pID of the new passenger
+	 * @throws java.sql.SQLException when the passenger was refused
+	 */
+	int addPassenger(String passNum, String fullName, LocalDate bdate, String country) throws SQLException;
+
+	/**
+	 * Method to book a flight for a passenger (menu option 2).
+	 *
+	 * @param flightNum the flight
+	 * @param departure the departure date
+	 * @param passNum the passenger's passport number
+	 * @param seat the seat, or null for the lowest free one
+	 * @return the bookRef of the new booking
+	 * @throws java.sql.SQLException when the booking was refused, among others when the flight is full or the seat taken
+	 */
+	String bookFlight(String flightNum, LocalDate departure, String passNum, Integer seat) throws SQLException;
+
+	/**
+	 * Method to add a passenger's review of a flight with the next free rID
+	 * (menu option 3).
+	 *
+	 * @param passNum the passenger's passport number
+	 * @param flightNum the flight
+	 * @param score the score, 0 to 5
+	 * @param comment the comment, or null
+	 * @return the rID of the new rating
+	 * @throws java.sql.SQLException when the rating was refused
+	 */
+	int addRating(String passNum, String flightNum, int score, String comment) throws SQLException;
+
+	/**
+	 * Method to insert a route, or update it when its flightNum exists (menu
+	 * option 4).
+	 *
+	 * @param flight the route
+	 * @throws java.sql.SQLException when the route was refused
+	 */
+	void saveFlight(Flight flight) throws SQLException;
+
+	/**
+	 * Method to list the flights from one city to another (menu option 5).
+	 *
+	 * @param origin the origin city
+	 * @param destination the destination city
+	 * @return the flights, shortest first and by flightNum among equally long ones
+	 * @throws java.sql.SQLException when failed to read them
+	 */
+	List<Flight> flightsBetween(String origin, String destination) throws SQLException;
+
+	/**
+	 * Method to list the destinations most flights go to (menu option 6).
+	 * Each record holds the destination and its number of flights.
+	 *
+	 * @param k the number of destinations
+	 * @return the destinations, most flights first and by name among ties
+	 * @throws java.sql.SQLException when failed to read them
+	 */
+	List<List<String>> mostPopularDestinations(int k) throws SQLException;
+
+	/**
+	 * Method to list the flights with the highest average score (menu option
+	 * 7). Each record holds flightNum, airline name, origin, destination,
+	 * plane and the average score.
+	 *
+	 * @param k the number of flights
+	 * @return the flights, best average first and by flightNum among ties
+	 * @throws java.sql.SQLException when failed to read them
+	 */
+	List<List<String>> highestRatedRoutes(int k) throws SQLException;
+
+	/**
+	 * Method to list the shortest flights from one city to another (menu
+	 * option 8).
+	 *
+	 * @param origin the origin city
+	 * @param destination the destination city
+	 * @param k the number of flights
+	 * @return the flights, shortest first and by flightNum among equally long ones
+	 * @throws java.sql.SQLException when failed to read them
+	 */
+	List<Flight> flightsByDuration(String origin, String destination, int k) throws SQLException;
+
+	/**
+	 * Method to count the seats of a flight not booked on a departure date
+	 * (menu option 9).
+	 *
+	 * @param flightNum the flight
+	 * @param departure the departure date
+	 * @return the flight's seats minus its bookings on that date
+	 * @throws java.sql.SQLException when the flight does not exist or failed to read it
+	 */
+	int availableSeats(String flightNum, LocalDate departure) throws SQLException;
+
+	/**
+	 * Method to give a route a new flightNum (menu option 4). It is refused
+	 * while bookings or ratings refer to the route.
+	 *
+	 * @param flightNum the route's flightNum
+	 * @param newFlightNum the new flightNum, not used by another route
+	 * @throws java.sql.SQLException when the new flightNum was refused
+	 */
+	void renameFlight(String flightNum, String newFlightNum) throws SQLException;
+
+	/**
+	 * Method to look up a passenger by passport number.
+	 *
+	 * @param passNum the passport number
+	 * @return the passenger's pID, or null when no passenger has it
+	 * @throws java.sql.SQLException when failed to read it
+	 */
+	Integer findPassenger(String passNum) throws SQLException;
+
+	/**
+	 * Method to look up a route by flightNum.
+	 *
+	 * @param flightNum the flight
+	 * @return the route, or null when it does not exist
+	 * @throws java.sql.SQLException when failed to read it
+	 */
+	Flight findFlight(String flightNum) throws SQLException;
+
+	/**
+	 * Method to count the rows of a table, to check a workload's writes.
+	 *
+	 * @param table Airline, Passenger, Flight, Ratings or Booking
+	 * @return the number of rows
+	 * @throws java.sql.SQLException when failed to count them
+	 */
+	long count(String table) throws SQLException;
+}
@@ -0,0 +1,31 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Airline table.
+ *
+ */
+
+public final class Airline{
+	public final int airId;
+	public final String name;
+	public final int founded;
+	public final String country;
+	public final String hub;
+
+	public Airline(int airId, String name, int founded, String country, String hub) {
+		this.airId = airId;
+		this.name = name;
+		this.founded = founded;
+		this.country = country;
+		this.hub = hub;
+	}
+
+	public static Airline from(ResultSet rs) throws SQLException {
+		return new Airline(rs.getInt("airId"),
+			NameDictionary.AIRLINES.intern(rs.getString("name")),
+			rs.getInt("founded"),
+			NameDictionary.COUNTRIES.intern(rs.getString("country")),
+			NameDictionary.CITIES.intern(rs.getString("hub")));
+	}
+}
@@ -0,0 +1,42 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * A row of the Booking table. flightNum is packed with FlightNum.
+ *
+ */
+
+public final class Booking{
+	public final String bookRef;
+	public final LocalDate departure;
+	public final long flightNum;
+	public final int pID;
+	//null when not known, or for bookings from before seats were assigned
+	public final Integer seat;
+
+	public Booking(String bookRef, LocalDate departure, long flightNum, int pID) {
+		this(bookRef, departure, flightNum, pID, null);
+	}
+
+	public Booking(String bookRef, LocalDate departure, long flightNum, int pID, Integer seat) {
+		this.bookRef = bookRef;
+		this.departure = departure;
+		this.flightNum = flightNum;
+		this.pID = pID;
+		this.seat = seat;
+	}
+
+	public String getFlightNum() {
+		return FlightNum.unpack(this.flightNum);
+	}
+
+	public static Booking from(ResultSet rs) throws SQLException {
+		int seat = rs.getInt("seat");
+		return new Booking(rs.getString("bookRef").trim(),
+			rs.getDate("departure").toLocalDate(),
+			FlightNum.pack(rs.getString("flightNum")),
+			rs.getInt("pID"),
+			rs.wasNull() ? null : seat);
+	}
+}
@@ -0,0 +1,366 @@
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class reads and writes the cold storage BookingArchiver moves old
+ * Booking and Ratings rows to. Every archive file is gzip compressed,
+ * column by column: all bookRefs, then all departures, and so on, which
+ * compresses far better than rows. Files are written once under a new name
+ * and never changed, so a loaded file is kept in memory as primitive
+ * columns until the client exits. Version 2 files keep the seat of every
+ * booking as well; version 1 files are still read, their bookings without
+ * a seat.
+ *
+ * The read paths merge the archive with the live tables: TripHistory for a
+ * passenger's bookings, ratingAverages() for the highest rated routes. A
+ * row archived by a run that was interrupted before it deleted it is in
+ * both for a while, TripHistory matches bookings by key so it is shown
+ * once; rating totals count it twice until the archiver runs again and
+ * deletes it.
+ *
+ */
+
+public class BookingArchive{
+	private static final int MAGIC = 0x41524348;
+	private static final int VERSION = 2;
+	public static final String BOOKINGS = "booking";
+	public static final String RATINGS = "ratings";
+
+	// the columns of one file, only those of its table are set
+	private static class Segment{
+		String table;
+		int rows;
+		String[] bookRefs;
+		int[] departures;
+		long[] flightNums;
+		int[] pIDs;
+		//0 for no seat, seats start at 1
+		short[] seats;
+		int[] rIDs;
+		byte[] scores;
+		String[] comments;
+	}
+
+	private File _dir;
+	//file name -> columns
+	private Map<String, Segment> _segments = new TreeMap<String, Segment>();
+
+	public BookingArchive(File dir) {
+		this._dir = dir;
+	}
+
+	public File getDir() {
+		return this._dir;
+	}
+
+	/**
+	 * Method to load the archive files written since the last call.
+	 *
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public synchronized void refresh() throws IOException {
+		File[] files = this._dir.listFiles((dir, name) -> name.endsWith(".col.gz"));
+		if (files == null) return;
+		for (File file : files) {
+			if (!this._segments.containsKey(file.getName())) this._segments.put(file.getName(), read(file));
+		}
+	}
+
+	/**
+	 * Method to get a passenger's archived bookings.
+	 *
+	 * @param pID the passenger
+	 * @return the bookings, in no particular order
+	 * @throws java.io.IOException when a new archive file could not be read
+	 */
+	public synchronized List<Booking> bookingsOf(int pID) throws IOException {
+		refresh();
+		List<Booking> result = new ArrayList<Booking>();
+		for (Segment segment : this._segments.values()) {
+			if (!segment.table.equals(BOOKINGS)) continue;
+			int[] pIDs = segment.pIDs;
+			for (int i = 0; i < segment.rows; i++) {
+				if (pIDs[i] == pID) {
+					result.add(new Booking(segment.bookRefs[i], LocalDate.ofEpochDay(segment.departures[i]), segment.flightNums[i], pID,
+						segment.seats[i] == 0 ? null : (int) segment.seats[i]));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method to get the flights a passenger has archived ratings of.
+	 *
+	 * @param pID the passenger
+	 * @return the packed flightNums
+	 * @throws java.io.IOException when a new archive file could not be read
+	 */
+	public synchronized Set<Long> ratedFlightsOf(int pID) throws IOException {
+		refresh();
+		Set<Long> result = new HashSet<Long>();
+		for (Segment segment : this._segments.values()) {
+			if (!segment.table.equals(RATINGS)) continue;
+			for (int i = 0; i < segment.rows; i++) {
+				if (segment.pIDs[i] == pID) result.add(segment.flightNums[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method to get the average score of every rated flight over Ratings and
+	 * the archive. Each record holds flightNum and the average score.
+	 *
+	 * @param esql the database session
+	 * @return the averages, in no particular order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.io.IOException when a new archive file could not be read
+	 */
+	public List<List<String>> ratingAverages(AirBooking esql) throws SQLException, IOException {
+		//packed flightNum -> {sum, count}
+		Map<Long, long[]> totals = new HashMap<Long, long[]>();
+		synchronized (this) {
+			refresh();
+			for (Segment segment : this._segments.values()) {
+				if (!segment.table.equals(RATINGS)) continue;
+				for (int i = 0; i < segment.rows; i++) add(totals, segment.flightNums[i], segment.scores[i], 1);
+			}
+		}
+		// a flight's ratings live on one shard, its totals come back once
+		List<List<String>> live = esql.executeCachedQueryOnAllShardsAndReturnResult(
+			"SELECT flightNum, SUM(score), COUNT(*) FROM Ratings GROUP BY flightNum");
+		for (List<String> row : live) add(totals, FlightNum.pack(row.get(0)), Long.parseLong(row.get(1)), Long.parseLong(row.get(2)));
+
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map.Entry<Long, long[]> flight : totals.entrySet()) {
+			result.add(Arrays.asList(FlightNum.unpack(flight.getKey()),
+				String.valueOf((double) flight.getValue()[0] / flight.getValue()[1])));
+		}
+		return result;
+	}
+
+	private static void add(Map<Long, long[]> totals, long flightNum, long sum, long count) {
+		long[] total = totals.get(flightNum);
+		if (total == null) totals.put(flightNum, total = new long[2]);
+		total[0] += sum;
+		total[1] += count;
+	}
+
+	/**
+	 * Method to get the archived bookings, so a rerun after an interrupted
+	 * one deletes what was archived already instead of writing it again.
+	 *
+	 * @return key() of every archived booking
+	 */
+	public synchronized Set<String> getArchivedBookings() {
+		Set<String> keys = new HashSet<String>();
+		for (Segment segment : this._segments.values()) {
+			if (!segment.table.equals(BOOKINGS)) continue;
+			for (int i = 0; i < segment.rows; i++) {
+				keys.add(key(new Booking(segment.bookRefs[i], LocalDate.ofEpochDay(segment.departures[i]), segment.flightNums[i], segment.pIDs[i])));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Method to get the archived ratings, so a rerun after an interrupted one
+	 * deletes what was archived already instead of writing it again.
+	 *
+	 * @return key() of every archived rating
+	 */
+	public synchronized Set<String> getArchivedRatings() {
+		Set<String> keys = new HashSet<String>();
+		for (Segment segment : this._segments.values()) {
+			if (!segment.table.equals(RATINGS)) continue;
+			for (int i = 0; i < segment.rows; i++) {
+				keys.add(key(new Rating(segment.rIDs[i], segment.pIDs[i], segment.flightNums[i], segment.scores[i], segment.comments[i])));
+			}
+		}
+		return keys;
+	}
+
+	// the whole row, so a live row that only reuses an archived key is never taken for the archived one;
+	// not the seat, which version 1 files lack
+	static String key(Booking booking) {
+		return booking.bookRef + "|" + booking.departure + "|" + booking.flightNum + "|" + booking.pID;
+	}
+
+	static String key(Rating rating) {
+		return rating.rID + "|" + rating.pID + "|" + rating.flightNum + "|" + rating.score + "|" + (rating.comment == null ? "\\N" : "=" + rating.comment);
+	}
+
+	/**
+	 * Method to write bookings to a new archive file.
+	 *
+	 * @param name the file name, without the .col.gz extension, which must not exist yet
+	 * @param bookings the rows
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public synchronized void writeBookings(String name, List<Booking> bookings) throws IOException {
+		Segment segment = new Segment();
+		segment.table = BOOKINGS;
+		segment.rows = bookings.size();
+		segment.bookRefs = new String[segment.rows];
+		segment.departures = new int[segment.rows];
+		segment.flightNums = new long[segment.rows];
+		segment.pIDs = new int[segment.rows];
+		segment.seats = new short[segment.rows];
+		for (int i = 0; i < segment.rows; i++) {
+			Booking booking = bookings.get(i);
+			segment.bookRefs[i] = booking.bookRef;
+			segment.departures[i] = (int) booking.departure.toEpochDay();
+			segment.flightNums[i] = booking.flightNum;
+			segment.pIDs[i] = booking.pID;
+			segment.seats[i] = booking.seat == null ? 0 : (short) (int) booking.seat;
+		}
+		write(name, segment);
+	}
+
+	/**
+	 * Method to write ratings to a new archive file.
+	 *
+	 * @param name the file name, without the .col.gz extension, which must not exist yet
+	 * @param ratings the rows
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public synchronized void writeRatings(String name, List<Rating> ratings) throws IOException {
+		Segment segment = new Segment();
+		segment.table = RATINGS;
+		segment.rows = ratings.size();
+		segment.rIDs = new int[segment.rows];
+		segment.pIDs = new int[segment.rows];
+		segment.flightNums = new long[segment.rows];
+		segment.scores = new byte[segment.rows];
+		segment.comments = new String[segment.rows];
+		for (int i = 0; i < segment.rows; i++) {
+			Rating rating = ratings.get(i);
+			segment.rIDs[i] = rating.rID;
+			segment.pIDs[i] = rating.pID;
+			segment.flightNums[i] = rating.flightNum;
+			segment.scores[i] = (byte) rating.score;
+			segment.comments[i] = rating.comment;
+		}
+		write(name, segment);
+	}
+
+	private void write(String name, Segment segment) throws IOException {
+		File done = new File(this._dir, name + ".col.gz");
+		if (done.exists()) throw new IOException("Archive file " + done + " exists already");
+		File part = new File(this._dir, name + ".col.gz.part");
+		FileOutputStream file = new FileOutputStream(part);
+		try{
+			GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(file, 1 << 16), 1 << 16);
+			DataOutputStream out = new DataOutputStream(gzip);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(segment.table);
+			out.writeInt(segment.rows);
+			if (segment.table.equals(BOOKINGS)) {
+				for (String bookRef : segment.bookRefs) out.writeUTF(bookRef);
+				// ascending within a month, so the deltas are small and compress well
+				int previous = 0;
+				for (int departure : segment.departures) {
+					out.writeInt(departure - previous);
+					previous = departure;
+				}
+				for (long flightNum : segment.flightNums) out.writeLong(flightNum);
+				for (int pID : segment.pIDs) out.writeInt(pID);
+				for (short seat : segment.seats) out.writeShort(seat);
+			}else{
+				for (int rID : segment.rIDs) out.writeInt(rID);
+				for (int pID : segment.pIDs) out.writeInt(pID);
+				for (long flightNum : segment.flightNums) out.writeLong(flightNum);
+				out.write(segment.scores);
+				for (String comment : segment.comments) {
+					if (comment == null) {
+						out.writeInt(-1);
+						continue;
+					}
+					byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+			// writes the gzip trailer, whose CRC covers every column
+			out.flush();
+			gzip.finish();
+			gzip.flush();
+			// on disk before the rows can be deleted from the database
+			file.getFD().sync();
+		}finally{
+			file.close();
+		}
+		Files.move(part.toPath(), done.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		this._segments.put(done.getName(), segment);
+	}
+
+	private static Segment read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16));
+		try{
+			if (in.readInt() != MAGIC) throw new IOException(file + " is not an archive file");
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) throw new IOException(file + " is a version " + version + " archive file, this reads up to " + VERSION);
+			Segment segment = new Segment();
+			segment.table = in.readUTF();
+			segment.rows = in.readInt();
+			segment.flightNums = new long[segment.rows];
+			segment.pIDs = new int[segment.rows];
+			if (segment.table.equals(BOOKINGS)) {
+				segment.bookRefs = new String[segment.rows];
+				segment.departures = new int[segment.rows];
+				for (int i = 0; i < segment.rows; i++) segment.bookRefs[i] = in.readUTF();
+				int previous = 0;
+				for (int i = 0; i < segment.rows; i++) previous = segment.departures[i] = previous + in.readInt();
+				for (int i = 0; i < segment.rows; i++) segment.flightNums[i] = in.readLong();
+				for (int i = 0; i < segment.rows; i++) segment.pIDs[i] = in.readInt();
+				segment.seats = new short[segment.rows];
+				if (version >= 2) {
+					for (int i = 0; i < segment.rows; i++) segment.seats[i] = in.readShort();
+				}
+			}else{
+				segment.rIDs = new int[segment.rows];
+				segment.scores = new byte[segment.rows];
+				segment.comments = new String[segment.rows];
+				for (int i = 0; i < segment.rows; i++) segment.rIDs[i] = in.readInt();
+				for (int i = 0; i < segment.rows; i++) segment.pIDs[i] = in.readInt();
+				for (int i = 0; i < segment.rows; i++) segment.flightNums[i] = in.readLong();
+				in.readFully(segment.scores);
+				for (int i = 0; i < segment.rows; i++) {
+					int length = in.readInt();
+					if (length < 0) continue;
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					segment.comments[i] = new String(bytes, StandardCharsets.UTF_8);
+				}
+			}
+			// reading to the end has the gzip stream check its CRC
+			if (in.read() != -1) throw new IOException(file + " has trailing data");
+			return segment;
+		}finally{
+			in.close();
+		}
+	}
+}
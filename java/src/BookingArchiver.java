@@ -0,0 +1,225 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * This class moves bookings departing before a horizon, and optionally the
+ * ratings no longer tied to a booking after it, out of the database into
+ * BookingArchive files. One month of bookings is written and synced to disk
+ * first, then deleted in batches of their keys, each in its own short
+ * transaction with a pause in between, so no lock is held for long and
+ * only rows that are safely archived are ever deleted. A run that was
+ * interrupted is finished by the next one.
+ *
+ * Ratings have no date of their own: one is archived once its passenger
+ * has no booking on the rated flight departing at or after the horizon.
+ * New rIDs are MAX(rID) + 1 over the live table, so the rating with the
+ * highest rID is never archived and archived rIDs are not handed out again.
+ *
+ * A row found in the archive is only taken as archived when all of its
+ * columns match, and only rows written to the archive by this run or
+ * matched that way are deleted, whole row against whole row.
+ *
+ */
+
+public class BookingArchiver{
+	private Connection _connection;
+	private BookingArchive _archive;
+	private String _prefix;
+	private int _batchSize;
+	private long _pauseMs;
+
+	public BookingArchiver(Connection connection, BookingArchive archive, String prefix, int batchSize, long pauseMs) {
+		this._connection = connection;
+		this._archive = archive;
+		this._prefix = prefix;
+		this._batchSize = batchSize;
+		this._pauseMs = pauseMs;
+	}
+
+	/**
+	 * Method to archive the bookings of every month before the horizon.
+	 *
+	 * @param horizon the first departure date kept in Booking
+	 * @return the number of bookings deleted from Booking
+	 * @throws Exception when a month could not be archived
+	 */
+	public long archiveBookings(LocalDate horizon) throws Exception {
+		List<LocalDate> months = new ArrayList<LocalDate>();
+		PreparedStatement stmt = this._connection.prepareStatement (
+			"SELECT DISTINCT date_trunc('month', departure)::date FROM Booking WHERE departure < ? ORDER BY 1");
+		stmt.setDate(1, Date.valueOf(horizon));
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) months.add(rs.getDate(1).toLocalDate());
+		stmt.close ();
+
+		Set<String> archived = this._archive.getArchivedBookings();
+		long deleted = 0;
+		for (LocalDate month : months) {
+			LocalDate end = month.plusMonths(1).isAfter(horizon) ? horizon : month.plusMonths(1);
+			// a range on departure only scans that month's partition
+			stmt = this._connection.prepareStatement (
+				"SELECT * FROM Booking WHERE departure >= ? AND departure < ? ORDER BY departure, bookRef");
+			stmt.setDate(1, Date.valueOf(month));
+			stmt.setDate(2, Date.valueOf(end));
+			rs = stmt.executeQuery();
+			List<Booking> rows = new ArrayList<Booking>();
+			List<Booking> fresh = new ArrayList<Booking>();
+			while (rs.next()) {
+				Booking booking = Booking.from(rs);
+				rows.add(booking);
+				if (!archived.contains(BookingArchive.key(booking))) fresh.add(booking);
+			}
+			stmt.close ();
+
+			if (!fresh.isEmpty()) this._archive.writeBookings(name(BookingArchive.BOOKINGS + "-" + YearMonth.from(month)), fresh);
+			for (int from = 0; from < rows.size(); from += this._batchSize) {
+				List<Booking> batch = rows.subList(from, Math.min(rows.size(), from + this._batchSize));
+				String[] bookRefs = new String[batch.size()];
+				String[] departures = new String[batch.size()];
+				String[] flightNums = new String[batch.size()];
+				Integer[] pIDs = new Integer[batch.size()];
+				for (int i = 0; i < batch.size(); i++) {
+					bookRefs[i] = batch.get(i).bookRef;
+					departures[i] = batch.get(i).departure.toString();
+					flightNums[i] = batch.get(i).getFlightNum();
+					pIDs[i] = batch.get(i).pID;
+				}
+				stmt = this._connection.prepareStatement (
+					"DELETE FROM Booking WHERE (bookRef, departure, flightNum, pID) IN "
+					+ "(SELECT * FROM unnest(CAST(? AS CHAR(10)[]), CAST(? AS DATE[]), CAST(? AS CHAR(8)[]), CAST(? AS INTEGER[])))");
+				stmt.setArray(1, this._connection.createArrayOf("varchar", bookRefs));
+				stmt.setArray(2, this._connection.createArrayOf("varchar", departures));
+				stmt.setArray(3, this._connection.createArrayOf("varchar", flightNums));
+				stmt.setArray(4, this._connection.createArrayOf("integer", pIDs));
+				deleted += stmt.executeUpdate();
+				stmt.close ();
+				pause();
+			}
+			System.out.println("Archived " + YearMonth.from(month) + ": " + rows.size() + " bookings");
+		}
+		return deleted;
+	}
+
+	/**
+	 * Method to archive the ratings whose passenger has no booking on the
+	 * rated flight departing at or after the horizon, except the one with the
+	 * highest rID.
+	 *
+	 * @param horizon the first departure date kept in Booking
+	 * @return the number of ratings deleted from Ratings
+	 * @throws Exception when the ratings could not be archived
+	 */
+	public long archiveRatings(LocalDate horizon) throws Exception {
+		// the highest rID stays, it is what the next rID is counted from
+		PreparedStatement stmt = this._connection.prepareStatement (
+			"SELECT * FROM Ratings r WHERE NOT EXISTS (SELECT 1 FROM Booking b "
+			+ "WHERE b.pID = r.pID AND b.flightNum = r.flightNum AND b.departure >= ?) "
+			+ "AND r.rID < (SELECT MAX(rID) FROM Ratings) ORDER BY rID");
+		stmt.setDate(1, Date.valueOf(horizon));
+		ResultSet rs = stmt.executeQuery();
+		Set<String> archived = this._archive.getArchivedRatings();
+		List<Rating> rows = new ArrayList<Rating>();
+		List<Rating> fresh = new ArrayList<Rating>();
+		while (rs.next()) {
+			Rating rating = Rating.from(rs);
+			rows.add(rating);
+			if (!archived.contains(BookingArchive.key(rating))) fresh.add(rating);
+		}
+		stmt.close ();
+
+		if (!fresh.isEmpty()) this._archive.writeRatings(name(BookingArchive.RATINGS), fresh);
+		long deleted = 0;
+		for (int from = 0; from < rows.size(); from += this._batchSize) {
+			List<Rating> batch = rows.subList(from, Math.min(rows.size(), from + this._batchSize));
+			Integer[] rIDs = new Integer[batch.size()];
+			Integer[] pIDs = new Integer[batch.size()];
+			String[] flightNums = new String[batch.size()];
+			Integer[] scores = new Integer[batch.size()];
+			String[] comments = new String[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				rIDs[i] = batch.get(i).rID;
+				pIDs[i] = batch.get(i).pID;
+				flightNums[i] = batch.get(i).getFlightNum();
+				scores[i] = batch.get(i).score;
+				comments[i] = batch.get(i).comment;
+			}
+			// a rating changed since it was read no longer matches and stays
+			stmt = this._connection.prepareStatement (
+				"DELETE FROM Ratings r USING unnest(CAST(? AS INTEGER[]), CAST(? AS INTEGER[]), CAST(? AS CHAR(8)[]), "
+				+ "CAST(? AS INTEGER[]), CAST(? AS TEXT[])) AS a(rID, pID, flightNum, score, comment) "
+				+ "WHERE r.rID = a.rID AND r.pID = a.pID AND r.flightNum = a.flightNum AND r.score = a.score "
+				+ "AND r.comment IS NOT DISTINCT FROM a.comment");
+			stmt.setArray(1, this._connection.createArrayOf("integer", rIDs));
+			stmt.setArray(2, this._connection.createArrayOf("integer", pIDs));
+			stmt.setArray(3, this._connection.createArrayOf("varchar", flightNums));
+			stmt.setArray(4, this._connection.createArrayOf("integer", scores));
+			stmt.setArray(5, this._connection.createArrayOf("text", comments));
+			deleted += stmt.executeUpdate();
+			stmt.close ();
+			pause();
+		}
+		System.out.println("Archived " + rows.size() + " ratings");
+		return deleted;
+	}
+
+	// archive files are never overwritten, a later run for the same month gets the next number
+	private String name(String base) {
+		for (int n = 0; ; n++) {
+			String name = base + "-" + this._prefix + "-" + n;
+			if (!new File(this._archive.getDir(), name + ".col.gz").exists()) return name;
+		}
+	}
+
+	private void pause() throws InterruptedException {
+		if (this._pauseMs > 0) Thread.sleep(this._pauseMs);
+	}
+
+	/**
+	 * The archival entry point, meant to be run nightly on every shard with
+	 * the same archive folder.
+	 *
+	 * @param args <dbname> <port> <user> <archive dir> <months kept> [ratings]
+	 */
+	public static void main (String[] args) {
+		if ((args.length != 5 && args.length != 6) || (args.length == 6 && !args[5].equals("ratings"))) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingArchiver.class.getName () +
+		            " <dbname> <port> <user> <archive dir> <months kept> [ratings]");
+			return;
+		}//end if
+		try{
+			Class.forName("org.postgresql.Driver");
+			File dir = new File(args[3]);
+			dir.mkdirs();
+			BookingArchive archive = new BookingArchive(dir);
+			archive.refresh();
+			LocalDate horizon = YearMonth.now().minusMonths(Integer.parseInt(args[4])).atDay(1);
+			int batchSize = Integer.parseInt(System.getProperty("airbooking.archiveBatch", "5000"));
+			long pauseMs = Long.parseLong(System.getProperty("airbooking.archivePauseMs", "50"));
+
+			Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+			try{
+				// shards archive into the same folder, the port keeps their file names apart
+				BookingArchiver archiver = new BookingArchiver(connection, archive, args[1], batchSize, pauseMs);
+				long bookings = archiver.archiveBookings(horizon);
+				long ratings = args.length == 6 ? archiver.archiveRatings(horizon) : 0;
+				System.out.println("Moved " + bookings + " bookings and " + ratings + " ratings departing before " + horizon + " to " + dir);
+			}finally{
+				connection.close();
+			}
+		}catch(Exception e){
+			System.err.println ("Archival failed: " + e.getMessage ());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class answers booking counts sliced by departure month, destination,
+ * passenger country and airline from booking_cube, the summary V006 keeps
+ * up to date on every Booking write. A report groups by any subset of the
+ * dimensions, leaving one out rolls it up, and filters on any of them.
+ * Cube rows are few compared to bookings, so a report costs milliseconds
+ * where the same question over Booking, Flight and Passenger is a three
+ * way join. When Booking is sharded every shard has its own cube and the
+ * partial counts are added up here.
+ *
+ */
+
+public class BookingCube{
+	public static final List<String> DIMENSIONS = Arrays.asList("month", "destination", "country", "airline");
+	//what every dimension shows, in the order of DIMENSIONS
+	private static final String[] COLUMNS = {"to_char(c.month, 'YYYY-MM')", "trim(c.destination)", "trim(c.country)", "trim(a.name)"};
+
+	//dimensions to break the counts down by, empty for the grand total
+	public List<String> dimensions = new ArrayList<String>();
+	//optional filters, null means any
+	public YearMonth fromMonth = null;
+	public YearMonth toMonth = null;
+	public String destination = null;
+	public String country = null;
+	public String airline = null;
+
+	/**
+	 * Method to count the bookings of the cube's cells matching the filters,
+	 * grouped by the chosen dimensions. Each record holds the value of every
+	 * chosen dimension followed by the number of bookings.
+	 *
+	 * @param esql the database session
+	 * @return the counts, ordered by the dimension values
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> query(AirBooking esql) throws SQLException {
+		String columns = "";
+		for (String dimension : this.dimensions) {
+			int i = DIMENSIONS.indexOf(dimension);
+			if (i < 0) throw new IllegalArgumentException("Unknown dimension " + dimension);
+			columns += COLUMNS[i] + ", ";
+		}
+		String query = "SELECT " + columns + "SUM(c.bookings) FROM booking_cube c JOIN Airline a ON a.airId = c.airId "
+			+ "WHERE c.bookings > 0";
+		if (this.fromMonth != null) query += " AND c.month >= '" + this.fromMonth.atDay(1) + "'";
+		if (this.toMonth != null) query += " AND c.month <= '" + this.toMonth.atDay(1) + "'";
+		if (this.destination != null) query += " AND c.destination = '" + quote(this.destination) + "'";
+		if (this.country != null) query += " AND c.country = '" + quote(this.country) + "'";
+		if (this.airline != null) query += " AND a.name = '" + quote(this.airline) + "'";
+		if (!this.dimensions.isEmpty()) query += " GROUP BY " + columns.substring(0, columns.length() - 2);
+		query += ";";
+
+		// every shard counts its own bookings, the same cell may come back from each of them
+		Map<List<String>, Long> cells = new TreeMap<List<String>, Long>(BookingCube::compareCells);
+		for (List<String> record : esql.executeQueryOnAllShardsAndReturnResult(query)) {
+			String count = record.get(record.size() - 1);
+			if (count == null) continue; // SUM over no rows
+			List<String> cell = record.subList(0, record.size() - 1);
+			Long sum = cells.get(cell);
+			cells.put(cell, (sum == null ? 0 : sum) + Long.parseLong(count));
+		}
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map.Entry<List<String>, Long> cell : cells.entrySet()) {
+			List<String> record = new ArrayList<String>(cell.getKey());
+			record.add(String.valueOf(cell.getValue()));
+			result.add(record);
+		}
+		return result;
+	}
+
+	private static int compareCells(List<String> a, List<String> b) {
+		for (int i = 0; i < a.size(); i++) {
+			int c = a.get(i).compareTo(b.get(i));
+			if (c != 0) return c;
+		}
+		return 0;
+	}
+
+	private static String quote(String value) {
+		return value.trim().replace("'", "''");
+	}
+
+	/**
+	 * Method to recompute booking_cube from Booking. Every partition of
+	 * Booking is aggregated on its own connection, in parallel, from one
+	 * exported snapshot, and the partial counts are merged in memory before
+	 * the cube is replaced in a single transaction. Writes to Booking,
+	 * Flight and Passenger wait until the rebuild is done, so no booking is
+	 * counted twice or missed.
+	 *
+	 * @param url the JDBC url of the database
+	 * @param user the database user
+	 * @param passwd the user's password
+	 * @param threads the number of partitions aggregated at once
+	 * @return the number of cells in the rebuilt cube
+	 * @throws Exception when the cube could not be rebuilt
+	 */
+	public static int rebuild(String url, String user, String passwd, int threads) throws Exception {
+		Connection coordinator = DriverManager.getConnection(url, user, passwd);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try{
+			coordinator.setAutoCommit(false);
+			coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = coordinator.createStatement ();
+			// taken before the snapshot, which then holds every booking there will be until commit
+			stmt.execute ("LOCK TABLE Booking, Flight, Passenger IN SHARE MODE");
+			stmt.execute ("LOCK TABLE booking_cube IN EXCLUSIVE MODE");
+			ResultSet rs = stmt.executeQuery ("SELECT pg_export_snapshot()");
+			rs.next();
+			String snapshot = rs.getString(1);
+
+			List<String> partitions = new ArrayList<String>();
+			rs = stmt.executeQuery ("SELECT inhrelid::regclass::text FROM pg_inherits WHERE inhparent = 'booking'::regclass");
+			while (rs.next()) partitions.add(rs.getString(1));
+			if (partitions.isEmpty()) partitions.add("Booking");
+
+			NameDictionary destinations = new NameDictionary();
+			NameDictionary countries = new NameDictionary();
+			NameDictionary airlines = new NameDictionary();
+			List<Future<Cells>> results = new ArrayList<Future<Cells>>();
+			for (String partition : partitions) {
+				results.add(pool.submit(() -> aggregate(url, user, passwd, snapshot, partition, destinations, countries, airlines)));
+			}
+			Cells cube = new Cells();
+			for (Future<Cells> result : results) {
+				cube.addAll(result.get());
+			}
+
+			stmt.executeUpdate ("DELETE FROM booking_cube");
+			stmt.close ();
+			PreparedStatement insert = coordinator.prepareStatement (
+				"INSERT INTO booking_cube (month, destination, country, airId, bookings) VALUES (?, ?, ?, ?, ?)");
+			for (int i = 0; i < cube.keys.length; i++) {
+				long key = cube.keys[i];
+				if (key == 0) continue;
+				int month = (int) (key >>> 48);
+				insert.setDate(1, java.sql.Date.valueOf(YearMonth.of(month / 12, month % 12 + 1).atDay(1)));
+				insert.setString(2, destinations.name((int) (key >>> 32) & 0xFFFF));
+				insert.setString(3, countries.name((int) (key >>> 16) & 0xFFFF));
+				insert.setInt(4, Integer.parseInt(airlines.name((int) key & 0xFFFF)));
+				insert.setInt(5, cube.counts[i]);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			insert.close ();
+			coordinator.commit();
+			return cube.size;
+		}finally{
+			pool.shutdownNow();
+			// a no-op after the commit, releases the locks after a failure
+			coordinator.rollback();
+			coordinator.close();
+		}
+	}
+
+	private static Cells aggregate(String url, String user, String passwd, String snapshot, String partition,
+			NameDictionary destinations, NameDictionary countries, NameDictionary airlines) throws SQLException {
+		Connection connection = DriverManager.getConnection(url, user, passwd);
+		try{
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = connection.createStatement ();
+			stmt.execute ("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+			ResultSet rs = stmt.executeQuery (
+				"SELECT (date_part('year', b.departure) * 12 + date_part('month', b.departure) - 1)::int, f.destination, p.country, f.airId, count(*) "
+				+ "FROM " + partition + " b JOIN Flight f ON f.flightNum = b.flightNum JOIN Passenger p ON p.pID = b.pID "
+				+ "GROUP BY 1, 2, 3, 4");
+			Cells cells = new Cells();
+			while (rs.next()) {
+				cells.add(key(rs.getInt(1), destinations.code(rs.getString(2)), countries.code(rs.getString(3)),
+					airlines.code(rs.getString(4))), rs.getInt(5));
+			}
+			stmt.close ();
+			connection.rollback();
+			return cells;
+		}finally{
+			connection.close();
+		}
+	}
+
+	// 16 bits each for the month since year 0 and the three dictionary codes, never 0 for a real month
+	private static long key(int month, int destination, int country, int airline) {
+		if ((destination | country | airline) > 0xFFFF) throw new IllegalStateException("Too many distinct values for the cube key");
+		return ((long) month << 48) | ((long) destination << 32) | ((long) country << 16) | airline;
+	}
+
+	// counts per cube key in open addressed primitive arrays, 0 marks a free slot
+	private static class Cells{
+		long[] keys = new long[1024];
+		int[] counts = new int[1024];
+		int size = 0;
+
+		void add(long key, int count) {
+			if (2 * (this.size + 1) > this.keys.length) grow();
+			int mask = this.keys.length - 1;
+			// the high bits of the product mix all four fields
+			int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(this.keys.length)));
+			while (this.keys[i] != 0 && this.keys[i] != key) i = (i + 1) & mask;
+			if (this.keys[i] == 0) {
+				this.keys[i] = key;
+				this.size++;
+			}
+			this.counts[i] += count;
+		}
+
+		void addAll(Cells other) {
+			for (int i = 0; i < other.keys.length; i++)
+				if (other.keys[i] != 0) add(other.keys[i], other.counts[i]);
+		}
+
+		private void grow() {
+			long[] keys = this.keys;
+			int[] counts = this.counts;
+			this.keys = new long[keys.length * 2];
+			this.counts = new int[keys.length * 2];
+			this.size = 0;
+			for (int i = 0; i < keys.length; i++)
+				if (keys[i] != 0) add(keys[i], counts[i]);
+		}
+	}
+
+	/**
+	 * The rebuild entry point. The cube never needs it to stay correct, it
+	 * drops cells that went to zero and the counts of retired partitions.
+	 * Run it on every shard.
+	 *
+	 * @param args <dbname> <port> <user>
+	 */
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingCube.class.getName () +
+		            " <dbname> <port> <user>");
+			return;
+		}//end if
+		try{
+			Class.forName("org.postgresql.Driver");
+			int threads = Integer.parseInt(System.getProperty("airbooking.cubeThreads", "4"));
+			long start = System.currentTimeMillis();
+			int cells = rebuild("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", threads);
+			System.out.println("Rebuilt booking_cube: " + cells + " cells in " + (System.currentTimeMillis() - start) + " ms");
+		}catch(Exception e){
+			System.err.println ("Rebuild failed: " + e.getMessage ());
+			System.exit(1);
+		}
+	}
+}
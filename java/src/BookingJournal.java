@@ -0,0 +1,688 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.io.File;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class books seats write-behind. A booking is appended to a local
+ * journal file and acknowledged as soon as the journal is fsync'd; a drain
+ * thread then inserts the journaled bookings into Booking in batches of one
+ * transaction each. Appends waiting while an fsync runs share the next one
+ * (group commit), so a burst of bookings costs a few fsyncs instead of a
+ * database commit each.
+ *
+ * Before a booking is journaled its seat is held in the database with
+ * V011's hold_seat(), one short transaction on the flight's shard that
+ * checks the capacity, the passenger's other bookings and the bookRef
+ * under the seat map's lock. Every other writer, in this process or not,
+ * sees the held seat as taken, and the drain's insert takes over the hold.
+ * A hold whose booking could not be journaled is released again, and so
+ * are, when the journal starts, the holds it took but never journaled.
+ *
+ * The hold commits with synchronous_commit off, so it does not wait for a
+ * WAL flush of its own; the journal's fsync is what makes the booking
+ * durable. A database crash can lose the last holds. The drain therefore
+ * re-validates: a booking whose insert is refused and whose hold is gone
+ * is inserted once more without a seat, taking the lowest free one, and is
+ * only rejected when that fails too.
+ *
+ * The drain inserts a booking unless exactly that booking is in Booking
+ * already, and records how far it got in a checkpoint file: after a crash
+ * the journal is replayed from there and what was inserted is skipped. A
+ * booking the database refuses for good is not retried: it is written to
+ * <journal>.rejects with the reason, its hold is released, and the drain
+ * goes on. A booking becomes visible to queries once it is drained;
+ * getStats() reports how far behind that is.
+ *
+ */
+
+public class BookingJournal{
+	//appends fsync'd together at most
+	private static final int MAX_GROUP = 256;
+	//journaled bookings inserted per transaction at most
+	private static final int MAX_BATCH = 500;
+	//a fully drained journal larger than this is truncated
+	private static final long ROLL_BYTES = 64L << 20;
+
+	private static class Entry{
+		final Booking booking;
+		//the held seat, 0 for a booking journaled before seats were held
+		final int seat;
+		final byte[] record;
+		final long acceptedAt = System.currentTimeMillis();
+		final CompletableFuture<Void> durable = new CompletableFuture<Void>();
+		//journal offset just past this entry, set once it is on disk
+		long end;
+
+		Entry(Booking booking, int seat, byte[] record) {
+			this.booking = booking;
+			this.seat = seat;
+			this.record = record;
+		}
+	}
+
+	private File _file;
+	private File _checkpoint;
+	private File _rejects;
+	//names this journal's holds in SeatHold, kept next to the journal
+	private String _holder;
+	private FileChannel _channel;
+	private AirBooking _esql;
+	//JDBC url of every shard, index 0 is the primary
+	private List<String> _urls;
+	private String _user;
+	private String _passwd;
+	//the drain's own connections, opened on first use
+	private Connection[] _connections;
+
+	private LinkedBlockingQueue<Entry> _appends = new LinkedBlockingQueue<Entry>();
+	//on disk and not drained yet, in journal order; guarded by this
+	private ArrayDeque<Entry> _undrained = new ArrayDeque<Entry>();
+	private long _end = 0;
+	private long _drainedTo = 0;
+	private volatile boolean _running = false;
+	private Thread _flusher;
+	private Thread _drainer;
+
+	private long _appended = 0;
+	private long _drained = 0;
+	private long _fsyncs = 0;
+	private long _fsyncNanos = 0;
+	private long _replayed = 0;
+	private long _rejected = 0;
+	private long _reseated = 0;
+
+	public BookingJournal(File file, AirBooking esql, List<String> urls, String user, String passwd) {
+		this._file = file;
+		this._checkpoint = new File(file.getPath() + ".checkpoint");
+		this._rejects = new File(file.getPath() + ".rejects");
+		this._esql = esql;
+		this._urls = urls;
+		this._user = user;
+		this._passwd = passwd;
+		this._connections = new Connection[urls.size()];
+	}
+
+	/**
+	 * Method to open the journal, queue what the last run did not drain,
+	 * release the seats held for bookings that never made it into the
+	 * journal and start the fsync and drain threads.
+	 *
+	 * @throws java.io.IOException when the journal could not be read
+	 */
+	public void start() throws IOException {
+		File holder = new File(this._file.getPath() + ".holder");
+		if (!holder.exists()) Files.write(holder.toPath(), UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+		this._holder = new String(Files.readAllBytes(holder.toPath()), StandardCharsets.UTF_8).trim();
+
+		this._channel = FileChannel.open(this._file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long from = 0;
+		if (this._checkpoint.exists()) from = Long.parseLong(new String(Files.readAllBytes(this._checkpoint.toPath()), StandardCharsets.UTF_8).trim());
+		// a crash between truncating the journal and writing the checkpoint leaves it past the end
+		if (from > this._channel.size()) from = 0;
+
+		ByteBuffer journal = ByteBuffer.allocate((int) (this._channel.size() - from));
+		while (journal.hasRemaining() && this._channel.read(journal, from + journal.position()) >= 0);
+		journal.flip();
+		long end = from;
+		while (journal.remaining() >= 8) {
+			int length = journal.getInt(journal.position());
+			long crc = journal.getInt(journal.position() + 4) & 0xFFFFFFFFL;
+			if (length <= 0 || length > journal.remaining() - 8) break;
+			byte[] record = new byte[length];
+			journal.position(journal.position() + 8);
+			journal.get(record);
+			if (checksum(record) != crc) break;
+			Entry entry = decode(record);
+			end += 8 + length;
+			entry.end = end;
+			entry.durable.complete(null);
+			this._undrained.add(entry);
+		}
+		// only an append that was never acknowledged can be torn, it is dropped
+		this._channel.truncate(end);
+		this._channel.position(end);
+		this._end = end;
+		this._drainedTo = from;
+		if (!this._undrained.isEmpty()) System.out.println("Booking journal: replaying " + this._undrained.size() + " bookings");
+		releaseOrphans();
+
+		this._running = true;
+		this._flusher = new Thread(this::flush, "journal-fsync");
+		this._flusher.setDaemon(true);
+		this._flusher.start();
+		this._drainer = new Thread(this::drain, "journal-drain");
+		this._drainer.setDaemon(true);
+		this._drainer.start();
+	}
+
+	/**
+	 * Method to book a seat through the journal. It returns once the seat is
+	 * held in the database and the booking is durable in the journal, before
+	 * it is in Booking.
+	 *
+	 * @param esql the database session the seat is held on
+	 * @param flight the flight
+	 * @param departure the departure date
+	 * @param pID the passenger
+	 * @return the bookRef of the booking
+	 * @throws java.sql.SQLException when the flight is full, the passenger is already booked on it,
+	 * or the seat could not be held
+	 * @throws java.io.IOException when the journal could not be written
+	 */
+	public String book(AirBooking esql, Flight flight, LocalDate departure, int pID) throws SQLException, IOException {
+		String flightNum = flight.getFlightNum();
+		Entry entry = null;
+		while (entry == null) {
+			String bookRef = AirBooking.getBookingID();
+			// without a check the hold is not retried after a lost connection, the next start releases it if it was taken;
+			// no WAL flush per hold, the drain re-validates a booking whose hold a crash lost
+			Integer seat = esql.getPolicy().write(() -> {
+				PreparedStatement stmt = esql.getPolicy().prepare(esql.getWriteConnection(flightNum),
+					"SELECT hold_seat(?, ?, ?, ?, ?), set_config('synchronous_commit', 'off', true)", true);
+				try{
+					stmt.setString(1, bookRef);
+					stmt.setDate(2, Date.valueOf(departure));
+					stmt.setString(3, flightNum);
+					stmt.setInt(4, pID);
+					stmt.setString(5, this._holder);
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					int held = rs.getInt(1);
+					// the bookRef is used on that date already
+					return rs.wasNull() ? 0 : held;
+				}finally{
+					stmt.close();
+				}
+			}, null);
+			if (seat == 0) continue;
+			Booking booking = new Booking(bookRef, departure, flight.flightNum, pID);
+			entry = new Entry(booking, seat, encode(booking, seat));
+		}
+		this._appends.add(entry);
+
+		try{
+			entry.durable.get();
+		}catch(InterruptedException e){
+			// the append is still queued and keeps its seat, it is drained like any other once written
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while the booking was journaled");
+		}catch(ExecutionException e){
+			release(esql, entry.booking);
+			throw new IOException("Could not journal the booking: " + e.getCause().getMessage());
+		}
+		return entry.booking.bookRef;
+	}
+
+	// gives back the seat of a booking that was not journaled, a failure leaves it for the next start
+	private void release(AirBooking esql, Booking booking) {
+		try{
+			PreparedStatement stmt = esql.getPolicy().prepare(esql.getWriteConnection(booking.getFlightNum()), "SELECT release_seat(?, ?)", true);
+			stmt.setString(1, booking.bookRef);
+			stmt.setDate(2, Date.valueOf(booking.departure));
+			stmt.executeQuery().close();
+			stmt.close();
+		}catch(SQLException e){
+			System.err.println("Booking journal: could not release the seat of " + booking.bookRef + ": " + e.getMessage());
+		}
+	}
+
+	// after a crash: the holds this journal took for bookings it never journaled
+	private void releaseOrphans() {
+		Set<String> journaled = new HashSet<String>();
+		for (Entry entry : this._undrained) journaled.add(entry.booking.bookRef + "|" + entry.booking.departure);
+		int released = 0;
+		for (int shard = 0; shard < this._urls.size(); shard++) {
+			try{
+				Connection connection = connection(shard);
+				List<Booking> orphans = new ArrayList<Booking>();
+				PreparedStatement stmt = this._esql.getPolicy().prepare(connection,
+					"SELECT bookRef, departure, flightNum, pID, seat FROM SeatHold WHERE holder = ?", false);
+				stmt.setString(1, this._holder);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					Booking hold = Booking.from(rs);
+					if (!journaled.contains(hold.bookRef + "|" + hold.departure)) orphans.add(hold);
+				}
+				stmt.close();
+				stmt = this._esql.getPolicy().prepare(connection, "SELECT release_seat(?, ?)", true);
+				for (Booking orphan : orphans) {
+					stmt.setString(1, orphan.bookRef);
+					stmt.setDate(2, Date.valueOf(orphan.departure));
+					stmt.executeQuery().close();
+				}
+				stmt.close();
+				connection.commit();
+				released += orphans.size();
+			}catch(SQLException e){
+				// they stay held until a later start gets through
+				System.err.println("Booking journal: could not release unjournaled holds on shard " + shard + ": " + e.getMessage());
+				closeConnections();
+			}
+		}
+		if (released > 0) System.out.println("Booking journal: released " + released + " seats held for bookings that were never journaled");
+	}
+
+	// group commit: whatever queued up during the last fsync goes out with the next one
+	private void flush() {
+		while (this._running || !this._appends.isEmpty()) {
+			List<Entry> group = new ArrayList<Entry>();
+			try{
+				Entry first = this._appends.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				group.add(first);
+			}catch(InterruptedException e){
+				continue;
+			}
+			this._appends.drainTo(group, MAX_GROUP - 1);
+
+			int bytes = 0;
+			for (Entry entry : group) bytes += 8 + entry.record.length;
+			ByteBuffer out = ByteBuffer.allocate(bytes);
+			for (Entry entry : group) {
+				out.putInt(entry.record.length);
+				out.putInt((int) checksum(entry.record));
+				out.put(entry.record);
+			}
+			out.flip();
+
+			long start = System.nanoTime();
+			long end = -1;
+			try{
+				synchronized (this._channel) {
+					end = this._channel.position();
+					while (out.hasRemaining()) this._channel.write(out);
+					this._channel.force(false);
+				}
+			}catch(IOException e){
+				try{
+					// nothing of the group was acknowledged, so none of it may be replayed
+					if (end >= 0) {
+						synchronized (this._channel) {
+							this._channel.truncate(end);
+							this._channel.position(end);
+						}
+					}
+				}catch(IOException ignored){
+				}
+				for (Entry entry : group) entry.durable.completeExceptionally(e);
+				continue;
+			}
+
+			synchronized (this) {
+				for (Entry entry : group) {
+					end += 8 + entry.record.length;
+					entry.end = end;
+					this._undrained.add(entry);
+				}
+				this._end = end;
+				this._appended += group.size();
+				this._fsyncs++;
+				this._fsyncNanos += System.nanoTime() - start;
+				this.notifyAll();
+			}
+			for (Entry entry : group) entry.durable.complete(null);
+		}
+	}
+
+	private void drain() {
+		int failures = 0;
+		while (true) {
+			List<Entry> batch = new ArrayList<Entry>();
+			synchronized (this) {
+				if (this._undrained.isEmpty()) {
+					if (!this._running && this._appends.isEmpty()) return;
+					try{
+						this.wait(100);
+					}catch(InterruptedException e){
+						return;
+					}
+					continue;
+				}
+				for (Entry entry : this._undrained) {
+					if (batch.size() == MAX_BATCH) break;
+					batch.add(entry);
+				}
+			}
+
+			int[] skipped;
+			try{
+				skipped = insert(batch);
+				failures = 0;
+			}catch(SQLException e){
+				// only transient failures get here, whatever a shard already committed is skipped on the retry
+				if (failures++ == 0) System.err.println("Booking journal: drain failed, retrying: " + e.getMessage());
+				closeConnections();
+				try{
+					Thread.sleep(Math.min(5000, 100L << Math.min(failures, 6)));
+				}catch(InterruptedException ie){
+					return;
+				}
+				continue;
+			}
+
+			synchronized (this) {
+				for (int i = 0; i < batch.size(); i++) this._undrained.poll();
+				this._drainedTo = batch.get(batch.size() - 1).end;
+				this._drained += batch.size() - skipped[1];
+				this._replayed += skipped[0];
+				this._rejected += skipped[1];
+				this._reseated += skipped[2];
+			}
+			try{
+				this._esql.wrote("booking");
+				checkpoint();
+			}catch(Exception e){
+				// a stale checkpoint only means more of the journal is replayed, and skipped, after a crash
+				System.err.println("Booking journal: could not write checkpoint: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Method to insert a batch of journaled bookings, one transaction per
+	 * shard. When a shard refuses the batch its bookings are inserted one at
+	 * a time, so only the ones refused for good are rejected.
+	 *
+	 * @param batch the bookings, in journal order
+	 * @return the number of bookings found in Booking already, the number rejected and the number given another seat
+	 * @throws java.sql.SQLException when a shard failed for a transient reason, the batch is retried then
+	 */
+	private int[] insert(List<Entry> batch) throws SQLException {
+		ShardRouter shards = this._esql.getShards();
+		Map<Integer, List<Entry>> byShard = new HashMap<Integer, List<Entry>>();
+		for (Entry entry : batch) {
+			int shard = shards == null ? 0 : shards.shardIndexOf(entry.booking.getFlightNum());
+			List<Entry> entries = byShard.get(shard);
+			if (entries == null) byShard.put(shard, entries = new ArrayList<Entry>());
+			entries.add(entry);
+		}
+
+		int[] skipped = new int[3];
+		for (Map.Entry<Integer, List<Entry>> shard : byShard.entrySet()) {
+			Connection connection = connection(shard.getKey());
+			// a replayed booking is skipped only when it is exactly this one, any other conflict is an error
+			PreparedStatement stmt = this._esql.getPolicy().prepare(connection,
+				"INSERT INTO Booking (bookRef, departure, flightNum, pID, seat) SELECT ?, ?, ?, ?, ? WHERE NOT EXISTS "
+				+ "(SELECT 1 FROM Booking WHERE departure = ? AND bookRef = ? AND flightNum = ? AND pID = ?)", true);
+			try{
+				try{
+					for (Entry entry : shard.getValue()) {
+						bind(stmt, entry, entry.seat);
+						stmt.addBatch();
+					}
+					int[] counts = stmt.executeBatch();
+					connection.commit();
+					for (int count : counts) {
+						if (count == 0) skipped[0]++;
+					}
+					continue;
+				}catch(SQLException e){
+					rollback(connection);
+					if (isTransient(e)) throw e;
+					stmt.clearBatch();
+				}
+				for (Entry entry : shard.getValue()) {
+					try{
+						bind(stmt, entry, entry.seat);
+						if (stmt.executeUpdate() == 0) skipped[0]++;
+						connection.commit();
+					}catch(SQLException e){
+						rollback(connection);
+						if (isTransient(e)) throw e;
+						if (reseat(connection, stmt, entry)) {
+							skipped[2]++;
+							continue;
+						}
+						reject(connection, entry, e);
+						skipped[1]++;
+					}
+				}
+			}finally{
+				stmt.close();
+			}
+		}
+		return skipped;
+	}
+
+	// seat 0 leaves it to the Booking trigger
+	private static void bind(PreparedStatement stmt, Entry entry, int seat) throws SQLException {
+		Booking booking = entry.booking;
+		stmt.setString(1, booking.bookRef);
+		stmt.setDate(2, Date.valueOf(booking.departure));
+		stmt.setString(3, booking.getFlightNum());
+		stmt.setInt(4, booking.pID);
+		if (seat > 0) stmt.setShort(5, (short) seat);
+		else stmt.setNull(5, Types.SMALLINT);
+		stmt.setDate(6, Date.valueOf(booking.departure));
+		stmt.setString(7, booking.bookRef);
+		stmt.setString(8, booking.getFlightNum());
+		stmt.setInt(9, booking.pID);
+	}
+
+	/**
+	 * Method to insert a refused booking again without its seat, when the
+	 * hold it was journaled with is gone: the database lost it in a crash,
+	 * and someone else may have taken the seat since.
+	 *
+	 * @param connection the shard's drain connection, outside a transaction
+	 * @param stmt the insert
+	 * @param entry the refused booking
+	 * @return true when it is in Booking now, false when it is still refused
+	 * @throws java.sql.SQLException when the shard failed for a transient reason
+	 */
+	private boolean reseat(Connection connection, PreparedStatement stmt, Entry entry) throws SQLException {
+		if (entry.seat == 0) return false;
+		PreparedStatement held = this._esql.getPolicy().prepare(connection, "SELECT 1 FROM SeatHold WHERE departure = ? AND bookRef = ?", false);
+		try{
+			held.setDate(1, Date.valueOf(entry.booking.departure));
+			held.setString(2, entry.booking.bookRef);
+			// its hold is there, so the refusal is not about the seat
+			if (held.executeQuery().next()) return false;
+		}finally{
+			held.close();
+			rollback(connection);
+		}
+		try{
+			bind(stmt, entry, 0);
+			stmt.executeUpdate();
+			connection.commit();
+			System.err.println("Booking journal: the hold of " + entry.booking.bookRef + " was lost, booked it on another seat");
+			return true;
+		}catch(SQLException e){
+			rollback(connection);
+			if (isTransient(e)) throw e;
+			return false;
+		}
+	}
+
+	// the database refused the booking for good: it is set aside with the reason and its seat given back
+	private void reject(Connection connection, Entry entry, SQLException refused) throws SQLException {
+		Booking booking = entry.booking;
+		String line = booking.bookRef + "," + booking.departure + "," + booking.getFlightNum().trim() + "," + booking.pID + ","
+			+ (entry.seat > 0 ? String.valueOf(entry.seat) : "\\N") + ": " + refused.getMessage().replace('\n', ' ') + "\n";
+		try{
+			FileOutputStream out = new FileOutputStream(this._rejects, true);
+			try{
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+				out.getFD().sync();
+			}finally{
+				out.close();
+			}
+		}catch(IOException e){
+			System.err.println("Booking journal: could not write " + this._rejects + ": " + e.getMessage());
+		}
+		System.err.println("Booking journal: rejected " + line.trim());
+
+		PreparedStatement stmt = this._esql.getPolicy().prepare(connection, "SELECT release_seat(?, ?)", true);
+		try{
+			stmt.setString(1, booking.bookRef);
+			stmt.setDate(2, Date.valueOf(booking.departure));
+			stmt.executeQuery().close();
+			connection.commit();
+		}catch(SQLException e){
+			rollback(connection);
+			throw e;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	// connection failures, serialization failures, deadlocks, timeouts and a server short of resources pass
+	private static boolean isTransient(SQLException e) {
+		String state = e.getSQLState();
+		if (e instanceof java.sql.BatchUpdateException && e.getNextException() != null) state = e.getNextException().getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57");
+	}
+
+	private static void rollback(Connection connection) {
+		// on a broken connection this fails too, the original error is the one that counts
+		try{
+			connection.rollback();
+		}catch(SQLException ignored){
+		}
+	}
+
+	private Connection connection(int shard) throws SQLException {
+		if (this._connections[shard] == null) {
+			Connection connection = DriverManager.getConnection(this._urls.get(shard), this._user, this._passwd);
+			this._esql.getPolicy().configure(connection);
+			connection.setAutoCommit(false);
+			this._connections[shard] = connection;
+		}
+		return this._connections[shard];
+	}
+
+	private void closeConnections() {
+		for (int i = 0; i < this._connections.length; i++) {
+			try{
+				if (this._connections[i] != null) this._connections[i].close();
+			}catch(SQLException ignored){
+			}
+			this._connections[i] = null;
+		}
+	}
+
+	private void checkpoint() throws IOException {
+		long drainedTo;
+		synchronized (this) {
+			drainedTo = this._drainedTo;
+			// the position counts a group written but not yet added to _undrained, _end does not
+			synchronized (this._channel) {
+				if (drainedTo == this._channel.position() && drainedTo > ROLL_BYTES) {
+					this._channel.truncate(0);
+					this._channel.position(0);
+					this._end = 0;
+					this._drainedTo = drainedTo = 0;
+				}
+			}
+		}
+		File part = new File(this._checkpoint.getPath() + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try{
+			out.write(Long.toString(drainedTo).getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(part.toPath(), this._checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] encode(Booking booking, int seat) {
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(booking.bookRef);
+			out.writeLong(booking.departure.toEpochDay());
+			out.writeLong(booking.flightNum);
+			out.writeInt(booking.pID);
+			out.writeShort(seat);
+			out.flush();
+			return bytes.toByteArray();
+		}catch(IOException e){
+			// a byte array does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Entry decode(byte[] record) {
+		ByteBuffer in = ByteBuffer.wrap(record);
+		byte[] bookRef = new byte[in.getShort() & 0xFFFF];
+		in.get(bookRef);
+		Booking booking = new Booking(new String(bookRef, StandardCharsets.UTF_8), LocalDate.ofEpochDay(in.getLong()), in.getLong(), in.getInt());
+		// records written before seats were held end here
+		int seat = in.remaining() >= 2 ? in.getShort() : 0;
+		return new Entry(booking, seat, record);
+	}
+
+	private static long checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	/**
+	 * Method to stop taking bookings, drain what was journaled for up to the
+	 * given time and close the journal. What is left is drained on the next start.
+	 *
+	 * @param waitMs how long to wait for the drain
+	 */
+	public void stop(long waitMs) {
+		this._running = false;
+		try{
+			this._flusher.join(waitMs);
+			this._drainer.join(waitMs);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		this._drainer.interrupt();
+		try{
+			this._drainer.join(1000);
+			synchronized (this._channel) {
+				this._channel.close();
+			}
+		}catch(Exception e){
+			// ignored.
+		}
+		closeConnections();
+	}
+
+	public synchronized String getStats() {
+		Entry oldest = this._undrained.peek();
+		return "Booking journal: " + this._appended + " journaled, " + this._drained + " drained, "
+			+ this._undrained.size() + " behind (" + (this._end - this._drainedTo) + " bytes, oldest "
+			+ (oldest == null ? 0 : System.currentTimeMillis() - oldest.acceptedAt) + " ms), "
+			+ this._fsyncs + " fsyncs (" + (this._fsyncs == 0 ? 0 : this._appended / this._fsyncs) + " bookings, "
+			+ (this._fsyncs == 0 ? 0 : this._fsyncNanos / this._fsyncs / 1000) + " us each), "
+			+ this._replayed + " replayed already in Booking, " + this._rejected + " rejected to " + this._rejects.getName() + ", "
+			+ this._reseated + " on another seat after a lost hold";
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * One row change published by the publish_change() trigger (see V005):
+ * the change_log sequence number, the table, the operation and the
+ * published key fields of the row, plus the old ones for an update.
+ *
+ */
+
+public final class ChangeEvent{
+	public final long seq;
+	//lower case table name: booking, ratings, flight or passenger
+	public final String table;
+	//'I'nsert, 'U'pdate or 'D'elete
+	public final char op;
+	//the new row's fields, or the deleted row's for a delete
+	public final String[] fields;
+	//the old row's fields of an update, null otherwise
+	public final String[] oldFields;
+
+	public ChangeEvent(long seq, String table, char op, String[] fields, String[] oldFields) {
+		this.seq = seq;
+		this.table = table;
+		this.op = op;
+		this.fields = fields;
+		this.oldFields = oldFields;
+	}
+
+	/**
+	 * Method to parse a notification payload or change_log row.
+	 *
+	 * @param seq the change_log sequence number
+	 * @param payload table, op and fields separated by tabs
+	 * @return the parsed event
+	 */
+	public static ChangeEvent parse(long seq, String payload) {
+		String[] parts = payload.split("\t", -1);
+		int count = parts.length - 2;
+		char op = parts[1].charAt(0);
+		if (op == 'U') count /= 2;
+		String[] fields = new String[count];
+		System.arraycopy(parts, 2, fields, 0, count);
+		String[] oldFields = null;
+		if (op == 'U') {
+			oldFields = new String[count];
+			System.arraycopy(parts, 2 + count, oldFields, 0, count);
+		}
+		return new ChangeEvent(seq, parts[0], op, fields, oldFields);
+	}
+
+	/**
+	 * Method to parse a notification, which is the payload prefixed by the sequence number.
+	 *
+	 * @param notification the NOTIFY payload
+	 * @return the parsed event
+	 */
+	public static ChangeEvent parse(String notification) {
+		int tab = notification.indexOf('\t');
+		return parse(Long.parseLong(notification.substring(0, tab)), notification.substring(tab + 1));
+	}
+}
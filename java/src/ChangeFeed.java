@@ -0,0 +1,286 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class listens on the airbooking_changes channel (see V005) on its
+ * own connection and applies every change event, in commit order, to the
+ * registered views. That lets several app instances share one database and
+ * still answer reads from memory.
+ *
+ * change_log sequence numbers are taken when a row is written, not when its
+ * transaction commits, so a hole in the numbering is normal for a moment.
+ * A hole that is still open after the gap timeout is looked up in change_log:
+ * if it is there its notification was lost and every view resyncs, if not it
+ * was rolled back. Losing the connection also resyncs once it is back.
+ *
+ * Views restored from a Snapshot skip the first resync: the feed replays
+ * change_log from the snapshot's watermark instead.
+ *
+ * A transaction notifies its first BULK_AFTER changes one by one; for the
+ * rest it sends one bulk notification (V012) and the feed reads them from
+ * change_log. The feed also prunes change_log to the retention interval
+ * every hour, whichever app instance gets there first.
+ *
+ */
+
+public class ChangeFeed implements Runnable{
+	public static final String CHANNEL = "airbooking_changes";
+
+	//how long one poll for notifications blocks
+	private static final int POLL_MS = 500;
+	//how long a sequence number may be missing before change_log is checked
+	private static final long GAP_TIMEOUT_MS = 2000;
+	private static final long RECONNECT_MS = 1000;
+	//changes of one transaction notified one by one, as in V012's publish_change()
+	private static final int BULK_AFTER = 100;
+	private static final long PRUNE_MS = 3600 * 1000L;
+
+	private String _url;
+	private String _user;
+	private String _passwd;
+	private long _retentionHours;
+	private Connection _connection = null;
+	private Thread _thread = null;
+
+	private List<ChangeView> _views = new CopyOnWriteArrayList<ChangeView>();
+
+	//true while listening, views may only trust their state when it is
+	private volatile boolean _live = false;
+	private volatile boolean _running = false;
+
+	//highest sequence number applied, and the ones below it not seen yet -> when noticed
+	private long _lastSeq = 0;
+	private TreeMap<Long, Long> _missing = new TreeMap<Long, Long>();
+	//watermark of the snapshot the views were restored from, -1 if they were not
+	private long _warmStart = -1;
+
+	private long _applied = 0;
+	private long _resyncs = 0;
+	private long _bulks = 0;
+	private long _pruned = 0;
+	private long _nextPrune = 0;
+
+	public ChangeFeed(String dbname, String dbport, String user, String passwd, long retentionHours) {
+		this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._user = user;
+		this._passwd = passwd;
+		this._retentionHours = retentionHours;
+	}
+
+	public void register(ChangeView view) {
+		this._views.add(view);
+	}
+
+	public boolean isLive() {
+		return this._live;
+	}
+
+	/**
+	 * Method to catch the views up from a snapshot watermark, instead of
+	 * resyncing them, when the feed starts.
+	 *
+	 * @param watermark the watermark returned by Snapshot.load
+	 */
+	public synchronized void startFrom(long watermark) {
+		this._warmStart = watermark;
+		start();
+	}
+
+	/**
+	 * Method to get the change_log seq every change up to which has been
+	 * applied to the views, for saving them in a Snapshot.
+	 *
+	 * @return the watermark
+	 */
+	public synchronized long getWatermark() {
+		return this._missing.isEmpty() ? this._lastSeq : this._missing.firstKey() - 1;
+	}
+
+	/**
+	 * Method to start listening on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (this._thread != null) return;
+		this._running = true;
+		this._thread = new Thread(this, "change-feed");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * Method to stop listening and close the connection.
+	 */
+	public void stop() {
+		this._running = false;
+		this._live = false;
+		Thread thread = this._thread;
+		if (thread == null) return;
+		thread.interrupt();
+		try{
+			thread.join(POLL_MS * 2);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		while (this._running) {
+			try{
+				listen();
+				while (this._running) {
+					deliver(((PGConnection) this._connection).getNotifications(POLL_MS));
+					checkGaps();
+					prune();
+				}
+			}catch(Exception e){
+				if (this._running) System.err.println("Change feed: " + e.getMessage());
+			}
+			this._live = false;
+			close();
+			if (this._running) {
+				try{
+					Thread.sleep(RECONNECT_MS);
+				}catch(InterruptedException e){
+					// stop() was called
+				}
+			}
+		}
+	}
+
+	private void listen() throws SQLException {
+		this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		Statement stmt = this._connection.createStatement ();
+		stmt.execute ("LISTEN " + CHANNEL);
+		// every change committed from here on is delivered, older ones are covered by the resync
+		ResultSet rs = stmt.executeQuery ("SELECT COALESCE(MAX(seq), 0), MIN(seq) FROM change_log");
+		rs.next();
+		long lastSeq = rs.getLong(1);
+		long oldest = rs.getLong(2);
+		// only when change_log still holds everything after the watermark
+		boolean replay = this._warmStart >= 0 && this._warmStart <= lastSeq
+			&& (rs.wasNull() ? this._warmStart == lastSeq : oldest <= this._warmStart + 1);
+		synchronized (this) {
+			this._lastSeq = lastSeq;
+			this._missing.clear();
+		}
+		if (replay) {
+			// invalidating twice is harmless, so replaying a little too much is fine
+			rs = stmt.executeQuery ("SELECT seq, payload FROM change_log WHERE seq > " + this._warmStart + " AND seq <= " + lastSeq + " ORDER BY seq");
+			while (rs.next()) {
+				ChangeEvent event = ChangeEvent.parse(rs.getLong(1), rs.getString(2));
+				for (ChangeView view : this._views) view.apply(event);
+				this._applied++;
+			}
+		}else{
+			resync();
+		}
+		stmt.close ();
+		// a reconnect always resyncs
+		this._warmStart = -1;
+		this._live = true;
+	}
+
+	private void deliver(PGNotification[] notifications) throws SQLException {
+		if (notifications == null) return;
+		for (PGNotification notification : notifications) {
+			if (!CHANNEL.equals(notification.getName())) continue;
+			String parameter = notification.getParameter();
+			if (parameter.startsWith("bulk\t")) bulk(Long.parseLong(parameter.substring(5)));
+			else receive(ChangeEvent.parse(parameter));
+		}
+	}
+
+	// the changes of a transaction past the ones it notified one by one
+	private void bulk(long txid) throws SQLException {
+		PreparedStatement stmt = this._connection.prepareStatement ("SELECT seq, payload FROM change_log WHERE txid = ? ORDER BY seq OFFSET ?");
+		stmt.setLong(1, txid);
+		stmt.setInt(2, BULK_AFTER);
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) receive(ChangeEvent.parse(rs.getLong(1), rs.getString(2)));
+		stmt.close ();
+		this._bulks++;
+	}
+
+	private void prune() throws SQLException {
+		long now = System.currentTimeMillis();
+		if (this._retentionHours <= 0 || now < this._nextPrune) return;
+		this._nextPrune = now + PRUNE_MS;
+		PreparedStatement stmt = this._connection.prepareStatement ("SELECT prune_change_log(make_interval(hours => ?))");
+		stmt.setInt(1, (int) this._retentionHours);
+		ResultSet rs = stmt.executeQuery();
+		rs.next();
+		this._pruned += rs.getLong(1);
+		stmt.close ();
+	}
+
+	private synchronized void receive(ChangeEvent event) {
+		if (event.seq > this._lastSeq) {
+			long now = System.currentTimeMillis();
+			for (long seq = this._lastSeq + 1; seq < event.seq; seq++) this._missing.put(seq, now);
+			this._lastSeq = event.seq;
+		}else{
+			// a late commit filling a hole, or one already covered by the last resync
+			this._missing.remove(event.seq);
+		}
+		for (ChangeView view : this._views) view.apply(event);
+		this._applied++;
+	}
+
+	private void checkGaps() throws SQLException {
+		long cutoff = System.currentTimeMillis() - GAP_TIMEOUT_MS;
+		StringBuilder overdue = new StringBuilder();
+		synchronized (this) {
+			for (Map.Entry<Long, Long> entry : this._missing.entrySet()) {
+				if (entry.getValue() > cutoff) continue;
+				if (overdue.length() > 0) overdue.append(',');
+				overdue.append(entry.getKey());
+			}
+		}
+		if (overdue.length() == 0) return;
+
+		Statement stmt = this._connection.createStatement ();
+		ResultSet rs = stmt.executeQuery ("SELECT seq FROM change_log WHERE seq IN (" + overdue + ")");
+		boolean lost = rs.next();
+		stmt.close ();
+		// a notification that was on its way while we asked arrives now, before deciding
+		deliver(((PGConnection) this._connection).getNotifications());
+		synchronized (this) {
+			if (lost) {
+				this._missing.clear();
+				resync();
+			}else{
+				// never committed, nothing will come for them
+				for (String seq : overdue.toString().split(",")) this._missing.remove(Long.parseLong(seq));
+			}
+		}
+	}
+
+	private void resync() {
+		for (ChangeView view : this._views) view.resync();
+		this._resyncs++;
+	}
+
+	private void close() {
+		try{
+			if (this._connection != null) this._connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		this._connection = null;
+	}
+
+	public String getStats() {
+		return "Change feed: " + (this._live ? "live" : "down") + ", " + this._applied + " changes applied, "
+			+ this._bulks + " bulk transactions, " + this._resyncs + " resyncs, last seq " + this._lastSeq + ", " + this._pruned + " pruned";
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * In-memory state derived from the tables, kept fresh by the ChangeFeed.
+ *
+ */
+
+public interface ChangeView{
+	/**
+	 * Applies one change. Called from the feed thread in commit order.
+	 */
+	void apply(ChangeEvent event);
+
+	/**
+	 * Drops or reloads everything, called when the feed may have missed changes.
+	 */
+	void resync();
+}
@@ -0,0 +1,206 @@
+import java.sql.SQLException;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * This class resolves typed city names against the distinct Flight origins
+ * and destinations before any SQL is issued. It keeps the names sorted for
+ * prefix completion and a trigram index for typo tolerant suggestions, the
+ * same way pg_trgm pads and splits words. Everything is in memory, so a
+ * lookup costs microseconds instead of another round trip.
+ *
+ * Flight compares cities exactly, so every spelling stored there is kept,
+ * also ones that only differ in case. Input resolves to the spelling typed,
+ * or to the only one there is; when it matches several only in case it
+ * does not resolve and the suggestions list them all.
+ *
+ */
+
+public class CityIndex implements SnapshotSection{
+	//city names as stored in Flight (trimmed), sorted by their lower cased form, case variants next to each other
+	private String[] _cities = new String[0];
+	private String[] _lowered = new String[0];
+	private int[] _gramCount = new int[0];
+	//trigram -> ids of the cities containing it
+	private Map<Long, int[]> _postings = new HashMap<Long, int[]>();
+	private boolean _stale = true;
+
+	/**
+	 * Method to mark the index out of date, e.g. after Flight was written.
+	 * It is rebuilt on the next lookup.
+	 */
+	public synchronized void invalidate() {
+		this._stale = true;
+	}
+
+	/**
+	 * Method to get the canonical spelling of a city.
+	 *
+	 * @param esql the database session used to (re)build the index
+	 * @param input the city as typed by the user
+	 * @return the city as stored in Flight, or null when there is no match or several differing only in case
+	 * @throws java.sql.SQLException when the index could not be built
+	 */
+	public synchronized String resolve(AirBooking esql, String input) throws SQLException {
+		load(esql);
+		String typed = input.trim();
+		String key = typed.toLowerCase();
+		String match = null;
+		int variants = 0;
+		for (int i = first(key); i < this._lowered.length && this._lowered[i].equals(key); i++) {
+			if (this._cities[i].equals(typed)) return typed;
+			match = this._cities[i];
+			variants++;
+		}
+		return variants == 1 ? match : null;
+	}
+
+	// the first name at or after key in the lower cased order
+	private int first(String key) {
+		int i = Arrays.binarySearch(this._lowered, key);
+		if (i < 0) return -i - 1;
+		// binarySearch finds any of several equal keys
+		while (i > 0 && this._lowered[i - 1].equals(key)) i--;
+		return i;
+	}
+
+	/**
+	 * Method to suggest cities for a name that did not resolve: cities
+	 * starting with the input first, then the closest by trigram similarity.
+	 *
+	 * @param esql the database session used to (re)build the index
+	 * @param input the city as typed by the user
+	 * @param k the maximum number of suggestions
+	 * @return up to k city names, best first
+	 * @throws java.sql.SQLException when the index could not be built
+	 */
+	public synchronized List<String> suggest(AirBooking esql, String input, int k) throws SQLException {
+		load(esql);
+		String key = input.trim().toLowerCase();
+		List<String> result = new ArrayList<String>();
+
+		// prefix matches are a contiguous run of the sorted names
+		for (int i = first(key); i < this._lowered.length && result.size() < k && this._lowered[i].startsWith(key); i++)
+			result.add(this._cities[i]);
+
+		// count the trigrams every city shares with the input
+		long[] grams = trigrams(key);
+		int[] shared = new int[this._cities.length];
+		for (long gram : grams) {
+			int[] ids = this._postings.get(gram);
+			if (ids == null) continue;
+			for (int id : ids) shared[id]++;
+		}
+		final double[] similarity = new double[this._cities.length];
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int id = 0; id < shared.length; id++) {
+			if (shared[id] == 0) continue;
+			similarity[id] = (double) shared[id] / (grams.length + this._gramCount[id] - shared[id]);
+			// same cut off as pg_trgm's default similarity_threshold
+			if (similarity[id] >= 0.3) candidates.add(id);
+		}
+		candidates.sort((a, b) -> Double.compare(similarity[b], similarity[a]));
+		for (int id : candidates) {
+			if (result.size() >= k) break;
+			if (!result.contains(this._cities[id])) result.add(this._cities[id]);
+		}
+		return result;
+	}
+
+	public synchronized List<String> getCities(AirBooking esql) throws SQLException {
+		load(esql);
+		return Arrays.asList(this._cities.clone());
+	}
+
+	private void load(AirBooking esql) throws SQLException {
+		if (!this._stale) return;
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT origin FROM Flight UNION SELECT destination FROM Flight");
+		TreeSet<String> names = new TreeSet<String>();
+		for (List<String> row : rows)
+			names.add(row.get(0).trim());
+		build(new ArrayList<String>(names));
+	}
+
+	/**
+	 * Method to replace the indexed cities, e.g. from a warm start snapshot.
+	 *
+	 * @param cities the distinct city names, as stored
+	 */
+	public synchronized void build(List<String> cities) {
+		String[] names = cities.toArray(new String[cities.size()]);
+		// binary searches run over the lower cased names
+		Arrays.sort(names, Comparator.comparing((String name) -> name.toLowerCase()).thenComparing(Comparator.naturalOrder()));
+		String[] lowered = new String[names.length];
+		int[] gramCount = new int[names.length];
+		Map<Long, List<Integer>> postings = new HashMap<Long, List<Integer>>();
+		for (int id = 0; id < names.length; id++) {
+			lowered[id] = names[id].toLowerCase();
+			long[] grams = trigrams(lowered[id]);
+			gramCount[id] = grams.length;
+			for (long gram : grams) {
+				List<Integer> ids = postings.get(gram);
+				if (ids == null) postings.put(gram, ids = new ArrayList<Integer>());
+				ids.add(id);
+			}
+		}
+		this._postings = new HashMap<Long, int[]>();
+		for (Map.Entry<Long, List<Integer>> entry : postings.entrySet()) {
+			int[] ids = new int[entry.getValue().size()];
+			for (int i = 0; i < ids.length; i++) ids[i] = entry.getValue().get(i);
+			this._postings.put(entry.getKey(), ids);
+		}
+		this._cities = names;
+		this._lowered = lowered;
+		this._gramCount = gramCount;
+		this._stale = false;
+	}
+
+	public String getSnapshotName() {
+		return "cities";
+	}
+
+	public synchronized boolean writeSnapshot(DataOutputStream out) throws IOException {
+		if (this._stale) return false;
+		// only the names, the trigrams are cheap to recompute and not worth the space
+		out.writeInt(this._cities.length);
+		for (String city : this._cities) {
+			// plain UTF-8, which writeUTF is not for every character
+			byte[] name = city.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+		}
+		return true;
+	}
+
+	public void readSnapshot(ByteBuffer in) {
+		List<String> cities = new ArrayList<String>();
+		for (int count = in.getInt(); count > 0; count--) {
+			byte[] name = new byte[in.getInt()];
+			in.get(name);
+			cities.add(new String(name, StandardCharsets.UTF_8));
+		}
+		build(cities);
+	}
+
+	// distinct trigrams of "  word " packed 16 bits per char, like pg_trgm
+	static long[] trigrams(String word) {
+		String padded = "  " + word + " ";
+		TreeSet<Long> grams = new TreeSet<Long>();
+		for (int i = 0; i + 3 <= padded.length(); i++)
+			grams.add(((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2));
+		long[] result = new long[grams.size()];
+		int i = 0;
+		for (long gram : grams) result[i++] = gram;
+		return result;
+	}
+}
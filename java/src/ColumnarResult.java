@@ -0,0 +1,240 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class holds a query result column by column in primitive arrays:
+ * integer columns as int[] or long[], every other column dictionary encoded
+ * as an int[] of codes into its distinct values. A result of N rows costs
+ * a few arrays per column instead of N lists and N strings per column, and
+ * repeated values such as cities, airlines or dates are stored once.
+ *
+ * It is also a read only List<List<String>>, whose rows are views built on
+ * demand, so it can stand in for the result of executeQueryAndReturnResult.
+ * Use cursor() or the typed getters to read it without creating any.
+ *
+ */
+
+public class ColumnarResult extends AbstractList<List<String>>{
+	private static final int INT = 0;
+	private static final int LONG = 1;
+	private static final int DICTIONARY = 2;
+
+	private String[] _names;
+	private int[] _kinds;
+	//per column: int[] values or dictionary codes, or long[] values
+	private Object[] _columns;
+	//per column: rows holding NULL
+	private BitSet[] _nulls;
+	//per dictionary column: the distinct values by code
+	private String[][] _dictionaries;
+	private int _rows = 0;
+
+	private ColumnarResult() {
+	}
+
+	/**
+	 * Method to read all rows of a result set.
+	 *
+	 * @param rs the result set, positioned before its first row
+	 * @return the rows
+	 * @throws java.sql.SQLException when failed to read the rows
+	 */
+	public static ColumnarResult from(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData ();
+		int numCol = rsmd.getColumnCount ();
+		ColumnarResult result = new ColumnarResult();
+		result._names = new String[numCol];
+		result._kinds = new int[numCol];
+		result._columns = new Object[numCol];
+		result._nulls = new BitSet[numCol];
+		result._dictionaries = new String[numCol][];
+		List<Map<String, Integer>> codes = new ArrayList<Map<String, Integer>>();
+		List<List<String>> values = new ArrayList<List<String>>();
+		for (int i = 0; i < numCol; i++) {
+			result._names[i] = rsmd.getColumnName(i + 1);
+			int type = rsmd.getColumnType(i + 1);
+			// the driver's text of other numbers (numeric, float) is kept exactly, as a dictionary value
+			result._kinds[i] = type == Types.INTEGER || type == Types.SMALLINT ? INT : type == Types.BIGINT ? LONG : DICTIONARY;
+			result._columns[i] = result._kinds[i] == LONG ? (Object) new long[16] : new int[16];
+			result._nulls[i] = new BitSet();
+			codes.add(result._kinds[i] == DICTIONARY ? new HashMap<String, Integer>() : null);
+			values.add(result._kinds[i] == DICTIONARY ? new ArrayList<String>() : null);
+		}
+
+		int row = 0;
+		while (rs.next()) {
+			for (int i = 0; i < numCol; i++) {
+				Object column = result._columns[i];
+				int capacity = column instanceof long[] ? ((long[]) column).length : ((int[]) column).length;
+				if (row == capacity) {
+					column = column instanceof long[] ? (Object) Arrays.copyOf((long[]) column, capacity * 2) : Arrays.copyOf((int[]) column, capacity * 2);
+					result._columns[i] = column;
+				}
+				if (result._kinds[i] == INT) {
+					((int[]) column)[row] = rs.getInt(i + 1);
+					if (rs.wasNull()) result._nulls[i].set(row);
+				}else if (result._kinds[i] == LONG) {
+					((long[]) column)[row] = rs.getLong(i + 1);
+					if (rs.wasNull()) result._nulls[i].set(row);
+				}else{
+					String value = rs.getString(i + 1);
+					if (value == null) {
+						result._nulls[i].set(row);
+						continue;
+					}
+					Integer code = codes.get(i).get(value);
+					if (code == null) {
+						code = values.get(i).size();
+						codes.get(i).put(value, code);
+						values.get(i).add(value);
+					}
+					((int[]) column)[row] = code;
+				}
+			}
+			row++;
+		}
+		result._rows = row;
+		for (int i = 0; i < numCol; i++) {
+			// the lookup maps are only needed while reading
+			if (result._kinds[i] == DICTIONARY) result._dictionaries[i] = values.get(i).toArray(new String[values.get(i).size()]);
+			Object column = result._columns[i];
+			result._columns[i] = column instanceof long[] ? (Object) Arrays.copyOf((long[]) column, row) : Arrays.copyOf((int[]) column, row);
+		}
+		return result;
+	}
+
+	public int size() {
+		return this._rows;
+	}
+
+	public int getColumnCount() {
+		return this._names.length;
+	}
+
+	public List<String> getColumnNames() {
+		return Arrays.asList(this._names.clone());
+	}
+
+	public boolean isNull(int row, int column) {
+		return this._nulls[column].get(row);
+	}
+
+	/**
+	 * Method to read an integer column without creating a String.
+	 *
+	 * @param row the row, from 0
+	 * @param column the column, from 0
+	 * @return the value, 0 for NULL
+	 */
+	public int getInt(int row, int column) {
+		if (this._kinds[column] == INT) return ((int[]) this._columns[column])[row];
+		if (this._kinds[column] == LONG) return (int) ((long[]) this._columns[column])[row];
+		return isNull(row, column) ? 0 : Integer.parseInt(getString(row, column).trim());
+	}
+
+	public long getLong(int row, int column) {
+		if (this._kinds[column] == LONG) return ((long[]) this._columns[column])[row];
+		if (this._kinds[column] == INT) return ((int[]) this._columns[column])[row];
+		return isNull(row, column) ? 0 : Long.parseLong(getString(row, column).trim());
+	}
+
+	/**
+	 * Method to read a value as the driver's getString would have returned it.
+	 *
+	 * @param row the row, from 0
+	 * @param column the column, from 0
+	 * @return the value, null for NULL
+	 */
+	public String getString(int row, int column) {
+		if (isNull(row, column)) return null;
+		if (this._kinds[column] == INT) return Integer.toString(((int[]) this._columns[column])[row]);
+		if (this._kinds[column] == LONG) return Long.toString(((long[]) this._columns[column])[row]);
+		return this._dictionaries[column][((int[]) this._columns[column])[row]];
+	}
+
+	public List<String> get(int row) {
+		if (row < 0 || row >= this._rows) throw new IndexOutOfBoundsException("Row " + row + " of " + this._rows);
+		return new AbstractList<String>(){
+			public String get(int column) {
+				return getString(row, column);
+			}
+
+			public int size() {
+				return getColumnCount();
+			}
+		};
+	}
+
+	/**
+	 * Method to read several results, e.g. one per shard, as one list of
+	 * records without copying them.
+	 *
+	 * @param parts the results, with the same columns
+	 * @return the records of all parts, in order
+	 */
+	public static List<List<String>> concat(List<ColumnarResult> parts) {
+		if (parts.size() == 1) return parts.get(0);
+		int[] starts = new int[parts.size() + 1];
+		for (int i = 0; i < parts.size(); i++) starts[i + 1] = starts[i] + parts.get(i).size();
+		return new AbstractList<List<String>>(){
+			public List<String> get(int row) {
+				if (row < 0 || row >= starts[parts.size()]) throw new IndexOutOfBoundsException("Row " + row + " of " + starts[parts.size()]);
+				int part = Arrays.binarySearch(starts, row);
+				// the first part starting at row, empty parts start there too
+				if (part < 0) part = -part - 2;
+				else while (starts[part + 1] == row) part++;
+				return parts.get(part).get(row - starts[part]);
+			}
+
+			public int size() {
+				return starts[parts.size()];
+			}
+		};
+	}
+
+	/**
+	 * Method to walk the rows without creating a view per row.
+	 *
+	 * @return a cursor before the first row
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public class Cursor{
+		private int _row = -1;
+
+		public boolean next() {
+			return ++this._row < _rows;
+		}
+
+		public int getRow() {
+			return this._row;
+		}
+
+		public int getInt(int column) {
+			return ColumnarResult.this.getInt(this._row, column);
+		}
+
+		public long getLong(int column) {
+			return ColumnarResult.this.getLong(this._row, column);
+		}
+
+		public String getString(int column) {
+			return ColumnarResult.this.getString(this._row, column);
+		}
+
+		public boolean isNull(int column) {
+			return ColumnarResult.this.isNull(this._row, column);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs independent queries at the same time on a small pool of
+ * extra connections to the primary, so an operation that needs several
+ * lookups waits about as long as the slowest one instead of their sum.
+ * There is one worker thread per connection and a bounded queue in front of
+ * them; once the queue is full the submitting thread runs the task itself,
+ * which slows it down to the pool's pace instead of queueing without end.
+ * Connections are opened on first use.
+ *
+ */
+
+public class ConnectionPool{
+	public interface Task<T>{
+		T run(Connection connection) throws SQLException;
+	}
+
+	private String _url;
+	private String _user;
+	private String _passwd;
+	private int _size;
+	private ExecutionPolicy _policy;
+
+	private BlockingQueue<Connection> _idle;
+	private int _opened = 0;
+	private ThreadPoolExecutor _executor;
+
+	public ConnectionPool(String url, String user, String passwd, int size, int queueLength, ExecutionPolicy policy) {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._size = size;
+		this._policy = policy;
+		this._idle = new ArrayBlockingQueue<Connection>(size);
+		this._executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueLength), task -> {
+				Thread thread = new Thread(task, "pool-query");
+				thread.setDaemon(true);
+				return thread;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		this._executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Method to run a task on a pooled connection in the background. It is
+	 * retried by the execution policy like any other read.
+	 *
+	 * @param task the task, handed a connection of its own
+	 * @return the task's result, failing with a CompletionException around the SQLException
+	 */
+	public <T> CompletableFuture<T> submit(Task<T> task) {
+		return CompletableFuture.supplyAsync(() -> {
+			try{
+				return this._policy.read(() -> {
+					Connection connection = borrow();
+					boolean broken = false;
+					try{
+						return task.run(connection);
+					}catch(SQLException e){
+						broken = e.getSQLState() != null && e.getSQLState().startsWith("08");
+						throw e;
+					}finally{
+						release(connection, broken);
+					}
+				});
+			}catch(SQLException e){
+				throw new CompletionException(e);
+			}
+		}, this._executor);
+	}
+
+	private Connection borrow() throws SQLException {
+		while (true) {
+			synchronized (this) {
+				Connection connection = this._idle.poll();
+				if (connection != null) return connection;
+				if (this._opened < this._size) {
+					this._opened++;
+					try{
+						return open();
+					}catch(SQLException e){
+						this._opened--;
+						throw e;
+					}
+				}
+			}
+			// every connection is busy, which only a caller running a task itself can see;
+			// look again now and then in case a broken one was dropped meanwhile
+			try{
+				Connection connection = this._idle.poll(100, TimeUnit.MILLISECONDS);
+				if (connection != null) return connection;
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a pooled connection");
+			}
+		}
+	}
+
+	private Connection open() throws SQLException {
+		Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		this._policy.configure(connection);
+		return connection;
+	}
+
+	private void release(Connection connection, boolean broken) {
+		if (broken) {
+			try{
+				connection.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+			synchronized (this) {
+				// the next borrow opens a fresh one
+				this._opened--;
+			}
+			return;
+		}
+		this._idle.offer(connection);
+	}
+
+	/**
+	 * Method to stop the workers and close the pooled connections.
+	 */
+	public void cleanup() {
+		this._executor.shutdownNow();
+		Connection connection;
+		while ((connection = this._idle.poll()) != null) {
+			try{
+				connection.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}
+}
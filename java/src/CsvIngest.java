@@ -0,0 +1,551 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.BatchUpdateException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * This class loads the rows appended to the data/ feeds since the last run,
+ * instead of recreating the schema to reload them. For every file the
+ * checkpoint keeps how many bytes and lines were loaded and a CRC32 of the
+ * bytes just before that offset; a file that shrank or whose checksum no
+ * longer matches was rewritten, not appended to, and is loaded again from
+ * the start. The first run, without a checkpoint, loads the whole files.
+ *
+ * The new bytes are cut into chunks at line ends and parsed in parallel in
+ * the format COPY reads them (comma separated, backslash escapes, \N for
+ * NULL, CRLF or LF). Every value is checked against the column's type and
+ * the schema's domains (_YEAR, _HOURS, _SEATS, _SCORE, CHAR lengths, NOT
+ * NULL) and bad rows are written to <file>.rejects with their line number
+ * and reason instead of failing the load. Good rows are upserted in batches
+ * with INSERT ... ON CONFLICT, each batch its own transaction; a batch the
+ * database rejects is retried row by row so only the offending rows are
+ * rejected. Files load in foreign key order and the checkpoint of a file
+ * is saved once all of its rows are in, so a run that died is repeated
+ * harmlessly by the next one.
+ *
+ * Airline, Flight and Passenger go to every shard, Ratings and Booking to
+ * the shard of their flight's airline, as ShardRouter places them.
+ *
+ * Only bytes up to the last line end are loaded, and the checkpoint's
+ * offset and checksum end there: a partner still appending may have
+ * written part of a line, which the next run loads once it is whole. A
+ * feed's last line therefore needs its line end too.
+ *
+ */
+
+public class CsvIngest{
+	//bytes before the offset the checkpoint's checksum covers
+	private static final int CHECKSUM_WINDOW = 64 * 1024;
+	private static final DateTimeFormatter CSV_DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+	// one data/ file and the table it feeds
+	private static class Feed{
+		String file;
+		String table;
+		String[] columns;
+		//per column: int, year, hours, seats, score, date, text, or char(n)
+		String[] types;
+		String conflict;
+		//column holding the flightNum that places a row on a shard, -1 for every shard
+		int flightColumn;
+
+		Feed(String file, String table, String columns, String types, String conflict, int flightColumn) {
+			this.file = file;
+			this.table = table;
+			this.columns = columns.split(", ");
+			this.types = types.split(", ");
+			this.conflict = conflict;
+			this.flightColumn = flightColumn;
+		}
+
+		String upsert() {
+			String sql = "INSERT INTO " + this.table + " (" + String.join(", ", this.columns) + ") VALUES (";
+			for (int i = 0; i < this.columns.length; i++) sql += (i == 0 ? "?" : ", ?");
+			sql += ") ON CONFLICT " + this.conflict;
+			return sql;
+		}
+	}
+
+	//in foreign key order
+	private static final Feed[] FEEDS = {
+		new Feed("airline.csv", "Airline", "airId, name, founded, country, hub", "int, char(24), year, char(24), char(24)",
+			"(airId) DO UPDATE SET name = EXCLUDED.name, founded = EXCLUDED.founded, country = EXCLUDED.country, hub = EXCLUDED.hub", -1),
+		new Feed("passenger.csv", "Passenger", "pID, passNum, fullName, bdate, country", "int, char(10), char(24), date, char(24)",
+			"(pID) DO UPDATE SET passNum = EXCLUDED.passNum, fullName = EXCLUDED.fullName, bdate = EXCLUDED.bdate, country = EXCLUDED.country", -1),
+		new Feed("flights.csv", "Flight", "airId, flightNum, origin, destination, plane, seats, duration",
+			"int, char(8), char(16), char(16), char(16), seats, hours",
+			"(flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, destination = EXCLUDED.destination, "
+			+ "plane = EXCLUDED.plane, seats = EXCLUDED.seats, duration = EXCLUDED.duration", -1),
+		new Feed("ratings.csv", "Ratings", "rID, pID, flightNum, score, comment", "int, int, char(8), score, text",
+			"(rID) DO UPDATE SET pID = EXCLUDED.pID, flightNum = EXCLUDED.flightNum, score = EXCLUDED.score, comment = EXCLUDED.comment", 2),
+		// a booking never changes, a repeated one is skipped whichever key it repeats
+		new Feed("bookings.csv", "Booking", "bookRef, departure, flightNum, pID", "char(10), date, char(8), int", "DO NOTHING", 2),
+	};
+
+	// a parsed line: its values, or why it was rejected
+	private static class Row{
+		long line;
+		Object[] values;
+		String error;
+		String text;
+	}
+
+	private File _dir;
+	private File _checkpoint;
+	private List<Connection> _shards;
+	private ExecutorService _pool;
+	private int _threads;
+	private int _batchSize;
+	private Properties _loaded = new Properties();
+	//packed flightNum -> airId, read after Flight is loaded
+	private Map<Long, Integer> _airIds = null;
+
+	public CsvIngest(File dir, File checkpoint, List<Connection> shards, int threads, int batchSize) throws IOException {
+		this._dir = dir;
+		this._checkpoint = checkpoint;
+		this._shards = shards;
+		this._threads = threads;
+		this._batchSize = batchSize;
+		this._pool = Executors.newFixedThreadPool(threads);
+		if (checkpoint.exists()) {
+			FileInputStream in = new FileInputStream(checkpoint);
+			try{
+				this._loaded.load(in);
+			}finally{
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Method to load what was appended to every feed since the last run.
+	 *
+	 * @return the number of rows upserted
+	 * @throws Exception when a feed could not be read or written to the database
+	 */
+	public long ingestAll() throws Exception {
+		long rows = 0;
+		try{
+			for (Feed feed : FEEDS) {
+				File file = new File(this._dir, feed.file);
+				if (file.exists()) rows += ingest(feed, file);
+			}
+		}finally{
+			this._pool.shutdownNow();
+		}
+		return rows;
+	}
+
+	private long ingest(Feed feed, File file) throws Exception {
+		long start = System.currentTimeMillis();
+		long offset = Long.parseLong(this._loaded.getProperty(feed.file + ".offset", "0"));
+		long lines = Long.parseLong(this._loaded.getProperty(feed.file + ".lines", "0"));
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		byte[] appended;
+		try{
+			if (offset > 0 && (channel.size() < offset
+					|| !Long.toString(checksum(channel, offset)).equals(this._loaded.getProperty(feed.file + ".crc")))) {
+				System.out.println(feed.file + " was rewritten since the last run, loading all of it");
+				offset = 0;
+				lines = 0;
+			}
+			appended = new byte[(int) (channel.size() - offset)];
+			ByteBuffer buffer = ByteBuffer.wrap(appended);
+			while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0);
+		}finally{
+			channel.close();
+		}
+		// a partial last line waits for the run that sees its line end
+		int complete = appended.length;
+		while (complete > 0 && appended[complete - 1] != '\n') complete--;
+		if (complete == 0) return 0;
+
+		List<Row> rows = parse(feed, appended, complete, lines);
+		List<String> rejects = new ArrayList<String>();
+		List<Row> good = new ArrayList<Row>();
+		for (Row row : rows) {
+			if (row.error == null) good.add(row);
+			else rejects.add("line " + row.line + ": " + row.error + ": " + row.text);
+		}
+		upsert(feed, good, rejects);
+		if (!rejects.isEmpty()) {
+			PrintWriter out = new PrintWriter(new FileWriter(new File(this._dir, feed.file + ".rejects"), true));
+			try{
+				for (String reject : rejects) out.println(reject);
+			}finally{
+				out.close();
+			}
+		}
+		for (int i = 0; i < complete; i++) if (appended[i] == '\n') lines++;
+
+		long end = offset + complete;
+		FileChannel check = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			this._loaded.setProperty(feed.file + ".crc", Long.toString(checksum(check, end)));
+		}finally{
+			check.close();
+		}
+		this._loaded.setProperty(feed.file + ".offset", Long.toString(end));
+		this._loaded.setProperty(feed.file + ".lines", Long.toString(lines));
+		saveCheckpoint();
+		System.out.println(feed.file + ": " + (rows.size() - rejects.size()) + " rows loaded, " + rejects.size() + " rejected"
+			+ (rejects.isEmpty() ? "" : " (see " + feed.file + ".rejects)") + ", in " + (System.currentTimeMillis() - start) + " ms");
+		return rows.size() - rejects.size();
+	}
+
+	// CRC32 of the window of bytes ending at offset
+	private static long checksum(FileChannel channel, long offset) throws IOException {
+		ByteBuffer window = ByteBuffer.allocate((int) Math.min(offset, CHECKSUM_WINDOW));
+		long from = offset - window.capacity();
+		while (window.hasRemaining() && channel.read(window, from + window.position()) >= 0);
+		CRC32 crc = new CRC32();
+		crc.update(window.array(), 0, window.position());
+		return crc.getValue();
+	}
+
+	/**
+	 * Method to parse the lines of a feed in parallel, one chunk of lines
+	 * per thread.
+	 *
+	 * @param feed the feed
+	 * @param bytes lines of the file
+	 * @param length the bytes to parse, up to and with the last line end
+	 * @param firstLine the number of lines before them in the file
+	 * @return every line but empty ones, in file order
+	 * @throws Exception when a chunk could not be parsed
+	 */
+	private List<Row> parse(Feed feed, byte[] bytes, int length, long firstLine) throws Exception {
+		// chunk bounds at line ends, and the file line each chunk starts at
+		List<int[]> chunks = new ArrayList<int[]>();
+		List<Long> startLines = new ArrayList<Long>();
+		int chunkSize = Math.max(64 * 1024, length / this._threads + 1);
+		long line = firstLine;
+		int from = 0;
+		while (from < length) {
+			int to = Math.min(length, from + chunkSize);
+			while (to < length && bytes[to - 1] != '\n') to++;
+			chunks.add(new int[]{from, to});
+			startLines.add(line);
+			for (int i = from; i < to; i++) if (bytes[i] == '\n') line++;
+			from = to;
+		}
+
+		List<Future<List<Row>>> parts = new ArrayList<Future<List<Row>>>();
+		for (int c = 0; c < chunks.size(); c++) {
+			int[] chunk = chunks.get(c);
+			long start = startLines.get(c);
+			parts.add(this._pool.submit(() -> parseChunk(feed, bytes, chunk[0], chunk[1], start)));
+		}
+		List<Row> rows = new ArrayList<Row>();
+		for (Future<List<Row>> part : parts) rows.addAll(part.get());
+		return rows;
+	}
+
+	private static List<Row> parseChunk(Feed feed, byte[] bytes, int from, int to, long firstLine) {
+		List<Row> rows = new ArrayList<Row>();
+		long line = firstLine;
+		while (from < to) {
+			int end = from;
+			while (end < to && bytes[end] != '\n') end++;
+			line++;
+			int textEnd = end > from && bytes[end - 1] == '\r' ? end - 1 : end;
+			String text = new String(bytes, from, textEnd - from, StandardCharsets.UTF_8);
+			from = end + 1;
+			// a blank line carries no row
+			if (text.isEmpty()) continue;
+
+			Row row = new Row();
+			row.line = line;
+			row.text = text;
+			List<String> fields = split(text);
+			if (fields.size() != feed.columns.length) {
+				row.error = fields.size() + " fields instead of " + feed.columns.length;
+			}else{
+				row.values = new Object[fields.size()];
+				for (int i = 0; i < fields.size() && row.error == null; i++) {
+					try{
+						row.values[i] = value(feed.types[i], fields.get(i));
+					}catch(IllegalArgumentException e){
+						row.error = feed.columns[i] + " " + e.getMessage();
+					}
+				}
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	// the fields of a line in COPY's text format, null for \N
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean isNull = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == ',') {
+				fields.add(isNull ? null : field.toString());
+				field.setLength(0);
+				isNull = false;
+			}else if (c == '\\' && i + 1 < line.length()) {
+				char next = line.charAt(++i);
+				if (next == 'N' && field.length() == 0) isNull = true;
+				else field.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next == 't' ? '\t' : next);
+			}else{
+				field.append(c);
+			}
+		}
+		fields.add(isNull ? null : field.toString());
+		return fields;
+	}
+
+	/**
+	 * Method to check a field against its column's type and domain.
+	 *
+	 * @param type the column type
+	 * @param field the field, null for NULL
+	 * @return the value to bind
+	 * @throws IllegalArgumentException when the field does not fit the column
+	 */
+	private static Object value(String type, String field) {
+		if (field == null) {
+			if (type.equals("text")) return null;
+			throw new IllegalArgumentException("is NULL");
+		}
+		if (type.equals("text")) return field;
+		if (type.startsWith("char(")) {
+			int length = Integer.parseInt(type.substring(5, type.length() - 1));
+			// CHAR pads with spaces, so trailing ones do not count
+			String value = field.replaceAll("\\s+$", "");
+			if (value.length() > length) throw new IllegalArgumentException("is longer than " + length + " characters");
+			return value;
+		}
+		if (type.equals("date")) {
+			try{
+				return java.sql.Date.valueOf(field.contains("/") ? LocalDate.parse(field.trim(), CSV_DATE) : LocalDate.parse(field.trim()));
+			}catch(Exception e){
+				throw new IllegalArgumentException("is not a date: " + field);
+			}
+		}
+		int value;
+		try{
+			value = Integer.parseInt(field.trim());
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("is not a number: " + field);
+		}
+		// the domains of V001
+		if (type.equals("year") && value < 1900) throw new IllegalArgumentException("is before 1900 (_YEAR)");
+		if (type.equals("hours") && (value <= 0 || value >= 24)) throw new IllegalArgumentException("is not 1 to 23 hours (_HOURS)");
+		if (type.equals("seats") && (value <= 0 || value >= 500)) throw new IllegalArgumentException("is not 1 to 499 seats (_SEATS)");
+		if (type.equals("score") && (value < 0 || value > 5)) throw new IllegalArgumentException("is not 0 to 5 (_SCORE)");
+		return value;
+	}
+
+	/**
+	 * Method to read a whole data/ file without a database, its values typed
+	 * and checked as they are for loading.
+	 *
+	 * @param dir the data directory
+	 * @param table the table the file feeds
+	 * @param rejects where the lines that do not fit the table are added
+	 * @return the values of every valid line, in the order of the table's columns
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	static List<Object[]> read(File dir, String table, List<String> rejects) throws IOException {
+		return readFile(new File(dir, feedOf(table).file), table, rejects);
+	}
+
+	/**
+	 * Method to read a file in the format of a table's data/ file, like a
+	 * schedule sent by an airline, its values typed and checked as they are
+	 * for loading.
+	 *
+	 * @param file the file
+	 * @param table the table whose data/ file it is formatted like
+	 * @param rejects where the lines that do not fit the table are added
+	 * @return the values of every valid line, in the order of the table's columns
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	static List<Object[]> readFile(File file, String table, List<String> rejects) throws IOException {
+		Feed feed = feedOf(table);
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		List<Object[]> values = new ArrayList<Object[]>();
+		for (Row row : parseChunk(feed, bytes, 0, bytes.length, 0)) {
+			if (row.error == null) values.add(row.values);
+			else rejects.add(file.getName() + " line " + row.line + ": " + row.error + ": " + row.text);
+		}
+		return values;
+	}
+
+	private static Feed feedOf(String table) {
+		for (Feed feed : FEEDS) {
+			if (feed.table.equalsIgnoreCase(table)) return feed;
+		}
+		throw new IllegalArgumentException("No data file feeds " + table);
+	}
+
+	/**
+	 * Method to upsert the rows of a feed on the shards they belong to.
+	 *
+	 * @param feed the feed
+	 * @param rows the valid rows
+	 * @param rejects where the rows the database refused are added
+	 * @throws java.sql.SQLException when a shard could not be written
+	 */
+	private void upsert(Feed feed, List<Row> rows, List<String> rejects) throws SQLException {
+		List<List<Row>> byShard = new ArrayList<List<Row>>();
+		for (int i = 0; i < this._shards.size(); i++) byShard.add(new ArrayList<Row>());
+		for (Row row : rows) {
+			if (feed.flightColumn < 0) {
+				for (List<Row> shard : byShard) shard.add(row);
+				continue;
+			}
+			Integer shard = shardOf((String) row.values[feed.flightColumn]);
+			if (shard == null) rejects.add("line " + row.line + ": flightNum " + row.values[feed.flightColumn] + " does not exist: " + row.text);
+			else byShard.get(shard).add(row);
+		}
+
+		for (int s = 0; s < this._shards.size(); s++) {
+			Connection connection = this._shards.get(s);
+			List<Row> shardRows = byShard.get(s);
+			connection.setAutoCommit(false);
+			PreparedStatement stmt = connection.prepareStatement (feed.upsert());
+			try{
+				for (int from = 0; from < shardRows.size(); from += this._batchSize) {
+					List<Row> batch = shardRows.subList(from, Math.min(shardRows.size(), from + this._batchSize));
+					try{
+						for (Row row : batch) {
+							bind(stmt, row);
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+						connection.commit();
+					}catch(BatchUpdateException e){
+						connection.rollback();
+						stmt.clearBatch();
+						// one by one, so only the rows the database refuses are left out
+						for (Row row : batch) {
+							try{
+								bind(stmt, row);
+								stmt.executeUpdate();
+								connection.commit();
+							}catch(SQLException refused){
+								connection.rollback();
+								rejects.add("line " + row.line + (this._shards.size() > 1 ? " on shard " + s : "") + ": "
+									+ refused.getMessage() + ": " + row.text);
+							}
+						}
+					}
+				}
+			}finally{
+				stmt.close();
+				connection.setAutoCommit(true);
+			}
+		}
+		if (feed.table.equals("Flight")) this._airIds = null;
+	}
+
+	private static void bind(PreparedStatement stmt, Row row) throws SQLException {
+		for (int i = 0; i < row.values.length; i++) {
+			Object value = row.values[i];
+			if (value instanceof Integer) stmt.setInt(i + 1, (Integer) value);
+			else if (value instanceof java.sql.Date) stmt.setDate(i + 1, (java.sql.Date) value);
+			else stmt.setString(i + 1, (String) value);
+		}
+	}
+
+	// the shard of a flight's rows, as ShardRouter.shardOf places them, null for an unknown flight
+	private Integer shardOf(String flightNum) throws SQLException {
+		if (this._airIds == null) {
+			Map<Long, Integer> airIds = new HashMap<Long, Integer>();
+			Statement stmt = this._shards.get(0).createStatement ();
+			ResultSet rs = stmt.executeQuery ("SELECT flightNum, airId FROM Flight");
+			while (rs.next()) airIds.put(FlightNum.pack(rs.getString(1)), rs.getInt(2));
+			stmt.close ();
+			this._airIds = airIds;
+		}
+		Integer airId = FlightNum.isValid(flightNum) ? this._airIds.get(FlightNum.pack(flightNum)) : null;
+		return airId == null ? null : Math.floorMod(airId, this._shards.size());
+	}
+
+	// replaced atomically, a crash while saving leaves the previous checkpoint
+	private void saveCheckpoint() throws IOException {
+		File part = new File(this._checkpoint.getPath() + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try{
+			this._loaded.store(out, "CsvIngest: bytes and lines loaded, CRC32 of the bytes before the offset");
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(part.toPath(), this._checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The ingest entry point, meant to be run after the daily feeds arrived.
+	 *
+	 * @param args <dbname> <port> <user> <data dir>
+	 */
+	public static void main (String[] args) {
+		if (args.length != 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + CsvIngest.class.getName () +
+		            " <dbname> <port> <user> <data dir>");
+			return;
+		}//end if
+		List<Connection> shards = new ArrayList<Connection>();
+		try{
+			Class.forName("org.postgresql.Driver");
+			File dir = new File(args[3]);
+			File checkpoint = new File(System.getProperty("airbooking.ingestCheckpoint", new File(dir, "ingest.checkpoint").getPath()));
+			int threads = Integer.parseInt(System.getProperty("airbooking.ingestThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+			int batchSize = Integer.parseInt(System.getProperty("airbooking.ingestBatch", "1000"));
+
+			// the same shards, in the same order, as the client's -Dairbooking.shards
+			shards.add(DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], ""));
+			for (String endpoint : System.getProperty("airbooking.shards", "").split(",")) {
+				if (endpoint.trim().isEmpty()) continue;
+				shards.add(DriverManager.getConnection("jdbc:postgresql://" + endpoint.trim() + "/" + args[0], args[2], ""));
+			}
+
+			long start = System.currentTimeMillis();
+			long rows = new CsvIngest(dir, checkpoint, shards, threads, batchSize).ingestAll();
+			System.out.println("Loaded " + rows + " rows from " + dir + " in " + (System.currentTimeMillis() - start) + " ms");
+		}catch(Exception e){
+			System.err.println ("Ingest failed: " + e.getMessage ());
+			System.exit(1);
+		}finally{
+			for (Connection shard : shards) {
+				try{
+					shard.close();
+				}catch(SQLException ignored){
+				}
+			}
+		}
+	}
+}
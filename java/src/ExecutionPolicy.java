@@ -0,0 +1,161 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class bounds how long a statement may run and retries the ones that
+ * failed for a transient reason. Reads and writes get their own timeout,
+ * enforced by the driver through setQueryTimeout (which cancels the query on
+ * the server) and, as a backstop for a client that never sends the cancel,
+ * by the session's statement_timeout.
+ *
+ * Serialization failures (40001) and deadlocks (40P01) rolled the statement
+ * back, so it is simply run again. After a connection failure (08xxx) a write
+ * may or may not have committed: it is only retried when the caller gave a
+ * check that tells whether it was applied, and that check runs first. Retries
+ * wait an exponentially growing, fully jittered backoff so contending
+ * sessions do not collide again in lock step.
+ *
+ */
+
+public class ExecutionPolicy{
+	public interface Operation<T>{
+		T run() throws SQLException;
+	}
+
+	public interface Reconnect{
+		void reconnect() throws SQLException;
+	}
+
+	private int _readTimeoutMs;
+	private int _writeTimeoutMs;
+	private int _maxAttempts;
+	private long _baseBackoffMs;
+	private long _maxBackoffMs;
+	private Reconnect _reconnect;
+
+	//counted by every thread running statements through the policy
+	private AtomicLong _retries = new AtomicLong();
+	private AtomicLong _timeouts = new AtomicLong();
+
+	public ExecutionPolicy(int readTimeoutMs, int writeTimeoutMs, int maxAttempts, long baseBackoffMs, long maxBackoffMs, Reconnect reconnect) {
+		this._readTimeoutMs = readTimeoutMs;
+		this._writeTimeoutMs = writeTimeoutMs;
+		this._maxAttempts = Math.max(1, maxAttempts);
+		this._baseBackoffMs = baseBackoffMs;
+		this._maxBackoffMs = maxBackoffMs;
+		this._reconnect = reconnect;
+	}
+
+	/**
+	 * Method to set the server side backstop on a new connection.
+	 *
+	 * @param connection the connection
+	 * @throws java.sql.SQLException when it could not be set
+	 */
+	public void configure(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement ();
+		// a little over the longest client timeout, so the client's cancel normally wins
+		stmt.execute ("SET statement_timeout = " + (Math.max(this._readTimeoutMs, this._writeTimeoutMs) + 1000));
+		stmt.close ();
+	}
+
+	/**
+	 * Method to create a statement that is cancelled once it runs too long.
+	 *
+	 * @param connection the connection
+	 * @param write true for INSERT, UPDATE and DELETE
+	 * @return the statement
+	 * @throws java.sql.SQLException when failed to create it
+	 */
+	public Statement statement(Connection connection, boolean write) throws SQLException {
+		Statement stmt = connection.createStatement ();
+		stmt.setQueryTimeout(seconds(write));
+		return stmt;
+	}
+
+	/**
+	 * Method to prepare a statement that is cancelled once it runs too long.
+	 *
+	 * @param connection the connection
+	 * @param sql the statement
+	 * @param write true for INSERT, UPDATE and DELETE
+	 * @return the statement
+	 * @throws java.sql.SQLException when failed to prepare it
+	 */
+	public PreparedStatement prepare(Connection connection, String sql, boolean write) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(sql);
+		stmt.setQueryTimeout(seconds(write));
+		return stmt;
+	}
+
+	// setQueryTimeout takes whole seconds
+	private int seconds(boolean write) {
+		return Math.max(1, ((write ? this._writeTimeoutMs : this._readTimeoutMs) + 999) / 1000);
+	}
+
+	/**
+	 * Method to run a read only operation, retrying it after transient failures.
+	 *
+	 * @param operation the operation
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException when it failed for good
+	 */
+	public <T> T read(Operation<T> operation) throws SQLException {
+		return run(operation, () -> false, true);
+	}
+
+	/**
+	 * Method to run a write, retrying it after transient failures.
+	 *
+	 * @param operation the write, one statement or one whole transaction
+	 * @param applied tells whether the write was committed, or null when that can not be known
+	 * @return what the operation returned, or null when the check found it applied
+	 * @throws java.sql.SQLException when it failed for good
+	 */
+	public <T> T write(Operation<T> operation, Operation<Boolean> applied) throws SQLException {
+		return run(operation, applied, applied != null);
+	}
+
+	private <T> T run(Operation<T> operation, Operation<Boolean> applied, boolean retryAfterConnectionLoss) throws SQLException {
+		for (int attempt = 1; ; attempt++) {
+			try{
+				return operation.run();
+			}catch(SQLException e){
+				String state = e.getSQLState() == null ? "" : e.getSQLState();
+				if (state.equals("57014")) {
+					this._timeouts.incrementAndGet();
+					throw new SQLException("Statement cancelled after running too long: " + e.getMessage(), state, e);
+				}
+				boolean rolledBack = state.equals("40001") || state.equals("40P01");
+				boolean connectionLost = state.startsWith("08");
+				if (attempt >= this._maxAttempts || !(rolledBack || (connectionLost && retryAfterConnectionLoss))) throw e;
+
+				backoff(attempt);
+				this._retries.incrementAndGet();
+				if (connectionLost) {
+					this._reconnect.reconnect();
+					// the commit may have reached the server before the connection broke
+					if (applied.run()) return null;
+				}
+			}
+		}
+	}
+
+	private void backoff(int attempt) throws SQLException {
+		long cap = Math.min(this._maxBackoffMs, this._baseBackoffMs << Math.min(attempt - 1, 20));
+		try{
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to retry");
+		}
+	}
+
+	public synchronized String getStats() {
+		return "Execution policy: " + this._retries.get() + " retries, " + this._timeouts.get() + " timeouts";
+	}
+}
@@ -0,0 +1,41 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Flight table. flightNum is packed with FlightNum.
+ *
+ */
+
+public final class Flight{
+	public final int airId;
+	public final long flightNum;
+	public final String origin;
+	public final String destination;
+	public final String plane;
+	public final int seats;
+	public final int duration;
+
+	public Flight(int airId, long flightNum, String origin, String destination, String plane, int seats, int duration) {
+		this.airId = airId;
+		this.flightNum = flightNum;
+		this.origin = origin;
+		this.destination = destination;
+		this.plane = plane;
+		this.seats = seats;
+		this.duration = duration;
+	}
+
+	public String getFlightNum() {
+		return FlightNum.unpack(this.flightNum);
+	}
+
+	public static Flight from(ResultSet rs) throws SQLException {
+		return new Flight(rs.getInt("airId"),
+			FlightNum.pack(rs.getString("flightNum")),
+			NameDictionary.CITIES.intern(rs.getString("origin")),
+			NameDictionary.CITIES.intern(rs.getString("destination")),
+			rs.getString("plane").trim(),
+			rs.getInt("seats"),
+			rs.getInt("duration"));
+	}
+}
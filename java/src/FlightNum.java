@@ -0,0 +1,69 @@
+/**
+ * This class packs a flightNum (CHAR(8), ASCII) into a long, one byte per
+ * character from the most significant end, so flight numbers can be kept,
+ * compared and hashed as primitives. The CHAR padding is dropped while
+ * packing, which replaces the replaceAll("\\s+","") calls on every row.
+ * Packed values compare (unsigned) in the same order as the strings.
+ *
+ */
+
+public class FlightNum{
+	public static final int MAX_LENGTH = 8;
+
+	/**
+	 * Method to pack a flightNum.
+	 *
+	 * @param flightNum the flight number, possibly padded with trailing spaces
+	 * @return the packed flight number
+	 * @throws IllegalArgumentException when it is longer than 8 characters or not ASCII
+	 */
+	public static long pack(String flightNum) {
+		int length = flightNum.length();
+		while (length > 0 && flightNum.charAt(length - 1) == ' ') length--;
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("flightNum is longer than " + MAX_LENGTH + " characters: " + flightNum);
+		}
+		long packed = 0;
+		for (int i = 0; i < MAX_LENGTH; i++) {
+			int c = i < length ? flightNum.charAt(i) : 0;
+			if (c > 127 || (i < length && c == 0)) {
+				throw new IllegalArgumentException("flightNum is not ASCII: " + flightNum);
+			}
+			packed = (packed << 8) | c;
+		}
+		return packed;
+	}
+
+	/**
+	 * Method to unpack a flightNum.
+	 *
+	 * @param packed the packed flight number
+	 * @return the flight number without padding
+	 */
+	public static String unpack(long packed) {
+		char[] chars = new char[MAX_LENGTH];
+		int length = 0;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			char c = (char) ((packed >>> shift) & 0xFF);
+			if (c == 0) break;
+			chars[length++] = c;
+		}
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Method to test whether user input is a well formed flightNum.
+	 *
+	 * @param input the text to test
+	 * @return true when it can be packed
+	 */
+	public static boolean isValid(String input) {
+		try {
+			pack(input);
+			return input.trim().length() > 0;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+}
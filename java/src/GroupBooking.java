@@ -0,0 +1,217 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.BatchUpdateException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * This class books a group of passengers on one flight and departure date
+ * all or nothing. One transaction locks the Flight row, resolves every
+ * passport in one query, checks the seats once and inserts all the Booking
+ * rows as one batch. Every problem with the group is collected before
+ * anything is written, so the caller sees all the conflicting passengers at
+ * once instead of only the first one the database would have rejected.
+ * Seats are picked from the locked SeatMap, next to each other when the
+ * group wants to sit together.
+ * When sharded all of it runs on the shard of the flight's airline.
+ *
+ */
+
+public class GroupBooking{
+	public final String flightNum;
+	public final LocalDate departure;
+	//seat the group in one block of seats next to each other
+	public boolean together = false;
+
+	//passport -> bookRef, filled in by a successful book()
+	public Map<String, String> booked = new LinkedHashMap<String, String>();
+	//passport -> seat, filled in by a successful book()
+	public Map<String, Integer> seats = new LinkedHashMap<String, Integer>();
+	//one line per passenger (or for the group) that kept book() from booking
+	public List<String> conflicts = new ArrayList<String>();
+
+	public GroupBooking(String flightNum, LocalDate departure) {
+		this.flightNum = flightNum;
+		this.departure = departure;
+	}
+
+	/**
+	 * Method to book every passenger of the group or none of them.
+	 *
+	 * @param esql the database session
+	 * @param passNums the passport numbers of the group
+	 * @return true when all of them were booked, false when conflicts lists why not
+	 * @throws java.sql.SQLException when failed to execute the statements
+	 */
+	public boolean book(AirBooking esql, List<String> passNums) throws SQLException {
+		try{
+			// a deadlock or serialization failure rolled it all back, so the whole transaction runs again
+			Boolean done = esql.getPolicy().write(() -> attempt(esql, passNums), () -> wasCommitted(esql));
+			if (done == null) esql.wrote("booking");
+			return done == null || done;
+		}catch(SQLException e){
+			this.booked.clear();
+			this.seats.clear();
+			throw e;
+		}
+	}
+
+	private boolean attempt(AirBooking esql, List<String> passNums) throws SQLException {
+		this.booked.clear();
+		this.seats.clear();
+		this.conflicts.clear();
+		Connection connection = esql.getWriteConnection(this.flightNum);
+		connection.setAutoCommit(false);
+		try{
+			boolean done = book(esql.getPolicy(), connection, passNums);
+			if (done) {
+				connection.commit();
+				esql.wrote("booking");
+			}
+			else connection.rollback();
+			return done;
+		}catch(SQLException e){
+			// on a broken connection these fail too, the original error is the one that counts
+			try{
+				connection.rollback();
+			}catch(SQLException ignored){
+			}
+			throw e;
+		}finally{
+			try{
+				connection.setAutoCommit(true);
+			}catch(SQLException ignored){
+			}
+		}
+	}
+
+	// after a lost connection: the batch was committed if its first booking exists
+	private boolean wasCommitted(AirBooking esql) throws SQLException {
+		if (this.booked.isEmpty()) return false;
+		PreparedStatement stmt = esql.getPolicy().prepare(esql.getWriteConnection(this.flightNum),
+			"SELECT 1 FROM Booking WHERE departure = ? AND bookRef = ?", false);
+		stmt.setDate(1, Date.valueOf(this.departure));
+		stmt.setString(2, this.booked.values().iterator().next());
+		boolean committed = stmt.executeQuery().next();
+		stmt.close();
+		return committed;
+	}
+
+	private boolean book(ExecutionPolicy policy, Connection connection, List<String> passNums) throws SQLException {
+		// the lock also holds off single bookings, their foreign key check needs a share lock on it
+		PreparedStatement stmt = policy.prepare(connection, "SELECT seats FROM Flight WHERE flightNum = ? FOR UPDATE", true);
+		stmt.setString(1, this.flightNum);
+		ResultSet rs = stmt.executeQuery();
+		if (!rs.next()) {
+			this.conflicts.add("Flight " + this.flightNum + " does not exist");
+			stmt.close();
+			return false;
+		}
+		int seats = rs.getInt(1);
+		stmt.close();
+
+		List<String> group = new ArrayList<String>();
+		for (String passNum : passNums) {
+			passNum = passNum.trim().toUpperCase();
+			if (group.contains(passNum)) this.conflicts.add(passNum + ": listed more than once");
+			else group.add(passNum);
+		}
+
+		// all passports in one round trip
+		Map<String, Integer> pIDs = new LinkedHashMap<String, Integer>();
+		stmt = policy.prepare(connection, "SELECT passNum, pID FROM Passenger WHERE passNum = ANY(CAST(? AS CHAR(10)[]))", true);
+		stmt.setArray(1, connection.createArrayOf("varchar", group.toArray()));
+		rs = stmt.executeQuery();
+		while (rs.next()) pIDs.put(rs.getString(1).trim(), rs.getInt(2));
+		stmt.close();
+		for (String passNum : group) {
+			if (!pIDs.containsKey(passNum)) this.conflicts.add(passNum + ": no passenger with this passport");
+		}
+
+		// what UNIQUE(departure, flightNum, pID) would reject, and the seats already taken, counting those held for journaled bookings
+		Map<Integer, String> passNumOf = new LinkedHashMap<Integer, String>();
+		for (Map.Entry<String, Integer> entry : pIDs.entrySet()) passNumOf.put(entry.getValue(), entry.getKey());
+		stmt = policy.prepare(connection, "SELECT pID, bookRef FROM Booking WHERE flightNum = ? AND departure = ? "
+			+ "UNION ALL SELECT pID, bookRef FROM SeatHold WHERE flightNum = ? AND departure = ?", true);
+		stmt.setString(1, this.flightNum);
+		stmt.setDate(2, Date.valueOf(this.departure));
+		stmt.setString(3, this.flightNum);
+		stmt.setDate(4, Date.valueOf(this.departure));
+		rs = stmt.executeQuery();
+		int taken = 0;
+		while (rs.next()) {
+			taken++;
+			String passNum = passNumOf.get(rs.getInt(1));
+			if (passNum != null) this.conflicts.add(passNum + ": already booked as " + rs.getString(2).trim());
+		}
+		stmt.close();
+		if (taken + pIDs.size() > seats) {
+			this.conflicts.add("Only " + Math.max(0, seats - taken) + " of " + seats + " seats left for " + group.size() + " passengers");
+		}
+		if (!this.conflicts.isEmpty()) return false;
+
+		// taken after the Flight row, in the order the Booking trigger takes them
+		SeatMap map = SeatMap.lock(policy, connection, this.flightNum, this.departure);
+		int block = this.together ? map.takeBlock(pIDs.size()) : 0;
+		if (this.together && block == 0) {
+			this.conflicts.add("No " + pIDs.size() + " seats next to each other are left, " + map.getFree() + " seats are free");
+			return false;
+		}
+
+		List<String> bookRefs = uniqueBookRefs(policy, connection, pIDs.size());
+		stmt = policy.prepare(connection, "INSERT INTO Booking (bookRef, departure, flightNum, pID, seat) VALUES (?, ?, ?, ?, ?)", true);
+		for (Map.Entry<String, Integer> entry : pIDs.entrySet()) {
+			String bookRef = bookRefs.remove(bookRefs.size() - 1);
+			int seat = this.together ? block++ : map.firstFree();
+			if (!this.together) map.take(seat);
+			stmt.setString(1, bookRef);
+			stmt.setDate(2, Date.valueOf(this.departure));
+			stmt.setString(3, this.flightNum);
+			stmt.setInt(4, entry.getValue());
+			stmt.setInt(5, seat);
+			stmt.addBatch();
+			this.booked.put(entry.getKey(), bookRef);
+			this.seats.put(entry.getKey(), seat);
+		}
+		try{
+			stmt.executeBatch();
+		}catch(BatchUpdateException e){
+			// only a race with a write that did not wait for the lock gets here
+			for (SQLException next = e.getNextException(); next != null; next = next.getNextException())
+				this.conflicts.add(next.getMessage());
+			if (this.conflicts.isEmpty()) this.conflicts.add(e.getMessage());
+			this.booked.clear();
+			this.seats.clear();
+			return false;
+		}finally{
+			stmt.close();
+		}
+		return true;
+	}
+
+	// bookRefs only have to be unique per departure, one query checks the whole group
+	private List<String> uniqueBookRefs(ExecutionPolicy policy, Connection connection, int count) throws SQLException {
+		Set<String> bookRefs = new HashSet<String>();
+		PreparedStatement stmt = policy.prepare(connection, "SELECT bookRef FROM Booking WHERE departure = ? AND bookRef = ANY(CAST(? AS CHAR(10)[]))", true);
+		try{
+			while (bookRefs.size() < count) {
+				while (bookRefs.size() < count) bookRefs.add(AirBooking.getBookingID());
+				stmt.setDate(1, Date.valueOf(this.departure));
+				stmt.setArray(2, connection.createArrayOf("varchar", bookRefs.toArray()));
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) bookRefs.remove(rs.getString(1).trim());
+			}
+		}finally{
+			stmt.close();
+		}
+		return new ArrayList<String>(bookRefs);
+	}
+}
@@ -0,0 +1,501 @@
+import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the five tables in the JVM and runs the repository
+ * operations on them, so a workload, a benchmark or a concurrency test runs
+ * at memory speed without a database.
+ *
+ * Every key of the schema has a hash index: Airline.airId, Passenger.pID
+ * and passNum, Flight.flightNum, Ratings.rID, Booking's (bookRef, departure)
+ * and (departure, flightNum, pID), and V007's (departure, flightNum, seat)
+ * through one SeatMap per flight and departure. pID and rID are kept
+ * sorted so the next one is MAX + 1 as in the database, and the flights of
+ * every route are kept sorted by duration and flightNum so options 5 and 8
+ * read them in order. Destinations by their number of flights and flights
+ * by their average score are sorted sets the writes move entries in, so
+ * options 6 and 7 read the first k of them.
+ *
+ * Writes check NOT NULL, the CHAR lengths, the _YEAR, _HOURS, _SEATS and
+ * _SCORE domains, the keys and the foreign keys as the schema does, and
+ * refuse with the same SQLState. Values are stored without CHAR padding.
+ * Reads share a read lock and writes take the write lock, so every
+ * operation sees and leaves the tables consistent.
+ *
+ */
+
+public class MemoryRepository implements AirBookingRepository{
+	private static final Comparator<Flight> BY_DURATION = Comparator.comparingInt((Flight flight) -> flight.duration)
+		.thenComparing((a, b) -> Long.compareUnsigned(a.flightNum, b.flightNum));
+	private static final Comparator<Ranked> BEST_FIRST = Comparator.comparingDouble((Ranked ranked) -> -ranked.value())
+		.thenComparing(ranked -> ranked.name);
+
+	// an entry of a ranking, replaced instead of changed so its place in the sorted set stays right
+	private static class Ranked{
+		final String name;
+		final long sum;
+		final long count;
+
+		Ranked(String name, long sum, long count) {
+			this.name = name;
+			this.sum = sum;
+			this.count = count;
+		}
+
+		double value() {
+			return (double) this.sum / this.count;
+		}
+	}
+
+	// the bookings of one flight on one departure date
+	private static class Departure{
+		SeatMap seats;
+		Set<Integer> passengers = new HashSet<Integer>();
+	}
+
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	private final Map<Integer, Airline> _airlines = new HashMap<Integer, Airline>();
+	private final TreeMap<Integer, Passenger> _passengers = new TreeMap<Integer, Passenger>();
+	//passNum -> pID
+	private final Map<String, Integer> _passNums = new HashMap<String, Integer>();
+	//packed flightNum -> flight
+	private final Map<Long, Flight> _flights = new HashMap<Long, Flight>();
+	//origin + "|" + destination -> its flights, shortest first
+	private final Map<String, TreeSet<Flight>> _routes = new HashMap<String, TreeSet<Flight>>();
+	//destination -> its flights, and the destinations by flights, most first
+	private final Map<String, Ranked> _destinations = new HashMap<String, Ranked>();
+	private final TreeSet<Ranked> _popular = new TreeSet<Ranked>(BEST_FIRST);
+	private final TreeMap<Integer, Rating> _ratings = new TreeMap<Integer, Rating>();
+	//packed flightNum -> the sum and count of its scores, and the flights by average score, best first
+	private final Map<Long, Ranked> _scores = new HashMap<Long, Ranked>();
+	private final TreeSet<Ranked> _bestRated = new TreeSet<Ranked>(BEST_FIRST);
+	//bookRef + "|" + departure -> booking
+	private final Map<String, Booking> _bookings = new HashMap<String, Booking>();
+	//packed flightNum -> epoch day -> its bookings
+	private final Map<Long, Map<Long, Departure>> _departures = new HashMap<Long, Map<Long, Departure>>();
+
+	/**
+	 * Method to load the data/ files into a new repository, as V001 and
+	 * V007 load them into the database: existing bookings are seated in
+	 * bookRef order and the ones beyond their flight's seats stay unseated.
+	 *
+	 * @param dir the data directory
+	 * @param rejects where the lines the schema refuses are added
+	 * @return the repository
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public static MemoryRepository load(File dir, List<String> rejects) throws IOException {
+		MemoryRepository repository = new MemoryRepository();
+		for (Object[] row : CsvIngest.read(dir, "Airline", rejects)) {
+			try{
+				repository.addAirline(new Airline((Integer) row[0], (String) row[1], (Integer) row[2], (String) row[3], (String) row[4]));
+			}catch(SQLException e){
+				rejects.add("airline.csv " + Arrays.toString(row) + ": " + e.getMessage());
+			}
+		}
+		for (Object[] row : CsvIngest.read(dir, "Passenger", rejects)) {
+			try{
+				repository.addPassenger((Integer) row[0], (String) row[1], (String) row[2], ((java.sql.Date) row[3]).toLocalDate(), (String) row[4]);
+			}catch(SQLException e){
+				rejects.add("passenger.csv " + Arrays.toString(row) + ": " + e.getMessage());
+			}
+		}
+		for (Object[] row : CsvIngest.read(dir, "Flight", rejects)) {
+			try{
+				repository.saveFlight((Integer) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4], (Integer) row[5], (Integer) row[6]);
+			}catch(SQLException e){
+				rejects.add("flights.csv " + Arrays.toString(row) + ": " + e.getMessage());
+			}
+		}
+		for (Object[] row : CsvIngest.read(dir, "Ratings", rejects)) {
+			try{
+				repository.addRating((Integer) row[0], (Integer) row[1], (String) row[2], (Integer) row[3], (String) row[4]);
+			}catch(SQLException e){
+				rejects.add("ratings.csv " + Arrays.toString(row) + ": " + e.getMessage());
+			}
+		}
+		List<Object[]> bookings = CsvIngest.read(dir, "Booking", rejects);
+		bookings.sort(Comparator.comparing((Object[] row) -> (String) row[0]));
+		for (Object[] row : bookings) {
+			try{
+				repository.book((String) row[0], ((java.sql.Date) row[1]).toLocalDate(), (String) row[2], (Integer) row[3], null, true);
+			}catch(SQLException e){
+				rejects.add("bookings.csv " + Arrays.toString(row) + ": " + e.getMessage());
+			}
+		}
+		return repository;
+	}
+
+	/**
+	 * Method to add an airline.
+	 *
+	 * @param airline the airline
+	 * @throws java.sql.SQLException when the airline was refused
+	 */
+	public void addAirline(Airline airline) throws SQLException {
+		String name = chars("name", airline.name, 24);
+		String country = chars("country", airline.country, 24);
+		String hub = chars("hub", airline.hub, 24);
+		if (airline.founded < 1900) throw domain("_year");
+		this._lock.writeLock().lock();
+		try{
+			if (this._airlines.containsKey(airline.airId)) throw duplicate("airline_pkey", "(airid)=(" + airline.airId + ")");
+			this._airlines.put(airline.airId, new Airline(airline.airId, name, airline.founded, country, hub));
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public int addPassenger(String passNum, String fullName, LocalDate bdate, String country) throws SQLException {
+		this._lock.writeLock().lock();
+		try{
+			int pID = this._passengers.isEmpty() ? 0 : this._passengers.lastKey() + 1;
+			addPassenger(pID, passNum, fullName, bdate, country);
+			return pID;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private void addPassenger(int pID, String passNum, String fullName, LocalDate bdate, String country) throws SQLException {
+		passNum = chars("passnum", passNum, 10);
+		fullName = chars("fullname", fullName, 24);
+		country = chars("country", country, 24);
+		if (bdate == null) throw notNull("bdate");
+		this._lock.writeLock().lock();
+		try{
+			if (this._passengers.containsKey(pID)) throw duplicate("passenger_pkey", "(pid)=(" + pID + ")");
+			if (this._passNums.containsKey(passNum)) throw duplicate("passenger_passnum_key", "(passnum)=(" + passNum + ")");
+			this._passengers.put(pID, new Passenger(pID, passNum, fullName, bdate, country));
+			this._passNums.put(passNum, pID);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public String bookFlight(String flightNum, LocalDate departure, String passNum, Integer seat) throws SQLException {
+		this._lock.writeLock().lock();
+		try{
+			Integer pID = this._passNums.get(chars("passnum", passNum, 10));
+			if (pID == null) throw new SQLException("There is no passenger with Passport Number " + passNum, "23503");
+			String bookRef;
+			do {
+				bookRef = AirBooking.getBookingID();
+			} while (this._bookings.containsKey(bookRef + "|" + departure));
+			book(bookRef, departure, flightNum, pID, seat, false);
+			return bookRef;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	// a booking with its seat checked and taken as V007's trigger does; loading leaves the ones of full flights unseated
+	private void book(String bookRef, LocalDate departure, String flightNum, int pID, Integer seat, boolean loading) throws SQLException {
+		bookRef = chars("bookref", bookRef, 10);
+		long flightKey = flightNum(flightNum);
+		if (departure == null) throw notNull("departure");
+		if (seat != null && seat <= 0) throw new SQLException("new row for relation \"booking\" violates check constraint \"booking_seat_check\"", "23514");
+		this._lock.writeLock().lock();
+		try{
+			Flight flight = this._flights.get(flightKey);
+			if (flight == null) throw missing("booking", "flightnum", flightNum);
+			if (!this._passengers.containsKey(pID)) throw missing("booking", "pid", String.valueOf(pID));
+			String key = bookRef + "|" + departure;
+			if (this._bookings.containsKey(key)) throw duplicate("booking_pkey", "(bookref, departure)=(" + bookRef + ", " + departure + ")");
+
+			Map<Long, Departure> days = this._departures.get(flightKey);
+			Departure booked = days == null ? null : days.get(departure.toEpochDay());
+			if (booked == null) {
+				booked = new Departure();
+				booked.seats = new SeatMap(flight.seats);
+			}
+			if (booked.passengers.contains(pID)) {
+				throw duplicate("booking_departure_flightnum_pid_key", "(departure, flightnum, pid)=(" + departure + ", " + flightNum + ", " + pID + ")");
+			}
+			if (seat == null) {
+				int free = booked.seats.firstFree();
+				if (free == 0 && !loading) throw new SQLException("Flight " + flightNum + " is full on " + departure, "23514");
+				if (free > 0) booked.seats.take(free);
+			}else if (seat > flight.seats) {
+				throw new SQLException("Flight " + flightNum + " has no seat " + seat, "23514");
+			}else if (booked.seats.isTaken(seat)) {
+				throw new SQLException("Seat " + seat + " of flight " + flightNum + " is taken on " + departure, "23505");
+			}else{
+				booked.seats.take(seat);
+			}
+
+			booked.passengers.add(pID);
+			if (days == null) this._departures.put(flightKey, days = new HashMap<Long, Departure>());
+			days.put(departure.toEpochDay(), booked);
+			this._bookings.put(key, new Booking(bookRef, departure, flightKey, pID));
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public int addRating(String passNum, String flightNum, int score, String comment) throws SQLException {
+		this._lock.writeLock().lock();
+		try{
+			Integer pID = this._passNums.get(chars("passnum", passNum, 10));
+			if (pID == null) throw new SQLException("There is no passenger with Passport Number " + passNum, "23503");
+			int rID = this._ratings.isEmpty() ? 0 : this._ratings.lastKey() + 1;
+			addRating(rID, pID, flightNum, score, comment);
+			return rID;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private void addRating(int rID, int pID, String flightNum, int score, String comment) throws SQLException {
+		long flightKey = flightNum(flightNum);
+		if (score < 0 || score > 5) throw domain("_score");
+		this._lock.writeLock().lock();
+		try{
+			if (this._ratings.containsKey(rID)) throw duplicate("ratings_pkey", "(rid)=(" + rID + ")");
+			if (!this._passengers.containsKey(pID)) throw missing("ratings", "pid", String.valueOf(pID));
+			if (!this._flights.containsKey(flightKey)) throw missing("ratings", "flightnum", flightNum);
+			this._ratings.put(rID, new Rating(rID, pID, flightKey, score, comment));
+			rate(flightKey, score);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public void saveFlight(Flight flight) throws SQLException {
+		saveFlight(flight.airId, flight.getFlightNum(), flight.origin, flight.destination, flight.plane, flight.seats, flight.duration);
+	}
+
+	private void saveFlight(int airId, String flightNum, String origin, String destination, String plane, int seats, int duration) throws SQLException {
+		long flightKey = flightNum(flightNum);
+		Flight flight = new Flight(airId, flightKey, chars("origin", origin, 16), chars("destination", destination, 16),
+			chars("plane", plane, 16), seats, duration);
+		if (seats <= 0 || seats >= 500) throw domain("_seats");
+		if (duration <= 0 || duration >= 24) throw domain("_hours");
+		this._lock.writeLock().lock();
+		try{
+			if (!this._airlines.containsKey(airId)) throw missing("flight", "airid", String.valueOf(airId));
+			Flight old = this._flights.put(flightKey, flight);
+			if (old != null) {
+				this._routes.get(old.origin + "|" + old.destination).remove(old);
+				route(old.destination, -1);
+				// the seat maps follow the new plane, as the trigger reads Flight.seats on every booking
+				if (old.seats != seats && this._departures.containsKey(flightKey)) {
+					for (Departure booked : this._departures.get(flightKey).values()) {
+						booked.seats = SeatMap.fromBytes(seats, booked.seats.toBytes());
+					}
+				}
+			}
+			String route = flight.origin + "|" + flight.destination;
+			if (!this._routes.containsKey(route)) this._routes.put(route, new TreeSet<Flight>(BY_DURATION));
+			this._routes.get(route).add(flight);
+			route(flight.destination, 1);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public void renameFlight(String flightNum, String newFlightNum) throws SQLException {
+		long flightKey = flightNum(flightNum);
+		long newKey = flightNum(newFlightNum);
+		this._lock.writeLock().lock();
+		try{
+			Flight old = this._flights.get(flightKey);
+			// like an UPDATE that matches no row
+			if (old == null || flightKey == newKey) return;
+			if (this._flights.containsKey(newKey)) throw duplicate("flight_pkey", "(flightnum)=(" + trim(newFlightNum) + ")");
+			if (this._departures.containsKey(flightKey)) throw referenced("booking", flightNum);
+			if (this._scores.containsKey(flightKey)) throw referenced("ratings", flightNum);
+			Flight flight = new Flight(old.airId, newKey, old.origin, old.destination, old.plane, old.seats, old.duration);
+			this._flights.remove(flightKey);
+			this._flights.put(newKey, flight);
+			TreeSet<Flight> route = this._routes.get(old.origin + "|" + old.destination);
+			route.remove(old);
+			route.add(flight);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public Integer findPassenger(String passNum) throws SQLException {
+		this._lock.readLock().lock();
+		try{
+			return this._passNums.get(trim(passNum));
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	public Flight findFlight(String flightNum) throws SQLException {
+		String value = trim(flightNum);
+		// a value the column could not hold names no flight
+		if (!FlightNum.isValid(value)) return null;
+		this._lock.readLock().lock();
+		try{
+			return this._flights.get(FlightNum.pack(value));
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	// moves a flight to its place among the best rated once a score was added
+	private void rate(long flightKey, int score) {
+		Ranked old = this._scores.get(flightKey);
+		if (old != null) this._bestRated.remove(old);
+		Ranked rated = old == null ? new Ranked(FlightNum.unpack(flightKey), score, 1) : new Ranked(old.name, old.sum + score, old.count + 1);
+		this._scores.put(flightKey, rated);
+		this._bestRated.add(rated);
+	}
+
+	// moves a destination to its place among the most popular once a flight to it was added or routed elsewhere
+	private void route(String destination, int flights) {
+		Ranked old = this._destinations.remove(destination);
+		if (old != null) this._popular.remove(old);
+		long total = (old == null ? 0 : old.sum) + flights;
+		if (total == 0) return;
+		Ranked popular = new Ranked(destination, total, 1);
+		this._destinations.put(destination, popular);
+		this._popular.add(popular);
+	}
+
+	public List<Flight> flightsBetween(String origin, String destination) throws SQLException {
+		return flightsByDuration(origin, destination, Integer.MAX_VALUE);
+	}
+
+	public List<List<String>> mostPopularDestinations(int k) throws SQLException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		this._lock.readLock().lock();
+		try{
+			for (Ranked destination : this._popular) {
+				if (result.size() >= k) break;
+				result.add(Arrays.asList(destination.name, String.valueOf(destination.sum)));
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public List<List<String>> highestRatedRoutes(int k) throws SQLException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		DecimalFormat df = new DecimalFormat("0.#####");
+		this._lock.readLock().lock();
+		try{
+			for (Ranked rated : this._bestRated) {
+				if (result.size() >= k) break;
+				Flight flight = this._flights.get(FlightNum.pack(rated.name));
+				result.add(Arrays.asList(rated.name, this._airlines.get(flight.airId).name, flight.origin, flight.destination, flight.plane,
+					df.format(rated.value())));
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public List<Flight> flightsByDuration(String origin, String destination, int k) throws SQLException {
+		List<Flight> result = new ArrayList<Flight>();
+		this._lock.readLock().lock();
+		try{
+			TreeSet<Flight> flights = this._routes.get(trim(origin) + "|" + trim(destination));
+			if (flights == null) return result;
+			for (Flight flight : flights) {
+				if (result.size() >= k) break;
+				result.add(flight);
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public int availableSeats(String flightNum, LocalDate departure) throws SQLException {
+		long flightKey = flightNum(flightNum);
+		this._lock.readLock().lock();
+		try{
+			Flight flight = this._flights.get(flightKey);
+			if (flight == null) throw new SQLException("There is no flight " + flightNum);
+			Map<Long, Departure> days = this._departures.get(flightKey);
+			Departure booked = days == null ? null : days.get(departure.toEpochDay());
+			return flight.seats - (booked == null ? 0 : booked.passengers.size());
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	public long count(String table) throws SQLException {
+		this._lock.readLock().lock();
+		try{
+			switch (table.toLowerCase()) {
+				case "airline": return this._airlines.size();
+				case "passenger": return this._passengers.size();
+				case "flight": return this._flights.size();
+				case "ratings": return this._ratings.size();
+				case "booking": return this._bookings.size();
+				default: throw new SQLException("There is no table " + table);
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	// a CHAR(length) value without its padding
+	private static String chars(String column, String value, int length) throws SQLException {
+		if (value == null) throw notNull(column);
+		String trimmed = trim(value);
+		if (trimmed.length() > length) throw new SQLException("value too long for type character(" + length + ") in column \"" + column + "\"", "22001");
+		return trimmed;
+	}
+
+	private static String trim(String value) {
+		int length = value.length();
+		while (length > 0 && value.charAt(length - 1) == ' ') length--;
+		return value.substring(0, length);
+	}
+
+	private static long flightNum(String flightNum) throws SQLException {
+		String value = chars("flightnum", flightNum, FlightNum.MAX_LENGTH);
+		try{
+			return FlightNum.pack(value);
+		}catch(IllegalArgumentException e){
+			throw new SQLException(e.getMessage(), "22021");
+		}
+	}
+
+	private static SQLException notNull(String column) {
+		return new SQLException("null value in column \"" + column + "\" violates not-null constraint", "23502");
+	}
+
+	private static SQLException domain(String domain) {
+		return new SQLException("value for domain " + domain + " violates check constraint \"" + domain + "_check\"", "23514");
+	}
+
+	private static SQLException duplicate(String constraint, String key) {
+		return new SQLException("duplicate key value violates unique constraint \"" + constraint + "\" Key " + key + " already exists.", "23505");
+	}
+
+	private static SQLException referenced(String table, String flightNum) {
+		return new SQLException("update or delete on table \"flight\" violates foreign key constraint \"" + table + "_flightnum_fkey\" on table \""
+			+ table + "\" Key (flightnum)=(" + trim(flightNum) + ") is still referenced from table \"" + table + "\".", "23503");
+	}
+
+	private static SQLException missing(String table, String column, String value) {
+		return new SQLException("insert or update on table \"" + table + "\" violates foreign key constraint \"" + table + "_" + column + "_fkey\" "
+			+ "Key (" + column + ")=(" + value + ") is not present.", "23503");
+	}
+}
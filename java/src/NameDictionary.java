@@ -0,0 +1,56 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class dictionary encodes the short names repeated across rows
+ * (cities, airlines, countries). Every distinct name is kept once, with
+ * its CHAR padding removed, and gets a dense int code so names can be
+ * compared by reference and stored in primitive arrays.
+ *
+ */
+
+public class NameDictionary{
+	public static final NameDictionary CITIES = new NameDictionary();
+	public static final NameDictionary AIRLINES = new NameDictionary();
+	public static final NameDictionary COUNTRIES = new NameDictionary();
+
+	private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+	private final List<String> _names = new ArrayList<String>();
+
+	/**
+	 * Method to get the shared instance of a name.
+	 *
+	 * @param name the name, possibly padded with trailing spaces
+	 * @return the trimmed, shared instance
+	 */
+	public String intern(String name) {
+		return name == null ? null : name(code(name));
+	}
+
+	/**
+	 * Method to get the code of a name, assigning the next one if it is new.
+	 *
+	 * @param name the name, possibly padded with trailing spaces
+	 * @return the dense code of the name
+	 */
+	public synchronized int code(String name) {
+		String trimmed = name.trim();
+		Integer code = this._codes.get(trimmed);
+		if (code == null) {
+			code = this._names.size();
+			this._names.add(trimmed);
+			this._codes.put(trimmed, code);
+		}
+		return code;
+	}
+
+	public synchronized String name(int code) {
+		return this._names.get(code);
+	}
+
+	public synchronized int size() {
+		return this._names.size();
+	}
+}
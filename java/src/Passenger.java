@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * A row of the Passenger table.
+ *
+ */
+
+public final class Passenger{
+	public final int pID;
+	public final String passNum;
+	public final String fullName;
+	public final LocalDate bdate;
+	public final String country;
+
+	public Passenger(int pID, String passNum, String fullName, LocalDate bdate, String country) {
+		this.pID = pID;
+		this.passNum = passNum;
+		this.fullName = fullName;
+		this.bdate = bdate;
+		this.country = country;
+	}
+
+	public static Passenger from(ResultSet rs) throws SQLException {
+		return new Passenger(rs.getInt("pID"),
+			rs.getString("passNum").trim(),
+			rs.getString("fullName").trim(),
+			rs.getDate("bdate").toLocalDate(),
+			NameDictionary.COUNTRIES.intern(rs.getString("country")));
+	}
+}
@@ -0,0 +1,219 @@
+import java.sql.SQLException;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class runs the repository operations on the database of an AirBooking
+ * session, and the menu's options 1 to 9 run through it, so the benchmarked
+ * path is the one users take: reads go through the result cache, replicas
+ * and shards, writes through the execution policy with a check so a retried
+ * write is never applied twice, Booking and Ratings to the shard of their
+ * flight. Seats are assigned and checked by V007's trigger. With a booking
+ * journal a booking that leaves the seat to the database goes through the
+ * journal.
+ *
+ * New pIDs and rIDs are MAX + 1 as in the menu, so two clients adding at
+ * the same time can pick the same one; the loser reads MAX again and
+ * retries.
+ *
+ */
+
+public class PostgresRepository implements AirBookingRepository{
+	//times a new pID or rID is tried before giving up
+	private static final int KEY_ATTEMPTS = 10;
+	private static final Comparator<List<String>> BY_SCORE = Comparator.comparing((List<String> record) -> Double.parseDouble(record.get(1))).reversed()
+		.thenComparing(record -> record.get(0));
+
+	private AirBooking _esql;
+
+	public PostgresRepository(AirBooking esql) {
+		this._esql = esql;
+	}
+
+	public int addPassenger(String passNum, String fullName, LocalDate bdate, String country) throws SQLException {
+		for (int attempt = 1; ; attempt++) {
+			int pID = next(this._esql.executeQueryOnPrimaryAndReturnResult("SELECT MAX(pID) FROM Passenger;"));
+			String sql = "INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (" + pID + ", "
+				+ quote(passNum) + ", " + quote(fullName) + ", '" + bdate + "', " + quote(country) + ");";
+			try{
+				this._esql.executeUpdate(sql, "SELECT pID FROM Passenger WHERE pID = " + pID + " AND passNum = " + quote(passNum) + ";");
+				return pID;
+			}catch(SQLException e){
+				// a taken passport fails again on every pID
+				if (!"23505".equals(e.getSQLState()) || attempt >= KEY_ATTEMPTS || findPassenger(passNum) != null) throw e;
+			}
+		}
+	}
+
+	public String bookFlight(String flightNum, LocalDate departure, String passNum, Integer seat) throws SQLException {
+		Integer pID = findPassenger(passNum);
+		if (pID == null) throw new SQLException("There is no passenger with Passport Number " + passNum, "23503");
+		if (this._esql.getJournal() != null && seat == null) {
+			Flight flight = findFlight(flightNum);
+			if (flight == null) throw new SQLException("There is no flight " + flightNum, "23503");
+			try{
+				return this._esql.getJournal().book(this._esql, flight, departure, pID);
+			}catch(IOException e){
+				throw new SQLException(e.getMessage(), e);
+			}
+		}
+		// bookRef is unique per departure, so the check only touches that month's partition
+		String bookRef;
+		do {
+			bookRef = AirBooking.getBookingID();
+		} while (!this._esql.executeQueryOnAllShardsAndReturnResult(
+			"SELECT bookRef FROM Booking WHERE departure = '" + departure + "' AND bookRef = '" + bookRef + "' LIMIT 1;").isEmpty());
+		this._esql.executeUpdateForFlight(flightNum, "INSERT INTO Booking (bookRef, departure, flightNum, pID, seat) VALUES ('"
+			+ bookRef + "', '" + departure + "', " + quote(flightNum) + ", " + pID + ", " + (seat == null ? "NULL" : seat) + ");",
+			"SELECT bookRef FROM Booking WHERE departure = '" + departure + "' AND bookRef = '" + bookRef + "';");
+		return bookRef;
+	}
+
+	public int addRating(String passNum, String flightNum, int score, String comment) throws SQLException {
+		Integer pID = findPassenger(passNum);
+		if (pID == null) throw new SQLException("There is no passenger with Passport Number " + passNum, "23503");
+		for (int attempt = 1; ; attempt++) {
+			// one MAX per shard, rIDs are unique over all of them
+			int rID = next(this._esql.executeQueryOnAllShardsAndReturnResult("SELECT MAX(rID) FROM Ratings;"));
+			try{
+				this._esql.executeUpdateForFlight(flightNum, "INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES ("
+					+ rID + ", " + pID + ", " + quote(flightNum) + ", " + score + ", " + quote(comment) + ");",
+					"SELECT rID FROM Ratings WHERE rID = " + rID + " AND pID = " + pID + ";");
+				return rID;
+			}catch(SQLException e){
+				if (!"23505".equals(e.getSQLState()) || attempt >= KEY_ATTEMPTS) throw e;
+			}
+		}
+	}
+
+	public void saveFlight(Flight flight) throws SQLException {
+		// the route's bookings and ratings stay on the shard of its old airId, where the new one would not look for them
+		ShardRouter shards = this._esql.getShards();
+		Flight existing = shards == null ? null : findFlight(flight.getFlightNum());
+		if (existing != null && shards.shardOf(existing.airId) != shards.shardOf(flight.airId)) {
+			throw new SQLException("Flight " + flight.getFlightNum() + " can not move to airline " + flight.airId
+				+ ", its bookings and ratings are kept on the shard of airline " + existing.airId, "23514");
+		}
+		String values = flight.airId + ", " + quote(flight.getFlightNum()) + ", " + quote(flight.origin) + ", "
+			+ quote(flight.destination) + ", " + quote(flight.plane) + ", " + flight.seats + ", " + flight.duration;
+		// the upsert sets the same row however often it runs, so the check only has to find it
+		this._esql.executeUpdate("INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) VALUES (" + values + ") "
+			+ "ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, destination = EXCLUDED.destination, "
+			+ "plane = EXCLUDED.plane, seats = EXCLUDED.seats, duration = EXCLUDED.duration;",
+			"SELECT flightNum FROM Flight WHERE (airId, flightNum, origin, destination, plane, seats, duration) = (" + values + ");");
+	}
+
+	public void renameFlight(String flightNum, String newFlightNum) throws SQLException {
+		// when sharded the route's bookings and ratings are on one shard only, which would refuse it after the others renamed it
+		for (String table : new String[] {"Booking", "Ratings"}) {
+			if (!this._esql.executeQueryOnAllShardsAndReturnResult("SELECT 1 FROM " + table + " WHERE flightNum = " + quote(flightNum) + " LIMIT 1;").isEmpty()) {
+				throw new SQLException("Flight " + flightNum.trim() + " can not get a new flightNum, " + table + " refers to it", "23503");
+			}
+		}
+		this._esql.executeUpdate("UPDATE Flight SET flightNum = " + quote(newFlightNum) + " WHERE flightNum = " + quote(flightNum) + ";",
+			"SELECT flightNum FROM Flight WHERE flightNum = " + quote(newFlightNum) + ";");
+	}
+
+	public Integer findPassenger(String passNum) throws SQLException {
+		List<List<String>> rows = this._esql.executeQueryOnPrimaryAndReturnResult(
+			"SELECT pID FROM Passenger WHERE passNum = " + quote(passNum.trim()) + ";");
+		return rows.isEmpty() ? null : Integer.parseInt(rows.get(0).get(0));
+	}
+
+	public Flight findFlight(String flightNum) throws SQLException {
+		List<Flight> flights = this._esql.executeQueryAndMap("SELECT * FROM Flight WHERE flightNum = " + quote(flightNum.trim()) + ";", Flight::from);
+		return flights.isEmpty() ? null : flights.get(0);
+	}
+
+	public List<Flight> flightsBetween(String origin, String destination) throws SQLException {
+		return this._esql.executeCachedQueryAndMap("SELECT * FROM Flight WHERE origin = " + quote(origin) + " AND destination = "
+			+ quote(destination) + " ORDER BY duration, flightNum;", Flight.class, Flight::from);
+	}
+
+	public List<List<String>> mostPopularDestinations(int k) throws SQLException {
+		return this._esql.executeCachedQueryAndReturnResult(
+			"SELECT trim(destination), COUNT(*) AS count FROM Flight GROUP BY destination ORDER BY count DESC, destination LIMIT " + k + ";");
+	}
+
+	public List<List<String>> highestRatedRoutes(int k) throws SQLException {
+		// a flight's ratings all live on one shard, so its average is complete there
+		List<List<String>> scores;
+		if (this._esql.getArchive() != null) {
+			try{
+				scores = ShardRouter.topK(this._esql.getArchive().ratingAverages(this._esql), BY_SCORE, k);
+			}catch(IOException e){
+				throw new SQLException("Could not read the archive: " + e.getMessage());
+			}
+		}else{
+			scores = this._esql.executeCachedQueryOnAllShardsAndReturnResult(
+				"SELECT trim(flightNum), AVG(score) AS ratingScore FROM Ratings GROUP BY flightNum ORDER BY ratingScore DESC, flightNum LIMIT " + k + ";",
+				BY_SCORE, k);
+		}
+		List<List<String>> result = new ArrayList<List<String>>();
+		if (scores.isEmpty()) return result;
+
+		List<String> flightNums = new ArrayList<String>();
+		for (List<String> score : scores) flightNums.add(quote(score.get(0).trim()));
+		Map<String, List<String>> flights = new HashMap<String, List<String>>();
+		for (List<String> flight : this._esql.executeCachedQueryAndReturnResult(
+				"SELECT trim(f.flightNum), trim(a.name), trim(f.origin), trim(f.destination), trim(f.plane) FROM Flight f "
+				+ "JOIN Airline a ON a.airId = f.airId WHERE f.flightNum IN (" + String.join(", ", flightNums) + ");")) {
+			flights.put(flight.get(0), flight);
+		}
+		DecimalFormat df = new DecimalFormat("0.#####");
+		for (List<String> score : scores) {
+			List<String> flight = flights.get(score.get(0).trim());
+			if (flight == null) continue;
+			List<String> record = new ArrayList<String>(flight);
+			record.add(df.format(Double.parseDouble(score.get(1))));
+			result.add(record);
+		}
+		return result;
+	}
+
+	public List<Flight> flightsByDuration(String origin, String destination, int k) throws SQLException {
+		return this._esql.executeCachedQueryAndMap("SELECT * FROM Flight WHERE origin = " + quote(origin) + " AND destination = "
+			+ quote(destination) + " ORDER BY duration, flightNum LIMIT " + k + ";", Flight.class, Flight::from);
+	}
+
+	public int availableSeats(String flightNum, LocalDate departure) throws SQLException {
+		List<List<String>> seats = this._esql.executeQueryAndReturnResult("SELECT seats FROM Flight WHERE flightNum = " + quote(flightNum) + ";");
+		if (seats.isEmpty()) throw new SQLException("There is no flight " + flightNum);
+		return Integer.parseInt(seats.get(0).get(0)) - this._esql.getSeatCounts().getBooked(this._esql, flightNum, departure);
+	}
+
+	public long count(String table) throws SQLException {
+		if (!Arrays.asList("airline", "passenger", "flight", "ratings", "booking").contains(table.toLowerCase())) {
+			throw new SQLException("There is no table " + table);
+		}
+		String query = "SELECT COUNT(*) FROM " + table + ";";
+		// reference tables are copied to every shard, the others split over them
+		boolean split = table.equalsIgnoreCase("ratings") || table.equalsIgnoreCase("booking");
+		long count = 0;
+		for (List<String> shard : split ? this._esql.executeQueryOnAllShardsAndReturnResult(query)
+				: this._esql.executeQueryOnPrimaryAndReturnResult(query)) {
+			count += Long.parseLong(shard.get(0));
+		}
+		return count;
+	}
+
+	// MAX + 1 over the rows of one MAX query per shard
+	private static int next(List<List<String>> maxima) {
+		int last = -1;
+		for (List<String> max : maxima) {
+			if (max.get(0) != null) last = Math.max(last, Integer.parseInt(max.get(0)));
+		}
+		return last + 1;
+	}
+
+	private static String quote(String value) {
+		return value == null ? "NULL" : "'" + value.replace("'", "''") + "'";
+	}
+}
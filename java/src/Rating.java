@@ -0,0 +1,35 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Ratings table. flightNum is packed with FlightNum.
+ *
+ */
+
+public final class Rating{
+	public final int rID;
+	public final int pID;
+	public final long flightNum;
+	public final int score;
+	public final String comment;
+
+	public Rating(int rID, int pID, long flightNum, int score, String comment) {
+		this.rID = rID;
+		this.pID = pID;
+		this.flightNum = flightNum;
+		this.score = score;
+		this.comment = comment;
+	}
+
+	public String getFlightNum() {
+		return FlightNum.unpack(this.flightNum);
+	}
+
+	public static Rating from(ResultSet rs) throws SQLException {
+		return new Rating(rs.getInt("rID"),
+			rs.getInt("pID"),
+			FlightNum.pack(rs.getString("flightNum")),
+			rs.getInt("score"),
+			rs.getString("comment"));
+	}
+}
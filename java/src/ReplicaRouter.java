@@ -0,0 +1,160 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class routes statements between the primary and its streaming
+ * replicas. Writes always go to the primary. Reads go round robin to the
+ * replicas that are within the staleness tolerance and, after a write from
+ * this session, have replayed that write (read-your-writes). When no replica
+ * qualifies the read falls back to the primary.
+ *
+ */
+
+public class ReplicaRouter{
+	//reference to the physical primary and replica connections
+	private Connection _primary = null;
+	private List<Connection> _replicas = new ArrayList<Connection>();
+
+	//replicas further behind than this are skipped
+	private long _maxStalenessMs;
+
+	//replica lag and replay position are only re-checked this often
+	private long _checkIntervalMs;
+	private long[] _checkedAt;
+	private long[] _lagMs;
+	private long[] _replayLsn;
+
+	//primary WAL position right after this session's last write, 0 if none
+	private long _lastWriteLsn = 0;
+	private int _next = 0;
+
+	public ReplicaRouter(Connection primary, List<Connection> replicas, long maxStalenessMs) {
+		this._primary = primary;
+		this._replicas.addAll(replicas);
+		this._maxStalenessMs = maxStalenessMs;
+		this._checkIntervalMs = Math.max(50, maxStalenessMs / 4);
+		this._checkedAt = new long[replicas.size()];
+		this._lagMs = new long[replicas.size()];
+		this._replayLsn = new long[replicas.size()];
+	}
+
+	/**
+	 * Method to get the connection a write statement must be issued on.
+	 *
+	 * @return the primary connection
+	 */
+	public Connection forWrite() {
+		return this._primary;
+	}
+
+	/**
+	 * Method to get the connection a read only statement should be issued on.
+	 *
+	 * @return a replica that is fresh enough, or the primary
+	 */
+	public Connection forRead() {
+		int count = this._replicas.size();
+		for (int i = 0; i < count; i++) {
+			int replica = (this._next + i) % count;
+			if (usable(replica)) {
+				this._next = replica + 1;
+				return this._replicas.get(replica);
+			}
+		}
+		return this._primary;
+	}
+
+	/**
+	 * Method to record that a write was committed on the primary. Later reads
+	 * only use replicas that have replayed up to this point.
+	 *
+	 * @throws java.sql.SQLException when the WAL position can not be read
+	 */
+	public void wrote() throws SQLException {
+		if (this._replicas.isEmpty()) return;
+		Statement stmt = this._primary.createStatement ();
+		ResultSet rs = stmt.executeQuery ("SELECT pg_current_wal_lsn()");
+		if (rs.next()) this._lastWriteLsn = parseLsn(rs.getString(1));
+		stmt.close ();
+	}
+
+	/**
+	 * Method to replace the primary connection after it was reopened.
+	 *
+	 * @param primary the new primary connection
+	 */
+	public void setPrimary(Connection primary) {
+		this._primary = primary;
+	}
+
+	/**
+	 * Method to check every replica again on its next use, e.g. after a
+	 * connection failure that may have come from one of them.
+	 */
+	public void recheck() {
+		for (int i = 0; i < this._checkedAt.length; i++) this._checkedAt[i] = 0;
+	}
+
+	public int getReplicaCount() {
+		return this._replicas.size();
+	}
+
+	private boolean usable(int replica) {
+		long now = System.currentTimeMillis();
+		boolean stale = now - this._checkedAt[replica] > this._checkIntervalMs;
+		if (!stale && this._lagMs[replica] == Long.MAX_VALUE) return false;
+		// a cached position behind our last write is worth one fresh look
+		if (stale || this._replayLsn[replica] < this._lastWriteLsn) {
+			if (!refresh(replica, now)) return false;
+		}
+		return this._lagMs[replica] <= this._maxStalenessMs
+			&& this._replayLsn[replica] >= this._lastWriteLsn;
+	}
+
+	private boolean refresh(int replica, long now) {
+		try{
+			Statement stmt = this._replicas.get(replica).createStatement ();
+			// an idle primary sends nothing new, so a fully replayed replica has no lag
+			ResultSet rs = stmt.executeQuery (
+				"SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+				"ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END, " +
+				"pg_last_wal_replay_lsn()");
+			if (rs.next()) {
+				this._lagMs[replica] = rs.getLong(1);
+				this._replayLsn[replica] = rs.getString(2) == null ? 0 : parseLsn(rs.getString(2));
+			}
+			stmt.close ();
+			this._checkedAt[replica] = now;
+			return true;
+		}catch (SQLException e){
+			// an unreachable replica is skipped until the next check
+			System.err.println("Replica " + (replica + 1) + " unavailable: " + e.getMessage());
+			this._checkedAt[replica] = now;
+			this._lagMs[replica] = Long.MAX_VALUE;
+			return false;
+		}
+	}
+
+	// LSNs are printed as two hex halves, e.g. 16/B374D848
+	static long parseLsn(String lsn) {
+		int slash = lsn.indexOf('/');
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+
+	/**
+	 * Method to close the replica connections. The primary is closed by its owner.
+	 */
+	public void cleanup(){
+		for (Connection replica : this._replicas) {
+			try{
+				replica.close ();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}
+}
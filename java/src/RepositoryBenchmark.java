@@ -0,0 +1,262 @@
+import java.sql.SQLException;
+import java.io.File;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class runs the nine menu operations as a mixed workload on several
+ * threads against a repository and reports throughput and latency per
+ * operation. The in-memory repository is loaded from the data/ files and
+ * always runs; with database arguments the same workload then runs against
+ * Postgres through an AirBooking session, so the backends can be compared.
+ * Writes go to the database: run it on a copy.
+ *
+ * Afterwards it checks what the threads did concurrently: no pID, rID or
+ * bookRef was handed out twice, the tables grew by exactly the writes that
+ * succeeded, and no departure that was booked has more bookings than seats.
+ *
+ */
+
+public class RepositoryBenchmark{
+	private static final String[] OPERATIONS = {"add passenger", "book flight", "add rating", "save flight", "flights between",
+		"popular destinations", "highest rated", "flights by duration", "available seats"};
+	//of every 100 operations
+	private static final int[] WEIGHTS = {5, 20, 5, 2, 15, 5, 5, 15, 28};
+	//latency buckets: 8 per power of two of nanoseconds
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	// what one thread, then one run, measured
+	private static class Result{
+		long[] done = new long[OPERATIONS.length];
+		long[] refused = new long[OPERATIONS.length];
+		long[] failed = new long[OPERATIONS.length];
+		long[][] latency = new long[OPERATIONS.length][BUCKETS];
+		String lastFailure = null;
+
+		void add(Result other) {
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				this.done[op] += other.done[op];
+				this.refused[op] += other.refused[op];
+				this.failed[op] += other.failed[op];
+				for (int b = 0; b < BUCKETS; b++) this.latency[op][b] += other.latency[op][b];
+			}
+			if (other.lastFailure != null) this.lastFailure = other.lastFailure;
+		}
+	}
+
+	//what the workload draws its arguments from
+	private List<Flight> _flights = new ArrayList<Flight>();
+	private List<String> _passports = new ArrayList<String>();
+	private List<LocalDate> _departures = new ArrayList<LocalDate>();
+	private int _threads;
+	private long _seconds;
+
+	//what the run handed out, to find the ones handed out twice
+	private Set<String> _keys;
+	private Set<String> _booked;
+
+	public RepositoryBenchmark(File dir, int threads, long seconds) throws Exception {
+		List<String> rejects = new ArrayList<String>();
+		for (Object[] row : CsvIngest.read(dir, "Flight", rejects)) {
+			this._flights.add(new Flight((Integer) row[0], FlightNum.pack((String) row[1]), (String) row[2], (String) row[3],
+				(String) row[4], (Integer) row[5], (Integer) row[6]));
+		}
+		for (Object[] row : CsvIngest.read(dir, "Passenger", rejects)) this._passports.add((String) row[1]);
+		Set<LocalDate> departures = new TreeSet<LocalDate>();
+		for (Object[] row : CsvIngest.read(dir, "Booking", rejects)) departures.add(((java.sql.Date) row[1]).toLocalDate());
+		this._departures.addAll(departures);
+		this._threads = threads;
+		this._seconds = seconds;
+	}
+
+	/**
+	 * Method to run the workload against a repository and print what it
+	 * measured and checked.
+	 *
+	 * @param name the backend's name for the report
+	 * @param repository the repository
+	 * @return the operations per second
+	 * @throws Exception when the run could not be started or checked
+	 */
+	public double run(String name, AirBookingRepository repository) throws Exception {
+		String[] tables = {"Passenger", "Booking", "Ratings"};
+		long[] before = new long[tables.length];
+		for (int i = 0; i < tables.length; i++) before[i] = repository.count(tables[i]);
+		this._keys = ConcurrentHashMap.newKeySet();
+		this._booked = ConcurrentHashMap.newKeySet();
+		List<String> problems = new ArrayList<String>();
+
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+		long start = System.nanoTime();
+		long end = start + this._seconds * 1000000000L;
+		List<Future<Result>> threads = new ArrayList<Future<Result>>();
+		for (int t = 0; t < this._threads; t++) threads.add(pool.submit(() -> work(repository, end, problems)));
+		Result total = new Result();
+		for (Future<Result> thread : threads) total.add(thread.get());
+		double seconds = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+
+		long operations = 0;
+		for (int op = 0; op < OPERATIONS.length; op++) operations += total.done[op] + total.refused[op] + total.failed[op];
+		System.out.println(String.format("%s: %d operations in %.1f s on %d threads, %.0f per second",
+			name, operations, seconds, this._threads, operations / seconds));
+		System.out.println(String.format("  %-22s %10s %8s %7s %9s %9s", "operation", "done", "refused", "failed", "p50 us", "p99 us"));
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			System.out.println(String.format("  %-22s %10d %8d %7d %9.1f %9.1f", OPERATIONS[op], total.done[op], total.refused[op],
+				total.failed[op], percentile(total.latency[op], 0.5) / 1000.0, percentile(total.latency[op], 0.99) / 1000.0));
+		}
+		if (total.lastFailure != null) System.out.println("  last failure: " + total.lastFailure);
+
+		// every write that succeeded added one row, and nothing else did
+		int[] writes = {0, 1, 2};
+		for (int i = 0; i < tables.length; i++) {
+			long grown = repository.count(tables[i]) - before[i];
+			if (grown != total.done[writes[i]]) problems.add(tables[i] + " grew by " + grown + " rows for " + total.done[writes[i]] + " writes");
+		}
+		for (String booked : this._booked) {
+			String[] departure = booked.split("\\|");
+			int available = repository.availableSeats(departure[0], LocalDate.parse(departure[1]));
+			if (available < 0) problems.add("flight " + departure[0] + " is overbooked by " + -available + " on " + departure[1]);
+		}
+		synchronized (problems) {
+			for (String problem : problems) System.out.println("  INCONSISTENT: " + problem);
+			if (problems.isEmpty()) System.out.println("  consistent: keys unique, row counts match the writes, no departure overbooked");
+		}
+		return operations / seconds;
+	}
+
+	private Result work(AirBookingRepository repository, long end, List<String> problems) {
+		Result result = new Result();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (System.nanoTime() < end) {
+			int op = 0;
+			for (int pick = random.nextInt(100); pick >= WEIGHTS[op]; op++) pick -= WEIGHTS[op];
+			long start = System.nanoTime();
+			try{
+				String key = execute(repository, op, random);
+				if (key != null && !this._keys.add(OPERATIONS[op] + " " + key)) {
+					synchronized (problems) {
+						problems.add(OPERATIONS[op] + " handed out " + key + " twice");
+					}
+				}
+				result.done[op]++;
+			}catch(SQLException e){
+				// the schema refusing a write, like a passenger booking the same flight twice, is part of the workload
+				String state = e.getSQLState() == null ? "" : e.getSQLState();
+				if (state.startsWith("23") || state.startsWith("22")) {
+					result.refused[op]++;
+				}else{
+					result.failed[op]++;
+					result.lastFailure = OPERATIONS[op] + ": " + e.getMessage();
+				}
+			}
+			result.latency[op][bucket(System.nanoTime() - start)]++;
+		}
+		return result;
+	}
+
+	// runs one operation on random arguments, returning the key a write handed out
+	private String execute(AirBookingRepository repository, int op, ThreadLocalRandom random) throws SQLException {
+		Flight flight = this._flights.get(random.nextInt(this._flights.size()));
+		String passport = this._passports.get(random.nextInt(this._passports.size()));
+		LocalDate departure = this._departures.get(random.nextInt(this._departures.size()));
+		switch (op) {
+			case 0:
+				StringBuilder passNum = new StringBuilder();
+				for (int i = 0; i < 10; i++) passNum.append((char) ('A' + random.nextInt(26)));
+				return String.valueOf(repository.addPassenger(passNum.toString(), "Bench Passenger", LocalDate.of(1950 + random.nextInt(50), 1, 1), "Benchland"));
+			case 1:
+				String bookRef = repository.bookFlight(flight.getFlightNum(), departure, passport, null);
+				this._booked.add(flight.getFlightNum() + "|" + departure);
+				return bookRef + " " + departure;
+			case 2:
+				return String.valueOf(repository.addRating(passport, flight.getFlightNum(), random.nextInt(6), null));
+			case 3:
+				// the flight as it is, so the data stays what the workload draws from
+				repository.saveFlight(flight);
+				return null;
+			case 4:
+				repository.flightsBetween(flight.origin, flight.destination);
+				return null;
+			case 5:
+				repository.mostPopularDestinations(1 + random.nextInt(10));
+				return null;
+			case 6:
+				repository.highestRatedRoutes(1 + random.nextInt(10));
+				return null;
+			case 7:
+				repository.flightsByDuration(flight.origin, flight.destination, 1 + random.nextInt(5));
+				return null;
+			default:
+				repository.availableSeats(flight.getFlightNum(), departure);
+				return null;
+		}
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+		int power = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (power - 3)) & (SUB_BUCKETS - 1);
+		return (power - 2) * SUB_BUCKETS + sub;
+	}
+
+	// the highest latency of the bucket the percentile falls in
+	private static long percentile(long[] buckets, double fraction) {
+		long total = 0;
+		for (long count : buckets) total += count;
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets[b];
+			if (total > 0 && seen >= Math.ceil(total * fraction)) {
+				if (b < SUB_BUCKETS) return b;
+				int power = b / SUB_BUCKETS + 2;
+				return ((long) (SUB_BUCKETS + b % SUB_BUCKETS + 1) << (power - 3)) - 1;
+			}
+		}
+		return 0;
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 1 && args.length != 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + RepositoryBenchmark.class.getName () +
+		            " <data dir> [<dbname> <port> <user>]");
+			return;
+		}//end if
+		AirBooking esql = null;
+		try{
+			File dir = new File(args[0]);
+			int threads = Integer.parseInt(System.getProperty("airbooking.benchThreads", "8"));
+			long seconds = Long.parseLong(System.getProperty("airbooking.benchSeconds", "10"));
+			RepositoryBenchmark benchmark = new RepositoryBenchmark(dir, threads, seconds);
+
+			long start = System.currentTimeMillis();
+			List<String> rejects = new ArrayList<String>();
+			MemoryRepository memory = MemoryRepository.load(dir, rejects);
+			System.out.println("Loaded " + dir + " into memory in " + (System.currentTimeMillis() - start) + " ms, " + rejects.size() + " rows refused");
+			for (String reject : rejects) System.out.println("  " + reject);
+			double memoryRate = benchmark.run("memory", memory);
+
+			if (args.length == 4) {
+				Class.forName("org.postgresql.Driver");
+				esql = new AirBooking(args[1], args[2], args[3], "");
+				double postgresRate = benchmark.run("postgres", esql.getRepository());
+				System.out.println(String.format("memory runs the workload %.1f times as fast as postgres", memoryRate / postgresRate));
+			}
+		}catch(Exception e){
+			System.err.println ("Benchmark failed: " + e.getMessage ());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the results of read only queries in memory. Entries are
+ * keyed on the normalized query text (the parameters are inlined literals,
+ * so they are part of the key), expire after a fixed time to live and are
+ * evicted least recently used first once the cache is full. Every entry
+ * remembers the tables its query reads so a write to one of them drops
+ * exactly the entries it could have changed. Every table has a generation
+ * that such a write bumps; callers take the generation of a query before
+ * running it and the result is only stored when it has not changed, so a
+ * result read before a write is not cached after it.
+ *
+ */
+
+public class ResultCache{
+	private static final Pattern READ_TABLES = Pattern.compile("\\b(?:from|join)\\s+([a-z_][a-z0-9_]*)");
+	private static final Pattern WRITE_TABLE = Pattern.compile("^\\s*(?:insert\\s+into|update|delete\\s+from)\\s+([a-z_][a-z0-9_]*)");
+
+	private static class CachedResult{
+		List<String> header;
+		//List<List<String>> for plain results, the record type for mapped ones
+		List<?> rows;
+		Set<String> tables;
+		long expiresAt;
+	}
+
+	private final long _ttlMs;
+	private final int _maxEntries;
+	private final LinkedHashMap<String, CachedResult> _entries;
+	//per table, bumped by every invalidation of it
+	private final Map<String, Long> _generations = new HashMap<String, Long>();
+	//bumped by clear(), which invalidates every table
+	private long _cleared = 0;
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private long _invalidations = 0;
+
+	public ResultCache(long ttlMs, int maxEntries) {
+		this._ttlMs = ttlMs;
+		this._maxEntries = maxEntries;
+		// access order makes the eldest entry the least recently used one
+		this._entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				if (size() > ResultCache.this._maxEntries) {
+					ResultCache.this._evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get the column names of a cached query result.
+	 *
+	 * @param query the input query string
+	 * @return the column names, or null when the query is not cached
+	 */
+	public synchronized List<String> getHeader(String query) {
+		CachedResult entry = lookup(normalize(query), false);
+		return entry == null ? null : entry.header;
+	}
+
+	/**
+	 * Method to get a cached query result. Counts as a hit or a miss.
+	 *
+	 * @param query the input query string
+	 * @return the cached records, or null when absent or expired
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<List<String>> get(String query) {
+		CachedResult entry = lookup(normalize(query), true);
+		return entry == null ? null : (List<List<String>>) entry.rows;
+	}
+
+	/**
+	 * Method to get a cached result that was mapped to typed records. These
+	 * are kept apart from the plain results of the same query.
+	 *
+	 * @param query the input query string
+	 * @param type the record type the rows were mapped to
+	 * @return the cached records, or null when absent or expired
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> List<T> getMapped(String query, Class<T> type) {
+		CachedResult entry = lookup(mappedKey(query, type), true);
+		return entry == null ? null : (List<T>) entry.rows;
+	}
+
+	/**
+	 * Method to get the generation of the tables a query reads, to take
+	 * before running it.
+	 *
+	 * @param query the input query string
+	 * @return a number that changes whenever one of its tables is invalidated
+	 */
+	public synchronized long generation(String query) {
+		long generation = this._cleared;
+		for (String table : readTables(normalize(query))) {
+			Long bumps = this._generations.get(table);
+			if (bumps != null) generation += bumps;
+		}
+		return generation;
+	}
+
+	/**
+	 * Method to cache the result of a query, unless one of its tables was
+	 * invalidated since it ran.
+	 *
+	 * @param query the input query string
+	 * @param header the column names of the result
+	 * @param rows the records returned by the query
+	 * @param generation the query's generation from before it ran
+	 */
+	public synchronized void put(String query, List<String> header, List<List<String>> rows, long generation) {
+		if (generation(query) == generation) store(normalize(query), header, rows);
+	}
+
+	/**
+	 * Method to cache the typed records a query was mapped to, unless one of
+	 * its tables was invalidated since it ran.
+	 *
+	 * @param query the input query string
+	 * @param type the record type
+	 * @param rows the records
+	 * @param generation the query's generation from before it ran
+	 */
+	public synchronized <T> void putMapped(String query, Class<T> type, List<T> rows, long generation) {
+		if (generation(query) == generation) store(mappedKey(query, type), null, rows);
+	}
+
+	private static String mappedKey(String query, Class<?> type) {
+		return type.getName() + ": " + normalize(query);
+	}
+
+	private void store(String key, List<String> header, List<?> rows) {
+		CachedResult entry = new CachedResult();
+		entry.header = header;
+		entry.rows = rows;
+		entry.tables = readTables(key);
+		entry.expiresAt = System.currentTimeMillis() + this._ttlMs;
+		this._entries.put(key, entry);
+	}
+
+	private static Set<String> readTables(String key) {
+		Set<String> tables = new HashSet<String>();
+		Matcher m = READ_TABLES.matcher(key);
+		while (m.find()) tables.add(m.group(1));
+		return tables;
+	}
+
+	/**
+	 * Method to drop every entry that reads the table written by a statement.
+	 *
+	 * @param sql an INSERT, UPDATE or DELETE statement
+	 */
+	public void invalidateFor(String sql) {
+		String table = writtenTable(sql);
+		if (table != null) invalidate(table);
+	}
+
+	/**
+	 * Method to find the table an INSERT, UPDATE or DELETE statement writes.
+	 *
+	 * @param sql the statement
+	 * @return the lower cased table name, or null for other statements
+	 */
+	static String writtenTable(String sql) {
+		Matcher m = WRITE_TABLE.matcher(normalize(sql));
+		return m.find() ? m.group(1) : null;
+	}
+
+	/**
+	 * Method to drop every entry that reads a table.
+	 *
+	 * @param table the table name
+	 */
+	public synchronized void invalidate(String table) {
+		table = table.toLowerCase();
+		this._generations.merge(table, 1L, Long::sum);
+		Iterator<CachedResult> it = this._entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().tables.contains(table)) {
+				it.remove();
+				this._invalidations++;
+			}
+		}
+	}
+
+	/**
+	 * Method to drop every entry, e.g. when writes may have been missed.
+	 */
+	public synchronized void clear() {
+		this._invalidations += this._entries.size();
+		this._entries.clear();
+		this._cleared++;
+	}
+
+	public synchronized String getStats() {
+		long lookups = this._hits + this._misses;
+		return "Result cache: " + this._hits + " hits, " + this._misses + " misses ("
+			+ (lookups == 0 ? 0 : this._hits * 100 / lookups) + "% hit rate), "
+			+ this._entries.size() + "/" + this._maxEntries + " entries, "
+			+ this._evictions + " evicted, " + this._invalidations + " invalidated";
+	}
+
+	private CachedResult lookup(String key, boolean count) {
+		CachedResult entry = this._entries.get(key);
+		if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+			this._entries.remove(key);
+			entry = null;
+		}
+		if (count) {
+			if (entry == null) this._misses++;
+			else this._hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Method to normalize a query for use as a key: whitespace runs collapse
+	 * to one space, keywords and identifiers are lower cased and a trailing
+	 * semicolon is dropped. Quoted literals are kept exactly as written.
+	 *
+	 * @param query the input query string
+	 * @return the normalized query
+	 */
+	static String normalize(String query) {
+		StringBuilder key = new StringBuilder(query.length());
+		boolean quoted = false;
+		boolean space = false;
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '\'') quoted = !quoted;
+			if (!quoted && Character.isWhitespace(c)) {
+				space = key.length() > 0;
+				continue;
+			}
+			if (space) {
+				key.append(' ');
+				space = false;
+			}
+			key.append(quoted ? c : Character.toLowerCase(c));
+		}
+		int end = key.length();
+		while (end > 0 && key.charAt(end - 1) == ';') end--;
+		key.setLength(end);
+		return key.toString();
+	}
+}
@@ -0,0 +1,111 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * This class searches the free text of Ratings.comment through the GIN
+ * index created by V004. Matches are ranked with ts_rank and can be filtered
+ * by flight, airline and score. Pages are keyset paginated on (rank, rID):
+ * the last row of a page is passed back to fetch the next one, so a deep
+ * page costs the same as the first. When Ratings is sharded every shard
+ * returns its own page and the best rows of all of them make the page.
+ *
+ */
+
+public class ReviewSearch{
+	//must match the ratingsCommentSearchIndex expression exactly
+	private static final String DOCUMENT = "to_tsvector('english', COALESCE(r.comment, ''))";
+
+	//search terms, e.g. "lost luggage"
+	public String terms;
+	//optional filters, null means any
+	public String flightNum = null;
+	public Integer airId = null;
+	public Integer minScore = null;
+	public Integer maxScore = null;
+
+	//keyset position: rank and rID of the last row already shown, null for the first page
+	public Float afterRank = null;
+	public Integer afterRID = null;
+
+	public ReviewSearch(String terms) {
+		this.terms = terms;
+	}
+
+	/**
+	 * Method to fetch the next page of matching reviews. Each record holds
+	 * rID, flightNum, airline name, score, rank and comment.
+	 *
+	 * @param esql the database session
+	 * @param limit the maximum number of reviews returned
+	 * @return the matching reviews, best ranked first
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> nextPage(AirBooking esql, int limit) throws SQLException {
+		String query = "SELECT rID, flightNum, name, score, rank, comment FROM ("
+			+ "SELECT r.rID, r.flightNum, a.name, r.score, ts_rank(" + DOCUMENT + ", q) AS rank, r.comment "
+			+ "FROM Ratings r JOIN Flight f ON f.flightNum = r.flightNum JOIN Airline a ON a.airId = f.airId, "
+			+ "plainto_tsquery('english', ?) q "
+			+ "WHERE " + DOCUMENT + " @@ q";
+		if (this.flightNum != null) query += " AND r.flightNum = ?";
+		if (this.airId != null) query += " AND f.airId = ?";
+		if (this.minScore != null) query += " AND r.score >= ?";
+		if (this.maxScore != null) query += " AND r.score <= ?";
+		query += ") hits";
+		if (this.afterRank != null) query += " WHERE rank < ? OR (rank = ? AND rID < ?)";
+		query += " ORDER BY rank DESC, rID DESC LIMIT ?";
+
+		String statement = query;
+		List<List<String>> result;
+		ShardRouter shards = esql.getShards();
+		if (shards == null) {
+			result = esql.getPolicy().read(() -> fetch(esql, esql.getReadConnection(), statement, limit));
+		}else{
+			result = new ArrayList<List<String>>();
+			for (int i = 0; i < shards.getShardCount(); i++) {
+				Connection shard = shards.getShard(i);
+				result.addAll(esql.getPolicy().read(() -> fetch(esql, shard, statement, limit)));
+			}
+			result = ShardRouter.topK(result, Comparator.comparing((List<String> record) -> Float.parseFloat(record.get(4)))
+				.thenComparing(record -> Integer.parseInt(record.get(0))).reversed(), limit);
+		}
+		if (!result.isEmpty()) {
+			// ts_rank is a real, so the float round trips exactly for the next page
+			List<String> last = result.get(result.size() - 1);
+			this.afterRank = Float.parseFloat(last.get(4));
+			this.afterRID = Integer.parseInt(last.get(0));
+		}
+		return result;
+	}
+
+	private List<List<String>> fetch(AirBooking esql, Connection connection, String query, int limit) throws SQLException {
+		PreparedStatement stmt = esql.getPolicy().prepare(connection, query, false);
+		int p = 1;
+		stmt.setString(p++, this.terms);
+		if (this.flightNum != null) stmt.setString(p++, this.flightNum);
+		if (this.airId != null) stmt.setInt(p++, this.airId);
+		if (this.minScore != null) stmt.setInt(p++, this.minScore);
+		if (this.maxScore != null) stmt.setInt(p++, this.maxScore);
+		if (this.afterRank != null) {
+			stmt.setFloat(p++, this.afterRank);
+			stmt.setFloat(p++, this.afterRank);
+			stmt.setInt(p++, this.afterRID);
+		}
+		stmt.setInt(p++, limit);
+
+		ResultSet rs = stmt.executeQuery();
+		List<List<String>> result = new ArrayList<List<String>>();
+		while (rs.next()){
+			List<String> record = new ArrayList<String>();
+			for (int i=1; i<=6; ++i)
+				record.add(rs.getString (i));
+			result.add(record);
+		}//end while
+		stmt.close ();
+		return result;
+	}
+}
@@ -0,0 +1,315 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class recommends routes by "passengers who flew X also flew Y":
+ * for every flight, the routes most of its passengers have also booked.
+ *
+ * A refresh reads the distinct (pID, flightNum) pairs of Booking on every
+ * shard and the routes of Flight, then builds the sparse passenger ->
+ * flights matrix and its transpose in int arrays (compressed rows). The
+ * flight x route co-occurrence counts are computed row by row on a fork/
+ * join pool, each task counting into one dense int[] it resets through the
+ * list of routes it touched, and only the top routes of every flight are
+ * kept. The finished table replaces the previous one at once, so a lookup
+ * is a hash of the flightNum and never touches the database.
+ *
+ * A passenger counts once per route however often it was booked, and a
+ * flight's own route is never recommended for it.
+ *
+ */
+
+public class RouteRecommender{
+	//routes kept per flight
+	public static final int TOP = 5;
+	//flights counted by one fork/join task
+	private static final int FLIGHTS_PER_TASK = 32;
+
+	//what a refresh produced, never changed once published
+	private static class Table{
+		//flightNum -> flight code
+		Map<String, Integer> flights = new HashMap<String, Integer>();
+		//route code -> origin, destination
+		String[] origins;
+		String[] destinations;
+		//flight code -> its best routes and their passengers, best first
+		int[][] routes;
+		int[][] passengers;
+		int passengerCount;
+		long builtMs;
+	}
+
+	private List<String> _urls;
+	private String _user;
+	private String _passwd;
+	private ForkJoinPool _pool;
+	private ScheduledExecutorService _timer = null;
+	private volatile Table _table = null;
+
+	private long _refreshes = 0;
+	private long _refreshMs = 0;
+	private String _lastError = null;
+
+	public RouteRecommender(List<String> urls, String user, String passwd, int threads) {
+		this._urls = urls;
+		this._user = user;
+		this._passwd = passwd;
+		this._pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Method to build the recommendations in the background now and again
+	 * every interval.
+	 *
+	 * @param intervalMs the time between refreshes
+	 */
+	public void start(long intervalMs) {
+		this._timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "recommendations");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this._timer.scheduleWithFixedDelay(() -> {
+			try{
+				refresh();
+			}catch(Exception e){
+				// the previous table stays in use
+				synchronized (this) {
+					this._lastError = e.getMessage();
+				}
+			}
+		}, 0, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (this._timer != null) this._timer.shutdownNow();
+		this._pool.shutdownNow();
+	}
+
+	/**
+	 * Method to get the routes the passengers of a flight booked most,
+	 * besides the flight's own. Each record holds origin, destination and
+	 * the number of the flight's passengers who booked it.
+	 *
+	 * @param flightNum the flight
+	 * @return the routes, most passengers first, empty until the first refresh finished
+	 */
+	public List<List<String>> recommend(String flightNum) {
+		List<List<String>> result = new ArrayList<List<String>>();
+		Table table = this._table;
+		if (table == null) return result;
+		Integer flight = table.flights.get(flightNum.trim());
+		if (flight == null) return result;
+		for (int i = 0; i < table.routes[flight].length; i++) {
+			int route = table.routes[flight][i];
+			result.add(Arrays.asList(table.origins[route], table.destinations[route], String.valueOf(table.passengers[flight][i])));
+		}
+		return result;
+	}
+
+	/**
+	 * Method to recompute every flight's recommendations from Booking and
+	 * publish them.
+	 *
+	 * @throws java.sql.SQLException when failed to read the bookings
+	 */
+	public void refresh() throws SQLException {
+		long start = System.currentTimeMillis();
+		Table table = new Table();
+
+		// flight and route codes, routes numbered in name order so ties are broken by name
+		List<String> flightNums = new ArrayList<String>();
+		List<Integer> flightRoutes = new ArrayList<Integer>();
+		List<String> origins = new ArrayList<String>();
+		List<String> destinations = new ArrayList<String>();
+		Connection connection = DriverManager.getConnection(this._urls.get(0), this._user, this._passwd);
+		try{
+			Statement stmt = connection.createStatement ();
+			ResultSet rs = stmt.executeQuery ("SELECT trim(flightNum), trim(origin), trim(destination) FROM Flight ORDER BY origin, destination, flightNum");
+			while (rs.next()) {
+				int last = origins.size() - 1;
+				if (last < 0 || !origins.get(last).equals(rs.getString(2)) || !destinations.get(last).equals(rs.getString(3))) {
+					origins.add(rs.getString(2));
+					destinations.add(rs.getString(3));
+				}
+				table.flights.put(rs.getString(1), flightNums.size());
+				flightNums.add(rs.getString(1));
+				flightRoutes.add(origins.size() - 1);
+			}
+			stmt.close ();
+		}finally{
+			connection.close();
+		}
+		int flights = flightNums.size();
+		int[] routeOf = new int[flights];
+		for (int i = 0; i < flights; i++) routeOf[i] = flightRoutes.get(i);
+		table.origins = origins.toArray(new String[origins.size()]);
+		table.destinations = destinations.toArray(new String[destinations.size()]);
+
+		// pID in the high half, flight code in the low one, so sorting groups them by passenger
+		long[] pairs = new long[1024];
+		int size = 0;
+		for (String url : this._urls) {
+			connection = DriverManager.getConnection(url, this._user, this._passwd);
+			try{
+				// a cursor streams the pairs instead of holding the whole result in the driver
+				connection.setAutoCommit(false);
+				Statement stmt = connection.createStatement ();
+				stmt.setFetchSize(10000);
+				ResultSet rs = stmt.executeQuery ("SELECT DISTINCT pID, trim(flightNum) FROM Booking");
+				while (rs.next()) {
+					Integer flight = table.flights.get(rs.getString(2));
+					if (flight == null) continue;
+					if (size == pairs.length) pairs = Arrays.copyOf(pairs, size * 2);
+					pairs[size++] = ((long) rs.getInt(1) << 32) | flight;
+				}
+				stmt.close ();
+				connection.rollback();
+			}finally{
+				connection.close();
+			}
+		}
+		build(table, routeOf, pairs, size);
+		table.builtMs = System.currentTimeMillis() - start;
+		this._table = table;
+		synchronized (this) {
+			this._refreshes++;
+			this._refreshMs += table.builtMs;
+			this._lastError = null;
+		}
+	}
+
+	// fills the table's best routes from the (pID, flight code) pairs
+	private void build(Table table, int[] routeOf, long[] pairs, int size) {
+		int flights = routeOf.length;
+		Arrays.parallelSort(pairs, 0, size);
+
+		// passenger -> distinct routes, and flight -> passengers, as compressed rows
+		int[] routeStart = new int[size + 1];
+		int[] passengerRoutes = new int[size];
+		int[] flightStart = new int[flights + 1];
+		int passengers = 0;
+		int routes = 0;
+		for (int i = 0; i < size; ) {
+			int end = i;
+			while (end < size && (pairs[end] >>> 32) == (pairs[i] >>> 32)) end++;
+			int from = routes;
+			for (int j = i; j < end; j++) {
+				// the same pair may come from two shards
+				if (j > i && pairs[j] == pairs[j - 1]) continue;
+				flightStart[(int) pairs[j] + 1]++;
+				passengerRoutes[routes++] = routeOf[(int) pairs[j]];
+			}
+			Arrays.sort(passengerRoutes, from, routes);
+			int distinct = from;
+			for (int j = from; j < routes; j++) {
+				if (j == from || passengerRoutes[j] != passengerRoutes[j - 1]) passengerRoutes[distinct++] = passengerRoutes[j];
+			}
+			routes = distinct;
+			routeStart[++passengers] = routes;
+			i = end;
+		}
+		for (int f = 0; f < flights; f++) flightStart[f + 1] += flightStart[f];
+		int[] flightPassengers = new int[flightStart[flights]];
+		int[] fill = Arrays.copyOf(flightStart, flights);
+		for (int i = 0, passenger = -1; i < size; i++) {
+			if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) passenger++;
+			else if (pairs[i] == pairs[i - 1]) continue;
+			flightPassengers[fill[(int) pairs[i]]++] = passenger;
+		}
+
+		table.routes = new int[flights][];
+		table.passengers = new int[flights][];
+		table.passengerCount = passengers;
+		this._pool.invoke(new Count(table, 0, flights, routeOf, flightStart, flightPassengers, routeStart, passengerRoutes));
+	}
+
+	// counts the routes of the passengers of flights [from, to) and keeps the best of them
+	private static class Count extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+
+		private Table _table;
+		private int _from;
+		private int _to;
+		private int[] _routeOf;
+		private int[] _flightStart;
+		private int[] _flightPassengers;
+		private int[] _routeStart;
+		private int[] _passengerRoutes;
+
+		Count(Table table, int from, int to, int[] routeOf, int[] flightStart, int[] flightPassengers, int[] routeStart, int[] passengerRoutes) {
+			this._table = table;
+			this._from = from;
+			this._to = to;
+			this._routeOf = routeOf;
+			this._flightStart = flightStart;
+			this._flightPassengers = flightPassengers;
+			this._routeStart = routeStart;
+			this._passengerRoutes = passengerRoutes;
+		}
+
+		protected void compute() {
+			if (this._to - this._from > FLIGHTS_PER_TASK) {
+				int middle = (this._from + this._to) >>> 1;
+				invokeAll(new Count(this._table, this._from, middle, this._routeOf, this._flightStart, this._flightPassengers, this._routeStart, this._passengerRoutes),
+					new Count(this._table, middle, this._to, this._routeOf, this._flightStart, this._flightPassengers, this._routeStart, this._passengerRoutes));
+				return;
+			}
+			int[] counts = new int[this._table.origins.length];
+			int[] touched = new int[counts.length];
+			for (int flight = this._from; flight < this._to; flight++) {
+				int own = this._routeOf[flight];
+				int size = 0;
+				for (int i = this._flightStart[flight]; i < this._flightStart[flight + 1]; i++) {
+					int passenger = this._flightPassengers[i];
+					for (int j = this._routeStart[passenger]; j < this._routeStart[passenger + 1]; j++) {
+						int route = this._passengerRoutes[j];
+						if (route != own && counts[route]++ == 0) touched[size++] = route;
+					}
+				}
+
+				// insertion into the few best so far, ties go to the lower route code
+				int[] best = new int[Math.min(TOP, size)];
+				int[] bestCounts = new int[best.length];
+				int kept = 0;
+				for (int i = 0; i < size; i++) {
+					int route = touched[i];
+					int count = counts[route];
+					counts[route] = 0;
+					int at = kept;
+					while (at > 0 && (bestCounts[at - 1] < count || (bestCounts[at - 1] == count && best[at - 1] > route))) at--;
+					if (at >= best.length) continue;
+					int moved = Math.min(kept, best.length - 1) - at;
+					System.arraycopy(best, at, best, at + 1, moved);
+					System.arraycopy(bestCounts, at, bestCounts, at + 1, moved);
+					best[at] = route;
+					bestCounts[at] = count;
+					if (kept < best.length) kept++;
+				}
+				this._table.routes[flight] = best;
+				this._table.passengers[flight] = bestCounts;
+			}
+		}
+	}
+
+	public synchronized String getStats() {
+		Table table = this._table;
+		return "Recommendations: " + (table == null ? "not built yet" : table.flights.size() + " flights, "
+			+ table.origins.length + " routes, " + table.passengerCount + " passengers, built in " + table.builtMs + " ms")
+			+ ", " + this._refreshes + " refreshes (" + (this._refreshes == 0 ? 0 : this._refreshMs / this._refreshes) + " ms avg)"
+			+ (this._lastError == null ? "" : ", last refresh failed: " + this._lastError);
+	}
+}
@@ -0,0 +1,11 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to a typed record.
+ *
+ */
+
+public interface RowMapper<T>{
+	T map(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,290 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * This class imports an airline's schedule, a file in the format of
+ * data/flights.csv, into Flight in one go instead of one route at a time
+ * through menu option 4. Every line is checked against the schema before
+ * anything is written: the _SEATS and _HOURS domains and CHAR lengths as
+ * CsvIngest checks them, a flightNum that can be packed and is listed only
+ * once, and an airId that exists in Airline. Lines that fail are reported,
+ * not imported.
+ *
+ * One transaction locks Flight against other writers (bookings only need a
+ * key share lock on their flight and go on), compares the schedule with the
+ * current rows and upserts only the new and changed routes, in batches of
+ * INSERT ... ON CONFLICT (flightNum) DO UPDATE. Routes Flight has and the
+ * schedule does not are reported, never deleted, as bookings refer to them.
+ * A changed route is rejected when it has fewer seats than one of its
+ * departures from today on already has booked or held (or a higher seat
+ * number taken); those routes are locked first, so no booking on the
+ * primary gets in between. The route caches are invalidated once after the
+ * commit instead of after every row.
+ *
+ * When sharded the same upserts are then applied to every other shard's
+ * copy of Flight, one after the other; as with ShardRouter.broadcast a
+ * failure there does not undo the primary and names the shards out of sync.
+ * A route whose new airId is on another shard than its old one is rejected,
+ * as its bookings and ratings would stay behind. Bookings on the other
+ * shards are counted without a lock, so one made there before that shard's
+ * copy is updated can still take a seat the schedule drops.
+ *
+ */
+
+public class ScheduleImport{
+	private static final String COLUMNS = "airId, flightNum, origin, destination, plane, seats, duration";
+	private static final String UPSERT = "INSERT INTO Flight (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?) "
+		+ "ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, destination = EXCLUDED.destination, "
+		+ "plane = EXCLUDED.plane, seats = EXCLUDED.seats, duration = EXCLUDED.duration";
+	//per flight, the most seats one departure from today on needs: its bookings and holds, or its highest seat taken
+	private static final String BOOKED = "SELECT trim(flightNum), MAX(needed) FROM (SELECT flightNum, departure, GREATEST(COUNT(*), MAX(seat)) AS needed "
+		+ "FROM (SELECT flightNum, departure, seat FROM Booking WHERE flightNum = ANY(?) AND departure >= current_date "
+		+ "UNION ALL SELECT flightNum, departure, seat FROM SeatHold WHERE flightNum = ANY(?) AND departure >= current_date) s "
+		+ "GROUP BY flightNum, departure) d GROUP BY flightNum";
+
+	public final File file;
+	private int _batchSize;
+
+	//filled in by a successful run()
+	public int inserted = 0;
+	public int updated = 0;
+	public int unchanged = 0;
+	//one line per schedule line left out and why
+	public List<String> rejects = new ArrayList<String>();
+	//flightNums in Flight the schedule does not list
+	public List<String> unscheduled = new ArrayList<String>();
+
+	//the routes the last attempt wrote, in the order of the schedule
+	private List<Object[]> _changes = new ArrayList<Object[]>();
+
+	public ScheduleImport(File file, int batchSize) {
+		this.file = file;
+		this._batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Method to import the schedule.
+	 *
+	 * @param esql the database session
+	 * @throws java.io.IOException when the file could not be read
+	 * @throws java.sql.SQLException when failed to execute the statements, nothing is imported then
+	 */
+	public void run(AirBooking esql) throws IOException, SQLException {
+		List<String> parseRejects = new ArrayList<String>();
+		List<Object[]> schedule = CsvIngest.readFile(this.file, "Flight", parseRejects);
+
+		// a deadlock or serialization failure rolled it all back, so the whole transaction runs again
+		esql.getPolicy().write(() -> attempt(esql, schedule, parseRejects), () -> wasCommitted(esql));
+		esql.wrote("flight");
+		ShardRouter shards = esql.getShards();
+		if (shards == null || this._changes.isEmpty()) return;
+
+		shards.invalidate();
+		List<Integer> failed = new ArrayList<Integer>();
+		SQLException first = null;
+		for (int i = 1; i < shards.getShardCount(); i++) {
+			int shard = i;
+			try{
+				// the upserts set the same rows however often they run
+				esql.getPolicy().write(() -> {
+					Connection connection = shards.getShard(shard);
+					connection.setAutoCommit(false);
+					try{
+						upsert(esql.getPolicy(), connection);
+						connection.commit();
+					}catch(SQLException e){
+						rollback(connection);
+						throw e;
+					}finally{
+						connection.setAutoCommit(true);
+					}
+					return null;
+				}, null);
+			}catch(SQLException e){
+				failed.add(shard);
+				if (first == null) first = e;
+			}
+		}
+		if (first != null) throw new SQLException("Imported on the primary, but shards " + failed + " are out of sync: " + first.getMessage(), first);
+	}
+
+	private Void attempt(AirBooking esql, List<Object[]> schedule, List<String> parseRejects) throws SQLException {
+		this.inserted = 0;
+		this.updated = 0;
+		this.unchanged = 0;
+		this.rejects = new ArrayList<String>(parseRejects);
+		this.unscheduled.clear();
+		this._changes.clear();
+
+		ExecutionPolicy policy = esql.getPolicy();
+		Connection connection = esql.getWriteConnection();
+		connection.setAutoCommit(false);
+		try{
+			Statement stmt = policy.statement(connection, true);
+			// other writers of Flight wait, so the comparison holds until the commit
+			stmt.execute ("LOCK TABLE Flight IN SHARE ROW EXCLUSIVE MODE");
+			Set<Integer> airIds = new HashSet<Integer>();
+			ResultSet rs = stmt.executeQuery ("SELECT airId FROM Airline");
+			while (rs.next()) airIds.add(rs.getInt(1));
+			Map<String, Object[]> current = new LinkedHashMap<String, Object[]>();
+			rs = stmt.executeQuery ("SELECT " + COLUMNS + " FROM Flight ORDER BY flightNum");
+			while (rs.next()) {
+				current.put(rs.getString(2).trim(), new Object[] {rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(),
+					rs.getString(4).trim(), rs.getString(5).trim(), rs.getInt(6), rs.getInt(7)});
+			}
+			stmt.close();
+
+			Map<String, Integer> listed = new HashMap<String, Integer>();
+			for (Object[] route : schedule) {
+				String flightNum = (String) route[1];
+				Integer times = listed.get(flightNum);
+				listed.put(flightNum, times == null ? 1 : times + 1);
+			}
+			// the routes losing seats, to hold their bookings against
+			List<String> shrinking = new ArrayList<String>();
+			for (Object[] route : schedule) {
+				Object[] before = current.get((String) route[1]);
+				if (before != null && (Integer) route[5] < (Integer) before[5]) shrinking.add((String) route[1]);
+			}
+			Map<String, Integer> booked = booked(esql, connection, shrinking);
+
+			ShardRouter shards = esql.getShards();
+			for (Object[] route : schedule) {
+				String flightNum = (String) route[1];
+				Object[] before = current.get(flightNum);
+				if (!FlightNum.isValid(flightNum)) {
+					this.rejects.add(this.file.getName() + ": flightNum " + flightNum + " is not a valid flight number");
+				}else if (listed.get(flightNum) > 1) {
+					this.rejects.add(this.file.getName() + ": flightNum " + flightNum + " is listed " + listed.get(flightNum) + " times");
+				}else if (!airIds.contains((Integer) route[0])) {
+					this.rejects.add(this.file.getName() + ": flightNum " + flightNum + " names airId " + route[0] + ", which is not in Airline");
+				}else if (shards != null && before != null && shards.shardOf((Integer) before[0]) != shards.shardOf((Integer) route[0])) {
+					this.rejects.add(this.file.getName() + ": flightNum " + flightNum + " moves from airId " + before[0] + " to " + route[0]
+						+ ", whose shard does not have its bookings and ratings");
+				}else if (booked.containsKey(flightNum) && booked.get(flightNum) > (Integer) route[5]) {
+					this.rejects.add(this.file.getName() + ": flightNum " + flightNum + " would have " + route[5] + " seats, but a departure has "
+						+ booked.get(flightNum) + " taken");
+				}else{
+					if (before == null) this.inserted++;
+					else if (Arrays.equals(before, route)) this.unchanged++;
+					else this.updated++;
+					if (before == null || !Arrays.equals(before, route)) this._changes.add(route);
+				}
+			}
+			for (String flightNum : current.keySet()) {
+				if (!listed.containsKey(flightNum)) this.unscheduled.add(flightNum);
+			}
+
+			upsert(policy, connection);
+			connection.commit();
+			return null;
+		}catch(SQLException e){
+			rollback(connection);
+			throw e;
+		}finally{
+			try{
+				connection.setAutoCommit(true);
+			}catch(SQLException ignored){
+			}
+		}
+	}
+
+	// the seats the departures of the given flights need, per flight; on the primary their rows are locked first
+	private static Map<String, Integer> booked(AirBooking esql, Connection connection, List<String> flightNums) throws SQLException {
+		Map<String, Integer> booked = new HashMap<String, Integer>();
+		if (flightNums.isEmpty()) return booked;
+		ExecutionPolicy policy = esql.getPolicy();
+		// FOR UPDATE waits for the bookings and holds that read the old seats and keeps new ones out until the commit
+		PreparedStatement lock = policy.prepare(connection, "SELECT 1 FROM Flight WHERE flightNum = ANY(?) FOR UPDATE", true);
+		lock.setArray(1, connection.createArrayOf("bpchar", flightNums.toArray()));
+		lock.executeQuery();
+		lock.close();
+
+		List<Connection> shards = new ArrayList<Connection>();
+		shards.add(connection);
+		ShardRouter router = esql.getShards();
+		for (int i = 1; router != null && i < router.getShardCount(); i++) shards.add(router.getShard(i));
+		for (Connection shard : shards) {
+			PreparedStatement stmt = policy.prepare(shard, BOOKED, false);
+			stmt.setArray(1, shard.createArrayOf("bpchar", flightNums.toArray()));
+			stmt.setArray(2, shard.createArrayOf("bpchar", flightNums.toArray()));
+			ResultSet rs = stmt.executeQuery();
+			// a flight's bookings are all on one shard, the others have none
+			while (rs.next()) booked.merge(rs.getString(1), rs.getInt(2), Math::max);
+			stmt.close();
+		}
+		return booked;
+	}
+
+	// the changed routes in batches, on a connection inside a transaction
+	private void upsert(ExecutionPolicy policy, Connection connection) throws SQLException {
+		PreparedStatement stmt = policy.prepare(connection, UPSERT, true);
+		try{
+			for (int from = 0; from < this._changes.size(); from += this._batchSize) {
+				for (Object[] route : this._changes.subList(from, Math.min(this._changes.size(), from + this._batchSize))) {
+					bind(stmt, route);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+		}finally{
+			stmt.close();
+		}
+	}
+
+	// after a lost connection: the transaction was committed if its last route is in Flight as written
+	private boolean wasCommitted(AirBooking esql) throws SQLException {
+		if (this._changes.isEmpty()) return false;
+		Object[] route = this._changes.get(this._changes.size() - 1);
+		PreparedStatement stmt = esql.getPolicy().prepare(esql.getWriteConnection(),
+			"SELECT 1 FROM Flight WHERE (" + COLUMNS + ") = (?, ?, ?, ?, ?, ?, ?)", false);
+		bind(stmt, route);
+		boolean committed = stmt.executeQuery().next();
+		stmt.close();
+		return committed;
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] route) throws SQLException {
+		stmt.setInt(1, (Integer) route[0]);
+		for (int i = 1; i <= 4; i++) stmt.setString(i + 1, (String) route[i]);
+		stmt.setInt(6, (Integer) route[5]);
+		stmt.setInt(7, (Integer) route[6]);
+	}
+
+	private static void rollback(Connection connection) {
+		// on a broken connection this fails too, the original error is the one that counts
+		try{
+			connection.rollback();
+		}catch(SQLException ignored){
+		}
+	}
+
+	/**
+	 * Method to describe what the import did, for the menu.
+	 *
+	 * @return one line per count, then the rejected lines
+	 */
+	public List<String> report() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Inserted: " + this.inserted);
+		lines.add("Updated: " + this.updated);
+		lines.add("Unchanged: " + this.unchanged);
+		lines.add("Rejected: " + this.rejects.size());
+		lines.add("In Flight but not in the schedule (kept): " + this.unscheduled.size());
+		for (String reject : this.rejects) lines.add("  " + reject);
+		return lines;
+	}
+}
@@ -0,0 +1,119 @@
+import java.sql.SQLException;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class keeps the number of bookings per flight and departure date in
+ * memory for the available seats lookup. Counts are loaded on first use and
+ * dropped as soon as the ChangeFeed reports a booking for that flight and
+ * date from any app instance, so they are only served while the feed is
+ * live. Dropping instead of adding the event in place keeps a count loaded
+ * concurrently with a booking from counting it twice.
+ *
+ */
+
+public class SeatCountView implements ChangeView, SnapshotSection{
+	private ChangeFeed _feed;
+	//packed flightNum -> epoch day of departure -> bookings
+	private Map<Long, Map<Long, Integer>> _booked = new HashMap<Long, Map<Long, Integer>>();
+	//bumped by every change, a load that raced one is not kept
+	private long _generation = 0;
+
+	/**
+	 * @param feed the feed keeping the counts fresh, or null to always query
+	 */
+	public SeatCountView(ChangeFeed feed) {
+		this._feed = feed;
+	}
+
+	/**
+	 * Method to get the number of bookings on a flight for a departure date.
+	 *
+	 * @param esql the database session used when the count is not in memory
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @return the number of bookings
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getBooked(AirBooking esql, String flightNum, LocalDate departure) throws SQLException {
+		long flight = FlightNum.pack(flightNum);
+		long day = departure.toEpochDay();
+		long generation;
+		synchronized (this) {
+			if (this._feed != null && this._feed.isLive()) {
+				Map<Long, Integer> days = this._booked.get(flight);
+				Integer booked = days == null ? null : days.get(day);
+				if (booked != null) return booked;
+			}
+			generation = this._generation;
+		}
+
+		// the primary, a replica may not have replayed the booking the feed just reported
+		List<List<String>> rows = esql.executeQueryOnPrimaryAndReturnResult(FlightNum.unpack(flight),
+			"SELECT COUNT(*) FROM Booking WHERE flightNum = '" + FlightNum.unpack(flight) + "' AND departure = '" + departure + "';");
+		int booked = Integer.parseInt(rows.get(0).get(0));
+
+		synchronized (this) {
+			if (this._feed != null && this._feed.isLive() && this._generation == generation) {
+				Map<Long, Integer> days = this._booked.get(flight);
+				if (days == null) this._booked.put(flight, days = new HashMap<Long, Integer>());
+				days.put(day, booked);
+			}
+		}
+		return booked;
+	}
+
+	public synchronized void apply(ChangeEvent event) {
+		if (!event.table.equals("booking")) return;
+		this._generation++;
+		// booking fields are bookRef, departure, flightNum, pID
+		drop(event.fields);
+		if (event.oldFields != null) drop(event.oldFields);
+	}
+
+	private void drop(String[] fields) {
+		Map<Long, Integer> days = this._booked.get(FlightNum.pack(fields[2]));
+		if (days != null) days.remove(LocalDate.parse(fields[1]).toEpochDay());
+	}
+
+	public synchronized void resync() {
+		this._generation++;
+		this._booked.clear();
+	}
+
+	public String getSnapshotName() {
+		return "seatCounts";
+	}
+
+	public synchronized boolean writeSnapshot(DataOutputStream out) throws IOException {
+		if (this._booked.isEmpty()) return false;
+		out.writeInt(this._booked.size());
+		for (Map.Entry<Long, Map<Long, Integer>> flight : this._booked.entrySet()) {
+			out.writeLong(flight.getKey());
+			out.writeInt(flight.getValue().size());
+			for (Map.Entry<Long, Integer> day : flight.getValue().entrySet()) {
+				out.writeLong(day.getKey());
+				out.writeInt(day.getValue());
+			}
+		}
+		return true;
+	}
+
+	public void readSnapshot(ByteBuffer in) {
+		Map<Long, Map<Long, Integer>> booked = new HashMap<Long, Map<Long, Integer>>();
+		for (int flights = in.getInt(); flights > 0; flights--) {
+			Map<Long, Integer> days = new HashMap<Long, Integer>();
+			booked.put(in.getLong(), days);
+			for (int count = in.getInt(); count > 0; count--) days.put(in.getLong(), in.getInt());
+		}
+		synchronized (this) {
+			this._generation++;
+			this._booked = booked;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+
+/**
+ * This class holds the taken seats of one flight and departure date as a
+ * bitmap of 8 longs, seat n being bit n - 1, which covers every plane
+ * _SEATS allows. Finding a free seat or a block of free seats for a group
+ * works on whole words at a time instead of one seat at a time.
+ *
+ * The bitmap is stored in SeatMap.taken as 64 bytes in the order of
+ * Postgres' get_bit, and the triggers on Booking (V007, V010) keep it in
+ * step with the bookings in the same transaction.
+ *
+ */
+
+public class SeatMap{
+	public static final int WORDS = 8;
+
+	private final long[] _taken;
+	private final int _capacity;
+
+	public SeatMap(int capacity) {
+		this(capacity, new long[WORDS]);
+	}
+
+	private SeatMap(int capacity, long[] taken) {
+		if (capacity < 1 || capacity > WORDS * 64) throw new IllegalArgumentException("A plane has 1 to " + WORDS * 64 + " seats, not " + capacity);
+		this._capacity = capacity;
+		this._taken = taken;
+	}
+
+	/**
+	 * Method to read a bitmap as stored in SeatMap.taken.
+	 *
+	 * @param capacity the flight's seats
+	 * @param bytes the stored bitmap, null when nothing was booked yet
+	 * @return the seat map
+	 */
+	public static SeatMap fromBytes(int capacity, byte[] bytes) {
+		long[] taken = new long[WORDS];
+		if (bytes != null) ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(taken);
+		return new SeatMap(capacity, taken);
+	}
+
+	/**
+	 * Method to write the bitmap as stored in SeatMap.taken: byte n / 8 holds
+	 * seat n + 1 in its bit n % 8, counted from the lowest.
+	 *
+	 * @return the 64 bytes of the bitmap
+	 */
+	public byte[] toBytes() {
+		ByteBuffer bytes = ByteBuffer.allocate(WORDS * 8).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.asLongBuffer().put(this._taken);
+		return bytes.array();
+	}
+
+	public int getCapacity() {
+		return this._capacity;
+	}
+
+	public int getFree() {
+		int taken = 0;
+		for (long word : this._taken) taken += Long.bitCount(word);
+		return this._capacity - taken;
+	}
+
+	public boolean isTaken(int seat) {
+		check(seat);
+		return (this._taken[(seat - 1) >>> 6] & (1L << (seat - 1))) != 0;
+	}
+
+	public void take(int seat) {
+		if (isTaken(seat)) throw new IllegalStateException("Seat " + seat + " is taken");
+		this._taken[(seat - 1) >>> 6] |= 1L << (seat - 1);
+	}
+
+	public void release(int seat) {
+		check(seat);
+		this._taken[(seat - 1) >>> 6] &= ~(1L << (seat - 1));
+	}
+
+	private void check(int seat) {
+		if (seat < 1 || seat > this._capacity) throw new IllegalArgumentException("There is no seat " + seat + ", the plane has " + this._capacity);
+	}
+
+	/**
+	 * Method to find the lowest free seat.
+	 *
+	 * @return the seat, 0 when the flight is full
+	 */
+	public int firstFree() {
+		return findBlock(1);
+	}
+
+	/**
+	 * Method to find the lowest seat starting a block of free seats next to
+	 * each other. The free seats are ANDed with themselves shifted by the
+	 * block length found so far, doubling it every time, so a block of n
+	 * takes about log2(n) passes over the 8 words.
+	 *
+	 * @param seats the size of the block
+	 * @return the first seat of the block, 0 when there is no such block
+	 */
+	public int findBlock(int seats) {
+		if (seats < 1 || seats > this._capacity) return 0;
+		// bit i set: seat i + 1 is free
+		long[] free = new long[WORDS];
+		for (int i = 0; i < WORDS; i++) free[i] = ~this._taken[i] & validBits(i);
+		// bit i set: seats i + 1 to i + run are all free
+		for (int run = 1; run < seats; ) {
+			int step = Math.min(run, seats - run);
+			long[] shifted = shiftDown(free, step);
+			for (int i = 0; i < WORDS; i++) free[i] &= shifted[i];
+			run += step;
+		}
+		for (int i = 0; i < WORDS; i++) {
+			if (free[i] != 0) return i * 64 + Long.numberOfTrailingZeros(free[i]) + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Method to take a block of free seats next to each other.
+	 *
+	 * @param seats the size of the block
+	 * @return the first seat of the block, 0 when there is no such block
+	 */
+	public int takeBlock(int seats) {
+		int first = findBlock(seats);
+		for (int seat = first; first > 0 && seat < first + seats; seat++) take(seat);
+		return first;
+	}
+
+	// the bits of word i that stand for seats of the plane
+	private long validBits(int word) {
+		int bits = this._capacity - word * 64;
+		return bits >= 64 ? -1L : bits <= 0 ? 0 : (1L << bits) - 1;
+	}
+
+	// the bitmap moved towards seat 1 by count seats, as one 512 bit number
+	private static long[] shiftDown(long[] bits, int count) {
+		long[] shifted = new long[WORDS];
+		int words = count >>> 6;
+		int offset = count & 63;
+		for (int i = 0; i + words < WORDS; i++) {
+			long high = i + words + 1 < WORDS ? bits[i + words + 1] : 0;
+			shifted[i] = offset == 0 ? bits[i + words] : (bits[i + words] >>> offset) | (high << (64 - offset));
+		}
+		return shifted;
+	}
+
+	/**
+	 * Method to show the map ten seats to a line, taken seats as XX.
+	 *
+	 * @return the seat map as text
+	 */
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int seat = 1; seat <= this._capacity; seat++) {
+			if (seat > 1 && seat % 10 == 1) text.append("\n");
+			text.append(isTaken(seat) ? "  XX" : String.format(" %3d", seat));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Method to read the seat map of a flight on a departure date, as
+	 * booked on the flight's primary, not a replica.
+	 *
+	 * @param esql the database session
+	 * @param flightNum the flight
+	 * @param departure the departure date
+	 * @return the seat map, null when the flight does not exist
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static SeatMap load(AirBooking esql, String flightNum, LocalDate departure) throws SQLException {
+		return esql.getPolicy().read(() -> load(esql.getPolicy(), esql.getWriteConnection(flightNum), flightNum, departure, false));
+	}
+
+	/**
+	 * Method to read and lock the seat map of a flight on a departure date
+	 * in the connection's transaction, creating it when nothing was booked
+	 * yet. Bookings of the flight on that date wait until it ends.
+	 *
+	 * @param policy the statement policy
+	 * @param connection the flight's primary, in a transaction
+	 * @param flightNum the flight, which must exist
+	 * @param departure the departure date
+	 * @return the seat map
+	 * @throws java.sql.SQLException when failed to execute the statements
+	 */
+	public static SeatMap lock(ExecutionPolicy policy, Connection connection, String flightNum, LocalDate departure) throws SQLException {
+		PreparedStatement stmt = policy.prepare(connection,
+			"INSERT INTO SeatMap (flightNum, departure, taken) VALUES (?, ?, ?) ON CONFLICT DO NOTHING", true);
+		stmt.setString(1, flightNum);
+		stmt.setDate(2, Date.valueOf(departure));
+		stmt.setBytes(3, new byte[WORDS * 8]);
+		stmt.executeUpdate();
+		stmt.close();
+		return load(policy, connection, flightNum, departure, true);
+	}
+
+	private static SeatMap load(ExecutionPolicy policy, Connection connection, String flightNum, LocalDate departure, boolean forUpdate) throws SQLException {
+		// a row of the outer side of a join cannot be locked, the locked one always exists
+		PreparedStatement stmt = policy.prepare(connection,
+			"SELECT f.seats, s.taken FROM Flight f " + (forUpdate ? "JOIN" : "LEFT JOIN") + " SeatMap s "
+			+ "ON s.flightNum = f.flightNum AND s.departure = ? WHERE f.flightNum = ?" + (forUpdate ? " FOR UPDATE OF s" : ""), forUpdate);
+		stmt.setDate(1, Date.valueOf(departure));
+		stmt.setString(2, flightNum);
+		try{
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? fromBytes(rs.getInt(1), rs.getBytes(2)) : null;
+		}finally{
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This class spreads Booking and Ratings over several databases by the
+ * airId of the booked or rated flight, so all rows of a flight live on one
+ * shard. Airline, Flight and Passenger are reference data: every shard has
+ * a full copy and writes to them go to all of them. Shard 0 is the primary
+ * the client connects to, the others come from
+ * -Dairbooking.shards=host:port,...
+ * A flight keeps its shard: saving a route refuses an airId of an airline
+ * on another shard, which would leave the route's rows behind.
+ *
+ * Queries over all flights run on every shard in parallel and the results
+ * are concatenated; a per flight aggregate is complete on its shard, so a
+ * top-K is the top-K of the shards' own top-K lists.
+ *
+ */
+
+public class ShardRouter{
+	//index = shard number, 0 is the primary
+	private List<Connection> _shards = new ArrayList<Connection>();
+	//packed flightNum -> airId, from the reference copy of Flight
+	private Map<Long, Integer> _airIds = null;
+	private ExecutorService _pool;
+	private ExecutionPolicy _policy;
+
+	public ShardRouter(Connection primary, List<Connection> shards, ExecutionPolicy policy) {
+		this._policy = policy;
+		this._shards.add(primary);
+		this._shards.addAll(shards);
+		this._pool = Executors.newFixedThreadPool(this._shards.size(), task -> {
+			Thread thread = new Thread(task, "shard-query");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public int getShardCount() {
+		return this._shards.size();
+	}
+
+	public Connection getShard(int shard) {
+		return this._shards.get(shard);
+	}
+
+	/**
+	 * Method to replace shard 0's connection after the primary was reopened.
+	 *
+	 * @param primary the new primary connection
+	 */
+	public void setPrimary(Connection primary) {
+		this._shards.set(0, primary);
+	}
+
+	public int shardOf(int airId) {
+		return Math.floorMod(airId, this._shards.size());
+	}
+
+	/**
+	 * Method to get the shard holding the bookings and ratings of a flight.
+	 *
+	 * @param flightNum the flight number
+	 * @return the shard's connection
+	 * @throws java.sql.SQLException when the flight does not exist
+	 */
+	public Connection forFlight(String flightNum) throws SQLException {
+		return this._shards.get(shardIndexOf(flightNum));
+	}
+
+	/**
+	 * Method to get the number of the shard holding the bookings and ratings of a flight.
+	 *
+	 * @param flightNum the flight number
+	 * @return the shard number, 0 for the primary
+	 * @throws java.sql.SQLException when the flight does not exist
+	 */
+	public synchronized int shardIndexOf(String flightNum) throws SQLException {
+		if (this._airIds == null) {
+			Map<Long, Integer> airIds = new HashMap<Long, Integer>();
+			Statement stmt = this._shards.get(0).createStatement ();
+			ResultSet rs = stmt.executeQuery ("SELECT flightNum, airId FROM Flight");
+			while (rs.next()) airIds.put(FlightNum.pack(rs.getString(1)), rs.getInt(2));
+			stmt.close ();
+			this._airIds = airIds;
+		}
+		Integer airId = this._airIds.get(FlightNum.pack(flightNum));
+		if (airId == null) throw new SQLException("Flight " + flightNum.trim() + " does not exist");
+		return shardOf(airId);
+	}
+
+	/**
+	 * Method to forget the flight to airline mapping after Flight was written.
+	 */
+	public synchronized void invalidate() {
+		this._airIds = null;
+	}
+
+	/**
+	 * Method to execute a write on every shard, for the reference tables.
+	 * Shards are written one after the other and a failure on one does not
+	 * undo the others, so it names the shards left out of sync.
+	 *
+	 * @param sql the statement
+	 * @throws java.sql.SQLException when it failed on any shard
+	 */
+	public void broadcast(String sql) throws SQLException {
+		List<Integer> failed = new ArrayList<Integer>();
+		SQLException first = null;
+		for (int i = 0; i < this._shards.size(); i++) {
+			Connection shard = this._shards.get(i);
+			try{
+				this._policy.write(() -> {
+					Statement stmt = this._policy.statement(shard, true);
+					stmt.executeUpdate (sql);
+					stmt.close ();
+					return null;
+				}, null);
+			}catch(SQLException e){
+				// nothing was written yet, give up before the copies diverge
+				if (i == 0) throw e;
+				failed.add(i);
+				if (first == null) first = e;
+			}
+		}
+		if (first != null) throw new SQLException("Shards " + failed + " are out of sync: " + first.getMessage(), first);
+	}
+
+	/**
+	 * Method to execute a query on every shard in parallel.
+	 *
+	 * @param query the input query string
+	 * @return the records of all shards, shard 0's first
+	 * @throws java.sql.SQLException when it failed on any shard
+	 */
+	public List<List<String>> gather(String query) throws SQLException {
+		List<Future<ColumnarResult>> parts = new ArrayList<Future<ColumnarResult>>();
+		for (Connection shard : this._shards) {
+			parts.add(this._pool.submit(() -> this._policy.read(() -> query(shard, query))));
+		}
+		List<ColumnarResult> result = new ArrayList<ColumnarResult>();
+		for (Future<ColumnarResult> part : parts) {
+			try{
+				result.add(part.get());
+			}catch(ExecutionException e){
+				if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+				throw new SQLException(e.getCause());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while querying the shards");
+			}
+		}
+		// the shards' columns are kept as they are, not copied into one list
+		return ColumnarResult.concat(result);
+	}
+
+	/**
+	 * Method to execute a top-K query on every shard in parallel and merge
+	 * the results. The query must order by, and be limited to, the same k rows
+	 * the order here picks, and every group it ranks must live on one shard.
+	 *
+	 * @param query the input query string, ending in ORDER BY ... LIMIT k
+	 * @param order the order of the query's ORDER BY
+	 * @param k the number of records wanted
+	 * @return the k first records over all shards
+	 * @throws java.sql.SQLException when it failed on any shard
+	 */
+	public List<List<String>> gatherTopK(String query, Comparator<List<String>> order, int k) throws SQLException {
+		return topK(gather(query), order, k);
+	}
+
+	/**
+	 * Method to pick the k first records of a list without sorting all of it.
+	 *
+	 * @param records the records
+	 * @param order the order records are ranked in
+	 * @param k the number of records wanted
+	 * @return the k first records, in order
+	 */
+	public static <T> List<T> topK(List<T> records, Comparator<T> order, int k) {
+		// keeps the k best seen so far, the worst of them on top
+		PriorityQueue<T> best = new PriorityQueue<T>(Math.max(1, k), order.reversed());
+		for (T record : records) {
+			best.add(record);
+			if (best.size() > k) best.poll();
+		}
+		List<T> result = new ArrayList<T>(best);
+		Collections.sort(result, order);
+		return result;
+	}
+
+	private ColumnarResult query(Connection connection, String query) throws SQLException {
+		Statement stmt = this._policy.statement(connection, false);
+		ColumnarResult result = ColumnarResult.from(stmt.executeQuery (query));
+		stmt.close ();
+		return result;
+	}
+
+	/**
+	 * Method to stop the query threads and close the shards' connections.
+	 * The primary is left to its owner.
+	 */
+	public void cleanup() {
+		this._pool.shutdownNow();
+		for (int i = 1; i < this._shards.size(); i++) {
+			try{
+				this._shards.get(i).close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * This class saves the in-memory indexes to a file so a restarted client
+ * does not rebuild them by scanning the tables. The file is
+ *
+ *   magic "ABSN", format version, change_log watermark, section count,
+ *   then per section: name, length, CRC32 of the bytes, the bytes
+ *
+ * in big endian. It is memory mapped on load and the sections are checked
+ * and decoded in parallel. Everything changed after the watermark is then
+ * replayed from change_log by the ChangeFeed, so the restored state ends up
+ * as fresh as a rebuilt one. A file with another version, a bad checksum or
+ * a torn write is ignored and the indexes are rebuilt as before.
+ *
+ */
+
+public class Snapshot{
+	private static final int MAGIC = 0x4142534E;
+	//bump whenever a section's layout changes
+	public static final int VERSION = 2;
+
+	private File _file;
+	private List<SnapshotSection> _sections = new ArrayList<SnapshotSection>();
+
+	public Snapshot(File file) {
+		this._file = file;
+	}
+
+	public void register(SnapshotSection section) {
+		this._sections.add(section);
+	}
+
+	/**
+	 * Method to write every section to the snapshot file. The file is
+	 * replaced atomically, a crash while saving leaves the previous one.
+	 *
+	 * @param watermark the change_log seq every change up to which is reflected in the sections
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void save(long watermark) throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<byte[]> sections = new ArrayList<byte[]>();
+		for (SnapshotSection section : this._sections) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (!section.writeSnapshot(out)) continue;
+			out.flush();
+			names.add(section.getSnapshotName());
+			sections.add(bytes.toByteArray());
+		}
+
+		File part = new File(this._file.getPath() + ".part");
+		FileOutputStream file = new FileOutputStream(part);
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(watermark);
+			out.writeInt(sections.size());
+			for (int i = 0; i < sections.size(); i++) {
+				byte[] data = sections.get(i);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				out.writeUTF(names.get(i));
+				out.writeInt(data.length);
+				out.writeLong(crc.getValue());
+				out.write(data);
+			}
+			out.flush();
+			// on disk before it can replace the old file
+			file.getFD().sync();
+		}finally{
+			file.close();
+		}
+		Files.move(part.toPath(), this._file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Method to restore the registered sections from the snapshot file. The
+	 * sections are only valid when a watermark is returned; after -1 some may
+	 * hold partial state, which the ChangeFeed's first resync drops.
+	 *
+	 * @param threads the number of sections decoded at the same time
+	 * @return the watermark the file was saved at, or -1 when there was no usable file
+	 */
+	public long load(int threads) {
+		if (!this._file.isFile()) return -1;
+		Map<String, ByteBuffer> found = new HashMap<String, ByteBuffer>();
+		long watermark;
+		try (FileChannel channel = FileChannel.open(this._file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				System.err.println("Ignoring snapshot " + this._file + ": not a version " + VERSION + " snapshot");
+				return -1;
+			}
+			watermark = map.getLong();
+			int count = map.getInt();
+			List<Long> checksums = new ArrayList<Long>();
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[map.getShort() & 0xFFFF];
+				map.get(name);
+				int length = map.getInt();
+				long checksum = map.getLong();
+				// a slice is a view of the mapped file, nothing is copied
+				ByteBuffer data = map.slice();
+				data.limit(length);
+				map.position(map.position() + length);
+				names.add(new String(name, StandardCharsets.UTF_8));
+				checksums.add(checksum);
+				found.put(names.get(i), data);
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try{
+				List<Future<Boolean>> checks = new ArrayList<Future<Boolean>>();
+				for (int i = 0; i < count; i++) {
+					ByteBuffer data = found.get(names.get(i)).duplicate();
+					long checksum = checksums.get(i);
+					checks.add(pool.submit(() -> {
+						CRC32 crc = new CRC32();
+						crc.update(data);
+						return crc.getValue() == checksum;
+					}));
+				}
+				for (int i = 0; i < count; i++) {
+					if (!checks.get(i).get()) {
+						System.err.println("Ignoring snapshot " + this._file + ": section " + names.get(i) + " is corrupt");
+						return -1;
+					}
+				}
+
+				List<Future<?>> reads = new ArrayList<Future<?>>();
+				for (SnapshotSection section : this._sections) {
+					ByteBuffer data = found.get(section.getSnapshotName());
+					if (data != null) reads.add(pool.submit(() -> section.readSnapshot(data.duplicate())));
+				}
+				for (Future<?> read : reads) read.get();
+			}finally{
+				pool.shutdown();
+			}
+		}catch(Exception e){
+			// a truncated file ends up here as a BufferUnderflowException or IllegalArgumentException
+			System.err.println("Ignoring snapshot " + this._file + ": " + e);
+			return -1;
+		}
+		return watermark;
+	}
+}
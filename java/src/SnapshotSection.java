@@ -0,0 +1,25 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory state that can be saved to and restored from a Snapshot file.
+ *
+ */
+
+public interface SnapshotSection{
+	/**
+	 * The name the section is stored under, unique within a snapshot.
+	 */
+	String getSnapshotName();
+
+	/**
+	 * Writes the current state. Returns false, writing nothing, when there is nothing worth keeping.
+	 */
+	boolean writeSnapshot(DataOutputStream out) throws IOException;
+
+	/**
+	 * Replaces the state with the one read back from a section this wrote.
+	 */
+	void readSnapshot(ByteBuffer in);
+}
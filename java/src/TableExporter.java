@@ -0,0 +1,214 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.postgresql.PGConnection;
+
+/**
+ * This class exports tables to gzip compressed CSV files for the nightly
+ * warehouse extract. Every table streams through COPY ... TO STDOUT on its
+ * own connection, in parallel, into fixed size buffers, so no table is
+ * ever held in the JVM heap. All connections share one exported snapshot,
+ * which makes the files consistent with each other, as pg_dump does.
+ *
+ */
+
+public class TableExporter{
+	//write buffer per table, the only per table memory the export holds
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final String[] TABLES = {"Airline", "Passenger", "Flight", "Ratings", "Booking"};
+
+	private String _url;
+	private String _user;
+	private String _passwd;
+	private File _outDir;
+	private int _threads;
+
+	public TableExporter(String dbname, String dbport, String user, String passwd, File outDir, int threads) {
+		this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._user = user;
+		this._passwd = passwd;
+		this._outDir = outDir;
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to export the tables, optionally only the Booking rows
+	 * departing in [from, to).
+	 *
+	 * @param from first departure date exported (yyyy-mm-dd), or null
+	 * @param to departure date the export stops before (yyyy-mm-dd), or null
+	 * @throws Exception when any table failed to export
+	 */
+	public void export(String from, String to) throws Exception {
+		this._outDir.mkdirs();
+
+		// holding this transaction open keeps the snapshot importable
+		Connection coordinator = DriverManager.getConnection(this._url, this._user, this._passwd);
+		coordinator.setAutoCommit(false);
+		coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		Statement stmt = coordinator.createStatement ();
+		ResultSet rs = stmt.executeQuery ("SELECT pg_export_snapshot()");
+		rs.next();
+		String snapshot = rs.getString(1);
+
+		List<Progress> progress = new ArrayList<Progress>();
+		for (String table : TABLES) {
+			String select = "SELECT * FROM " + table;
+			if (table.equals("Booking") && from != null) {
+				// a range on departure only scans the partitions it covers
+				select += " WHERE departure >= '" + from + "' AND departure < '" + to + "'";
+			}
+			progress.add(new Progress(table, select, estimateRows(stmt, table)));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (Progress table : progress) {
+			results.add(pool.submit(() -> exportTable(table, snapshot)));
+		}
+		pool.shutdown();
+		try{
+			while (!pool.awaitTermination(2, TimeUnit.SECONDS)) {
+				printProgress(progress);
+			}
+			printProgress(progress);
+			for (int i = 0; i < results.size(); i++) {
+				System.out.println(progress.get(i).table + ": " + results.get(i).get() + " rows");
+			}
+		}finally{
+			stmt.close ();
+			coordinator.rollback();
+			coordinator.close();
+		}
+	}
+
+	private long exportTable(Progress table, String snapshot) throws SQLException, IOException {
+		File part = new File(this._outDir, table.table.toLowerCase() + ".csv.gz.part");
+		Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		try{
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = connection.createStatement ();
+			stmt.execute ("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+			stmt.close ();
+
+			OutputStream out = new CountingOutputStream(
+				new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(part), BUFFER_SIZE), BUFFER_SIZE), table);
+			long rows;
+			try{
+				rows = ((PGConnection) connection).getCopyAPI().copyOut(
+					"COPY (" + table.select + ") TO STDOUT WITH (FORMAT csv, HEADER)", out);
+			}finally{
+				out.close();
+			}
+			connection.rollback();
+			// only complete files get the final name
+			File done = new File(this._outDir, table.table.toLowerCase() + ".csv.gz");
+			if (!part.renameTo(done)) throw new IOException("Could not rename " + part + " to " + done);
+			return rows;
+		}finally{
+			connection.close();
+		}
+	}
+
+	private static long estimateRows(Statement stmt, String table) throws SQLException {
+		// planner statistics, a partitioned table's count is the sum of its partitions
+		ResultSet rs = stmt.executeQuery ("SELECT COALESCE(SUM(c.reltuples), 0)::bigint FROM pg_class c "
+			+ "WHERE c.oid = '" + table.toLowerCase() + "'::regclass OR c.oid IN "
+			+ "(SELECT inhrelid FROM pg_inherits WHERE inhparent = '" + table.toLowerCase() + "'::regclass)");
+		return rs.next() ? rs.getLong(1) : 0;
+	}
+
+	private static void printProgress(List<Progress> progress) {
+		StringBuilder line = new StringBuilder();
+		for (Progress table : progress) {
+			line.append(table.table).append(' ').append(table.rows);
+			if (table.estimate > 0) line.append(" (").append(Math.min(100, table.rows * 100 / table.estimate)).append("%)");
+			line.append(' ').append(table.bytes >> 20).append("MB  ");
+		}
+		System.out.println(line);
+	}
+
+	private static class Progress{
+		final String table;
+		final String select;
+		final long estimate;
+		//written by the exporting thread, read by the reporter
+		volatile long rows = 0;
+		volatile long bytes = 0;
+
+		Progress(String table, String select, long estimate) {
+			this.table = table;
+			this.select = select;
+			this.estimate = estimate;
+		}
+	}
+
+	// counts the uncompressed CSV bytes and lines going into the file
+	private static class CountingOutputStream extends FilterOutputStream{
+		private final Progress _progress;
+
+		CountingOutputStream(OutputStream out, Progress progress) {
+			super(out);
+			this._progress = progress;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			this._progress.bytes++;
+			if (b == '\n') this._progress.rows++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			long lines = 0;
+			for (int i = off; i < off + len; i++)
+				if (b[i] == '\n') lines++;
+			this._progress.bytes += len;
+			this._progress.rows += lines;
+		}
+	}
+
+	/**
+	 * The export entry point, meant to be run nightly.
+	 *
+	 * @param args <dbname> <port> <user> <outdir> [<from> <to>]
+	 */
+	public static void main (String[] args) {
+		if (args.length != 4 && args.length != 6) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + TableExporter.class.getName () +
+		            " <dbname> <port> <user> <outdir> [<from yyyy-mm-dd> <to yyyy-mm-dd>]");
+			return;
+		}//end if
+		try{
+			Class.forName("org.postgresql.Driver");
+			int threads = Integer.parseInt(System.getProperty("airbooking.exportThreads", "4"));
+			TableExporter exporter = new TableExporter(args[0], args[1], args[2], "", new File(args[3]), threads);
+			// parsing rejects anything that is not a plain date before it reaches the SQL
+			String from = args.length == 6 ? LocalDate.parse(args[4]).toString() : null;
+			String to = args.length == 6 ? LocalDate.parse(args[5]).toString() : null;
+			exporter.export(from, to);
+		}catch(Exception e){
+			System.err.println ("Export failed: " + e.getMessage ());
+			System.exit(1);
+		}
+	}
+}
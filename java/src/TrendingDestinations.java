@@ -0,0 +1,454 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class ranks destinations by the bookings made for them, unlike
+ * option 6 which ranks them by the flights offered. Bookings are counted
+ * per destination in a ring of hourly buckets covering the last 30 days of
+ * booking time (Booking.bookedAt, see V009), with running totals for the
+ * last 24 hours, 7 days and 30 days: a new booking adds to its bucket and
+ * to the totals, and every hour the ring moves on, the bucket leaving a
+ * window is subtracted from its total. Counts per departure date are kept
+ * as well, for the bookings of a range of departures. A top-K reads one
+ * int[] per destination and never touches Booking.
+ *
+ * The counts are rebuilt from Booking, every partition of every shard
+ * aggregated on its own connection in parallel from one snapshot per
+ * shard, and then kept up to date by the ChangeFeed's booking events.
+ * Events arriving during a rebuild are held and applied after it, except
+ * the ones its snapshot already saw. Without a live feed, e.g. when
+ * sharded, a background timer rebuilds the counts once they are older than
+ * the refresh interval, as it does when the feed asked for a resync; a
+ * query never waits for that and reads the last counts built, only the
+ * first query waits for the first build.
+ *
+ * Destinations are the codes of NameDictionary.CITIES. A booking counts for
+ * its flight's destination at the time it was made.
+ *
+ */
+
+public class TrendingDestinations implements ChangeView{
+	//the ring: one bucket per hour of the last 30 days
+	public static final int HOURS = 30 * 24;
+	//the booking time windows kept, in hours
+	public static final int[] WINDOWS = {24, 7 * 24, 30 * 24};
+	private static final long HOUR_MS = 3600 * 1000L;
+
+	// the counts, replaced whole by a rebuild
+	private static class Counts{
+		//packed flightNum -> code of its destination
+		Map<Long, Integer> flights = new HashMap<Long, Integer>();
+		//hour % HOURS -> bookings per destination made in that hour
+		int[][] ring = new int[HOURS][0];
+		//the newest hour of the ring, in hours since the epoch
+		long head;
+		//window -> bookings per destination made in it
+		int[][] windows = new int[WINDOWS.length][0];
+		//epoch day of departure -> bookings per destination
+		TreeMap<Long, int[]> departures = new TreeMap<Long, int[]>();
+
+		Counts(long head) {
+			this.head = head;
+		}
+
+		// moves the ring on to an hour, dropping the buckets that left each window from its total
+		void advance(long hour) {
+			if (hour <= this.head) return;
+			if (hour - this.head >= HOURS) {
+				for (int[] bucket : this.ring) Arrays.fill(bucket, 0);
+				for (int[] window : this.windows) Arrays.fill(window, 0);
+				this.head = hour;
+				return;
+			}
+			while (this.head < hour) {
+				this.head++;
+				for (int w = 0; w < WINDOWS.length; w++) {
+					int[] leaving = this.ring[(int) Math.floorMod(this.head - WINDOWS[w], (long) HOURS)];
+					this.windows[w] = grow(this.windows[w], leaving.length - 1);
+					for (int d = 0; d < leaving.length; d++) this.windows[w][d] -= leaving[d];
+				}
+				// the longest window just dropped it, so the bucket is free for the new hour
+				Arrays.fill(this.ring[(int) Math.floorMod(this.head, (long) HOURS)], 0);
+			}
+		}
+
+		void add(long hour, int destination, int delta) {
+			advance(hour);
+			if (hour <= this.head - HOURS) return;
+			int i = (int) Math.floorMod(hour, (long) HOURS);
+			this.ring[i] = grow(this.ring[i], destination);
+			this.ring[i][destination] += delta;
+			for (int w = 0; w < WINDOWS.length; w++) {
+				if (hour <= this.head - WINDOWS[w]) continue;
+				this.windows[w] = grow(this.windows[w], destination);
+				this.windows[w][destination] += delta;
+			}
+		}
+
+		void addDeparture(long day, int destination, int delta) {
+			int[] counts = grow(this.departures.get(day), destination);
+			counts[destination] += delta;
+			this.departures.put(day, counts);
+		}
+	}
+
+	private List<String> _urls;
+	private String _user;
+	private String _passwd;
+	private int _threads;
+	private long _refreshMs;
+	private ChangeFeed _feed;
+	private ScheduledExecutorService _timer = null;
+
+	//held by a rebuild and by the queries waiting for one
+	private final Object _rebuildLock = new Object();
+	private Counts _counts = null;
+	private boolean _stale = true;
+	//the events that arrived during a rebuild, null when none is running
+	private List<ChangeEvent> _pending = null;
+	private long _builtAt = 0;
+	//a query asked the timer for a rebuild that has not started yet
+	private boolean _queued = false;
+
+	private long _rebuilds = 0;
+	private long _rebuildMs = 0;
+	private String _lastError = null;
+
+	/**
+	 * @param urls the JDBC urls of the database and its shards
+	 * @param user the database user
+	 * @param passwd the user's password
+	 * @param threads the number of partitions aggregated at once by a rebuild
+	 * @param refreshMs how old the counts may get when the feed does not keep them fresh
+	 * @param feed the feed the counts are registered with, or null
+	 */
+	public TrendingDestinations(List<String> urls, String user, String passwd, int threads, long refreshMs, ChangeFeed feed) {
+		this._urls = urls;
+		this._user = user;
+		this._passwd = passwd;
+		this._threads = threads;
+		this._refreshMs = refreshMs;
+		this._feed = feed;
+	}
+
+	/**
+	 * Method to build the counts in the background now, and again whenever
+	 * they went stale or, without a live feed, older than the refresh
+	 * interval.
+	 */
+	public void start() {
+		this._timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "trending");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this._timer.scheduleWithFixedDelay(this::refresh, 0, Math.max(1, this._refreshMs), TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (this._timer != null) this._timer.shutdownNow();
+	}
+
+	/**
+	 * Method to get the destinations most booked during the last hours.
+	 * Each record holds the destination and its number of bookings.
+	 *
+	 * @param hours the window, one of WINDOWS
+	 * @param k the number of destinations
+	 * @return the destinations, most bookings first and by name among ties
+	 * @throws java.sql.SQLException when there were no counts yet and building them failed
+	 */
+	public List<List<String>> trending(int hours, int k) throws SQLException {
+		int w = 0;
+		while (w < WINDOWS.length && WINDOWS[w] != hours) w++;
+		if (w == WINDOWS.length) throw new IllegalArgumentException("Bookings are counted for the last 24, 168 or 720 hours, not " + hours);
+		fresh();
+		synchronized (this) {
+			this._counts.advance(System.currentTimeMillis() / HOUR_MS);
+			return top(this._counts.windows[w], k);
+		}
+	}
+
+	/**
+	 * Method to get the destinations most booked for departures between two
+	 * dates. Each record holds the destination and its number of bookings.
+	 *
+	 * @param from the first departure date
+	 * @param to the last departure date
+	 * @param k the number of destinations
+	 * @return the destinations, most bookings first and by name among ties
+	 * @throws java.sql.SQLException when there were no counts yet and building them failed
+	 */
+	public List<List<String>> trendingByDeparture(LocalDate from, LocalDate to, int k) throws SQLException {
+		fresh();
+		int[] total = new int[0];
+		synchronized (this) {
+			for (int[] day : this._counts.departures.subMap(from.toEpochDay(), true, to.toEpochDay(), true).values()) {
+				total = grow(total, day.length - 1);
+				for (int d = 0; d < day.length; d++) total[d] += day[d];
+			}
+		}
+		return top(total, k);
+	}
+
+	// waits only for the first counts, a stale one is rebuilt by the timer while queries read the last one built
+	private void fresh() throws SQLException {
+		boolean built;
+		synchronized (this) {
+			built = this._counts != null;
+		}
+		if (!built || this._timer == null) {
+			synchronized (this._rebuildLock) {
+				synchronized (this) {
+					built = this._counts != null;
+				}
+				if (!built || needsRebuild()) rebuild();
+			}
+			return;
+		}
+		if (!needsRebuild()) return;
+		synchronized (this) {
+			if (this._queued) return;
+			this._queued = true;
+		}
+		this._timer.execute(this::refresh);
+	}
+
+	private boolean needsRebuild() {
+		boolean live = this._feed != null && this._feed.isLive();
+		synchronized (this) {
+			return this._stale || (!live && System.currentTimeMillis() - this._builtAt > this._refreshMs);
+		}
+	}
+
+	// run by the timer, a failed rebuild keeps the last counts in use
+	private void refresh() {
+		synchronized (this) {
+			this._queued = false;
+		}
+		if (!needsRebuild()) return;
+		try{
+			rebuild();
+		}catch(Exception e){
+			synchronized (this) {
+				this._lastError = e.getMessage();
+			}
+		}
+	}
+
+	// the k destinations with the highest counts, by insertion into the few best so far
+	private static List<List<String>> top(int[] counts, int k) {
+		int[] best = new int[Math.max(0, Math.min(k, counts.length))];
+		int kept = 0;
+		for (int d = 0; d < counts.length; d++) {
+			if (counts[d] <= 0) continue;
+			int at = kept;
+			while (at > 0 && (counts[best[at - 1]] < counts[d]
+					|| (counts[best[at - 1]] == counts[d] && NameDictionary.CITIES.name(best[at - 1]).compareTo(NameDictionary.CITIES.name(d)) > 0))) at--;
+			if (at >= best.length) continue;
+			System.arraycopy(best, at, best, at + 1, Math.min(kept, best.length - 1) - at);
+			best[at] = d;
+			if (kept < best.length) kept++;
+		}
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (int i = 0; i < kept; i++) result.add(Arrays.asList(NameDictionary.CITIES.name(best[i]), String.valueOf(counts[best[i]])));
+		return result;
+	}
+
+	private static int[] grow(int[] counts, int destination) {
+		if (counts == null) counts = new int[0];
+		if (destination < counts.length) return counts;
+		return Arrays.copyOf(counts, Math.max(destination + 1, NameDictionary.CITIES.size()));
+	}
+
+	public synchronized void apply(ChangeEvent event) {
+		if (this._pending != null) {
+			this._pending.add(event);
+		}else if (this._counts != null && !this._stale) {
+			apply(this._counts, event);
+		}
+	}
+
+	private void apply(Counts counts, ChangeEvent event) {
+		if (event.table.equals("flight")) {
+			// flight fields are flightNum, airId, origin, destination, seats
+			if (event.oldFields != null) counts.flights.remove(FlightNum.pack(event.oldFields[0]));
+			if (event.op == 'D') counts.flights.remove(FlightNum.pack(event.fields[0]));
+			else counts.flights.put(FlightNum.pack(event.fields[0]), NameDictionary.CITIES.code(event.fields[3]));
+		}else if (event.table.equals("booking")) {
+			counts.advance(System.currentTimeMillis() / HOUR_MS);
+			if (event.oldFields != null) count(counts, event.oldFields, -1);
+			count(counts, event.fields, event.op == 'D' ? -1 : 1);
+		}
+	}
+
+	// booking fields are bookRef, departure, flightNum, pID and, since V009, bookedAt
+	private void count(Counts counts, String[] fields, int delta) {
+		Integer destination = counts.flights.get(FlightNum.pack(fields[2]));
+		if (destination == null) {
+			this._stale = true;
+			return;
+		}
+		counts.addDeparture(LocalDate.parse(fields[1]).toEpochDay(), destination, delta);
+		// bookings made before V009 have no booking time
+		if (fields.length > 4 && !fields[4].isEmpty()) {
+			counts.add(OffsetDateTime.parse(fields[4]).toInstant().toEpochMilli() / HOUR_MS, destination, delta);
+		}
+	}
+
+	public synchronized void resync() {
+		this._stale = true;
+	}
+
+	/**
+	 * Method to recount the bookings from Booking on every shard and
+	 * replace the counts.
+	 *
+	 * @throws java.sql.SQLException when the bookings could not be read
+	 */
+	public void rebuild() throws SQLException {
+		synchronized (this._rebuildLock) {
+			long start = System.currentTimeMillis();
+			synchronized (this) {
+				this._pending = new ArrayList<ChangeEvent>();
+				this._stale = false;
+			}
+			Counts counts = new Counts(System.currentTimeMillis() / HOUR_MS);
+			long watermark;
+			try{
+				watermark = load(counts, new Timestamp((counts.head - HOURS + 1) * HOUR_MS));
+			}catch(SQLException e){
+				synchronized (this) {
+					this._pending = null;
+					this._stale = true;
+				}
+				throw e;
+			}
+			synchronized (this) {
+				// what the snapshot saw is counted already
+				for (ChangeEvent event : this._pending) {
+					if (event.seq > watermark) apply(counts, event);
+				}
+				this._pending = null;
+				this._counts = counts;
+				this._builtAt = System.currentTimeMillis();
+				this._rebuilds++;
+				this._rebuildMs += this._builtAt - start;
+				this._lastError = null;
+			}
+		}
+	}
+
+	// fills the counts from every partition of every shard, returning the change_log seq the first shard's snapshot saw
+	private long load(Counts counts, Timestamp since) throws SQLException {
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+		List<Connection> coordinators = new ArrayList<Connection>();
+		try{
+			long watermark = 0;
+			List<Future<List<long[]>>> parts = new ArrayList<Future<List<long[]>>>();
+			for (String url : this._urls) {
+				Connection coordinator = DriverManager.getConnection(url, this._user, this._passwd);
+				coordinators.add(coordinator);
+				coordinator.setAutoCommit(false);
+				coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				Statement stmt = coordinator.createStatement ();
+				ResultSet rs = stmt.executeQuery ("SELECT pg_export_snapshot()");
+				rs.next();
+				String snapshot = rs.getString(1);
+				if (coordinators.size() == 1) {
+					rs = stmt.executeQuery ("SELECT COALESCE(MAX(seq), 0) FROM change_log");
+					rs.next();
+					watermark = rs.getLong(1);
+					// Flight is the same on every shard
+					rs = stmt.executeQuery ("SELECT flightNum, destination FROM Flight");
+					while (rs.next()) counts.flights.put(FlightNum.pack(rs.getString(1)), NameDictionary.CITIES.code(rs.getString(2)));
+				}
+
+				List<String> partitions = new ArrayList<String>();
+				rs = stmt.executeQuery ("SELECT inhrelid::regclass::text FROM pg_inherits WHERE inhparent = 'booking'::regclass");
+				while (rs.next()) partitions.add(rs.getString(1));
+				if (partitions.isEmpty()) partitions.add("Booking");
+				stmt.close ();
+				for (String partition : partitions) {
+					parts.add(pool.submit(() -> aggregate(url, snapshot, partition, since)));
+				}
+			}
+			for (Future<List<long[]>> part : parts) {
+				for (long[] row : part.get()) {
+					if (row[0] == 0) counts.addDeparture(row[2], (int) row[1], (int) row[3]);
+					else counts.add(row[2], (int) row[1], (int) row[3]);
+				}
+			}
+			return watermark;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while counting the bookings");
+		}catch(ExecutionException e){
+			throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause().getMessage());
+		}finally{
+			pool.shutdownNow();
+			for (Connection coordinator : coordinators) {
+				try{
+					coordinator.rollback();
+					coordinator.close();
+				}catch(SQLException e){
+					// ignored.
+				}
+			}
+		}
+	}
+
+	// {0, destination, departure day, bookings} and {1, destination, booking hour, bookings} of one partition
+	private List<long[]> aggregate(String url, String snapshot, String partition, Timestamp since) throws SQLException {
+		Connection connection = DriverManager.getConnection(url, this._user, this._passwd);
+		try{
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = connection.createStatement ();
+			stmt.execute ("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+			List<long[]> rows = new ArrayList<long[]>();
+			ResultSet rs = stmt.executeQuery (
+				"SELECT f.destination, b.departure, count(*) FROM " + partition + " b JOIN Flight f ON f.flightNum = b.flightNum GROUP BY 1, 2");
+			while (rs.next()) {
+				rows.add(new long[]{0, NameDictionary.CITIES.code(rs.getString(1)), rs.getDate(2).toLocalDate().toEpochDay(), rs.getLong(3)});
+			}
+			stmt.close ();
+			PreparedStatement hours = connection.prepareStatement (
+				"SELECT f.destination, floor(extract(epoch FROM b.bookedAt) / 3600)::bigint, count(*) FROM " + partition + " b "
+				+ "JOIN Flight f ON f.flightNum = b.flightNum WHERE b.bookedAt >= ? GROUP BY 1, 2");
+			hours.setTimestamp(1, since);
+			rs = hours.executeQuery();
+			while (rs.next()) rows.add(new long[]{1, NameDictionary.CITIES.code(rs.getString(1)), rs.getLong(2), rs.getLong(3)});
+			hours.close ();
+			connection.rollback();
+			return rows;
+		}finally{
+			connection.close();
+		}
+	}
+
+	public synchronized String getStats() {
+		return "Trending destinations: " + (this._counts == null ? "not built yet" : "built " + (System.currentTimeMillis() - this._builtAt) / 1000 + " s ago")
+			+ ", " + this._rebuilds + " rebuilds (" + (this._rebuilds == 0 ? 0 : this._rebuildMs / this._rebuilds) + " ms avg)"
+			+ (this._lastError == null ? "" : ", last rebuild failed: " + this._lastError);
+	}
+}
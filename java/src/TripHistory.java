@@ -0,0 +1,159 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * This class lists the trips of one passenger, found by passport, with the
+ * flight's route and airline, the seat, and whether the passenger rated the
+ * flight. Pages are keyset paginated on (departure, bookRef) through the
+ * index created by V008: the last trip of a page is passed back to fetch
+ * the next one, so a deep page of a frequent flyer costs the same as the
+ * first. When Booking is sharded every shard returns its own page and the
+ * earliest trips of all of them make the page. Trips moved to the archive
+ * by BookingArchiver are merged in when the session has one.
+ *
+ */
+
+public class TripHistory{
+	private static final Comparator<List<String>> BY_TRIP = Comparator.comparing((List<String> record) -> LocalDate.parse(record.get(0)))
+		.thenComparing(record -> record.get(1));
+
+	public final String passNum;
+
+	//keyset position: departure and bookRef of the last trip already shown, null for the first page
+	public LocalDate afterDeparture = null;
+	public String afterBookRef = null;
+
+	//the passenger, looked up by the first page
+	private Integer _pID = null;
+
+	public TripHistory(String passNum) {
+		this.passNum = passNum.trim().toUpperCase();
+	}
+
+	/**
+	 * Method to fetch the next page of the passenger's trips. Each record
+	 * holds departure, bookRef, flightNum, origin, destination, airline name,
+	 * seat and "yes" or "no" for whether the passenger rated the flight.
+	 * Ratings are per flight, so a rating counts for every trip on it.
+	 *
+	 * @param esql the database session
+	 * @param limit the maximum number of trips returned
+	 * @return the trips, earliest departure first
+	 * @throws java.sql.SQLException when failed to execute the query or no passenger has the passport
+	 */
+	public List<List<String>> nextPage(AirBooking esql, int limit) throws SQLException {
+		if (this._pID == null) this._pID = esql.getPolicy().read(() -> passenger(esql, esql.getReadConnection()));
+		String query = "SELECT b.departure, trim(b.bookRef), trim(b.flightNum), trim(f.origin), trim(f.destination), trim(a.name), b.seat, "
+			+ "CASE WHEN EXISTS (SELECT 1 FROM Ratings r WHERE r.pID = b.pID AND r.flightNum = b.flightNum) THEN 'yes' ELSE 'no' END "
+			+ "FROM Booking b JOIN Flight f ON f.flightNum = b.flightNum JOIN Airline a ON a.airId = f.airId "
+			+ "WHERE b.pID = ?";
+		if (this.afterDeparture != null) query += " AND (b.departure, b.bookRef) > (?, CAST(? AS CHAR(10)))";
+		query += " ORDER BY b.departure, b.bookRef LIMIT ?";
+
+		String statement = query;
+		List<List<String>> result = new ArrayList<List<String>>();
+		ShardRouter shards = esql.getShards();
+		if (shards == null) {
+			result.addAll(esql.getPolicy().read(() -> fetch(esql, esql.getReadConnection(), statement, limit)));
+		}else{
+			for (int i = 0; i < shards.getShardCount(); i++) {
+				Connection shard = shards.getShard(i);
+				result.addAll(esql.getPolicy().read(() -> fetch(esql, shard, statement, limit)));
+			}
+		}
+		if (esql.getArchive() != null) result.addAll(archived(esql, result, limit));
+		result = ShardRouter.topK(result, BY_TRIP, limit);
+		if (!result.isEmpty()) {
+			List<String> last = result.get(result.size() - 1);
+			this.afterDeparture = LocalDate.parse(last.get(0));
+			this.afterBookRef = last.get(1);
+		}
+		return result;
+	}
+
+	private int passenger(AirBooking esql, Connection connection) throws SQLException {
+		// compared as CHAR(10), a varchar parameter would not use the passNum index
+		PreparedStatement stmt = esql.getPolicy().prepare(connection, "SELECT pID FROM Passenger WHERE passNum = CAST(? AS CHAR(10))", false);
+		stmt.setString(1, this.passNum);
+		try{
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) throw new SQLException("There is no passenger with Passport Number " + this.passNum);
+			return rs.getInt(1);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private List<List<String>> fetch(AirBooking esql, Connection connection, String query, int limit) throws SQLException {
+		PreparedStatement stmt = esql.getPolicy().prepare(connection, query, false);
+		int p = 1;
+		stmt.setInt(p++, this._pID);
+		if (this.afterDeparture != null) {
+			stmt.setDate(p++, Date.valueOf(this.afterDeparture));
+			stmt.setString(p++, this.afterBookRef);
+		}
+		stmt.setInt(p++, limit);
+		List<List<String>> result = ColumnarResult.from(stmt.executeQuery());
+		stmt.close ();
+		return result;
+	}
+
+	// the archived trips after the keyset position, with their flights looked up in one query
+	private List<List<String>> archived(AirBooking esql, List<List<String>> live, int limit) throws SQLException {
+		List<Booking> bookings;
+		Set<Long> rated;
+		try{
+			bookings = esql.getArchive().bookingsOf(this._pID);
+			rated = esql.getArchive().ratedFlightsOf(this._pID);
+		}catch(IOException e){
+			throw new SQLException("Could not read the archive: " + e.getMessage());
+		}
+		// a booking is in both while an interrupted archival run is not finished yet
+		Set<String> seen = new HashSet<String>();
+		for (List<String> record : live) seen.add(record.get(0) + "|" + record.get(1));
+		bookings.removeIf(booking -> seen.contains(booking.departure + "|" + booking.bookRef)
+			|| (this.afterDeparture != null && (booking.departure.isBefore(this.afterDeparture)
+				|| (booking.departure.equals(this.afterDeparture) && booking.bookRef.compareTo(this.afterBookRef) <= 0))));
+		bookings.sort(Comparator.comparing((Booking booking) -> booking.departure).thenComparing(booking -> booking.bookRef));
+		if (bookings.size() > limit) bookings = bookings.subList(0, limit);
+		if (bookings.isEmpty()) return new ArrayList<List<String>>();
+
+		Set<String> flightNums = new HashSet<String>();
+		for (Booking booking : bookings) flightNums.add(booking.getFlightNum());
+		Map<String, List<String>> flights = new HashMap<String, List<String>>();
+		for (List<String> flight : esql.executeQueryAndReturnResult(
+				"SELECT trim(f.flightNum), trim(f.origin), trim(f.destination), trim(a.name) FROM Flight f JOIN Airline a ON a.airId = f.airId "
+				+ "WHERE f.flightNum IN ('" + String.join("', '", flightNums) + "');")) {
+			flights.put(flight.get(0), flight);
+		}
+		Set<String> ratedLive = new HashSet<String>();
+		for (List<String> rating : esql.executeQueryOnAllShardsAndReturnResult(
+				"SELECT DISTINCT trim(flightNum) FROM Ratings WHERE pID = " + this._pID + ";")) {
+			ratedLive.add(rating.get(0));
+		}
+
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Booking booking : bookings) {
+			List<String> flight = flights.get(booking.getFlightNum());
+			boolean reviewed = rated.contains(booking.flightNum) || ratedLive.contains(booking.getFlightNum());
+			// bookings archived before the archive kept seats have none
+			result.add(Arrays.asList(booking.departure.toString(), booking.bookRef, booking.getFlightNum(),
+				flight == null ? null : flight.get(1), flight == null ? null : flight.get(2), flight == null ? null : flight.get(3),
+				booking.seat == null ? null : booking.seat.toString(), reviewed ? "yes" : "no"));
+		}
+		return result;
+	}
+}
@@ -12,5 +12,5 @@ export PGPORT=$1
 #DBNAME
 export DBNAME=flightDB
 
-create_sh=../sql/create.sql
-psql -h 127.0.0.1 -p $PGPORT $DBNAME < $create_sh
+# schema and data are now versioned under sql/migrations
+./migrate.sh $PGPORT $DBNAME
@@ -0,0 +1,41 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PATH TO DATA FOLDER
+export PGDATA=$PGFOLDER/myDB/data
+
+#DATABASE LISTENING PORT
+export PGPORT=$1
+
+#ROW MULTIPLIER FOR THE GENERATED DATASET
+scale=${2:-1}
+
+#SCRATCH DATABASE, dropped and recreated on every run
+export DBNAME=flightDB_explain
+
+# Example: ./explaincheck.sh 7432
+# Migrates a scratch database, scales it up and fails if any menu query
+# is planned with a sequential scan on one of the large tables.
+dropdb -h 127.0.0.1 -p $PGPORT --if-exists $DBNAME
+createdb -h 127.0.0.1 -p $PGPORT $DBNAME || exit 1
+./migrate.sh $PGPORT $DBNAME > /dev/null || exit 1
+psql -h 127.0.0.1 -p $PGPORT -q -v ON_ERROR_STOP=1 -v scale=$scale -f ../sql/explain/scale.sql $DBNAME || exit 1
+
+failures=0
+while IFS='|' read -r label query; do
+	case "$label" in ''|\#*) continue ;; esac
+	plan=$(psql -h 127.0.0.1 -p $PGPORT -t -A -c "EXPLAIN $query" $DBNAME)
+	if echo "$plan" | grep -qiE "Seq Scan on (booking|passenger|flight|ratings)"; then
+		echo "FAIL  option $label"
+		echo "$plan" | sed -e 's/^/      /'
+		failures=$((failures + 1))
+	else
+		echo "ok    option $label"
+	fi
+done < ../sql/explain/menu_queries.txt
+
+dropdb -h 127.0.0.1 -p $PGPORT $DBNAME
+echo "$failures sequential scan(s) found"
+[ $failures -eq 0 ]
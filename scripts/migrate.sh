@@ -0,0 +1,59 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PATH TO DATA FOLDER
+export PGDATA=$PGFOLDER/myDB/data
+
+#DATABASE LISTENING PORT
+export PGPORT=$1
+
+#DBNAME (defaults to flightDB)
+export DBNAME=${2:-flightDB}
+
+#FOLDER HOLDING V<version>__<name>.sql FILES
+migrations=${MIGRATIONS:-../sql/migrations}
+
+psql_cmd="psql -h 127.0.0.1 -p $PGPORT -q -v ON_ERROR_STOP=1 $DBNAME"
+
+# Example: ./migrate.sh 7432
+# Applies every migration newer than the recorded schema version, each one in
+# its own transaction together with its schema_migrations row.
+$psql_cmd -c "CREATE TABLE IF NOT EXISTS schema_migrations(
+	version INTEGER NOT NULL,
+	name TEXT NOT NULL,
+	checksum CHAR(32) NOT NULL,
+	applied_at TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY(version));" || exit 1
+
+# A database built by the old create.sql has the V001 schema and data but no
+# schema_migrations rows; running V001 on it would fail on the existing
+# domains and tables, so it is recorded as applied instead.
+baseline=$(ls $migrations/V001__*.sql)
+$psql_cmd -c "INSERT INTO schema_migrations (version, name, checksum)
+	SELECT 1, '$(basename $baseline .sql | sed -e 's/^V[0-9]*__//')', '$(md5sum $baseline | cut -d' ' -f1)'
+	WHERE to_regclass('public.booking') IS NOT NULL AND NOT EXISTS (SELECT 1 FROM schema_migrations);" || exit 1
+
+for file in $(ls $migrations/V*__*.sql | sort -V); do
+	base=$(basename $file .sql)
+	version=$((10#$(echo $base | sed -e 's/^V\([0-9]*\)__.*/\1/')))
+	name=$(echo $base | sed -e 's/^V[0-9]*__//')
+	checksum=$(md5sum $file | cut -d' ' -f1)
+
+	applied=$($psql_cmd -t -A -c "SELECT checksum FROM schema_migrations WHERE version = $version;")
+	if [ -n "$applied" ]; then
+		# an applied migration must never be edited, add a new one instead
+		if [ "$applied" != "$checksum" ]; then
+			echo "Migration $base was modified after it was applied"
+			exit 1
+		fi
+		continue
+	fi
+
+	echo "Applying $base"
+	{ cat $file; echo; echo "INSERT INTO schema_migrations (version, name, checksum) VALUES ($version, '$name', '$checksum');"; } \
+		| $psql_cmd --single-transaction -f - || exit 1
+done
+
+$psql_cmd -t -A -c "SELECT 'Schema version: ' || COALESCE(MAX(version), 0) FROM schema_migrations;"
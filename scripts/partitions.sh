@@ -0,0 +1,32 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PATH TO DATA FOLDER
+export PGDATA=$PGFOLDER/myDB/data
+
+#DATABASE LISTENING PORT
+export PGPORT=$1
+
+#MONTHS OF FUTURE BOOKING PARTITIONS TO KEEP READY
+ahead=${2:-12}
+
+#MONTHS OF PAST DEPARTURES TO KEEP ATTACHED, empty keeps everything
+retain=$3
+
+#DBNAME
+export DBNAME=flightDB
+
+# Example: ./partitions.sh 7432 12 24
+# Meant to run daily from cron. Detached partitions are dropped, which is far
+# cheaper than DELETE FROM Booking; archive them first if they are still needed.
+psql -h 127.0.0.1 -p $PGPORT -q -t -A -v ON_ERROR_STOP=1 -c "SELECT create_booking_partitions($ahead);" $DBNAME > /dev/null || exit 1
+
+if [ -n "$retain" ]; then
+	for part in $(psql -h 127.0.0.1 -p $PGPORT -t -A -v ON_ERROR_STOP=1 \
+		-c "SELECT detach_booking_partitions((date_trunc('month', current_date) - interval '$retain months')::date);" $DBNAME); do
+		echo "Dropping $part"
+		psql -h 127.0.0.1 -p $PGPORT -q -c "DROP TABLE $part;" $DBNAME
+	done
+fi
@@ -0,0 +1,22 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PATH TO DATA FOLDER
+export PGDATA=$PGFOLDER/myDB/data
+
+#DATABASE LISTENING PORT
+export PGPORT=$1
+
+#HOURS OF CHANGES TO KEEP
+keep=${2:-24}
+
+#DBNAME
+export DBNAME=flightDB
+
+# Example: ./prunechanges.sh 7432 24
+# Listeners only look back into change_log for a few seconds to tell a lost
+# notification from a rolled back one, so old rows can go. Clients with the
+# change feed prune every hour too; run it from cron when none is running.
+psql -h 127.0.0.1 -p $PGPORT -q -v ON_ERROR_STOP=1 -c "SELECT prune_change_log(interval '$keep hours');" $DBNAME
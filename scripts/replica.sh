@@ -0,0 +1,21 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PORT OF THE RUNNING PRIMARY
+primary=$1
+
+#PORT THE NEW REPLICA LISTENS ON
+export PGPORT=$2
+
+#PATH TO THE REPLICA DATA FOLDER
+export PGDATA=$PGFOLDER/myDB/replica_$PGPORT
+
+# Example: ./replica.sh 7432 7433
+# Clones the running primary into a streaming replica and starts it. Run it
+# once per replica, then pass -Dairbooking.replicas=localhost:7433,... to run.sh.
+# Stop it with: pg_ctl -D $PGFOLDER/myDB/replica_7433 stop
+rm -rf $PGDATA
+pg_basebackup -h 127.0.0.1 -p $primary -D $PGDATA -R -X stream || exit 1
+pg_ctl -o "-c unix_socket_directories=$PGFOLDER/myDB/sockets -p $PGPORT" -D $PGDATA -l $PGFOLDER/replica_$PGPORT.log start
@@ -0,0 +1,42 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+
+#PORT OF THE RUNNING, MIGRATED DATABASE, IT BECOMES SHARD 0
+primary=$1
+shift
+
+#PORTS OF THE NEW SHARDS 1, 2, ...
+shards="$@"
+
+#DBNAME
+export DBNAME=flightDB
+
+# Example: ./shards.sh 7432 7442 7452
+# Creates a cluster per extra port with the full schema and data, then keeps
+# on every shard only the Booking and Ratings rows of the airlines it owns
+# (airId mod shard count). Airline, Flight and Passenger stay complete
+# everywhere. Then pass -Dairbooking.shards=localhost:7442,localhost:7452 to run.sh.
+# Stop a shard with: pg_ctl -D $PGFOLDER/myDB/shard_7442 stop
+for port in $shards; do
+	export PGDATA=$PGFOLDER/myDB/shard_$port
+	rm -rf $PGDATA
+	initdb -D $PGDATA > /dev/null || exit 1
+	# the baseline migration loads the csv files from the data folder
+	cp ../data/*.csv $PGDATA/
+	pg_ctl -o "-c unix_socket_directories=$PGFOLDER/myDB/sockets -p $port" -D $PGDATA -l $PGFOLDER/shard_$port.log -w start || exit 1
+	createdb -h 127.0.0.1 -p $port $DBNAME || exit 1
+	./migrate.sh $port $DBNAME || exit 1
+done
+
+count=$(($# + 1))
+index=0
+for port in $primary $shards; do
+	echo "Keeping the bookings and ratings of shard $index of $count on port $port"
+	psql -h 127.0.0.1 -p $port -q -v ON_ERROR_STOP=1 $DBNAME <<SQL || exit 1
+DELETE FROM Booking b USING Flight f WHERE f.flightNum = b.flightNum AND mod(f.airId, $count) <> $index;
+DELETE FROM Ratings r USING Flight f WHERE f.flightNum = r.flightNum AND mod(f.airId, $count) <> $index;
+SQL
+	index=$((index + 1))
+done
@@ -0,0 +1,42 @@
+-- Grows a freshly migrated database to a size where the planner prefers
+-- indexes over sequential scans. :scale multiplies the row counts below.
+
+INSERT INTO Passenger (pID, passNum, fullName, bdate, country)
+SELECT 100000 + i,
+	'P' || lpad(i::text, 9, '0'),
+	'Passenger ' || i,
+	date '1950-01-01' + (i % 20000),
+	'Country' || (i % 150)
+FROM generate_series(1, 50000 * :scale) AS i;
+
+INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration)
+SELECT i % 53,
+	'X' || lpad(i::text, 7, '0'),
+	'City' || (i % 997),
+	'City' || ((i * 7) % 991),
+	'Airbus A320',
+	100 + (i % 300),
+	1 + (i % 20)
+FROM generate_series(1, 20000 * :scale) AS i;
+
+-- monthly Booking partitions for the generated departures
+SELECT create_booking_partition((date '2017-01-01' + m * interval '1 month')::date)
+FROM generate_series(0, 23) AS m;
+
+INSERT INTO Booking (bookRef, departure, flightNum, pID)
+SELECT 'B' || lpad(i::text, 9, '0'),
+	date '2017-01-01' + (i % 730),
+	'X' || lpad((1 + (i / 3) % (20000 * :scale))::text, 7, '0'),
+	100000 + 1 + (i % (50000 * :scale))
+FROM generate_series(1, 200000 * :scale) AS i
+ON CONFLICT DO NOTHING;
+
+INSERT INTO Ratings (rID, pID, flightNum, score, comment)
+SELECT 100000 + i,
+	100000 + 1 + (i % (50000 * :scale)),
+	'X' || lpad((1 + i % (20000 * :scale))::text, 7, '0'),
+	i % 6,
+	'generated review ' || i
+FROM generate_series(1, 50000 * :scale) AS i;
+
+ANALYZE;
@@ -1,18 +1,4 @@
--- DROP STATEMENTS
-DROP INDEX IF EXISTS pIDPassengerIndex;
-DROP INDEX IF EXISTS flightNumIndex;
-DROP INDEX IF EXISTS pIDBookingIndex;
-
-DROP TABLE IF EXISTS Airline CASCADE;
-DROP TABLE IF EXISTS Passenger CASCADE;
-DROP TABLE IF EXISTS Flight CASCADE;
-DROP TABLE IF EXISTS Ratings CASCADE;
-DROP TABLE IF EXISTS Booking CASCADE;
-
-DROP DOMAIN IF EXISTS _YEAR CASCADE;
-DROP DOMAIN IF EXISTS _HOURS CASCADE;
-DROP DOMAIN IF EXISTS _SEATS CASCADE;
-DROP DOMAIN IF EXISTS _SCORE CASCADE;
+-- V001: baseline schema and initial data load (formerly create.sql)
 
 -- CREATE DOMAINS
 CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1900);--YEAR ONLY GREATER THAN 1900
@@ -75,8 +61,14 @@ CREATE TABLE Booking(
 );
 
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
-DROP USER IF EXISTS username;
-CREATE USER username WITH PASSWORD '';
+--(roles are cluster wide, so only create it the first time)
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'username') THEN
+		CREATE USER username WITH PASSWORD '';
+	END IF;
+END
+$$;
 --GRANT USER PRIVELEGES TO ACCESS THE TABLES
 GRANT ALL PRIVILEGES ON TABLE Airline TO username;
 GRANT ALL PRIVILEGES ON TABLE Passenger TO username;
@@ -135,9 +127,3 @@ COPY Booking (
 FROM 'bookings.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Booking;
-
-CREATE INDEX pIDPassengerIndex ON Passenger(pID);
-CREATE INDEX flightNumIndex ON Flight(flightNum);
-CREATE INDEX pIDBookingIndex ON Booking(pid);
-
-
@@ -0,0 +1,20 @@
+-- V002: indexes backing the menu queries
+
+-- Passenger(pID) and Flight(flightNum) are already covered by their primary keys
+DROP INDEX IF EXISTS pIDPassengerIndex;
+DROP INDEX IF EXISTS flightNumIndex;
+
+-- Booking(pID) backs the foreign key and per-passenger lookups
+CREATE INDEX IF NOT EXISTS pIDBookingIndex ON Booking(pID);
+
+-- Options 2, 3, 5 and 8: WHERE origin = ? AND destination = ? [ORDER BY duration]
+CREATE INDEX flightRouteIndex ON Flight(origin, destination, duration);
+
+-- Option 9 and BookFlight: seats taken on a flight for a given date
+CREATE INDEX bookingFlightDepartureIndex ON Booking(flightNum, departure);
+
+-- Option 9: does anything depart on this date
+CREATE INDEX bookingDepartureIndex ON Booking(departure);
+
+-- Option 7: AVG(score) GROUP BY flightNum can be answered from the index alone
+CREATE INDEX ratingsFlightNumIndex ON Ratings(flightNum, score);
@@ -0,0 +1,83 @@
+-- V003: range partition Booking by departure month
+--
+-- A partitioned table can only enforce keys that contain the partition key,
+-- so the primary key becomes (bookRef, departure). UNIQUE(departure, flightNum, pID)
+-- already contains it and is kept as is.
+
+CREATE TABLE Booking_partitioned(
+	bookRef CHAR(10) NOT NULL,
+	departure DATE NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	pID INTEGER NOT NULL
+) PARTITION BY RANGE (departure);
+
+-- catches departures no monthly partition has been created for yet
+CREATE TABLE booking_default PARTITION OF Booking_partitioned DEFAULT;
+
+INSERT INTO Booking_partitioned (bookRef, departure, flightNum, pID)
+SELECT bookRef, departure, flightNum, pID FROM Booking;
+
+DROP TABLE Booking;
+ALTER TABLE Booking_partitioned RENAME TO Booking;
+
+ALTER TABLE Booking ADD PRIMARY KEY(bookRef, departure);
+ALTER TABLE Booking ADD FOREIGN KEY (flightNum) REFERENCES Flight(flightNum);
+ALTER TABLE Booking ADD FOREIGN KEY (pID) REFERENCES Passenger(pID);
+ALTER TABLE Booking ADD UNIQUE(departure, flightNum, pID);
+
+CREATE INDEX pIDBookingIndex ON Booking(pID);
+CREATE INDEX bookingFlightDepartureIndex ON Booking(flightNum, departure);
+CREATE INDEX bookingDepartureIndex ON Booking(departure);
+
+GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+
+-- Creates the partition holding every departure in the month of day, moving
+-- any of its rows out of the default partition first. Returns the partition name.
+CREATE FUNCTION create_booking_partition(day DATE) RETURNS TEXT AS $$
+DECLARE
+	lo DATE := date_trunc('month', day)::date;
+	hi DATE := (date_trunc('month', day) + interval '1 month')::date;
+	part TEXT := 'booking_' || to_char(day, 'YYYY_MM');
+BEGIN
+	IF to_regclass(part) IS NOT NULL THEN
+		RETURN part;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE Booking INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part);
+	EXECUTE format('WITH moved AS (DELETE FROM booking_default WHERE departure >= %L AND departure < %L RETURNING *) '
+		|| 'INSERT INTO %I SELECT * FROM moved', lo, hi, part);
+	EXECUTE format('ALTER TABLE Booking ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', part, lo, hi);
+	RETURN part;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Makes sure partitions exist from the current month through months ahead.
+CREATE FUNCTION create_booking_partitions(months INTEGER) RETURNS INTEGER AS $$
+BEGIN
+	PERFORM create_booking_partition((date_trunc('month', current_date) + m * interval '1 month')::date)
+	FROM generate_series(0, months) AS m;
+	RETURN months + 1;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches every monthly partition that ends on or before day and returns
+-- their names. The detached tables keep their rows until they are dropped or archived.
+CREATE FUNCTION detach_booking_partitions(day DATE) RETURNS SETOF TEXT AS $$
+DECLARE
+	part TEXT;
+BEGIN
+	FOR part IN
+		SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = 'booking'::regclass AND c.relname ~ '^booking_[0-9]{4}_[0-9]{2}$'
+		AND to_date(substr(c.relname, 9), 'YYYY_MM') + interval '1 month' <= day
+		ORDER BY c.relname
+	LOOP
+		EXECUTE format('ALTER TABLE Booking DETACH PARTITION %I', part);
+		RETURN NEXT part;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- one partition per month already booked, plus a year ahead
+SELECT create_booking_partition(month)
+FROM unnest((SELECT array_agg(DISTINCT date_trunc('month', departure)::date) FROM booking_default)) AS month;
+SELECT create_booking_partitions(12);
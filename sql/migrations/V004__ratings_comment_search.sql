@@ -0,0 +1,5 @@
+-- V004: full text search over Ratings.comment
+--
+-- Expression index, so queries must use the exact same expression:
+--   to_tsvector('english', COALESCE(comment, '')) @@ plainto_tsquery('english', ?)
+CREATE INDEX ratingsCommentSearchIndex ON Ratings USING GIN (to_tsvector('english', COALESCE(comment, '')));
@@ -0,0 +1,54 @@
+-- V005: change data feed for Booking, Ratings, Flight and Passenger
+--
+-- Every row change is appended to change_log and published on the
+-- airbooking_changes channel as one tab separated line:
+--   seq, table, op (I/U/D), the row's key fields [, the old key fields for U]
+-- Listeners apply these in commit order and replay change_log when they
+-- find they missed one.
+
+CREATE TABLE change_log(
+	seq BIGSERIAL NOT NULL,
+	payload TEXT NOT NULL,
+	changed_at TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY(seq)
+);
+
+GRANT SELECT ON TABLE change_log TO username;
+
+-- TG_ARGV[0] is the logical table name (Booking triggers fire on its
+-- partitions), the other arguments the columns published for it.
+CREATE FUNCTION publish_change() RETURNS trigger AS $$
+DECLARE
+	new_fields TEXT := NULL;
+	old_fields TEXT := NULL;
+	payload TEXT;
+	entry BIGINT;
+BEGIN
+	IF TG_OP <> 'DELETE' THEN
+		SELECT string_agg(COALESCE(trim(to_jsonb(NEW) ->> col), ''), E'\t' ORDER BY i) INTO new_fields
+		FROM unnest(TG_ARGV[1:TG_NARGS - 1]) WITH ORDINALITY AS args(col, i);
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		SELECT string_agg(COALESCE(trim(to_jsonb(OLD) ->> col), ''), E'\t' ORDER BY i) INTO old_fields
+		FROM unnest(TG_ARGV[1:TG_NARGS - 1]) WITH ORDINALITY AS args(col, i);
+	END IF;
+
+	payload := TG_ARGV[0] || E'\t' || left(TG_OP, 1) || E'\t' || COALESCE(new_fields, old_fields);
+	IF TG_OP = 'UPDATE' THEN
+		payload := payload || E'\t' || old_fields;
+	END IF;
+
+	INSERT INTO change_log (payload) VALUES (payload) RETURNING seq INTO entry;
+	PERFORM pg_notify('airbooking_changes', entry || E'\t' || payload);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER bookingChanges AFTER INSERT OR UPDATE OR DELETE ON Booking
+	FOR EACH ROW EXECUTE PROCEDURE publish_change('booking', 'bookref', 'departure', 'flightnum', 'pid');
+CREATE TRIGGER ratingsChanges AFTER INSERT OR UPDATE OR DELETE ON Ratings
+	FOR EACH ROW EXECUTE PROCEDURE publish_change('ratings', 'rid', 'flightnum', 'pid', 'score');
+CREATE TRIGGER flightChanges AFTER INSERT OR UPDATE OR DELETE ON Flight
+	FOR EACH ROW EXECUTE PROCEDURE publish_change('flight', 'flightnum', 'airid', 'origin', 'destination', 'seats');
+CREATE TRIGGER passengerChanges AFTER INSERT OR UPDATE OR DELETE ON Passenger
+	FOR EACH ROW EXECUTE PROCEDURE publish_change('passenger', 'pid', 'passnum', 'country');
@@ -0,0 +1,92 @@
+-- V006: booking counts pre-aggregated by departure month, destination,
+-- passenger country and airline
+--
+-- booking_cube holds one row per combination that has bookings. Statement
+-- triggers fold every write to Booking into it in the writing transaction,
+-- so the cube is always exact and a report reads it instead of joining
+-- Booking, Flight and Passenger. Changing a flight's destination or airline,
+-- or a passenger's country, moves their bookings to the new cells. Cells
+-- that drop to zero, and the counts of partitions dropped by partitions.sh,
+-- are kept until the next rebuild (java BookingCube).
+
+CREATE TABLE booking_cube(
+	month DATE NOT NULL,
+	destination CHAR(16) NOT NULL,
+	country CHAR(24) NOT NULL,
+	airId INTEGER NOT NULL,
+	bookings INTEGER NOT NULL,
+	PRIMARY KEY(month, destination, country, airId)
+);
+
+INSERT INTO booking_cube (month, destination, country, airId, bookings)
+SELECT date_trunc('month', b.departure)::date, f.destination, p.country, f.airId, count(*)
+FROM Booking b JOIN Flight f ON f.flightNum = b.flightNum JOIN Passenger p ON p.pID = b.pID
+GROUP BY 1, 2, 3, 4;
+
+GRANT ALL PRIVILEGES ON TABLE booking_cube TO username;
+
+-- the transition tables hold all rows of the statement, so a group booking
+-- is one upsert per cell instead of one per row
+CREATE FUNCTION count_bookings() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		UPDATE booking_cube c SET bookings = c.bookings - d.bookings
+		FROM (SELECT date_trunc('month', o.departure)::date AS month, f.destination, p.country, f.airId, count(*) AS bookings
+			FROM old_rows o JOIN Flight f ON f.flightNum = o.flightNum JOIN Passenger p ON p.pID = o.pID
+			GROUP BY 1, 2, 3, 4) d
+		WHERE c.month = d.month AND c.destination = d.destination AND c.country = d.country AND c.airId = d.airId;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO booking_cube (month, destination, country, airId, bookings)
+		SELECT date_trunc('month', n.departure)::date, f.destination, p.country, f.airId, count(*)
+		FROM new_rows n JOIN Flight f ON f.flightNum = n.flightNum JOIN Passenger p ON p.pID = n.pID
+		GROUP BY 1, 2, 3, 4
+		ON CONFLICT (month, destination, country, airId) DO UPDATE SET bookings = booking_cube.bookings + EXCLUDED.bookings;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER bookingCubeInsert AFTER INSERT ON Booking
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_bookings();
+CREATE TRIGGER bookingCubeUpdate AFTER UPDATE ON Booking
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_bookings();
+CREATE TRIGGER bookingCubeDelete AFTER DELETE ON Booking
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_bookings();
+
+-- moves the bookings of one flight or passenger from its old cells to its new ones
+CREATE FUNCTION recount_bookings() RETURNS trigger AS $$
+BEGIN
+	IF TG_TABLE_NAME = 'flight' THEN
+		UPDATE booking_cube c SET bookings = c.bookings - d.bookings
+		FROM (SELECT date_trunc('month', b.departure)::date AS month, p.country, count(*) AS bookings
+			FROM Booking b JOIN Passenger p ON p.pID = b.pID WHERE b.flightNum = OLD.flightNum
+			GROUP BY 1, 2) d
+		WHERE c.month = d.month AND c.destination = OLD.destination AND c.country = d.country AND c.airId = OLD.airId;
+		INSERT INTO booking_cube (month, destination, country, airId, bookings)
+		SELECT date_trunc('month', b.departure)::date, NEW.destination, p.country, NEW.airId, count(*)
+		FROM Booking b JOIN Passenger p ON p.pID = b.pID WHERE b.flightNum = NEW.flightNum
+		GROUP BY 1, 3
+		ON CONFLICT (month, destination, country, airId) DO UPDATE SET bookings = booking_cube.bookings + EXCLUDED.bookings;
+	ELSE
+		UPDATE booking_cube c SET bookings = c.bookings - d.bookings
+		FROM (SELECT date_trunc('month', b.departure)::date AS month, f.destination, f.airId, count(*) AS bookings
+			FROM Booking b JOIN Flight f ON f.flightNum = b.flightNum WHERE b.pID = OLD.pID
+			GROUP BY 1, 2, 3) d
+		WHERE c.month = d.month AND c.destination = d.destination AND c.country = OLD.country AND c.airId = d.airId;
+		INSERT INTO booking_cube (month, destination, country, airId, bookings)
+		SELECT date_trunc('month', b.departure)::date, f.destination, NEW.country, f.airId, count(*)
+		FROM Booking b JOIN Flight f ON f.flightNum = b.flightNum WHERE b.pID = NEW.pID
+		GROUP BY 1, 2, 4
+		ON CONFLICT (month, destination, country, airId) DO UPDATE SET bookings = booking_cube.bookings + EXCLUDED.bookings;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER flightCubeUpdate AFTER UPDATE OF destination, airId ON Flight
+	FOR EACH ROW WHEN (OLD.destination IS DISTINCT FROM NEW.destination OR OLD.airId IS DISTINCT FROM NEW.airId)
+	EXECUTE PROCEDURE recount_bookings();
+CREATE TRIGGER passengerCubeUpdate AFTER UPDATE OF country ON Passenger
+	FOR EACH ROW WHEN (OLD.country IS DISTINCT FROM NEW.country)
+	EXECUTE PROCEDURE recount_bookings();
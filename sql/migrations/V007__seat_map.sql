@@ -0,0 +1,91 @@
+-- V007: seat assignment for bookings
+--
+-- Every booking gets a seat, 1 to the flight's seats. SeatMap holds the
+-- taken seats of one flight and departure as a 64 byte bitmap (_SEATS is
+-- below 500, so it always fits), seat n being bit n - 1 in get_bit order.
+-- The client picks seats from the bitmap; a trigger on Booking checks the
+-- seat and sets or clears its bit in the writing transaction, and picks
+-- the lowest free seat for writers that leave it NULL.
+
+ALTER TABLE Booking ADD COLUMN seat SMALLINT CHECK (seat > 0);
+
+CREATE TABLE SeatMap(
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	taken BYTEA NOT NULL CHECK (length(taken) = 64),
+	PRIMARY KEY(flightNum, departure),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
+);
+
+GRANT ALL PRIVILEGES ON TABLE SeatMap TO username;
+
+-- existing bookings are seated in bookRef order, ones beyond the flight's seats stay unseated
+UPDATE Booking b SET seat = s.seat
+FROM (SELECT k.bookRef, k.departure, f.seats,
+		row_number() OVER (PARTITION BY k.flightNum, k.departure ORDER BY k.bookRef) AS seat
+	FROM Booking k JOIN Flight f ON f.flightNum = k.flightNum) s
+WHERE b.bookRef = s.bookRef AND b.departure = s.departure AND s.seat <= s.seats;
+
+CREATE FUNCTION seat_bits(seats SMALLINT[]) RETURNS BYTEA AS $$
+DECLARE
+	bits BYTEA := decode(repeat('00', 64), 'hex');
+	seat SMALLINT;
+BEGIN
+	FOREACH seat IN ARRAY seats LOOP
+		bits := set_bit(bits, seat - 1, 1);
+	END LOOP;
+	RETURN bits;
+END;
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+INSERT INTO SeatMap (flightNum, departure, taken)
+SELECT flightNum, departure, seat_bits(array_agg(seat)) FROM Booking WHERE seat IS NOT NULL GROUP BY flightNum, departure;
+
+ALTER TABLE Booking ADD UNIQUE(departure, flightNum, seat);
+
+CREATE FUNCTION assign_seat() RETURNS trigger AS $$
+DECLARE
+	capacity INTEGER;
+	bits BYTEA;
+	i INTEGER := 0;
+BEGIN
+	IF TG_OP <> 'INSERT' AND OLD.seat IS NOT NULL THEN
+		UPDATE SeatMap SET taken = set_bit(taken, OLD.seat - 1, 0)
+		WHERE flightNum = OLD.flightNum AND departure = OLD.departure;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		RETURN OLD;
+	END IF;
+
+	-- the flight before its seat map, in the order GroupBooking locks them
+	SELECT seats INTO capacity FROM Flight WHERE flightNum = NEW.flightNum FOR KEY SHARE;
+	INSERT INTO SeatMap (flightNum, departure, taken) VALUES (NEW.flightNum, NEW.departure, seat_bits('{}'))
+	ON CONFLICT DO NOTHING;
+	SELECT taken INTO bits FROM SeatMap WHERE flightNum = NEW.flightNum AND departure = NEW.departure FOR UPDATE;
+
+	IF NEW.seat IS NULL THEN
+		-- skip the full bytes, then the taken seats of the first one that is not
+		WHILE i < capacity AND get_byte(bits, i / 8) = 255 LOOP
+			i := i + 8;
+		END LOOP;
+		WHILE i < capacity AND get_bit(bits, i) = 1 LOOP
+			i := i + 1;
+		END LOOP;
+		IF i >= capacity THEN
+			RAISE EXCEPTION 'Flight % is full on %', trim(NEW.flightNum), NEW.departure USING ERRCODE = 'check_violation';
+		END IF;
+		NEW.seat := i + 1;
+	ELSIF NEW.seat > capacity THEN
+		RAISE EXCEPTION 'Flight % has no seat %', trim(NEW.flightNum), NEW.seat USING ERRCODE = 'check_violation';
+	ELSIF get_bit(bits, NEW.seat - 1) = 1 THEN
+		RAISE EXCEPTION 'Seat % of flight % is taken on %', NEW.seat, trim(NEW.flightNum), NEW.departure USING ERRCODE = 'unique_violation';
+	END IF;
+
+	UPDATE SeatMap SET taken = set_bit(bits, NEW.seat - 1, 1)
+	WHERE flightNum = NEW.flightNum AND departure = NEW.departure;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bookingSeat BEFORE INSERT OR DELETE OR UPDATE OF seat ON Booking
+	FOR EACH ROW EXECUTE PROCEDURE assign_seat();
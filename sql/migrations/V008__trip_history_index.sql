@@ -0,0 +1,9 @@
+-- V008: indexes backing the trip history (TripHistory, menu option 14)
+
+-- a passenger's bookings in (departure, bookRef) order, so every keyset page
+-- starts with an index seek; its pID prefix also serves what pIDBookingIndex did
+CREATE INDEX bookingPassengerHistoryIndex ON Booking(pID, departure, bookRef);
+DROP INDEX IF EXISTS pIDBookingIndex;
+
+-- has this passenger rated the flight of a trip
+CREATE INDEX ratingsPassengerFlightIndex ON Ratings(pID, flightNum);
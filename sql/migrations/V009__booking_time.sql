@@ -0,0 +1,16 @@
+-- V009: when a booking was made, for the trending destinations (menu option 15)
+--
+-- Bookings made before this migration keep a NULL bookedAt, their booking
+-- time is unknown; new ones get the time of their insert. The change feed
+-- publishes it as the booking's fifth field so listeners count the booking
+-- in the hour it was made.
+
+ALTER TABLE Booking ADD COLUMN bookedAt TIMESTAMP WITH TIME ZONE;
+ALTER TABLE Booking ALTER COLUMN bookedAt SET DEFAULT now();
+
+-- the rebuild only reads the last 30 days of it
+CREATE INDEX bookingBookedAtIndex ON Booking(bookedAt);
+
+DROP TRIGGER bookingChanges ON Booking;
+CREATE TRIGGER bookingChanges AFTER INSERT OR UPDATE OR DELETE ON Booking
+	FOR EACH ROW EXECUTE PROCEDURE publish_change('booking', 'bookref', 'departure', 'flightnum', 'pid', 'bookedat');
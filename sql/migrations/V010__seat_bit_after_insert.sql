@@ -0,0 +1,89 @@
+-- V010: set seat bits only for bookings that were really inserted
+--
+-- V007 set a booking's SeatMap bit in a BEFORE INSERT trigger, but Postgres
+-- runs BEFORE triggers ahead of ON CONFLICT resolution: every booking an
+-- INSERT ... ON CONFLICT DO NOTHING skipped (a journal replay, a reload of
+-- bookings.csv) still took its seat, for good. The BEFORE trigger now only
+-- picks and checks the seat; an AFTER trigger, which never fires for a
+-- skipped row, sets and clears the bits.
+--
+-- AFTER row triggers run at the end of their statement, so a statement
+-- inserting several bookings of one departure would find the bits of its
+-- earlier rows still clear. Those rows are already visible in Booking, so
+-- the seat is also checked there, through the (departure, flightNum, seat)
+-- index.
+
+DROP TRIGGER bookingSeat ON Booking;
+
+-- whether a seat is taken, by the map or by a row the current statement inserted
+CREATE FUNCTION seat_taken(bits BYTEA, f CHAR(8), d DATE, s INTEGER) RETURNS BOOLEAN AS $$
+BEGIN
+	RETURN get_bit(bits, s - 1) = 1
+		OR EXISTS (SELECT 1 FROM Booking WHERE departure = d AND flightNum = f AND seat = s);
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION assign_seat() RETURNS trigger AS $$
+DECLARE
+	capacity INTEGER;
+	bits BYTEA;
+	i INTEGER := 0;
+BEGIN
+	IF TG_OP = 'UPDATE' AND NEW.seat IS NOT DISTINCT FROM OLD.seat THEN
+		RETURN NEW;
+	END IF;
+
+	-- the flight before its seat map, in the order GroupBooking locks them
+	SELECT seats INTO capacity FROM Flight WHERE flightNum = NEW.flightNum FOR KEY SHARE;
+	INSERT INTO SeatMap (flightNum, departure, taken) VALUES (NEW.flightNum, NEW.departure, seat_bits('{}'))
+	ON CONFLICT DO NOTHING;
+	SELECT taken INTO bits FROM SeatMap WHERE flightNum = NEW.flightNum AND departure = NEW.departure FOR UPDATE;
+
+	IF NEW.seat IS NULL THEN
+		-- skip the full bytes, then the taken seats of the first one that is not
+		LOOP
+			WHILE i < capacity AND get_byte(bits, i / 8) = 255 LOOP
+				i := i + 8;
+			END LOOP;
+			WHILE i < capacity AND get_bit(bits, i) = 1 LOOP
+				i := i + 1;
+			END LOOP;
+			EXIT WHEN i >= capacity OR NOT seat_taken(bits, NEW.flightNum, NEW.departure, i + 1);
+			i := i + 1;
+		END LOOP;
+		IF i >= capacity THEN
+			RAISE EXCEPTION 'Flight % is full on %', trim(NEW.flightNum), NEW.departure USING ERRCODE = 'check_violation';
+		END IF;
+		NEW.seat := i + 1;
+	ELSIF NEW.seat > capacity THEN
+		RAISE EXCEPTION 'Flight % has no seat %', trim(NEW.flightNum), NEW.seat USING ERRCODE = 'check_violation';
+	ELSIF seat_taken(bits, NEW.flightNum, NEW.departure, NEW.seat) THEN
+		RAISE EXCEPTION 'Seat % of flight % is taken on %', NEW.seat, trim(NEW.flightNum), NEW.departure USING ERRCODE = 'unique_violation';
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION mark_seat() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' AND OLD.seat IS NOT NULL THEN
+		UPDATE SeatMap SET taken = set_bit(taken, OLD.seat - 1, 0)
+		WHERE flightNum = OLD.flightNum AND departure = OLD.departure;
+	END IF;
+	IF TG_OP <> 'DELETE' AND NEW.seat IS NOT NULL THEN
+		UPDATE SeatMap SET taken = set_bit(taken, NEW.seat - 1, 1)
+		WHERE flightNum = NEW.flightNum AND departure = NEW.departure;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bookingSeat BEFORE INSERT OR UPDATE OF seat ON Booking
+	FOR EACH ROW EXECUTE PROCEDURE assign_seat();
+CREATE TRIGGER bookingSeatTaken AFTER INSERT OR DELETE OR UPDATE OF seat ON Booking
+	FOR EACH ROW EXECUTE PROCEDURE mark_seat();
+
+-- the bits skipped inserts leaked, rebuilt from the bookings that exist
+LOCK TABLE Booking IN SHARE MODE;
+UPDATE SeatMap s SET taken = (SELECT seat_bits(COALESCE(array_agg(b.seat), '{}')) FROM Booking b
+	WHERE b.flightNum = s.flightNum AND b.departure = s.departure AND b.seat IS NOT NULL);
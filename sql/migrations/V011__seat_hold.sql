@@ -0,0 +1,177 @@
+-- V011: seats held for journaled bookings
+--
+-- The booking journal acknowledges a booking before it is in Booking, so
+-- the seat has to be taken in the database first or another client (a
+-- group booking, a plain BookFlight, another app node) could take it in
+-- between. hold_seat() takes the seat's bit in SeatMap and records the
+-- hold under the same locks the Booking trigger takes; the held seat and
+-- the passenger count as booked for every other writer. When the journal
+-- drains the booking, the Booking trigger accepts the held seat and drops
+-- the hold. release_seat() gives back a hold whose booking will never be
+-- written.
+--
+-- holder names the journal that took the hold, so a journal restarting
+-- after a crash can release the holds it never journaled.
+
+CREATE TABLE SeatHold(
+	bookRef CHAR(10) NOT NULL,
+	departure DATE NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	pID INTEGER NOT NULL,
+	seat SMALLINT NOT NULL CHECK (seat > 0),
+	holder TEXT NOT NULL,
+	heldAt TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now(),
+	PRIMARY KEY(bookRef, departure),
+	UNIQUE(departure, flightNum, pID),
+	UNIQUE(departure, flightNum, seat),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
+	FOREIGN KEY (pID) REFERENCES Passenger(pID)
+);
+
+CREATE INDEX seatHoldHolderIndex ON SeatHold(holder);
+
+GRANT ALL PRIVILEGES ON TABLE SeatHold TO username;
+
+-- the seat held, or NULL when the bookRef is already used on that date
+CREATE FUNCTION hold_seat(ref CHAR(10), d DATE, f CHAR(8), p INTEGER, h TEXT) RETURNS SMALLINT AS $$
+DECLARE
+	capacity INTEGER;
+	bits BYTEA;
+	i INTEGER := 0;
+BEGIN
+	-- the flight before its seat map, in the order GroupBooking and the Booking trigger lock them
+	SELECT seats INTO capacity FROM Flight WHERE flightNum = f FOR KEY SHARE;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'There is no flight %', trim(f) USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	INSERT INTO SeatMap (flightNum, departure, taken) VALUES (f, d, seat_bits('{}')) ON CONFLICT DO NOTHING;
+	SELECT taken INTO bits FROM SeatMap WHERE flightNum = f AND departure = d FOR UPDATE;
+
+	-- with the map locked no booking or hold of this departure can appear meanwhile
+	IF EXISTS (SELECT 1 FROM Booking WHERE departure = d AND flightNum = f AND pID = p)
+		OR EXISTS (SELECT 1 FROM SeatHold WHERE departure = d AND flightNum = f AND pID = p) THEN
+		RAISE EXCEPTION 'The passenger is already booked on flight % on %', trim(f), d USING ERRCODE = 'unique_violation';
+	END IF;
+	IF EXISTS (SELECT 1 FROM Booking WHERE departure = d AND bookRef = ref)
+		OR EXISTS (SELECT 1 FROM SeatHold WHERE departure = d AND bookRef = ref) THEN
+		RETURN NULL;
+	END IF;
+
+	LOOP
+		WHILE i < capacity AND get_byte(bits, i / 8) = 255 LOOP
+			i := i + 8;
+		END LOOP;
+		WHILE i < capacity AND get_bit(bits, i) = 1 LOOP
+			i := i + 1;
+		END LOOP;
+		EXIT WHEN i >= capacity OR NOT seat_taken(bits, f, d, i + 1);
+		i := i + 1;
+	END LOOP;
+	IF i >= capacity THEN
+		RAISE EXCEPTION 'Flight % is full on %', trim(f), d USING ERRCODE = 'check_violation';
+	END IF;
+
+	UPDATE SeatMap SET taken = set_bit(bits, i, 1) WHERE flightNum = f AND departure = d;
+	INSERT INTO SeatHold (bookRef, departure, flightNum, pID, seat, holder) VALUES (ref, d, f, p, i + 1, h);
+	RETURN i + 1;
+END;
+$$ LANGUAGE plpgsql;
+
+-- true when the hold was given back, false when there was none (its booking was written, or it was released before)
+CREATE FUNCTION release_seat(ref CHAR(10), d DATE) RETURNS BOOLEAN AS $$
+DECLARE
+	f CHAR(8);
+	s SMALLINT;
+BEGIN
+	SELECT flightNum INTO f FROM SeatHold WHERE departure = d AND bookRef = ref;
+	IF NOT FOUND THEN
+		RETURN FALSE;
+	END IF;
+	PERFORM 1 FROM Flight WHERE flightNum = f FOR KEY SHARE;
+	PERFORM 1 FROM SeatMap WHERE flightNum = f AND departure = d FOR UPDATE;
+	DELETE FROM SeatHold WHERE departure = d AND bookRef = ref RETURNING seat INTO s;
+	IF NOT FOUND THEN
+		RETURN FALSE;
+	END IF;
+	UPDATE SeatMap SET taken = set_bit(taken, s - 1, 0) WHERE flightNum = f AND departure = d;
+	RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+-- V010's trigger, which also lets a booking take the seat held for it and
+-- keeps everyone else off the held seats and passengers
+CREATE OR REPLACE FUNCTION assign_seat() RETURNS trigger AS $$
+DECLARE
+	capacity INTEGER;
+	bits BYTEA;
+	i INTEGER := 0;
+	held SMALLINT := NULL;
+BEGIN
+	IF TG_OP = 'UPDATE' AND NEW.seat IS NOT DISTINCT FROM OLD.seat THEN
+		RETURN NEW;
+	END IF;
+
+	-- the flight before its seat map, in the order GroupBooking locks them
+	SELECT seats INTO capacity FROM Flight WHERE flightNum = NEW.flightNum FOR KEY SHARE;
+	INSERT INTO SeatMap (flightNum, departure, taken) VALUES (NEW.flightNum, NEW.departure, seat_bits('{}'))
+	ON CONFLICT DO NOTHING;
+	SELECT taken INTO bits FROM SeatMap WHERE flightNum = NEW.flightNum AND departure = NEW.departure FOR UPDATE;
+
+	IF TG_OP = 'INSERT' THEN
+		SELECT seat INTO held FROM SeatHold WHERE departure = NEW.departure AND bookRef = NEW.bookRef
+			AND flightNum = NEW.flightNum AND pID = NEW.pID;
+		IF held IS NULL AND EXISTS (SELECT 1 FROM SeatHold WHERE departure = NEW.departure
+				AND flightNum = NEW.flightNum AND pID = NEW.pID) THEN
+			RAISE EXCEPTION 'The passenger is already booked on flight % on %', trim(NEW.flightNum), NEW.departure
+				USING ERRCODE = 'unique_violation';
+		END IF;
+	END IF;
+
+	IF held IS NOT NULL THEN
+		IF NEW.seat IS NOT NULL AND NEW.seat <> held THEN
+			RAISE EXCEPTION 'Booking % holds seat %, not %', NEW.bookRef, held, NEW.seat USING ERRCODE = 'check_violation';
+		END IF;
+		-- its bit is already taken, by the hold
+		NEW.seat := held;
+	ELSIF NEW.seat IS NULL THEN
+		-- skip the full bytes, then the taken seats of the first one that is not
+		LOOP
+			WHILE i < capacity AND get_byte(bits, i / 8) = 255 LOOP
+				i := i + 8;
+			END LOOP;
+			WHILE i < capacity AND get_bit(bits, i) = 1 LOOP
+				i := i + 1;
+			END LOOP;
+			EXIT WHEN i >= capacity OR NOT seat_taken(bits, NEW.flightNum, NEW.departure, i + 1);
+			i := i + 1;
+		END LOOP;
+		IF i >= capacity THEN
+			RAISE EXCEPTION 'Flight % is full on %', trim(NEW.flightNum), NEW.departure USING ERRCODE = 'check_violation';
+		END IF;
+		NEW.seat := i + 1;
+	ELSIF NEW.seat > capacity THEN
+		RAISE EXCEPTION 'Flight % has no seat %', trim(NEW.flightNum), NEW.seat USING ERRCODE = 'check_violation';
+	ELSIF seat_taken(bits, NEW.flightNum, NEW.departure, NEW.seat) THEN
+		RAISE EXCEPTION 'Seat % of flight % is taken on %', NEW.seat, trim(NEW.flightNum), NEW.departure USING ERRCODE = 'unique_violation';
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION mark_seat() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' AND OLD.seat IS NOT NULL THEN
+		UPDATE SeatMap SET taken = set_bit(taken, OLD.seat - 1, 0)
+		WHERE flightNum = OLD.flightNum AND departure = OLD.departure;
+	END IF;
+	IF TG_OP <> 'DELETE' AND NEW.seat IS NOT NULL THEN
+		UPDATE SeatMap SET taken = set_bit(taken, NEW.seat - 1, 1)
+		WHERE flightNum = NEW.flightNum AND departure = NEW.departure;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		-- the booking holds the seat itself now
+		DELETE FROM SeatHold WHERE departure = NEW.departure AND bookRef = NEW.bookRef;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,66 @@
+-- V012: bounded change_log and fewer notifications for bulk writes
+--
+-- change_log only grew. prune_change_log() deletes the rows older than a
+-- retention interval; listeners call it periodically and prunechanges.sh
+-- from cron. A listener that finds change_log no longer reaching back to
+-- its watermark resyncs, as it always did.
+--
+-- Every row change used to send its own NOTIFY, so a bulk load, an
+-- archival run or a schedule import queued one notification per row. A
+-- transaction now notifies its first 100 changes one by one as before;
+-- past that it sends 'bulk<TAB>txid' instead, which Postgres delivers once
+-- per transaction since identical payloads of one transaction are folded,
+-- and listeners read the rest of that transaction's changes from
+-- change_log by txid.
+
+ALTER TABLE change_log ADD COLUMN txid BIGINT NOT NULL DEFAULT txid_current();
+
+CREATE INDEX changeLogTxidIndex ON change_log(txid);
+CREATE INDEX changeLogChangedAtIndex ON change_log(changed_at);
+
+CREATE FUNCTION prune_change_log(keep INTERVAL) RETURNS BIGINT AS $$
+DECLARE
+	pruned BIGINT;
+BEGIN
+	DELETE FROM change_log WHERE changed_at < now() - keep;
+	GET DIAGNOSTICS pruned = ROW_COUNT;
+	RETURN pruned;
+END;
+$$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = public;
+
+GRANT EXECUTE ON FUNCTION prune_change_log(INTERVAL) TO username;
+
+CREATE OR REPLACE FUNCTION publish_change() RETURNS trigger AS $$
+DECLARE
+	new_fields TEXT := NULL;
+	old_fields TEXT := NULL;
+	payload TEXT;
+	entry BIGINT;
+	published INTEGER;
+BEGIN
+	IF TG_OP <> 'DELETE' THEN
+		SELECT string_agg(COALESCE(trim(to_jsonb(NEW) ->> col), ''), E'\t' ORDER BY i) INTO new_fields
+		FROM unnest(TG_ARGV[1:TG_NARGS - 1]) WITH ORDINALITY AS args(col, i);
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		SELECT string_agg(COALESCE(trim(to_jsonb(OLD) ->> col), ''), E'\t' ORDER BY i) INTO old_fields
+		FROM unnest(TG_ARGV[1:TG_NARGS - 1]) WITH ORDINALITY AS args(col, i);
+	END IF;
+
+	payload := TG_ARGV[0] || E'\t' || left(TG_OP, 1) || E'\t' || COALESCE(new_fields, old_fields);
+	IF TG_OP = 'UPDATE' THEN
+		payload := payload || E'\t' || old_fields;
+	END IF;
+
+	INSERT INTO change_log (payload) VALUES (payload) RETURNING seq INTO entry;
+	-- counted per transaction, a rolled back savepoint takes its changes and its count back
+	published := COALESCE(NULLIF(current_setting('airbooking.published', true), ''), '0')::INTEGER + 1;
+	PERFORM set_config('airbooking.published', published::TEXT, true);
+	IF published <= 100 THEN
+		PERFORM pg_notify('airbooking_changes', entry || E'\t' || payload);
+	ELSE
+		PERFORM pg_notify('airbooking_changes', 'bulk' || E'\t' || txid_current());
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = public;